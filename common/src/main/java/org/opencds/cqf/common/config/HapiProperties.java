@@ -77,6 +77,40 @@ public class HapiProperties {
     static final String CDSHOOKS_FHIRSERVER_SEARCHSTYLE= "cds_hooks.fhirServer.searchStyle";
     static final String CDSHOOKS_PREFETCH_MAXURILENGTH= "cds_hooks.prefetch.maxUriLength";
 
+    static final String MEASURE_EVALUATION_PARALLELISM = "measure_evaluation.parallelism";
+    static final String MEASURE_EVALUATION_MAX_THREADS = "measure_evaluation.max_threads";
+    static final String MEASURE_EVALUATION_PATIENT_PAGE_SIZE = "measure_evaluation.patient_page_size";
+    static final String MEASURE_EVALUATION_SHARED_EXPRESSION_CACHE = "measure_evaluation.shared_expression_cache";
+    static final String MEASURE_EVALUATION_PREFETCH_CHUNK_SIZE = "measure_evaluation.prefetch_chunk_size";
+    static final String MEASURE_EVALUATION_PREFETCH_QUEUE_SIZE = "measure_evaluation.prefetch_queue_size";
+    static final String MEASURE_EVALUATION_PREFETCH_MAX_RESOURCES = "measure_evaluation.prefetch_max_resources";
+    static final String MEASURE_EVALUATION_PREFETCH_THREADS = "measure_evaluation.prefetch_threads";
+    static final String MEASURE_EVALUATION_INCREMENTAL = "measure_evaluation.incremental";
+    static final String MEASURE_EVALUATION_INCREMENTAL_TRANSACTION_MARGIN = "measure_evaluation.incremental_transaction_margin";
+    static final String MEASURE_EVALUATION_EVALUATED_RESOURCES = "measure_evaluation.evaluated_resources";
+    static final String MEASURE_EVALUATION_EVALUATED_RESOURCES_MAX_IDS = "measure_evaluation.evaluated_resources_max_ids";
+    static final String MEASURE_EVALUATION_EVALUATED_RESOURCES_SPILL_THRESHOLD = "measure_evaluation.evaluated_resources_spill_threshold";
+    static final String MEASURE_EVALUATION_CONTAIN_OBSERVATIONS = "measure_evaluation.contain_observations";
+    static final String COLLECT_DATA_REFERENCE_DEPTH = "collect_data.reference_depth";
+    static final String SUBMIT_DATA_BATCH_SIZE = "submit_data.batch_size";
+    static final String SUBMIT_DATA_PARALLELISM = "submit_data.parallelism";
+    static final String SUBMIT_DATA_MAX_THREADS = "submit_data.max_threads";
+    static final String LIBRARY_CACHE_MAX_SOURCE_BYTES = "library_cache.max_source_bytes";
+    static final String ELM_DIRECT_CONVERSION = "elm.direct_conversion";
+    static final String ELM_USE_PRECOMPILED = "elm.use_precompiled";
+    static final String MEASURE_PLAN_CACHE_MAX_SIZE = "measure_plan_cache.max_size";
+    static final String MEASURE_REPORT_CACHE_MAX_SIZE = "measure_report_cache.max_size";
+    static final String MEASURE_REPORT_CACHE_EXPIRE_AFTER = "measure_report_cache.expire_after";
+    static final String ASYNC_JOBS_THREADS = "async_jobs.threads";
+    static final String ASYNC_JOBS_QUEUE_SIZE = "async_jobs.queue_size";
+    static final String ASYNC_JOBS_LEASE_TIMEOUT = "async_jobs.lease_timeout";
+    static final String ASYNC_JOBS_RETENTION = "async_jobs.retention";
+
+    static final String MEASURE_SHARDS_WORKER = "measure_shards.worker";
+    static final String MEASURE_SHARDS_POLL_INTERVAL = "measure_shards.poll_interval";
+    static final String MEASURE_SHARDS_LEASE_TIMEOUT = "measure_shards.lease_timeout";
+    static final String MEASURE_SHARDS_TIMEOUT = "measure_shards.timeout";
+
     private static Properties properties;
 
     /*
@@ -479,4 +513,139 @@ public class HapiProperties {
         return SearchStyleEnum.GET;
     }
     public static Integer getCdsHooksPreFetchMaxUriLength() { return HapiProperties.getIntegerProperty(CDSHOOKS_PREFETCH_MAXURILENGTH, 8000);}
+
+    // ************************* MEASURE_EVALUATION ****************
+    public static Integer getMeasureEvaluationParallelism() {
+        return HapiProperties.getIntegerProperty(MEASURE_EVALUATION_PARALLELISM, 1);
+    }
+
+    public static Integer getMeasureEvaluationMaxThreads() {
+        return HapiProperties.getIntegerProperty(MEASURE_EVALUATION_MAX_THREADS, 8);
+    }
+
+    public static Integer getMeasureEvaluationPatientPageSize() {
+        return HapiProperties.getIntegerProperty(MEASURE_EVALUATION_PATIENT_PAGE_SIZE, 500);
+    }
+
+    public static Boolean getMeasureEvaluationSharedExpressionCache() {
+        return HapiProperties.getBooleanProperty(MEASURE_EVALUATION_SHARED_EXPRESSION_CACHE, true);
+    }
+
+    public static Integer getMeasureEvaluationPrefetchChunkSize() {
+        return HapiProperties.getIntegerProperty(MEASURE_EVALUATION_PREFETCH_CHUNK_SIZE, 100);
+    }
+
+    public static Integer getMeasureEvaluationPrefetchQueueSize() {
+        return HapiProperties.getIntegerProperty(MEASURE_EVALUATION_PREFETCH_QUEUE_SIZE, 2);
+    }
+
+    public static Integer getMeasureEvaluationPrefetchMaxResources() {
+        return HapiProperties.getIntegerProperty(MEASURE_EVALUATION_PREFETCH_MAX_RESOURCES, 50000);
+    }
+
+    public static Integer getMeasureEvaluationPrefetchThreads() {
+        return HapiProperties.getIntegerProperty(MEASURE_EVALUATION_PREFETCH_THREADS, 4);
+    }
+
+    public static Boolean getMeasureEvaluationIncremental() {
+        return HapiProperties.getBooleanProperty(MEASURE_EVALUATION_INCREMENTAL, false);
+    }
+
+    public static Integer getMeasureEvaluationIncrementalTransactionMargin() {
+        return HapiProperties.getIntegerProperty(MEASURE_EVALUATION_INCREMENTAL_TRANSACTION_MARGIN, 60000);
+    }
+
+    public static String getMeasureEvaluationEvaluatedResources() {
+        return HapiProperties.getProperty(MEASURE_EVALUATION_EVALUATED_RESOURCES, "full");
+    }
+
+    public static Integer getMeasureEvaluationEvaluatedResourcesSpillThreshold() {
+        return HapiProperties.getIntegerProperty(MEASURE_EVALUATION_EVALUATED_RESOURCES_SPILL_THRESHOLD, 100000);
+    }
+
+    public static Integer getMeasureEvaluationEvaluatedResourcesMaxIds() {
+        return HapiProperties.getIntegerProperty(MEASURE_EVALUATION_EVALUATED_RESOURCES_MAX_IDS, 10000);
+    }
+
+    public static Boolean getMeasureEvaluationContainObservations() {
+        return HapiProperties.getBooleanProperty(MEASURE_EVALUATION_CONTAIN_OBSERVATIONS, false);
+    }
+
+    // ************************* COLLECT_DATA ****************
+    public static Integer getCollectDataReferenceDepth() {
+        return HapiProperties.getIntegerProperty(COLLECT_DATA_REFERENCE_DEPTH, 1);
+    }
+
+    // ************************* SUBMIT_DATA ****************
+    public static Integer getSubmitDataBatchSize() {
+        return HapiProperties.getIntegerProperty(SUBMIT_DATA_BATCH_SIZE, 0);
+    }
+
+    public static Integer getSubmitDataParallelism() {
+        return HapiProperties.getIntegerProperty(SUBMIT_DATA_PARALLELISM, 4);
+    }
+
+    public static Integer getSubmitDataMaxThreads() {
+        return HapiProperties.getIntegerProperty(SUBMIT_DATA_MAX_THREADS, 8);
+    }
+
+    // ************************* LIBRARY_LOADING ****************
+    public static Integer getLibraryCacheMaxSourceBytes() {
+        return HapiProperties.getIntegerProperty(LIBRARY_CACHE_MAX_SOURCE_BYTES, 10000000);
+    }
+
+    public static Boolean getElmDirectConversion() {
+        return HapiProperties.getBooleanProperty(ELM_DIRECT_CONVERSION, true);
+    }
+
+    public static Boolean getElmUsePrecompiled() {
+        return HapiProperties.getBooleanProperty(ELM_USE_PRECOMPILED, true);
+    }
+
+    public static Integer getMeasurePlanCacheMaxSize() {
+        return HapiProperties.getIntegerProperty(MEASURE_PLAN_CACHE_MAX_SIZE, 100);
+    }
+
+    // ************************* MEASURE_REPORT_CACHE ****************
+    public static Integer getMeasureReportCacheMaxSize() {
+        return HapiProperties.getIntegerProperty(MEASURE_REPORT_CACHE_MAX_SIZE, 10000);
+    }
+
+    public static Integer getMeasureReportCacheExpireAfter() {
+        return HapiProperties.getIntegerProperty(MEASURE_REPORT_CACHE_EXPIRE_AFTER, 3600000);
+    }
+
+    // ************************* ASYNC_JOBS ****************
+    public static Integer getAsyncJobsThreads() {
+        return HapiProperties.getIntegerProperty(ASYNC_JOBS_THREADS, 2);
+    }
+
+    public static Integer getAsyncJobsQueueSize() {
+        return HapiProperties.getIntegerProperty(ASYNC_JOBS_QUEUE_SIZE, 10);
+    }
+
+    public static Integer getAsyncJobsLeaseTimeout() {
+        return HapiProperties.getIntegerProperty(ASYNC_JOBS_LEASE_TIMEOUT, 300000);
+    }
+
+    public static Integer getAsyncJobsRetention() {
+        return HapiProperties.getIntegerProperty(ASYNC_JOBS_RETENTION, 604800000);
+    }
+
+    // ************************* MEASURE_SHARDS ****************
+    public static Boolean getMeasureShardsWorker() {
+        return HapiProperties.getBooleanProperty(MEASURE_SHARDS_WORKER, false);
+    }
+
+    public static Integer getMeasureShardsPollInterval() {
+        return HapiProperties.getIntegerProperty(MEASURE_SHARDS_POLL_INTERVAL, 2000);
+    }
+
+    public static Integer getMeasureShardsLeaseTimeout() {
+        return HapiProperties.getIntegerProperty(MEASURE_SHARDS_LEASE_TIMEOUT, 300000);
+    }
+
+    public static Integer getMeasureShardsTimeout() {
+        return HapiProperties.getIntegerProperty(MEASURE_SHARDS_TIMEOUT, 14400000);
+    }
 }
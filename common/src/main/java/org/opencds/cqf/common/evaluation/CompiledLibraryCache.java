@@ -0,0 +1,144 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import org.cqframework.cql.elm.execution.IncludeDef;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.opencds.cqf.common.config.HapiProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Process-wide cache of compiled (ELM) libraries shared by every
+ * {@link LibraryLoader}. Entries are keyed by library name, version and a hash
+ * of the library source, so an edited library is never served stale, and are
+ * weighed by the size of that source in bytes (which the size of the ELM
+ * follows) for eviction once library_cache.max_source_bytes is reached. Invalidating a library
+ * also drops the libraries that include it.
+ */
+public class CompiledLibraryCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(CompiledLibraryCache.class);
+
+    private static final CompiledLibraryCache instance = new CompiledLibraryCache(
+            HapiProperties.getLibraryCacheMaxSourceBytes());
+
+    private final Cache<String, CompiledLibrary> cache;
+    // The names of the libraries that include each library
+    private final ConcurrentHashMap<String, Set<String>> dependents = new ConcurrentHashMap<>();
+
+    public CompiledLibraryCache(long maximumWeight) {
+        this.cache = CacheBuilder.newBuilder().maximumWeight(maximumWeight)
+                .weigher((String key, CompiledLibrary value) -> value.weight).recordStats().build();
+    }
+
+    public static CompiledLibraryCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Returns the compiled library for the given identifier and source, compiling
+     * it with {@code compiler} if it is not cached. Concurrent requests for the
+     * same library wait for a single compilation.
+     */
+    public Library get(VersionedIdentifier libraryIdentifier, byte[] source, Callable<Library> compiler) {
+        try {
+            return this.cache.get(key(libraryIdentifier.getId(), libraryIdentifier.getVersion(), source), () -> {
+                Library library = compiler.call();
+                addDependent(libraryIdentifier.getId(), library);
+                return new CompiledLibrary(library, source.length);
+            }).library;
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Removes every cached version of the named library, and of the libraries
+     * that include it (directly or not), since their ELM was translated against
+     * the included library as it was.
+     */
+    public void invalidate(String libraryName) {
+        if (libraryName == null) {
+            return;
+        }
+
+        Set<String> names = getDependents(libraryName);
+        if (this.cache.asMap().keySet().removeIf(key -> names.contains(key.substring(0, key.indexOf('|'))))) {
+            logger.info("Invalidated compiled libraries {}", names);
+        }
+    }
+
+    /**
+     * The named library and the names of the libraries that include it, directly
+     * or not, as far as the libraries compiled so far tell.
+     */
+    public Set<String> getDependents(String libraryName) {
+        Set<String> names = new HashSet<>();
+        Deque<String> pending = new ArrayDeque<>();
+        pending.add(libraryName);
+        while (!pending.isEmpty()) {
+            String name = pending.poll();
+            if (names.add(name)) {
+                pending.addAll(this.dependents.getOrDefault(name, Collections.emptySet()));
+            }
+        }
+        return names;
+    }
+
+    public void invalidateAll() {
+        this.cache.invalidateAll();
+        this.dependents.clear();
+    }
+
+    public CacheStats getStats() {
+        return this.cache.stats();
+    }
+
+    public long size() {
+        return this.cache.size();
+    }
+
+    private void addDependent(String libraryName, Library library) {
+        if (library == null || library.getIncludes() == null) {
+            return;
+        }
+
+        for (IncludeDef include : library.getIncludes().getDef()) {
+            if (include.getPath() != null) {
+                this.dependents.computeIfAbsent(include.getPath(), x -> ConcurrentHashMap.newKeySet()).add(libraryName);
+            }
+        }
+    }
+
+    private static String key(String id, String version, byte[] source) {
+        return id + "|" + version + "|" + Hashing.sha256().hashBytes(source).toString();
+    }
+
+    private static class CompiledLibrary {
+        private final Library library;
+        private final int weight;
+
+        private CompiledLibrary(Library library, int weight) {
+            this.library = library;
+            this.weight = Math.max(1, weight);
+        }
+    }
+}
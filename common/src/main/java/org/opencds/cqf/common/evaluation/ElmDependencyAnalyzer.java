@@ -0,0 +1,200 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.cqframework.cql.elm.execution.Element;
+import org.cqframework.cql.elm.execution.ExpressionDef;
+import org.cqframework.cql.elm.execution.ExpressionRef;
+import org.cqframework.cql.elm.execution.FunctionDef;
+import org.cqframework.cql.elm.execution.FunctionRef;
+import org.cqframework.cql.elm.execution.IncludeDef;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.Retrieve;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.opencds.cqf.cql.engine.execution.LibraryLoader;
+
+/**
+ * Classifies the expression definitions of a library (and the libraries it
+ * includes) as patient-dependent or not. A definition depends on the patient if
+ * it retrieves data in the Patient context or references a definition or
+ * function that does. Everything else (parameter derived values, code and
+ * valueset constants, Unfiltered context aggregates) evaluates to the same result
+ * for every patient in a measure run.
+ */
+public class ElmDependencyAnalyzer {
+
+    private static final String ELM_PACKAGE = Element.class.getPackage().getName();
+    private static final Set<String> UNFILTERED_CONTEXTS = new HashSet<>(Arrays.asList("Unfiltered", "Population"));
+    private static final Map<Class<?>, List<Method>> childAccessors = new ConcurrentHashMap<>();
+
+    private final LibraryLoader libraryLoader;
+    private final Map<String, Boolean> dependent = new HashMap<>();
+    private final Set<String> inProgress = new HashSet<>();
+
+    private ElmDependencyAnalyzer(LibraryLoader libraryLoader) {
+        this.libraryLoader = libraryLoader;
+    }
+
+    /**
+     * Returns the expression cache keys (see
+     * {@link MeasureEvaluationContext}) of the definitions that do not depend on
+     * the Patient context.
+     */
+    public static Set<String> findPatientIndependentExpressions(Library library, LibraryLoader libraryLoader) {
+        ElmDependencyAnalyzer analyzer = new ElmDependencyAnalyzer(libraryLoader);
+        Set<String> independent = new HashSet<>();
+        analyzer.collectIndependent(library, independent, new HashSet<>());
+        return independent;
+    }
+
+    private void collectIndependent(Library library, Set<String> independent, Set<String> visitedLibraries) {
+        if (!visitedLibraries.add(libraryKey(library.getIdentifier()))) {
+            return;
+        }
+
+        for (ExpressionDef def : getDefs(library)) {
+            if (!(def instanceof FunctionDef) && !isPatientDependent(library, def)) {
+                independent.add(MeasureEvaluationContext.cacheKey(library.getIdentifier(), def.getName()));
+            }
+        }
+
+        if (library.getIncludes() != null) {
+            for (IncludeDef include : library.getIncludes().getDef()) {
+                collectIndependent(resolveInclude(library, include.getLocalIdentifier()), independent,
+                        visitedLibraries);
+            }
+        }
+    }
+
+    private boolean isPatientDependent(Library library, ExpressionDef def) {
+        String key = libraryKey(library.getIdentifier()) + "|" + (def instanceof FunctionDef ? "function:" : "")
+                + def.getName();
+        Boolean result = this.dependent.get(key);
+        if (result != null) {
+            return result;
+        }
+
+        // References are not recursive in CQL, but be conservative if they are
+        if (!this.inProgress.add(key)) {
+            return true;
+        }
+
+        boolean unfiltered = !(def instanceof FunctionDef) && UNFILTERED_CONTEXTS.contains(def.getContext());
+        try {
+            result = dependsOnPatient(library, def.getExpression(), unfiltered);
+        } catch (ReflectiveOperationException e) {
+            result = true;
+        }
+
+        this.inProgress.remove(key);
+        this.dependent.put(key, result);
+        return result;
+    }
+
+    private boolean dependsOnPatient(Library library, Object node, boolean unfiltered)
+            throws ReflectiveOperationException {
+        if (node == null) {
+            return false;
+        }
+
+        if (node instanceof Collection) {
+            for (Object child : (Collection<?>) node) {
+                if (dependsOnPatient(library, child, unfiltered)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        if (!(node instanceof Element)) {
+            return false;
+        }
+
+        // Retrieves in a function body run in the caller's context, so only
+        // Unfiltered expression definitions retrieve independently of the patient.
+        if (node instanceof Retrieve && !unfiltered) {
+            return true;
+        }
+
+        if (node instanceof ExpressionRef && referencesPatientDependentDef(library, (ExpressionRef) node)) {
+            return true;
+        }
+
+        for (Method accessor : getChildAccessors(node.getClass())) {
+            if (dependsOnPatient(library, accessor.invoke(node), unfiltered)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private boolean referencesPatientDependentDef(Library library, ExpressionRef ref) {
+        Library target = ref.getLibraryName() == null ? library : resolveInclude(library, ref.getLibraryName());
+        boolean isFunction = ref instanceof FunctionRef;
+
+        boolean found = false;
+        for (ExpressionDef def : getDefs(target)) {
+            if (def.getName().equals(ref.getName()) && (def instanceof FunctionDef) == isFunction) {
+                found = true;
+                // Overloads are not resolved here, so any dependent overload counts
+                if (isPatientDependent(target, def)) {
+                    return true;
+                }
+            }
+        }
+
+        return !found;
+    }
+
+    private Library resolveInclude(Library library, String localIdentifier) {
+        if (library.getIncludes() != null) {
+            for (IncludeDef include : library.getIncludes().getDef()) {
+                if (include.getLocalIdentifier().equals(localIdentifier)) {
+                    return this.libraryLoader.load(
+                            new VersionedIdentifier().withId(include.getPath()).withVersion(include.getVersion()));
+                }
+            }
+        }
+
+        throw new IllegalArgumentException(String.format("Could not resolve library reference %s in library %s",
+                localIdentifier, library.getIdentifier().getId()));
+    }
+
+    private static List<ExpressionDef> getDefs(Library library) {
+        return library.getStatements() == null ? Collections.<ExpressionDef>emptyList()
+                : library.getStatements().getDef();
+    }
+
+    private static List<Method> getChildAccessors(Class<?> type) {
+        return childAccessors.computeIfAbsent(type, x -> {
+            List<Method> accessors = new ArrayList<>();
+            for (Method method : x.getMethods()) {
+                if (method.getParameterCount() == 0 && method.getName().startsWith("get")
+                        && !Modifier.isStatic(method.getModifiers())
+                        && method.getDeclaringClass().getPackage() != null
+                        && method.getDeclaringClass().getPackage().getName().equals(ELM_PACKAGE)
+                        && (Element.class.isAssignableFrom(method.getReturnType())
+                                || Collection.class.isAssignableFrom(method.getReturnType()))) {
+                    accessors.add(method);
+                }
+            }
+            return accessors;
+        });
+    }
+
+    private static String libraryKey(VersionedIdentifier identifier) {
+        return identifier.getId() + "|" + identifier.getVersion();
+    }
+}
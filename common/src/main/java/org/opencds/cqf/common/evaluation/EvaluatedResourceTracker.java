@@ -0,0 +1,94 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.io.Closeable;
+import java.util.function.Consumer;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.opencds.cqf.cql.engine.execution.Context;
+
+/**
+ * Collects the ids of the resources the CQL engine evaluated for a report, in
+ * a {@link SpillableIdSet} that spills to temp files past a threshold. In none
+ * mode nothing is collected. The resources themselves are never
+ * kept, the {@link EvaluatedResourcesMode} only decides how the ids end up in
+ * the report.
+ */
+public class EvaluatedResourceTracker implements Closeable {
+
+    private final EvaluatedResourcesMode mode;
+    private final int spillThreshold;
+    private final SpillableIdSet ids;
+
+    /**
+     * @param spillThreshold the number of ids held in memory before they are
+     *                       spilled to a temp file
+     */
+    public EvaluatedResourceTracker(EvaluatedResourcesMode mode, int spillThreshold) {
+        this.mode = mode;
+        this.spillThreshold = spillThreshold;
+        this.ids = mode != EvaluatedResourcesMode.NONE ? new SpillableIdSet(spillThreshold) : null;
+    }
+
+    public EvaluatedResourcesMode getMode() {
+        return this.mode;
+    }
+
+    public EvaluatedResourceTracker copyEmpty() {
+        return new EvaluatedResourceTracker(this.mode, this.spillThreshold);
+    }
+
+    /**
+     * Records the ids of the resources the engine evaluated since the last call
+     * and clears them from {@code context}. In none mode they are only cleared.
+     */
+    public void record(Context context) {
+        if (this.ids != null) {
+            for (Object evaluated : context.getEvaluatedResources()) {
+                if (evaluated instanceof IBaseResource) {
+                    IIdType idElement = ((IBaseResource) evaluated).getIdElement();
+                    add((idElement.getResourceType() != null ? (idElement.getResourceType() + "/") : "")
+                            + idElement.getIdPart());
+                }
+            }
+        }
+
+        context.clearEvaluatedResources();
+    }
+
+    public void add(String id) {
+        if (this.ids != null) {
+            this.ids.add(id);
+        }
+    }
+
+    public void merge(EvaluatedResourceTracker other) {
+        if (this.ids != null && other.ids != null) {
+            this.ids.addAll(other.ids);
+        }
+    }
+
+    public boolean isEmpty() {
+        return this.ids == null || this.ids.isEmpty();
+    }
+
+    /**
+     * Hands the id of each evaluated resource to {@code action}, once, in sorted
+     * order.
+     */
+    public void forEachId(Consumer<String> action) {
+        if (this.ids != null) {
+            this.ids.forEach(action);
+        }
+    }
+
+    /**
+     * Deletes the ids spilled to disk.
+     */
+    @Override
+    public void close() {
+        if (this.ids != null) {
+            this.ids.close();
+        }
+    }
+}
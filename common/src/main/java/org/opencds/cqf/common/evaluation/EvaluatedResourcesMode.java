@@ -0,0 +1,69 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.opencds.cqf.common.config.HapiProperties;
+
+/**
+ * How much of the resources the CQL engine touched while evaluating a measure
+ * is tracked for the evaluatedResource element of the report.
+ */
+public enum EvaluatedResourcesMode {
+    FULL("full", "The evaluated resources are kept, by population, for the whole run"),
+
+    IDS("ids", "Only the ids of the evaluated resources are kept, spilling to disk when there are many, and listed"
+            + " in a List the report contains"),
+
+    NONE("none", "Evaluated resources are not tracked");
+
+    private String code;
+    private String definition;
+
+    EvaluatedResourcesMode(String code, String definition) {
+        this.code = code;
+        this.definition = definition;
+    }
+
+    private static final Map<String, EvaluatedResourcesMode> lookup = new HashMap<>();
+
+    static {
+        for (EvaluatedResourcesMode mode : EvaluatedResourcesMode.values()) {
+            lookup.put(mode.toCode(), mode);
+        }
+    }
+
+    public static EvaluatedResourcesMode fromCode(String code) {
+        if (code != null && !code.isEmpty()) {
+            return lookup.get(code.trim().toLowerCase());
+        }
+
+        return null;
+    }
+
+    /**
+     * Resolves the mode for a request, falling back to the configured
+     * measure_evaluation.evaluated_resources when the request does not specify
+     * one.
+     */
+    public static EvaluatedResourcesMode resolve(String requestedMode) {
+        String code = requestedMode == null || requestedMode.isEmpty()
+                ? HapiProperties.getMeasureEvaluationEvaluatedResources()
+                : requestedMode;
+        EvaluatedResourcesMode mode = fromCode(code);
+        if (mode == null) {
+            throw new IllegalArgumentException(
+                    String.format("evaluatedResources must be one of full, ids or none, found: %s", code));
+        }
+
+        return mode;
+    }
+
+    public String toCode() {
+        return this.code;
+    }
+
+    public String getDefinition() {
+        return this.definition;
+    }
+}
@@ -0,0 +1,50 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Counts the patients an evaluation has processed, for reporting the progress
+ * of long running (asynchronous) requests. May be updated from several worker
+ * threads.
+ */
+public class EvaluationProgress {
+
+    private final AtomicInteger processed = new AtomicInteger();
+    private final Consumer<EvaluationProgress> listener;
+    private volatile Integer total;
+
+    /**
+     * @param listener notified on the updating thread after each change
+     */
+    public EvaluationProgress(Consumer<EvaluationProgress> listener) {
+        this.listener = listener;
+    }
+
+    public int getProcessed() {
+        return this.processed.get();
+    }
+
+    /**
+     * The number of patients to process, or null if not known.
+     */
+    public Integer getTotal() {
+        return this.total;
+    }
+
+    public void setTotal(Integer total) {
+        this.total = total;
+        this.listener.accept(this);
+    }
+
+    public void patientProcessed() {
+        this.processed.incrementAndGet();
+        this.listener.accept(this);
+    }
+
+    @Override
+    public String toString() {
+        return this.total == null ? String.format("%d patients processed", this.getProcessed())
+                : String.format("%d of %d patients processed", this.getProcessed(), this.total);
+    }
+}
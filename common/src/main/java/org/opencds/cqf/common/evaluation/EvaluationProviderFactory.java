@@ -1,6 +1,7 @@
 package org.opencds.cqf.common.evaluation;
 
 import org.opencds.cqf.cql.engine.data.DataProvider;
+import org.opencds.cqf.cql.engine.model.ModelResolver;
 import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
 
 // TODO: This interface is a partial duplicate of the provider factory interface
@@ -12,6 +13,15 @@ public interface EvaluationProviderFactory {
 
     public DataProvider createDataProvider(String model, String version, TerminologyProvider terminologyProvider);
 
+    /**
+     * Creates a data provider that resolves the model with {@code modelResolver},
+     * which can be shared by data providers used on different threads.
+     */
+    public DataProvider createDataProvider(String model, String version, TerminologyProvider terminologyProvider,
+            ModelResolver modelResolver);
+
+    public ModelResolver createModelResolver(String model, String version);
+
     public TerminologyProvider createTerminologyProvider(String model, String version, String url, String user,
             String pass);
 }
\ No newline at end of file
@@ -0,0 +1,34 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts expression cache hits and misses across all of the execution Contexts
+ * used by a single measure evaluation run.
+ */
+public class ExpressionCacheStatistics {
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public void recordHit() {
+        this.hits.incrementAndGet();
+    }
+
+    public void recordMiss() {
+        this.misses.incrementAndGet();
+    }
+
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d hits, %d misses", this.getHits(), this.getMisses());
+    }
+}
@@ -0,0 +1,73 @@
+package org.opencds.cqf.common.evaluation;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.opencds.cqf.common.helpers.TransactionHelper;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+
+/**
+ * Drops the compiled versions of a Library, and of the libraries including it,
+ * from the {@link CompiledLibraryCache} when the Library resource is updated or
+ * deleted, and the {@link MeasurePlanCache} plans of the Measures whose logic
+ * includes it when it is created, updated or deleted: a new Library may be a
+ * newer version of one an include without a version resolved to.
+ * <p>
+ * Libraries compiled between the pre-commit hook and the commit read the old
+ * Library, so they are dropped again once the change is committed.
+ */
+@Interceptor
+public class LibraryCacheInvalidationInterceptor {
+
+    private final FhirContext fhirContext;
+
+    public LibraryCacheInvalidationInterceptor(FhirContext fhirContext) {
+        this.fhirContext = fhirContext;
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+    public void resourceCreated(IBaseResource theResource) {
+        // A new Library may be the one a reference now resolves to
+        if (isLibrary(theResource)) {
+            String name = getName(theResource);
+            TransactionHelper.runNowAndAfterCompletion(() -> MeasurePlanCache.getInstance().invalidate(name));
+        }
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+    public void resourceUpdated(IBaseResource theOldResource, IBaseResource theNewResource) {
+        invalidate(theOldResource);
+        invalidate(theNewResource);
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+    public void resourceDeleted(IBaseResource theResource) {
+        invalidate(theResource);
+    }
+
+    private void invalidate(IBaseResource resource) {
+        if (!isLibrary(resource)) {
+            return;
+        }
+
+        String name = getName(resource);
+        TransactionHelper.runNowAndAfterCompletion(() -> {
+            // The plans first, they find the libraries including it in the
+            // compiled library cache
+            MeasurePlanCache.getInstance().invalidate(name);
+            CompiledLibraryCache.getInstance().invalidate(name);
+        });
+    }
+
+    private String getName(IBaseResource library) {
+        return this.fhirContext.newTerser().getValues(library, "name", IPrimitiveType.class).stream()
+                .map(IPrimitiveType::getValueAsString).findFirst().orElse(null);
+    }
+
+    private boolean isLibrary(IBaseResource resource) {
+        return resource != null && "Library".equals(this.fhirContext.getResourceDefinition(resource).getName());
+    }
+}
@@ -2,17 +2,26 @@ package org.opencds.cqf.common.evaluation;
 
 import static org.opencds.cqf.common.helpers.TranslatorHelper.errorsToString;
 import static org.opencds.cqf.common.helpers.TranslatorHelper.getTranslator;
+import static org.opencds.cqf.common.helpers.TranslatorHelper.readJsonLibrary;
 import static org.opencds.cqf.common.helpers.TranslatorHelper.readLibrary;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.xml.bind.JAXBException;
 
+import org.apache.commons.io.IOUtils;
 import org.cqframework.cql.cql2elm.CqlTranslator;
 import org.cqframework.cql.cql2elm.CqlTranslatorException;
 import org.cqframework.cql.cql2elm.CqlTranslatorOptions;
@@ -20,15 +29,30 @@ import org.cqframework.cql.cql2elm.LibraryManager;
 import org.cqframework.cql.cql2elm.ModelManager;
 import org.cqframework.cql.elm.execution.Library;
 import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.helpers.ElmExecutionModelConverter;
+import org.opencds.cqf.common.providers.LibrarySourceProvider;
+import org.opencds.cqf.common.providers.LibrarySourceProvider.ElmContent;
+import org.opencds.cqf.common.providers.LibrarySourceProvider.LibraryContent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class LibraryLoader implements org.opencds.cqf.cql.engine.execution.LibraryLoader {
 
     private LibraryManager libraryManager;
     private ModelManager modelManager;
+    private LibrarySourceProvider<?, ?> elmSourceProvider;
     private Map<String, Library> libraries = new HashMap<>();
 
-    // private static final Logger logger =
-    // LoggerFactory.getLogger(LibraryLoader.class);
+    private static final Logger logger = LoggerFactory.getLogger(LibraryLoader.class);
+
+    private static final Pattern TRANSLATOR_OPTIONS = Pattern.compile("translatorOptions\"?\\s*[=:]\\s*\"([^\"]*)\"");
+    private static final Pattern TRANSLATOR_VERSION = Pattern.compile("translatorVersion\"?\\s*[=:]\\s*\"([^\"]*)\"");
+    // Options that only add information to the ELM or restrict the CQL syntax
+    private static final Set<String> METADATA_OPTIONS = new HashSet<>(Arrays.asList("EnableAnnotations",
+            "EnableLocators", "EnableResultTypes", "EnableDetailedErrors", "DisableMethodInvocation"));
+    private static final String TRANSLATOR_VERSION_IN_USE = CqlTranslator.class.getPackage()
+            .getImplementationVersion();
 
     public Collection<Library> getLibraries() {
         return this.libraries.values();
@@ -43,11 +67,23 @@ public class LibraryLoader implements org.opencds.cqf.cql.engine.execution.Libra
     }
 
     public LibraryLoader(LibraryManager libraryManager, ModelManager modelManager) {
+        this(libraryManager, modelManager, null);
+    }
+
+    /**
+     * @param elmSourceProvider provides the CQL and the pre-compiled ELM stored
+     *                          on Library resources, read together; the ELM is
+     *                          used instead of translating the CQL when it was
+     *                          compiled with compatible options
+     */
+    public LibraryLoader(LibraryManager libraryManager, ModelManager modelManager,
+            LibrarySourceProvider<?, ?> elmSourceProvider) {
         this.libraryManager = libraryManager;
         this.modelManager = modelManager;
+        this.elmSourceProvider = elmSourceProvider;
     }
 
-    private Library resolveLibrary(VersionedIdentifier libraryIdentifier) {
+    private synchronized Library resolveLibrary(VersionedIdentifier libraryIdentifier) {
         if (libraryIdentifier == null) {
             throw new IllegalArgumentException("Library identifier is null.");
         }
@@ -79,12 +115,114 @@ public class LibraryLoader implements org.opencds.cqf.cql.engine.execution.Libra
                 .withId(libraryIdentifier.getId()).withSystem(libraryIdentifier.getSystem())
                 .withVersion(libraryIdentifier.getVersion());
 
+        // The CQL and ELM stored on the Library resource, read at once
+        LibraryContent content = this.elmSourceProvider != null
+                ? this.elmSourceProvider.getLibraryContent(identifier)
+                : null;
+        Library precompiled = loadPrecompiledLibrary(libraryIdentifier, identifier,
+                content != null ? content.getElm() : null);
+        if (precompiled != null) {
+            return precompiled;
+        }
+
+        byte[] source = content != null && content.getCql() != null ? content.getCql()
+                : readLibrarySource(identifier);
+        if (source == null) {
+            // Let the translator report that the library could not be found
+            return translateLibrary(identifier);
+        }
+
+        return CompiledLibraryCache.getInstance().get(libraryIdentifier, source, () -> translateLibrary(identifier));
+    }
+
+    private Library loadPrecompiledLibrary(VersionedIdentifier libraryIdentifier,
+            org.hl7.elm.r1.VersionedIdentifier identifier, ElmContent elm) {
+        if (elm == null || elm.getData() == null || !HapiProperties.getElmUsePrecompiled()
+                || !isCompatible(identifier.getId(), elm.getData(), TRANSLATOR_VERSION_IN_USE)) {
+            return null;
+        }
+
+        try {
+            return CompiledLibraryCache.getInstance().get(libraryIdentifier, elm.getData(),
+                    () -> ElmContent.ELM_JSON.equals(elm.getContentType())
+                            ? readJsonLibrary(new ByteArrayInputStream(elm.getData()))
+                            : readLibrary(new ByteArrayInputStream(elm.getData())));
+        } catch (RuntimeException e) {
+            logger.warn("Unable to read the ELM of library {}, translating the CQL instead: {}", identifier.getId(),
+                    e.getMessage());
+            return null;
+        }
+    }
+
+    /*
+     * Stored ELM is only used when it records the translator options and version
+     * it was compiled with (CqlToElmInfo annotation), the options match ours in
+     * everything that affects the semantics of the ELM, and the version is
+     * translatorVersion, the one in use (an unknown one matches none).
+     */
+    static boolean isCompatible(String libraryName, byte[] elm, String translatorVersion) {
+        // The CqlToElmInfo annotation is the first child of the library
+        String header = new String(elm, 0, Math.min(elm.length, 8192), StandardCharsets.UTF_8);
+
+        Matcher options = TRANSLATOR_OPTIONS.matcher(header);
+        if (!options.find() || !semanticOptions(Arrays.asList(options.group(1).split(","))).equals(
+                semanticOptions(CqlTranslatorOptions.defaultOptions().getOptions()))) {
+            logger.debug("ELM of library {} was compiled with different translator options", libraryName);
+            return false;
+        }
+
+        Matcher version = TRANSLATOR_VERSION.matcher(header);
+        String recordedVersion = version.find() ? version.group(1) : null;
+        if (recordedVersion == null || !recordedVersion.equals(translatorVersion)) {
+            logger.debug("ELM of library {} was compiled with translator version {}, not {}", libraryName,
+                    recordedVersion, translatorVersion);
+            return false;
+        }
+
+        return true;
+    }
+
+    private static Set<String> semanticOptions(Collection<?> options) {
+        Set<String> names = new HashSet<>();
+        for (Object option : options) {
+            String name = option.toString().replaceAll("[\\[\\]\\s]", "");
+            if (!name.isEmpty() && !METADATA_OPTIONS.contains(name)) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    private byte[] readLibrarySource(org.hl7.elm.r1.VersionedIdentifier identifier) {
+        try (InputStream source = libraryManager.getLibrarySourceLoader().getLibrarySource(identifier)) {
+            return source == null ? null : IOUtils.toByteArray(source);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(String.format("Errors occurred reading library %s%s.",
+                    identifier.getId(), identifier.getVersion() != null ? ("-" + identifier.getVersion()) : ""));
+        }
+    }
+
+    private Library translateLibrary(org.hl7.elm.r1.VersionedIdentifier identifier) {
         ArrayList<CqlTranslatorException> errors = new ArrayList<>();
         org.hl7.elm.r1.Library translatedLibrary = libraryManager.resolveLibrary(identifier, CqlTranslatorOptions.defaultOptions(), errors).getLibrary();
 
         if (CqlTranslatorException.HasErrors(errors)) {
             throw new IllegalArgumentException(errorsToString(errors));
         }
+
+        long start = System.nanoTime();
+        if (HapiProperties.getElmDirectConversion()) {
+            try {
+                Library library = ElmExecutionModelConverter.convert(translatedLibrary);
+                logger.debug("Converted library {} to the execution model in {} ms", identifier.getId(),
+                        (System.nanoTime() - start) / 1000000);
+                return library;
+            } catch (IllegalArgumentException e) {
+                logger.warn("Direct ELM conversion of library {} failed, falling back to ELM XML: {}",
+                        identifier.getId(), e.getMessage());
+            }
+        }
+
         try {
             CqlTranslator translator = getTranslator("", libraryManager, modelManager);
 
@@ -92,8 +230,11 @@ public class LibraryLoader implements org.opencds.cqf.cql.engine.execution.Libra
                 throw new IllegalArgumentException(errorsToString(translator.getErrors()));
             }
 
-            return readLibrary(new ByteArrayInputStream(
+            Library library = readLibrary(new ByteArrayInputStream(
                     translator.convertToXml(translatedLibrary).getBytes(StandardCharsets.UTF_8)));
+            logger.debug("Converted library {} to the execution model through ELM XML in {} ms", identifier.getId(),
+                    (System.nanoTime() - start) / 1000000);
+            return library;
         } catch (JAXBException e) {
             throw new IllegalArgumentException(String.format("Errors occurred translating library %s%s.",
                     identifier.getId(), identifier.getVersion() != null ? ("-" + identifier.getVersion()) : ""));
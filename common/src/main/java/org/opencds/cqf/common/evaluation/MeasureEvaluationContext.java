@@ -0,0 +1,161 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.opencds.cqf.common.retrieve.PatientBatchDataProvider;
+import org.opencds.cqf.cql.engine.data.DataProvider;
+import org.opencds.cqf.cql.engine.execution.Context;
+
+/**
+ * Execution Context for measure evaluation that scopes the expression cache to
+ * a single patient. Results are kept while the "Patient" context value stays
+ * the same, so every population, supplemental data element and observation
+ * function evaluated for a patient shares them, and the cache is dropped when
+ * the evaluation moves on to the next patient. Results of patient-independent
+ * definitions go to a {@link PatientIndependentExpressionCache} instead, which
+ * lives for the whole run.
+ * <p>
+ * Each result is cached with the resources retrieved evaluating it, and a
+ * cached result adds them to the evaluated resources again, so whatever records
+ * the evaluated resources after using it (a population, another patient's
+ * report) is credited with them as if it had evaluated the expression itself.
+ */
+public class MeasureEvaluationContext extends Context {
+
+    private static final String PATIENT_CONTEXT = "Patient";
+
+    private final Map<String, Object> expressionCache = new HashMap<>();
+    private final Map<String, List<Object>> expressionResources = new HashMap<>();
+    // The expressions being evaluated, with the number of evaluated resources
+    // when their evaluation started
+    private final Deque<Evaluation> evaluations = new ArrayDeque<>();
+    private final ExpressionCacheStatistics cacheStatistics;
+    private final PatientIndependentExpressionCache sharedCache;
+    // Not initialized inline, Context registers its system data provider from its constructor
+    private List<PatientBatchDataProvider> batchDataProviders;
+    private Object currentPatient;
+
+    /**
+     * @param sharedCache the run-wide cache of patient-independent results, or
+     *                    null to scope every result to the patient
+     */
+    public MeasureEvaluationContext(Library library, ExpressionCacheStatistics cacheStatistics,
+            PatientIndependentExpressionCache sharedCache) {
+        super(library);
+        this.cacheStatistics = cacheStatistics;
+        this.sharedCache = sharedCache;
+    }
+
+    public ExpressionCacheStatistics getCacheStatistics() {
+        return this.cacheStatistics;
+    }
+
+    @Override
+    public void registerDataProvider(String modelUri, DataProvider dataProvider) {
+        if (dataProvider instanceof PatientBatchDataProvider) {
+            if (this.batchDataProviders == null) {
+                this.batchDataProviders = new ArrayList<>();
+            }
+            if (!this.batchDataProviders.contains(dataProvider)) {
+                this.batchDataProviders.add((PatientBatchDataProvider) dataProvider);
+            }
+        }
+
+        super.registerDataProvider(modelUri, dataProvider);
+    }
+
+    /**
+     * The data providers that can retrieve the data of several patients at once,
+     * see {@link PatientDataPipeline}.
+     */
+    public List<PatientBatchDataProvider> getBatchDataProviders() {
+        return this.batchDataProviders == null ? Collections.emptyList() : this.batchDataProviders;
+    }
+
+    @Override
+    public void setContextValue(String context, Object contextValue) {
+        if (PATIENT_CONTEXT.equals(context) && !Objects.equals(this.currentPatient, contextValue)) {
+            this.currentPatient = contextValue;
+            this.expressionCache.clear();
+            this.expressionResources.clear();
+            this.evaluations.clear();
+        }
+
+        super.setContextValue(context, contextValue);
+    }
+
+    @Override
+    public boolean isExpressionInCache(VersionedIdentifier libraryId, String name) {
+        String key = cacheKey(libraryId, name);
+        boolean inCache = isShared(key) ? this.sharedCache.contains(key) : this.expressionCache.containsKey(key);
+        if (inCache) {
+            this.cacheStatistics.recordHit();
+        } else if (this.evaluations.isEmpty() || !this.evaluations.peek().key.equals(key)) {
+            // The engine checks again once it evaluated the expression, before
+            // caching the result, which isn't another miss
+            this.cacheStatistics.recordMiss();
+            this.evaluations.push(new Evaluation(key, getEvaluatedResources().size()));
+        }
+
+        return inCache;
+    }
+
+    @Override
+    public void addExpressionToCache(VersionedIdentifier libraryId, String name, Object result) {
+        String key = cacheKey(libraryId, name);
+        List<Object> evaluatedResources = Collections.emptyList();
+        if (!this.evaluations.isEmpty() && this.evaluations.peek().key.equals(key)) {
+            List<Object> all = getEvaluatedResources();
+            int start = Math.min(this.evaluations.pop().evaluatedResourcesStart, all.size());
+            if (start < all.size()) {
+                evaluatedResources = new ArrayList<>(all.subList(start, all.size()));
+            }
+        }
+
+        if (isShared(key)) {
+            this.sharedCache.put(key, result, evaluatedResources);
+        } else {
+            this.expressionCache.put(key, result);
+            this.expressionResources.put(key, evaluatedResources);
+        }
+    }
+
+    @Override
+    public Object getExpressionResultFromCache(VersionedIdentifier libraryId, String name) {
+        String key = cacheKey(libraryId, name);
+        if (isShared(key)) {
+            getEvaluatedResources().addAll(this.sharedCache.getEvaluatedResources(key));
+            return this.sharedCache.get(key);
+        }
+
+        getEvaluatedResources().addAll(this.expressionResources.getOrDefault(key, Collections.emptyList()));
+        return this.expressionCache.get(key);
+    }
+
+    private boolean isShared(String key) {
+        return this.sharedCache != null && this.sharedCache.isPatientIndependent(key);
+    }
+
+    static String cacheKey(VersionedIdentifier libraryId, String name) {
+        return libraryId.getId() + "|" + libraryId.getVersion() + "|" + name;
+    }
+
+    private static class Evaluation {
+        private final String key;
+        private final int evaluatedResourcesStart;
+
+        private Evaluation(String key, int evaluatedResourcesStart) {
+            this.key = key;
+            this.evaluatedResourcesStart = evaluatedResourcesStart;
+        }
+    }
+}
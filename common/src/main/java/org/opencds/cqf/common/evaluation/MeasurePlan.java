@@ -0,0 +1,188 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang3.tuple.Triple;
+import org.cqframework.cql.elm.execution.IncludeDef;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.helpers.UsingHelper;
+import org.opencds.cqf.cql.engine.data.DataProvider;
+import org.opencds.cqf.cql.engine.execution.Context;
+import org.opencds.cqf.cql.engine.execution.LibraryLoader;
+import org.opencds.cqf.cql.engine.model.ModelResolver;
+import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
+
+/**
+ * What evaluating a Measure needs that doesn't depend on the request: its
+ * compiled libraries (the primary one and those it includes, directly or not),
+ * the models it uses with a model resolver for each, the default terminology
+ * provider, the patient-independent expressions of its logic and a FHIR version
+ * specific definition of the Measure (e.g. its population criteria resolved).
+ * A plan is immutable and shared by every evaluation of the same Measure
+ * version (see {@link MeasurePlanCache}), each request only gets a library
+ * loader of its own over the compiled libraries, binds its parameters into a
+ * new Context and creates the data providers of its Contexts.
+ */
+public class MeasurePlan<DefinitionType> {
+
+    private final Map<String, Library> libraries;
+    private final Library library;
+    private final List<Triple<String, String, String>> usingDefs;
+    private final Set<String> patientIndependentExpressions;
+    private final EvaluationProviderFactory providerFactory;
+    private final List<ModelResolver> modelResolvers = new ArrayList<>();
+    private final TerminologyProvider defaultTerminologyProvider;
+    private final DefinitionType definition;
+
+    /**
+     * @param libraryLoader   the loader the Measure's libraries were loaded with,
+     *                        only used while the plan is created
+     * @param library         the primary library of the Measure
+     * @param providerFactory creates the model resolvers and the data and
+     *                        terminology providers of the library's models
+     * @param definition      what the evaluation resolves from the Measure
+     *                        itself, may be null
+     */
+    public MeasurePlan(LibraryLoader libraryLoader, Library library, EvaluationProviderFactory providerFactory,
+            DefinitionType definition) {
+        this.library = library;
+        this.providerFactory = providerFactory;
+        this.definition = definition;
+
+        this.usingDefs = Collections.unmodifiableList(UsingHelper.getUsingUrlAndVersion(library.getUsings()));
+        if (this.usingDefs.size() > 1) {
+            throw new IllegalArgumentException(
+                    "Evaluation of Measure using multiple Models is not supported at this time.");
+        }
+
+        // Model resolvers only read the model, and are costly to create
+        for (Triple<String, String, String> def : this.usingDefs) {
+            this.modelResolvers.add(providerFactory.createModelResolver(def.getLeft(), def.getMiddle()));
+        }
+        // If there are no Usings, there is probably not any place the Terminology
+        // actually used. This assumes the terminology server matches the FHIR
+        // version of the CQL.
+        this.defaultTerminologyProvider = this.usingDefs.isEmpty() ? null
+                : providerFactory.createTerminologyProvider(this.usingDefs.get(0).getLeft(),
+                        this.usingDefs.get(0).getMiddle(), null, null, null);
+
+        this.patientIndependentExpressions = HapiProperties.getMeasureEvaluationSharedExpressionCache()
+                ? Collections.unmodifiableSet(
+                        ElmDependencyAnalyzer.findPatientIndependentExpressions(library, libraryLoader))
+                : null;
+
+        Map<String, Library> libraries = new HashMap<>();
+        collectLibraries(library, library.getIdentifier(), libraryLoader, libraries);
+        this.libraries = Collections.unmodifiableMap(libraries);
+    }
+
+    // The library and those it includes, directly or not, under the identifier
+    // they are loaded with (an include may leave out the version)
+    private static void collectLibraries(Library library, VersionedIdentifier identifier,
+            LibraryLoader libraryLoader, Map<String, Library> libraries) {
+        if (library == null || libraries.putIfAbsent(key(identifier), library) != null
+                || library.getIncludes() == null) {
+            return;
+        }
+
+        for (IncludeDef include : library.getIncludes().getDef()) {
+            VersionedIdentifier includeIdentifier = new VersionedIdentifier().withId(include.getPath())
+                    .withVersion(include.getVersion());
+            if (!libraries.containsKey(key(includeIdentifier))) {
+                collectLibraries(libraryLoader.load(includeIdentifier), includeIdentifier, libraryLoader, libraries);
+            }
+        }
+    }
+
+    private static String key(VersionedIdentifier identifier) {
+        return identifier.getVersion() == null ? identifier.getId()
+                : identifier.getId() + "-" + identifier.getVersion();
+    }
+
+    /**
+     * Creates the library loader of one request. It serves the compiled
+     * libraries of the plan without locking, and loads any other library with
+     * {@code fallback}, a loader of the request.
+     */
+    public LibraryLoader createLibraryLoader(LibraryLoader fallback) {
+        return identifier -> {
+            Library library = this.libraries.get(key(identifier));
+            return library != null ? library : fallback.load(identifier);
+        };
+    }
+
+    public Library getLibrary() {
+        return this.library;
+    }
+
+    /**
+     * The model name, version and url of each using definition of the primary
+     * library.
+     */
+    public List<Triple<String, String, String>> getUsingDefs() {
+        return this.usingDefs;
+    }
+
+    public DefinitionType getDefinition() {
+        return this.definition;
+    }
+
+    /**
+     * The terminology provider of the {@code source} terminology server, the
+     * default one when there is none, or null if the library uses no model.
+     */
+    public TerminologyProvider getTerminologyProvider(String source, String user, String pass) {
+        if (source == null || source.isEmpty() || this.usingDefs.isEmpty()) {
+            return this.defaultTerminologyProvider;
+        }
+
+        return this.providerFactory.createTerminologyProvider(this.usingDefs.get(0).getLeft(),
+                this.usingDefs.get(0).getMiddle(), source, user, pass);
+    }
+
+    /**
+     * Creates a data provider for each model of the library and registers it
+     * with {@code context}. Returns the last one created, null if the library
+     * uses no model.
+     */
+    public DataProvider registerDataProviders(Context context, TerminologyProvider terminologyProvider) {
+        DataProvider dataProvider = null;
+        for (int i = 0; i < this.usingDefs.size(); i++) {
+            dataProvider = this.createDataProvider(i, terminologyProvider);
+            context.registerDataProvider(this.usingDefs.get(i).getRight(), dataProvider);
+        }
+        return dataProvider;
+    }
+
+    /**
+     * Creates a data provider for the (last) model of the library, null if the
+     * library uses no model.
+     */
+    public DataProvider createDataProvider(TerminologyProvider terminologyProvider) {
+        return this.usingDefs.isEmpty() ? null : this.createDataProvider(this.usingDefs.size() - 1,
+                terminologyProvider);
+    }
+
+    private DataProvider createDataProvider(int index, TerminologyProvider terminologyProvider) {
+        Triple<String, String, String> def = this.usingDefs.get(index);
+        return this.providerFactory.createDataProvider(def.getLeft(), def.getMiddle(), terminologyProvider,
+                this.modelResolvers.get(index));
+    }
+
+    /**
+     * Creates the cache of patient-independent expression results for one
+     * run, null when the shared expression cache is disabled.
+     */
+    public PatientIndependentExpressionCache createSharedExpressionCache() {
+        return this.patientIndependentExpressions != null
+                ? new PatientIndependentExpressionCache(this.patientIndependentExpressions)
+                : null;
+    }
+}
@@ -0,0 +1,172 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opencds.cqf.common.config.HapiProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Process-wide cache of {@link MeasurePlan}s, keyed by Measure id and version
+ * id, so that the libraries of a Measure are loaded and analyzed once per
+ * version of the Measure rather than once per request. An edited Measure gets
+ * a new version id, and when a Library is created, updated or deleted (see
+ * {@link LibraryCacheInvalidationInterceptor}) the plans whose primary library
+ * is that library or includes it, directly or not, are dropped, since the
+ * libraries they resolved may no longer be the current ones. Which libraries
+ * include which is what the {@link CompiledLibraryCache} learned compiling
+ * them.
+ * <p>
+ * Invalidating doesn't stop a compilation in progress, which may have read
+ * the old Library, so each plan records the generation of the cache its
+ * compilation started in, and each changed library the generation it last
+ * changed in. A plan compiled before a change of one of its libraries is not
+ * kept, and is only used by the requests that started before the change too.
+ */
+public class MeasurePlanCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(MeasurePlanCache.class);
+
+    private static final MeasurePlanCache instance = new MeasurePlanCache(HapiProperties.getMeasurePlanCacheMaxSize());
+
+    private final Cache<String, Entry> cache;
+    private final CompiledLibraryCache libraryCache;
+    private final AtomicLong generation = new AtomicLong();
+    // The generation of the last invalidateAll, and of the last change of each
+    // library
+    private final AtomicLong allChanged = new AtomicLong();
+    private final ConcurrentHashMap<String, Long> changedLibraries = new ConcurrentHashMap<>();
+
+    public MeasurePlanCache(long maximumSize) {
+        this(maximumSize, CompiledLibraryCache.getInstance());
+    }
+
+    public MeasurePlanCache(long maximumSize, CompiledLibraryCache libraryCache) {
+        this.cache = CacheBuilder.newBuilder().maximumSize(Math.max(0, maximumSize)).recordStats().build();
+        this.libraryCache = libraryCache;
+    }
+
+    public static MeasurePlanCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Returns the plan of the given Measure version, compiling it with
+     * {@code compiler} if it is not cached. Concurrent requests for the same
+     * Measure wait for a single compilation. A Measure without a version id
+     * (e.g. one that isn't stored) is compiled every time.
+     */
+    @SuppressWarnings("unchecked")
+    public <DefinitionType> MeasurePlan<DefinitionType> get(String measureId, String measureVersion,
+            Callable<MeasurePlan<DefinitionType>> compiler) {
+        try {
+            if (measureId == null || measureVersion == null) {
+                return compiler.call();
+            }
+
+            String key = measureId + "|" + measureVersion;
+            long requested = this.generation.get();
+            while (true) {
+                Entry entry = this.cache.get(key, () -> {
+                    long generation = this.generation.get();
+                    return new Entry(compiler.call(), generation);
+                });
+
+                boolean current = isCurrent(entry);
+                if (!current) {
+                    this.cache.asMap().remove(key, entry);
+                }
+                // A server serves a single FHIR version, so every plan has the same definition type
+                if (current || entry.generation >= requested) {
+                    return (MeasurePlan<DefinitionType>) entry.plan;
+                }
+            }
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Drops the plans whose primary library is the named library or includes
+     * it.
+     */
+    public void invalidate(String libraryName) {
+        if (libraryName == null) {
+            return;
+        }
+
+        this.changedLibraries.merge(libraryName, this.generation.incrementAndGet(), Math::max);
+        Set<String> dependents = this.libraryCache.getDependents(libraryName);
+        if (this.cache.asMap().values().removeIf(entry -> entry.depends(dependents))) {
+            logger.info("Invalidated the measure plans of libraries {}", dependents);
+        }
+    }
+
+    public void invalidateAll() {
+        if (this.cache.size() > 0) {
+            logger.info("Invalidated {} measure plans", this.cache.size());
+        }
+        this.allChanged.accumulateAndGet(this.generation.incrementAndGet(), Math::max);
+        this.cache.invalidateAll();
+    }
+
+    // Whether none of the libraries of the plan changed since its compilation
+    // started
+    private boolean isCurrent(Entry entry) {
+        if (entry.generation < this.allChanged.get()) {
+            return false;
+        }
+
+        for (Map.Entry<String, Long> changed : this.changedLibraries.entrySet()) {
+            if (changed.getValue() > entry.generation
+                    && entry.depends(this.libraryCache.getDependents(changed.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public CacheStats getStats() {
+        return this.cache.stats();
+    }
+
+    public long size() {
+        return this.cache.size();
+    }
+
+    private static class Entry {
+        private final MeasurePlan<?> plan;
+        private final String libraryName;
+        private final long generation;
+
+        private Entry(MeasurePlan<?> plan, long generation) {
+            this.plan = plan;
+            this.libraryName = plan.getLibrary().getIdentifier() == null ? null
+                    : plan.getLibrary().getIdentifier().getId();
+            this.generation = generation;
+        }
+
+        // Whether the primary library is one of libraryNames, a plan
+        // without a library name may be of any
+        private boolean depends(Set<String> libraryNames) {
+            return this.libraryName == null || libraryNames.contains(this.libraryName);
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.opencds.cqf.common.config.HapiProperties;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalNotification;
+
+/**
+ * Process-wide cache of individual MeasureReports, keyed by measure id and
+ * version, period, product line and patient, so that asking again for the
+ * report of a patient whose data didn't change doesn't evaluate the measure
+ * again. Entries are dropped when a resource of the patient's compartment
+ * changes, and all of them when a Library, ValueSet or other resource the
+ * measure logic may depend on changes (see
+ * {@link MeasureReportCacheInvalidationInterceptor}).
+ * <p>
+ * A report is only stored if nothing it could depend on was invalidated while
+ * it was being evaluated: each {@link Key} records the invalidation
+ * generations of its patient (hashed into a fixed number of stripes) and of the
+ * whole cache when it is created, and {@link #put(Key, IBaseResource)} drops
+ * the report if either moved on since.
+ * <p>
+ * Invalidation only sees the changes made through this process, so the cache
+ * is only correct for a single server. It is disabled when this server works
+ * on measure shards (see {@link HapiProperties#getMeasureShardsWorker()}),
+ * since other instances then write to the same database.
+ */
+public class MeasureReportCache {
+
+    private static final int GENERATION_STRIPES = 1024;
+
+    private static final MeasureReportCache instance = new MeasureReportCache(
+            HapiProperties.getMeasureShardsWorker() ? 0 : HapiProperties.getMeasureReportCacheMaxSize(),
+            HapiProperties.getMeasureReportCacheExpireAfter());
+
+    private final Cache<Key, IBaseResource> cache;
+    private final boolean enabled;
+
+    // The keys cached for each patient id
+    private final ConcurrentHashMap<String, Set<Key>> patientKeys = new ConcurrentHashMap<>();
+
+    private final AtomicLongArray patientGenerations = new AtomicLongArray(GENERATION_STRIPES);
+    private final AtomicLong generation = new AtomicLong();
+
+    private final AtomicLong patientInvalidationCount = new AtomicLong();
+    private final AtomicLong invalidateAllCount = new AtomicLong();
+
+    /**
+     * @param maximumSize the number of reports kept, 0 disables the cache
+     * @param expireAfter the number of milliseconds a report is kept after it
+     *                    was evaluated, 0 keeps it until it is evicted or
+     *                    invalidated
+     */
+    public MeasureReportCache(long maximumSize, long expireAfter) {
+        CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder().maximumSize(Math.max(0, maximumSize))
+                .recordStats();
+        if (expireAfter > 0) {
+            builder.expireAfterWrite(expireAfter, TimeUnit.MILLISECONDS);
+        }
+        this.cache = builder.<Key, IBaseResource>removalListener(this::removed).build();
+        this.enabled = maximumSize > 0;
+    }
+
+    public static MeasureReportCache getInstance() {
+        return instance;
+    }
+
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    /**
+     * Creates the key of a report. The key records the current invalidation
+     * generations, so it should be created before the report is evaluated.
+     *
+     * @param options anything else that changes the content of the report
+     *                (e.g. how evaluated resources are reported)
+     */
+    public Key newKey(String measureId, String measureVersion, String periodStart, String periodEnd,
+            String productLine, String options, String patientId) {
+        return new Key(String.join("|", measureId, String.valueOf(measureVersion), String.valueOf(periodStart),
+                String.valueOf(periodEnd), String.valueOf(productLine), String.valueOf(options), patientId),
+                patientId, this.patientGenerations.get(stripe(patientId)), this.generation.get());
+    }
+
+    /**
+     * The cached report for {@code key}, null when there is none. The report is
+     * shared, callers must copy it before changing it.
+     */
+    public IBaseResource get(Key key) {
+        if (!this.enabled) {
+            return null;
+        }
+
+        return this.cache.getIfPresent(key);
+    }
+
+    /**
+     * Caches {@code report} (which must not be changed afterwards) unless the
+     * patient of {@code key}, or the whole cache, was invalidated since the key
+     * was created.
+     */
+    public void put(Key key, IBaseResource report) {
+        if (!this.enabled || !key.isCurrent()) {
+            return;
+        }
+
+        this.patientKeys.computeIfAbsent(key.patientId, x -> ConcurrentHashMap.newKeySet()).add(key);
+        this.cache.put(key, report);
+
+        // An invalidation may have run between the check and the put
+        if (!key.isCurrent()) {
+            this.cache.invalidate(key);
+        }
+    }
+
+    /**
+     * Removes the reports of a patient, and keeps reports of the patient that
+     * are being evaluated from being cached.
+     */
+    public void invalidatePatient(String patientId) {
+        if (!this.enabled || patientId == null) {
+            return;
+        }
+
+        this.patientGenerations.incrementAndGet(stripe(patientId));
+        Set<Key> keys = this.patientKeys.remove(patientId);
+        if (keys != null) {
+            this.cache.invalidateAll(keys);
+        }
+        this.patientInvalidationCount.incrementAndGet();
+    }
+
+    /**
+     * Removes every report, and keeps reports that are being evaluated from
+     * being cached.
+     */
+    public void invalidateAll() {
+        if (!this.enabled) {
+            return;
+        }
+
+        this.generation.incrementAndGet();
+        this.cache.invalidateAll();
+        this.invalidateAllCount.incrementAndGet();
+    }
+
+    public CacheStats getStats() {
+        return this.cache.stats();
+    }
+
+    public long size() {
+        return this.cache.size();
+    }
+
+    /**
+     * The number of times the reports of a patient were invalidated.
+     */
+    public long getPatientInvalidationCount() {
+        return this.patientInvalidationCount.get();
+    }
+
+    /**
+     * The number of times every report was invalidated.
+     */
+    public long getInvalidateAllCount() {
+        return this.invalidateAllCount.get();
+    }
+
+    private void removed(RemovalNotification<Key, IBaseResource> notification) {
+        // A replaced report stays in its patient's keys
+        Key key = notification.getKey();
+        if (key == null || notification.getCause() == RemovalCause.REPLACED) {
+            return;
+        }
+
+        this.patientKeys.computeIfPresent(key.patientId, (patientId, keys) -> {
+            keys.remove(key);
+            return keys.isEmpty() ? null : keys;
+        });
+    }
+
+    private static int stripe(String patientId) {
+        return (patientId.hashCode() & Integer.MAX_VALUE) % GENERATION_STRIPES;
+    }
+
+    /**
+     * The key of a cached report. Keys are equal when they name the same
+     * report, whatever generations they recorded.
+     */
+    public final class Key {
+        private final String value;
+        private final String patientId;
+        private final long patientGeneration;
+        private final long generation;
+
+        private Key(String value, String patientId, long patientGeneration, long generation) {
+            this.value = value;
+            this.patientId = patientId;
+            this.patientGeneration = patientGeneration;
+            this.generation = generation;
+        }
+
+        private boolean isCurrent() {
+            return this.generation == MeasureReportCache.this.generation.get()
+                    && this.patientGeneration == MeasureReportCache.this.patientGenerations.get(stripe(this.patientId));
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key && this.value.equals(((Key) other).value);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.value.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return this.value;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.opencds.cqf.common.helpers.TransactionHelper;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+
+/**
+ * Drops reports from the {@link MeasureReportCache} when resources they may
+ * depend on are created, updated or deleted: the reports of the patients a
+ * resource of the Patient compartment belongs to (the patient itself, or the
+ * patients it references), or every report for any other resource (e.g. a
+ * Library, ValueSet, Medication or Organization), which measure logic may read
+ * for any patient. Only the server's own bookkeeping resources are ignored.
+ * <p>
+ * A patient's report evaluated while the change is being committed may be
+ * cached from data that no longer is, so that patient's reports are dropped a
+ * second time once the transaction completes.
+ */
+@Interceptor
+public class MeasureReportCacheInvalidationInterceptor {
+
+    // Bookkeeping of the server itself, never read by measure logic
+    private static final Set<String> IGNORED_TYPES = new HashSet<>(
+            Arrays.asList("Binary", "Task", "MeasureReport", "AuditEvent", "Subscription"));
+
+    private final FhirContext fhirContext;
+    private final MeasureReportCache cache;
+    // Whether the resources of each type may belong to a patient's compartment
+    private final Map<String, Boolean> patientCompartmentTypes = new ConcurrentHashMap<>();
+
+    public MeasureReportCacheInvalidationInterceptor(FhirContext fhirContext) {
+        this(fhirContext, MeasureReportCache.getInstance());
+    }
+
+    public MeasureReportCacheInvalidationInterceptor(FhirContext fhirContext, MeasureReportCache cache) {
+        this.fhirContext = fhirContext;
+        this.cache = cache;
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+    public void resourceCreated(IBaseResource theResource) {
+        invalidate(theResource);
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+    public void resourceUpdated(IBaseResource theOldResource, IBaseResource theNewResource) {
+        invalidate(theOldResource);
+        invalidate(theNewResource);
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+    public void resourceDeleted(IBaseResource theResource) {
+        invalidate(theResource);
+    }
+
+    private void invalidate(IBaseResource resource) {
+        if (resource == null || !this.cache.isEnabled()) {
+            return;
+        }
+
+        String type = this.fhirContext.getResourceDefinition(resource).getName();
+        if (IGNORED_TYPES.contains(type)) {
+            return;
+        }
+
+        if (!this.patientCompartmentTypes.computeIfAbsent(type, this::isInPatientCompartment)) {
+            TransactionHelper.runNowAndAfterCompletion(this.cache::invalidateAll);
+            return;
+        }
+
+        Set<String> patients = new HashSet<>();
+        if ("Patient".equals(type) && resource.getIdElement().hasIdPart()) {
+            patients.add(resource.getIdElement().getIdPart());
+        }
+        for (IBaseReference reference : this.fhirContext.newTerser().getAllPopulatedChildElementsOfType(resource,
+                IBaseReference.class)) {
+            IIdType target = reference.getReferenceElement();
+            if (target != null && "Patient".equals(target.getResourceType()) && target.hasIdPart()) {
+                patients.add(target.getIdPart());
+            }
+        }
+
+        if (!patients.isEmpty()) {
+            TransactionHelper.runNowAndAfterCompletion(() -> patients.forEach(this.cache::invalidatePatient));
+        }
+    }
+
+    private boolean isInPatientCompartment(String type) {
+        if ("Patient".equals(type)) {
+            return true;
+        }
+
+        for (RuntimeSearchParam searchParam : this.fhirContext.getResourceDefinition(type).getSearchParams()) {
+            if (searchParam.getProvidesMembershipInCompartments() != null
+                    && searchParam.getProvidesMembershipInCompartments().contains("Patient")) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,163 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+
+import org.opencds.cqf.cql.engine.runtime.Quantity;
+
+/**
+ * The aggregate of the measure observations of a continuous variable group:
+ * count, sum, mean, minimum and maximum, and a {@link QuantileSketch} for the
+ * median. Values are added as they are observed, no observation is kept.
+ * Partial aggregates (e.g. of parallel workers) are combined with
+ * {@link #merge(ObservationAggregate)}, those of other server instances are
+ * exchanged with {@link #toBytes()} and {@link #fromBytes(byte[])}.
+ */
+public class ObservationAggregate {
+
+    /**
+     * The extension of a measure-observation population that says how its
+     * observations are aggregated into the measure score.
+     */
+    public static final String AGGREGATE_METHOD_URL = "http://hl7.org/fhir/us/cqfmeasures/StructureDefinition/cqfm-aggregateMethod";
+
+    public static final String DEFAULT_AGGREGATE_METHOD = "median";
+
+    private long count;
+    private double sum;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+    private final QuantileSketch sketch;
+
+    public ObservationAggregate() {
+        this(new QuantileSketch());
+    }
+
+    private ObservationAggregate(QuantileSketch sketch) {
+        this.sketch = sketch;
+    }
+
+    public void add(double value) {
+        this.count++;
+        this.sum += value;
+        this.min = Math.min(this.min, value);
+        this.max = Math.max(this.max, value);
+        this.sketch.add(value);
+    }
+
+    public void merge(ObservationAggregate other) {
+        this.count += other.count;
+        this.sum += other.sum;
+        this.min = Math.min(this.min, other.min);
+        this.max = Math.max(this.max, other.max);
+        this.sketch.merge(other.sketch);
+    }
+
+    public long getCount() {
+        return this.count;
+    }
+
+    public double getSum() {
+        return this.sum;
+    }
+
+    public double getMean() {
+        return this.count == 0 ? Double.NaN : this.sum / this.count;
+    }
+
+    public double getMin() {
+        return this.count == 0 ? Double.NaN : this.min;
+    }
+
+    public double getMax() {
+        return this.count == 0 ? Double.NaN : this.max;
+    }
+
+    public double getMedian() {
+        return this.sketch.getMedian();
+    }
+
+    /**
+     * The aggregate named by {@code aggregateMethod} (a cqfm-aggregateMethod
+     * code, the median when null), null when nothing was observed.
+     */
+    public Double get(String aggregateMethod) {
+        if (this.count == 0) {
+            return null;
+        }
+
+        String method = aggregateMethod == null ? DEFAULT_AGGREGATE_METHOD : aggregateMethod.trim().toLowerCase();
+        switch (method) {
+            case "count":
+                return (double) this.count;
+            case "sum":
+                return getSum();
+            case "average":
+            case "mean":
+                return getMean();
+            case "median":
+                return getMedian();
+            case "minimum":
+            case "min":
+                return getMin();
+            case "maximum":
+            case "max":
+                return getMax();
+            default:
+                throw new IllegalArgumentException(String.format(
+                        "Aggregate method must be one of count, sum, average, median, minimum or maximum, found: %s",
+                        aggregateMethod));
+        }
+    }
+
+    public byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeLong(this.count);
+            out.writeDouble(this.sum);
+            out.writeDouble(this.min);
+            out.writeDouble(this.max);
+            this.sketch.write(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static ObservationAggregate fromBytes(byte[] bytes) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            long count = in.readLong();
+            double sum = in.readDouble();
+            double min = in.readDouble();
+            double max = in.readDouble();
+            ObservationAggregate aggregate = new ObservationAggregate(QuantileSketch.read(in));
+            aggregate.count = count;
+            aggregate.sum = sum;
+            aggregate.min = min;
+            aggregate.max = max;
+            return aggregate;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Unable to read the observation aggregate", e);
+        }
+    }
+
+    /**
+     * The numeric value of the result of a measure observation function, null
+     * when it has none (e.g. a null result).
+     */
+    public static Double valueOf(Object result) {
+        if (result instanceof Number) {
+            return ((Number) result).doubleValue();
+        }
+        if (result instanceof Quantity) {
+            BigDecimal value = ((Quantity) result).getValue();
+            return value != null ? value.doubleValue() : null;
+        }
+        return null;
+    }
+}
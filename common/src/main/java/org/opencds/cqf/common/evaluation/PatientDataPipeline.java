@@ -0,0 +1,192 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.retrieve.PatientBatch;
+import org.opencds.cqf.common.retrieve.PatientBatchDataProvider;
+import org.opencds.cqf.cql.engine.execution.Context;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Iterators;
+
+/**
+ * Feeds patients to the evaluation in chunks whose data is retrieved together
+ * (measure_evaluation.prefetch_chunk_size). While a chunk is evaluated, the data
+ * of the next measure_evaluation.prefetch_queue_size chunks is loaded in the
+ * background, so the database and the CQL engine work at the same time. The data
+ * providers of all contexts (e.g. of several measures evaluated together) share
+ * the data of a chunk, so a retrieve they have in common is run once.
+ * <p>
+ * Another chunk is only loaded ahead while the chunks loaded ahead hold fewer
+ * than measure_evaluation.prefetch_max_resources resources. A chunk still
+ * loading counts as the largest chunk loaded so far, since its size is only
+ * known once it is loaded, and until a chunk has been loaded a single chunk is
+ * loaded ahead. The loading runs on the measure_evaluation.prefetch_threads
+ * threads shared by every request.
+ */
+public class PatientDataPipeline<PatientType> {
+
+    private static final Logger logger = LoggerFactory.getLogger(PatientDataPipeline.class);
+
+    private static final AtomicInteger threadCounter = new AtomicInteger();
+    private static final ExecutorService prefetchExecutor = Executors.newFixedThreadPool(
+            Math.max(1, HapiProperties.getMeasureEvaluationPrefetchThreads()), runnable -> {
+                Thread thread = new Thread(runnable, "measure-prefetch-" + threadCounter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private final List<PatientBatchDataProvider> dataProviders;
+    private final Function<PatientType, String> patientId;
+    private final int chunkSize;
+    private final int queueSize;
+    private final int maxResources;
+    // The resources of the largest chunk loaded so far, -1 before any
+    private int largestChunk = -1;
+
+    public PatientDataPipeline(Context context, Function<PatientType, String> patientId) {
+        this(Collections.singletonList(context), patientId);
+    }
+
+    public PatientDataPipeline(List<Context> contexts, Function<PatientType, String> patientId) {
+        this(contexts, patientId, HapiProperties.getMeasureEvaluationPrefetchChunkSize(),
+                HapiProperties.getMeasureEvaluationPrefetchQueueSize(),
+                HapiProperties.getMeasureEvaluationPrefetchMaxResources());
+    }
+
+    public PatientDataPipeline(List<Context> contexts, Function<PatientType, String> patientId, int chunkSize,
+            int queueSize, int maxResources) {
+        this.dataProviders = new ArrayList<>();
+        for (Context context : contexts) {
+            if (context instanceof MeasureEvaluationContext) {
+                this.dataProviders.addAll(((MeasureEvaluationContext) context).getBatchDataProviders());
+            }
+        }
+        this.patientId = patientId;
+        this.chunkSize = Math.max(1, chunkSize);
+        this.queueSize = Math.max(0, queueSize);
+        this.maxResources = maxResources;
+    }
+
+    /**
+     * Hands the patients to {@code evaluator} chunk by chunk, in order, on the
+     * calling thread.
+     */
+    public void run(Iterable<PatientType> patients, Consumer<List<PatientType>> evaluator) {
+        Iterator<List<PatientType>> chunks = Iterators.partition(patients.iterator(), this.chunkSize);
+        if (this.chunkSize == 1 || this.dataProviders.isEmpty()) {
+            chunks.forEachRemaining(evaluator);
+            return;
+        }
+
+        Deque<Chunk> loading = new ArrayDeque<>();
+        try {
+            while (!loading.isEmpty() || chunks.hasNext()) {
+                Chunk chunk = loading.isEmpty() ? new Chunk(chunks.next()) : loading.poll();
+                chunk.install();
+                evaluator.accept(chunk.patients);
+
+                // The kinds of retrieve to prefetch are known once a chunk has been evaluated
+                while (chunks.hasNext() && canLoadAhead(loading)) {
+                    Chunk next = new Chunk(chunks.next());
+                    next.prefetch();
+                    loading.add(next);
+                }
+            }
+        } finally {
+            loading.forEach(Chunk::cancel);
+            this.dataProviders.forEach(dataProvider -> dataProvider.setPatientBatch((PatientBatch) null));
+        }
+    }
+
+    private boolean canLoadAhead(Deque<Chunk> loading) {
+        if (loading.size() >= this.queueSize) {
+            return false;
+        }
+
+        long reserved = 0;
+        for (Chunk chunk : loading) {
+            if (chunk.isLoaded()) {
+                reserved += chunk.getLoadedResources();
+            } else if (this.largestChunk < 0) {
+                // Nothing to tell the size of the chunk being loaded by yet
+                return false;
+            } else {
+                reserved += this.largestChunk;
+            }
+        }
+        return reserved < this.maxResources;
+    }
+
+    private class Chunk {
+        private final List<PatientType> patients;
+        private final List<String> patientIds;
+        private CompletableFuture<PatientBatch> batch;
+
+        Chunk(List<PatientType> patients) {
+            this.patients = patients;
+            this.patientIds = patients.stream().map(PatientDataPipeline.this.patientId).collect(Collectors.toList());
+        }
+
+        void prefetch() {
+            PatientBatch patientBatch = new PatientBatch(this.patientIds);
+            this.batch = CompletableFuture.supplyAsync(() -> {
+                for (PatientBatchDataProvider dataProvider : PatientDataPipeline.this.dataProviders) {
+                    dataProvider.prefetch(patientBatch);
+                }
+                return patientBatch;
+            }, prefetchExecutor);
+        }
+
+        void install() {
+            PatientBatch patientBatch = null;
+            if (this.batch != null) {
+                try {
+                    patientBatch = this.batch.join();
+                } catch (CompletionException e) {
+                    logger.warn("Unable to prefetch patient data, retrieving it on demand", e.getCause());
+                }
+            }
+            if (patientBatch == null) {
+                patientBatch = new PatientBatch(this.patientIds);
+            } else {
+                PatientDataPipeline.this.largestChunk = Math.max(PatientDataPipeline.this.largestChunk,
+                        patientBatch.getResourceCount());
+            }
+            for (PatientBatchDataProvider dataProvider : PatientDataPipeline.this.dataProviders) {
+                dataProvider.setPatientBatch(patientBatch);
+            }
+        }
+
+        boolean isLoaded() {
+            return this.batch != null && this.batch.isDone() && !this.batch.isCompletedExceptionally();
+        }
+
+        int getLoadedResources() {
+            int resources = this.batch.join().getResourceCount();
+            PatientDataPipeline.this.largestChunk = Math.max(PatientDataPipeline.this.largestChunk, resources);
+            return resources;
+        }
+
+        void cancel() {
+            if (this.batch != null) {
+                this.batch.cancel(true);
+            }
+        }
+    }
+}
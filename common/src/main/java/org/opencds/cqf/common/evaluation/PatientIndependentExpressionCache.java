@@ -0,0 +1,66 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Holds the results of patient-independent expression definitions (see
+ * {@link ElmDependencyAnalyzer}) for the length of a measure run. A single
+ * instance is shared by all of the execution Contexts of the run, including
+ * those of parallel workers. Each result is kept with the resources evaluating
+ * it retrieved, so that every patient (and report) using the result is
+ * credited with them, not only the first one.
+ */
+public class PatientIndependentExpressionCache {
+
+    private final Set<String> expressionKeys;
+    private final ConcurrentMap<String, Entry> results = new ConcurrentHashMap<>();
+
+    public PatientIndependentExpressionCache(Set<String> expressionKeys) {
+        this.expressionKeys = expressionKeys;
+    }
+
+    public boolean isPatientIndependent(String key) {
+        return this.expressionKeys.contains(key);
+    }
+
+    public int size() {
+        return this.expressionKeys.size();
+    }
+
+    public boolean contains(String key) {
+        return this.results.containsKey(key);
+    }
+
+    public Object get(String key) {
+        Entry entry = this.results.get(key);
+        return entry == null ? null : entry.result;
+    }
+
+    /**
+     * The resources retrieved evaluating the result of {@code key}, empty if
+     * there is no result.
+     */
+    public List<Object> getEvaluatedResources(String key) {
+        Entry entry = this.results.get(key);
+        return entry == null ? Collections.emptyList() : entry.evaluatedResources;
+    }
+
+    public void put(String key, Object result, List<Object> evaluatedResources) {
+        this.results.putIfAbsent(key, new Entry(result, evaluatedResources));
+    }
+
+    // A holder rather than the bare result, null is a common result
+    private static class Entry {
+        private final Object result;
+        private final List<Object> evaluatedResources;
+
+        private Entry(Object result, List<Object> evaluatedResources) {
+            this.result = result;
+            this.evaluatedResources = evaluatedResources;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import org.opencds.cqf.common.config.HapiProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Evaluates pages of patients on a pool of worker threads. Partial results are
+ * merged in page order so callers get the same result as a sequential pass.
+ * <p>
+ * The worker threads are shared by every request (measure_evaluation.max_threads
+ * of them), so concurrent requests don't add threads. The parallelism of a
+ * request is the number of worker states (e.g. execution Contexts) it creates,
+ * which bounds how many of its pages are evaluated at once.
+ */
+public class PatientPartitionExecutor {
+
+    private static final Logger logger = LoggerFactory.getLogger(PatientPartitionExecutor.class);
+
+    private static final int DEFAULT_MAX_THREADS = 8;
+
+    private static final AtomicInteger threadCounter = new AtomicInteger();
+    private static final ThreadLocal<Boolean> isWorkerThread = ThreadLocal.withInitial(() -> false);
+
+    private static final int maxThreads = resolveMaxThreads();
+
+    private static final ExecutorService executor = Executors.newFixedThreadPool(maxThreads, runnable -> {
+        Thread thread = new Thread(() -> {
+            isWorkerThread.set(true);
+            runnable.run();
+        }, "measure-eval-" + threadCounter.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final int parallelism;
+
+    public PatientPartitionExecutor(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Resolves the parallelism for a request, falling back to the configured
+     * measure_evaluation.parallelism when the request does not specify one.
+     */
+    public static int resolveParallelism(String requestedParallelism) {
+        return resolveParallelism(requestedParallelism, HapiProperties.getMeasureEvaluationParallelism());
+    }
+
+    /**
+     * Resolves the parallelism for a request, falling back to
+     * {@code defaultParallelism} when the request does not specify one.
+     */
+    public static int resolveParallelism(String requestedParallelism, int defaultParallelism) {
+        if (requestedParallelism == null || requestedParallelism.isEmpty()) {
+            return Math.max(1, defaultParallelism);
+        }
+
+        int parallelism;
+        try {
+            parallelism = Integer.parseInt(requestedParallelism.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(
+                    String.format("_parallelism must be a positive integer, found: %s", requestedParallelism), e);
+        }
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException(
+                    String.format("_parallelism must be a positive integer, found: %s", requestedParallelism));
+        }
+
+        return parallelism;
+    }
+
+    /**
+     * The number of shared worker threads, measure_evaluation.max_threads. A
+     * value that is not a positive integer is ignored with a warning, rather
+     * than failing every measure evaluation.
+     */
+    private static int resolveMaxThreads() {
+        try {
+            int maxThreads = HapiProperties.getMeasureEvaluationMaxThreads();
+            if (maxThreads > 0) {
+                return maxThreads;
+            }
+            logger.warn("Ignoring measure_evaluation.max_threads value {}, it must be positive. Using {} threads.",
+                    maxThreads, DEFAULT_MAX_THREADS);
+        } catch (NumberFormatException e) {
+            logger.warn("Ignoring measure_evaluation.max_threads value {}, it is not a number. Using {} threads.",
+                    HapiProperties.getProperty("measure_evaluation.max_threads"), DEFAULT_MAX_THREADS);
+        }
+        return DEFAULT_MAX_THREADS;
+    }
+
+    /**
+     * The number of worker threads shared by every request.
+     */
+    public static int getMaxThreads() {
+        return maxThreads;
+    }
+
+    public int getParallelism() {
+        return this.parallelism;
+    }
+
+    /**
+     * Evaluates each page of patients with {@code worker} and hands the results to
+     * {@code merger} in page order on the calling thread. At most parallelism
+     * worker states are created with {@code workerFactory}, each used by one page
+     * at a time, and at most twice the parallelism of pages are in flight at once
+     * so memory stays bounded by the page size. Called from a worker thread (a
+     * nested evaluation) the pages are evaluated on the calling thread, since
+     * waiting for the shared threads there could exhaust them.
+     */
+    public <PatientType, WorkerType, ResultType> void execute(Iterator<List<PatientType>> pages,
+            Supplier<WorkerType> workerFactory, BiFunction<WorkerType, List<PatientType>, ResultType> worker,
+            Consumer<ResultType> merger) {
+        if (this.parallelism <= 1 || isWorkerThread.get()) {
+            WorkerType workerState = workerFactory.get();
+            while (pages.hasNext()) {
+                merger.accept(worker.apply(workerState, pages.next()));
+            }
+            return;
+        }
+
+        BlockingQueue<WorkerType> idleStates = new LinkedBlockingQueue<>();
+        int createdStates = 0;
+        Deque<Future<ResultType>> inFlight = new ArrayDeque<>();
+        try {
+            while (pages.hasNext()) {
+                List<PatientType> page = pages.next();
+
+                WorkerType workerState = idleStates.poll();
+                if (workerState == null && createdStates < this.parallelism) {
+                    workerState = workerFactory.get();
+                    createdStates++;
+                }
+                while (workerState == null) {
+                    // Merge what is done while waiting for a page to finish
+                    while (!inFlight.isEmpty() && inFlight.peek().isDone()) {
+                        merger.accept(inFlight.poll().get());
+                    }
+                    workerState = idleStates.poll(10, TimeUnit.MILLISECONDS);
+                }
+
+                WorkerType state = workerState;
+                inFlight.add(executor.submit(() -> {
+                    try {
+                        return worker.apply(state, page);
+                    } finally {
+                        idleStates.add(state);
+                    }
+                }));
+                while (inFlight.size() > this.parallelism * 2) {
+                    merger.accept(inFlight.poll().get());
+                }
+            }
+
+            while (!inFlight.isEmpty()) {
+                merger.accept(inFlight.poll().get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Measure evaluation was interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException("Error evaluating patient partition", e.getCause());
+        } finally {
+            for (Future<ResultType> future : inFlight) {
+                future.cancel(true);
+            }
+        }
+    }
+}
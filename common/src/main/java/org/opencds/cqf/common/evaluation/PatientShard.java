@@ -0,0 +1,42 @@
+package org.opencds.cqf.common.evaluation;
+
+/**
+ * One of a fixed number of disjoint parts of the patient population. Patients
+ * are assigned by the hash of their id, which is the same on every server
+ * instance, so shards evaluated on different instances cover every patient
+ * exactly once.
+ */
+public class PatientShard {
+
+    private final int index;
+    private final int count;
+
+    /**
+     * @param index the shard, from 0 to {@code count - 1}
+     * @param count the number of shards
+     */
+    public PatientShard(int index, int count) {
+        if (count < 1 || index < 0 || index >= count) {
+            throw new IllegalArgumentException(String.format("Invalid shard %d of %d", index, count));
+        }
+        this.index = index;
+        this.count = count;
+    }
+
+    public int getIndex() {
+        return this.index;
+    }
+
+    public int getCount() {
+        return this.count;
+    }
+
+    public boolean contains(String patientId) {
+        return Math.floorMod(patientId.hashCode(), this.count) == this.index;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("shard %d of %d", this.index + 1, this.count);
+    }
+}
@@ -0,0 +1,104 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Numbers the members of a report's populations (resource keys or patient ids)
+ * in the order they are first seen, so that each population can be held as a
+ * {@link BitSet} over the numbers instead of a map of resources. Since patients
+ * are numbered as they are evaluated, the bitmaps are dense. Each parallel
+ * worker numbers the members of its partition in an index of its own, which is
+ * mapped into the report's when the partial states are merged in partition
+ * order (see {@link #mapFrom(PopulationIndex)}), so the numbering is the one of
+ * a sequential pass whatever the interleaving of the workers.
+ */
+public class PopulationIndex {
+
+    private final Map<String, Integer> indexes = new HashMap<>();
+    private final List<String> keys = new ArrayList<>();
+    // Only kept for members that have one (patient names for subject lists)
+    private final Map<Integer, String> displays = new HashMap<>();
+
+    public synchronized int indexOf(String key) {
+        Integer index = this.indexes.get(key);
+        if (index == null) {
+            index = this.keys.size();
+            this.indexes.put(key, index);
+            this.keys.add(key);
+        }
+        return index;
+    }
+
+    public synchronized int indexOf(String key, String display) {
+        int index = indexOf(key);
+        if (display != null) {
+            this.displays.put(index, display);
+        }
+        return index;
+    }
+
+    /**
+     * The number of {@code key}, or -1 if it has not been seen.
+     */
+    public synchronized int find(String key) {
+        Integer index = this.indexes.get(key);
+        return index == null ? -1 : index;
+    }
+
+    public synchronized String getKey(int index) {
+        return this.keys.get(index);
+    }
+
+    public synchronized String getDisplay(int index) {
+        return this.displays.get(index);
+    }
+
+    /**
+     * Numbers the members of {@code other} that have not been seen, in the
+     * order {@code other} numbered them, and returns the number each member of
+     * {@code other} has in this index.
+     */
+    public int[] mapFrom(PopulationIndex other) {
+        List<String> otherKeys;
+        Map<Integer, String> otherDisplays;
+        synchronized (other) {
+            otherKeys = new ArrayList<>(other.keys);
+            otherDisplays = new HashMap<>(other.displays);
+        }
+
+        synchronized (this) {
+            int[] mapping = new int[otherKeys.size()];
+            for (int i = 0; i < mapping.length; i++) {
+                mapping[i] = indexOf(otherKeys.get(i), otherDisplays.get(i));
+            }
+            return mapping;
+        }
+    }
+
+    /**
+     * The members of {@code members} renumbered with a mapping returned by
+     * {@link #mapFrom(PopulationIndex)}.
+     */
+    public static BitSet remap(BitSet members, int[] mapping) {
+        BitSet result = new BitSet();
+        for (int index = members.nextSetBit(0); index >= 0; index = members.nextSetBit(index + 1)) {
+            result.set(mapping[index]);
+        }
+        return result;
+    }
+
+    /**
+     * The keys of the members in {@code members}, in numbering order.
+     */
+    public synchronized List<String> getKeys(BitSet members) {
+        List<String> result = new ArrayList<>(members.cardinality());
+        for (int index = members.nextSetBit(0); index >= 0; index = members.nextSetBit(index + 1)) {
+            result.add(this.keys.get(index));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,202 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A mergeable summary of a stream of values that answers quantile queries
+ * (e.g. the median) in memory that grows with the logarithm of the number of
+ * values instead of with the values themselves.
+ * <p>
+ * Values go into a buffer of a fixed capacity. When a buffer fills up it is
+ * sorted and every other value is promoted to the buffer of the next level,
+ * where each value stands for twice as many values. Up to the capacity the
+ * quantiles are exact, beyond it their rank error is in the order of
+ * log2(count / capacity) / capacity. Sketches of partial streams (e.g. of
+ * parallel workers) are combined with {@link #merge(QuantileSketch)}.
+ */
+public class QuantileSketch {
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private final int capacity;
+    private final List<Level> levels = new ArrayList<>();
+
+    public QuantileSketch() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity the number of values per level, rounded up to an even
+     *                 number
+     */
+    public QuantileSketch(int capacity) {
+        this.capacity = Math.max(2, capacity + (capacity % 2));
+    }
+
+    public void add(double value) {
+        level(0).add(value);
+        compact(0);
+    }
+
+    public void merge(QuantileSketch other) {
+        for (int height = 0; height < other.levels.size(); height++) {
+            Level level = other.levels.get(height);
+            for (int i = 0; i < level.size; i++) {
+                level(height).add(level.values[i]);
+            }
+        }
+        for (int height = 0; height < this.levels.size(); height++) {
+            compact(height);
+        }
+    }
+
+    /**
+     * The number of values the sketch summarizes.
+     */
+    public long getCount() {
+        long count = 0;
+        for (int height = 0; height < this.levels.size(); height++) {
+            count += ((long) this.levels.get(height).size) << height;
+        }
+        return count;
+    }
+
+    /**
+     * The value at {@code quantile} (0 to 1) of the values, NaN when there are
+     * none. While no values were compacted away the quantile is interpolated
+     * between the two closest values, as for an exact median.
+     */
+    public double getQuantile(double quantile) {
+        if (this.levels.size() == 1) {
+            Level level = this.levels.get(0);
+            if (level.size == 0) {
+                return Double.NaN;
+            }
+            double[] sorted = Arrays.copyOf(level.values, level.size);
+            Arrays.sort(sorted);
+            double position = quantile * (sorted.length - 1);
+            int lower = (int) Math.floor(position);
+            int upper = (int) Math.ceil(position);
+            return sorted[lower] + (sorted[upper] - sorted[lower]) * (position - lower);
+        }
+
+        long count = getCount();
+        if (count == 0) {
+            return Double.NaN;
+        }
+
+        // (value, weight) pairs ordered by value, the weight of a level doubles
+        // with its height
+        int size = 0;
+        for (Level level : this.levels) {
+            size += level.size;
+        }
+        double[] values = new double[size];
+        long[] weights = new long[size];
+        Integer[] order = new Integer[size];
+        int next = 0;
+        for (int height = 0; height < this.levels.size(); height++) {
+            Level level = this.levels.get(height);
+            for (int i = 0; i < level.size; i++, next++) {
+                values[next] = level.values[i];
+                weights[next] = 1L << height;
+                order[next] = next;
+            }
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(values[a], values[b]));
+
+        double rank = Math.max(1, Math.ceil(quantile * count));
+        long cumulative = 0;
+        for (Integer index : order) {
+            cumulative += weights[index];
+            if (cumulative >= rank) {
+                return values[index];
+            }
+        }
+        return values[order[size - 1]];
+    }
+
+    public double getMedian() {
+        return getQuantile(0.5);
+    }
+
+    /**
+     * Writes the sketch as {@link #read(DataInput)} reads it back, e.g. to merge
+     * it with the sketch of another server instance.
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(this.capacity);
+        out.writeInt(this.levels.size());
+        for (Level level : this.levels) {
+            out.writeInt(level.offset);
+            out.writeInt(level.size);
+            for (int i = 0; i < level.size; i++) {
+                out.writeDouble(level.values[i]);
+            }
+        }
+    }
+
+    public static QuantileSketch read(DataInput in) throws IOException {
+        QuantileSketch sketch = new QuantileSketch(in.readInt());
+        int levels = in.readInt();
+        for (int height = 0; height < levels; height++) {
+            Level level = sketch.level(height);
+            level.offset = in.readInt();
+            int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                level.add(in.readDouble());
+            }
+        }
+        return sketch;
+    }
+
+    private Level level(int height) {
+        while (this.levels.size() <= height) {
+            this.levels.add(new Level(this.capacity));
+        }
+        return this.levels.get(height);
+    }
+
+    private void compact(int height) {
+        for (; height < this.levels.size() && this.levels.get(height).size >= this.capacity; height++) {
+            Level level = this.levels.get(height);
+            Arrays.sort(level.values, 0, level.size);
+
+            // An odd value out stays, so the total weight is kept exactly. The
+            // offset alternates so that promoting the lower or the upper value of
+            // each pair doesn't bias the quantiles in one direction.
+            int paired = level.size - (level.size % 2);
+            Level parent = level(height + 1);
+            for (int i = level.offset; i < paired; i += 2) {
+                parent.add(level.values[i]);
+            }
+            level.offset = 1 - level.offset;
+
+            double remaining = level.values[level.size - 1];
+            level.size = paired < level.size ? 1 : 0;
+            level.values[0] = remaining;
+        }
+    }
+
+    private static class Level {
+        private double[] values;
+        private int size;
+        private int offset;
+
+        private Level(int capacity) {
+            this.values = new double[capacity];
+        }
+
+        private void add(double value) {
+            if (this.size == this.values.length) {
+                this.values = Arrays.copyOf(this.values, this.values.length * 2);
+            }
+            this.values[this.size++] = value;
+        }
+    }
+}
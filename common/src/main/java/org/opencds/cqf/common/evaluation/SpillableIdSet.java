@@ -0,0 +1,139 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A set of ids that is held in memory up to a threshold and beyond it written
+ * out to temp files, each a sorted run of ids. {@link #forEach(Consumer)} merges
+ * the runs, so the ids come out sorted and without duplicates while only one id
+ * per run is held in memory. The files are deleted by {@link #close()}.
+ */
+public class SpillableIdSet implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(SpillableIdSet.class);
+
+    private final int threshold;
+    private final Set<String> pending = new HashSet<>();
+    private final List<Path> runs = new ArrayList<>();
+
+    /**
+     * @param threshold the number of ids held in memory before they are spilled
+     *                  to a file
+     */
+    public SpillableIdSet(int threshold) {
+        this.threshold = Math.max(1, threshold);
+    }
+
+    public void add(String id) {
+        if (this.pending.add(id) && this.pending.size() >= this.threshold) {
+            spill();
+        }
+    }
+
+    public void addAll(SpillableIdSet other) {
+        other.forEach(this::add);
+    }
+
+    public boolean isEmpty() {
+        return this.pending.isEmpty() && this.runs.isEmpty();
+    }
+
+    /**
+     * Hands each id to {@code action} once, in sorted order.
+     */
+    public void forEach(Consumer<String> action) {
+        List<String> inMemory = new ArrayList<>(this.pending);
+        Collections.sort(inMemory);
+        if (this.runs.isEmpty()) {
+            inMemory.forEach(action);
+            return;
+        }
+
+        List<Stream<String>> streams = new ArrayList<>();
+        try {
+            PriorityQueue<Cursor> cursors = new PriorityQueue<>(Comparator.comparing(cursor -> cursor.current));
+            new Cursor(inMemory.iterator()).offerTo(cursors);
+            for (Path run : this.runs) {
+                Stream<String> lines = Files.lines(run, StandardCharsets.UTF_8);
+                streams.add(lines);
+                new Cursor(lines.iterator()).offerTo(cursors);
+            }
+
+            String last = null;
+            while (!cursors.isEmpty()) {
+                Cursor cursor = cursors.poll();
+                if (!cursor.current.equals(last)) {
+                    last = cursor.current;
+                    action.accept(last);
+                }
+                cursor.offerTo(cursors);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read spilled ids", e);
+        } finally {
+            streams.forEach(Stream::close);
+        }
+    }
+
+    @Override
+    public void close() {
+        for (Path run : this.runs) {
+            try {
+                Files.deleteIfExists(run);
+            } catch (IOException e) {
+                logger.warn("Could not delete {}: {}", run, e.getMessage());
+            }
+        }
+        this.runs.clear();
+        this.pending.clear();
+    }
+
+    private void spill() {
+        List<String> sorted = new ArrayList<>(this.pending);
+        Collections.sort(sorted);
+        try {
+            Path run = Files.createTempFile("cqf-ids-", ".txt");
+            Files.write(run, sorted, StandardCharsets.UTF_8);
+            this.runs.add(run);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not spill ids to a temp file", e);
+        }
+        this.pending.clear();
+        logger.debug("Spilled {} ids to disk, {} runs", sorted.size(), this.runs.size());
+    }
+
+    private static class Cursor {
+        private final Iterator<String> ids;
+        private String current;
+
+        private Cursor(Iterator<String> ids) {
+            this.ids = ids;
+        }
+
+        // Moves to the next id and queues the cursor again, unless it is exhausted
+        private void offerTo(PriorityQueue<Cursor> cursors) {
+            if (this.ids.hasNext()) {
+                this.current = this.ids.next();
+                cursors.add(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package org.opencds.cqf.common.exceptions;
+
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+
+/**
+ * Answers a request with 202 Accepted, as the FHIR asynchronous request
+ * pattern requires both when an asynchronous request is started and while its
+ * status is polled. HAPI operations can only choose the response status
+ * through an exception.
+ */
+public class AsyncRequestAcceptedException extends BaseServerResponseException {
+    private static final long serialVersionUID = 1L;
+
+    public static final int STATUS_CODE = 202;
+
+    /**
+     * @param contentLocation the status URL of the request, or null
+     * @param progress        a description of the progress so far, or null
+     */
+    public AsyncRequestAcceptedException(String contentLocation, String progress) {
+        super(STATUS_CODE, progress != null ? progress : "Accepted for asynchronous processing");
+        if (contentLocation != null) {
+            addResponseHeader("Content-Location", contentLocation);
+        }
+        if (progress != null) {
+            addResponseHeader("X-Progress", progress);
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package org.opencds.cqf.common.helpers;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.datatype.XMLGregorianCalendar;
+import javax.xml.namespace.QName;
+
+import org.cqframework.cql.elm.execution.Library;
+import org.opencds.cqf.cql.engine.elm.execution.ObjectFactoryEx;
+
+/**
+ * Converts a translated library ({@code org.hl7.elm.r1}) directly into the
+ * execution model ({@code org.cqframework.cql.elm.execution}) without
+ * serializing it to ELM XML and parsing it back. Both models are generated from
+ * the same ELM schema, so elements are created through the engine's
+ * {@link ObjectFactoryEx} (which supplies the evaluators) and their properties
+ * are copied by name.
+ */
+public class ElmExecutionModelConverter {
+
+    private static final String SOURCE_PACKAGE = org.hl7.elm.r1.Library.class.getPackage().getName();
+    private static final String TARGET_PACKAGE = Library.class.getPackage().getName();
+
+    private static final ObjectFactoryEx factory = new ObjectFactoryEx();
+    private static final Map<Class<?>, ElementMapping> mappings = new ConcurrentHashMap<>();
+
+    private final Map<Object, Object> converted = new IdentityHashMap<>();
+
+    ElmExecutionModelConverter() {
+    }
+
+    /**
+     * @throws IllegalArgumentException if the library contains an element that
+     *                                  has no execution model counterpart
+     */
+    public static Library convert(org.hl7.elm.r1.Library library) {
+        return (Library) new ElmExecutionModelConverter().convertValue(library, Library.class);
+    }
+
+    /**
+     * Converts a property value (or list item) of an r1 element to the
+     * {@code targetType} of the execution model property (or list element).
+     */
+    Object convertValue(Object value, Class<?> targetType) {
+        if (value == null || value instanceof String || value instanceof Boolean || value instanceof Number
+                || value instanceof QName || value instanceof BigDecimal || value instanceof XMLGregorianCalendar) {
+            return value;
+        }
+
+        if (value instanceof Enum) {
+            return toTargetEnum((Enum<?>) value, targetType);
+        }
+
+        if (!isSourceElement(value.getClass())) {
+            throw new IllegalArgumentException(
+                    String.format("Unable to convert %s to the ELM execution model", value.getClass().getName()));
+        }
+
+        Object target = this.converted.get(value);
+        if (target == null) {
+            target = convertElement(value);
+        }
+
+        return target;
+    }
+
+    private Object convertElement(Object source) {
+        ElementMapping mapping = mappings.computeIfAbsent(source.getClass(), ElementMapping::new);
+        Object target = mapping.newInstance();
+        this.converted.put(source, target);
+
+        try {
+            for (PropertyMapping property : mapping.properties) {
+                Object value = property.getter.invoke(source);
+                if (value == null) {
+                    continue;
+                }
+
+                if (property.setter != null) {
+                    property.setter.invoke(target, convertValue(value, property.setter.getParameterTypes()[0]));
+                } else {
+                    @SuppressWarnings("unchecked")
+                    List<Object> targetList = (List<Object>) property.listGetter.invoke(target);
+                    for (Object item : (List<?>) value) {
+                        targetList.add(convertValue(item, property.elementType));
+                    }
+                }
+            }
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException(
+                    String.format("Unable to convert %s to the ELM execution model", source.getClass().getName()), e);
+        }
+
+        return target;
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static Object toTargetEnum(Enum<?> value, Class<?> targetType) {
+        if (!targetType.isEnum()) {
+            throw new IllegalArgumentException(
+                    String.format("Unable to convert %s to the ELM execution model", value.getClass().getName()));
+        }
+        return Enum.valueOf((Class<? extends Enum>) targetType, value.name());
+    }
+
+    private static boolean isSourceElement(Class<?> type) {
+        return type.getPackage() != null && type.getPackage().getName().equals(SOURCE_PACKAGE);
+    }
+
+    /**
+     * How to create the execution model counterpart of an r1 class and copy its
+     * properties, resolved once per class.
+     */
+    private static class ElementMapping {
+        private final Method factoryMethod;
+        private final Class<?> targetType;
+        private final List<PropertyMapping> properties = new ArrayList<>();
+
+        ElementMapping(Class<?> sourceType) {
+            String name = sourceType.getName().substring(SOURCE_PACKAGE.length() + 1);
+            try {
+                this.targetType = Class.forName(TARGET_PACKAGE + "." + name);
+                // e.g. Library$Statements is created by createLibraryStatements
+                this.factoryMethod = ObjectFactoryEx.class.getMethod("create" + name.replace("$", ""));
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalArgumentException(
+                        String.format("No ELM execution model element for %s", sourceType.getName()), e);
+            }
+
+            for (Method getter : sourceType.getMethods()) {
+                // Translator annotations (e.g. the CQL narrative) are not used by the engine
+                if (getter.getParameterCount() != 0 || Modifier.isStatic(getter.getModifiers())
+                        || !isSourceElement(getter.getDeclaringClass()) || getter.getName().equals("getAnnotation")) {
+                    continue;
+                }
+
+                String property = propertyName(getter.getName());
+                if (property == null) {
+                    continue;
+                }
+
+                if (List.class.isAssignableFrom(getter.getReturnType())) {
+                    Method listGetter = findMethod(this.targetType, "get" + property);
+                    if (listGetter != null && List.class.isAssignableFrom(listGetter.getReturnType())) {
+                        this.properties.add(new PropertyMapping(getter, null, listGetter, elementType(listGetter)));
+                    }
+                } else {
+                    Method setter = findSetter(this.targetType, "set" + property);
+                    if (setter != null) {
+                        this.properties.add(new PropertyMapping(getter, setter, null, null));
+                    }
+                }
+            }
+        }
+
+        Object newInstance() {
+            try {
+                return this.factoryMethod.invoke(factory);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalArgumentException(
+                        String.format("Unable to create ELM execution model element %s", this.targetType.getName()),
+                        e);
+            }
+        }
+
+        private static String propertyName(String getterName) {
+            if (getterName.startsWith("get") && getterName.length() > 3) {
+                return getterName.substring(3);
+            }
+            if (getterName.startsWith("is") && getterName.length() > 2) {
+                return getterName.substring(2);
+            }
+            return null;
+        }
+
+        private static Method findMethod(Class<?> type, String name) {
+            try {
+                return type.getMethod(name);
+            } catch (NoSuchMethodException e) {
+                return null;
+            }
+        }
+
+        private static Method findSetter(Class<?> type, String name) {
+            for (Method method : type.getMethods()) {
+                if (method.getName().equals(name) && method.getParameterCount() == 1) {
+                    return method;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * The element type of the list returned by {@code listGetter}, e.g. the
+     * execution model enum an r1 enum item is converted to, Object when it is
+     * not declared.
+     */
+    static Class<?> elementType(Method listGetter) {
+        Type type = listGetter.getGenericReturnType();
+        if (type instanceof ParameterizedType) {
+            Type element = ((ParameterizedType) type).getActualTypeArguments()[0];
+            if (element instanceof Class) {
+                return (Class<?>) element;
+            }
+            if (element instanceof ParameterizedType && ((ParameterizedType) element).getRawType() instanceof Class) {
+                return (Class<?>) ((ParameterizedType) element).getRawType();
+            }
+        }
+        return Object.class;
+    }
+
+    private static class PropertyMapping {
+        private final Method getter;
+        private final Method setter;
+        private final Method listGetter;
+        private final Class<?> elementType;
+
+        PropertyMapping(Method getter, Method setter, Method listGetter, Class<?> elementType) {
+            this.getter = getter;
+            this.setter = setter;
+            this.listGetter = listGetter;
+            this.elementType = elementType;
+        }
+    }
+}
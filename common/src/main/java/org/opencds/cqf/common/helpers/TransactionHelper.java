@@ -0,0 +1,27 @@
+package org.opencds.cqf.common.helpers;
+
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+public class TransactionHelper {
+
+    /**
+     * Runs {@code action} now and again once the current transaction, if any,
+     * has completed (whether it committed or not). Used to drop cached results
+     * from a pre-commit hook: what is computed between the hook and the commit
+     * still reads the old data, so it is dropped again after the commit.
+     */
+    public static void runNowAndAfterCompletion(Runnable action) {
+        action.run();
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            return;
+        }
+
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCompletion(int status) {
+                action.run();
+            }
+        });
+    }
+}
@@ -3,6 +3,7 @@ package org.opencds.cqf.common.helpers;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 
@@ -15,6 +16,7 @@ import org.cqframework.cql.cql2elm.ModelManager;
 import org.cqframework.cql.elm.execution.Library;
 import org.cqframework.cql.elm.tracking.TrackBack;
 import org.opencds.cqf.cql.engine.execution.CqlLibraryReader;
+import org.opencds.cqf.cql.engine.execution.JsonCqlLibraryReader;
 
 public class TranslatorHelper {
 
@@ -26,6 +28,14 @@ public class TranslatorHelper {
         }
     }
 
+    public static Library readJsonLibrary(InputStream jsonStream) {
+        try {
+            return JsonCqlLibraryReader.read(new InputStreamReader(jsonStream, StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Error encountered while reading ELM json: " + e.getMessage());
+        }
+    }
+
     public static String errorsToString(Iterable<CqlTranslatorException> exceptions) {
         ArrayList<String> errors = new ArrayList<>();
         for (CqlTranslatorException error : exceptions) {
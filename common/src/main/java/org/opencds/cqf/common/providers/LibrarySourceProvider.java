@@ -6,6 +6,8 @@ import java.util.function.Function;
 
 import org.cqframework.cql.cql2elm.FhirLibrarySourceProvider;
 import org.hl7.elm.r1.VersionedIdentifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Created by Christopher on 1/12/2017.
@@ -13,6 +15,8 @@ import org.hl7.elm.r1.VersionedIdentifier;
 public class LibrarySourceProvider<LibraryType, AttachmentType>
         implements org.cqframework.cql.cql2elm.LibrarySourceProvider {
 
+    private static final Logger logger = LoggerFactory.getLogger(LibrarySourceProvider.class);
+
     private FhirLibrarySourceProvider innerProvider;
     private LibraryResolutionProvider<LibraryType> provider;
     private Function<LibraryType, Iterable<AttachmentType>> getAttachments;
@@ -46,4 +50,83 @@ public class LibrarySourceProvider<LibraryType, AttachmentType>
 
         return this.innerProvider.getLibrarySource(versionedIdentifier);
     }
-}
\ No newline at end of file
+
+    /**
+     * Returns the CQL source and the pre-compiled ELM content (application/elm+xml
+     * or application/elm+json) stored on the Library, resolving it once, or null
+     * if there is no such Library.
+     */
+    public LibraryContent getLibraryContent(VersionedIdentifier versionedIdentifier) {
+        LibraryType lib;
+        try {
+            lib = this.provider.resolveLibraryByName(versionedIdentifier.getId(), versionedIdentifier.getVersion());
+        } catch (Exception e) {
+            logger.debug("Library {} is not stored on the server: {}", versionedIdentifier.getId(), e.getMessage());
+            return null;
+        }
+        if (lib == null) {
+            return null;
+        }
+
+        byte[] cql = null;
+        ElmContent elm = null;
+        for (AttachmentType attachment : this.getAttachments.apply(lib)) {
+            String contentType = this.getContentType.apply(attachment);
+            if (cql == null && "text/cql".equals(contentType)) {
+                cql = this.getContent.apply(attachment);
+            } else if (elm == null
+                    && (ElmContent.ELM_XML.equals(contentType) || ElmContent.ELM_JSON.equals(contentType))) {
+                elm = new ElmContent(contentType, this.getContent.apply(attachment));
+            }
+        }
+        return new LibraryContent(cql, elm);
+    }
+
+    /**
+     * What a Library stores of its logic.
+     */
+    public static class LibraryContent {
+        private final byte[] cql;
+        private final ElmContent elm;
+
+        public LibraryContent(byte[] cql, ElmContent elm) {
+            this.cql = cql;
+            this.elm = elm;
+        }
+
+        /**
+         * The CQL source, null if there is none.
+         */
+        public byte[] getCql() {
+            return this.cql;
+        }
+
+        /**
+         * The pre-compiled ELM, null if there is none.
+         */
+        public ElmContent getElm() {
+            return this.elm;
+        }
+    }
+
+    public static class ElmContent {
+        public static final String ELM_XML = "application/elm+xml";
+        public static final String ELM_JSON = "application/elm+json";
+
+        private final String contentType;
+        private final byte[] data;
+
+        public ElmContent(String contentType, byte[] data) {
+            this.contentType = contentType;
+            this.data = data;
+        }
+
+        public String getContentType() {
+            return this.contentType;
+        }
+
+        public byte[] getData() {
+            return this.data;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package org.opencds.cqf.common.providers;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+
+/**
+ * Reads the resources of a newline-delimited JSON request body, one resource
+ * per line, as they are iterated, so the server doesn't have to hold the whole
+ * body. Blank lines are skipped.
+ */
+public class NdjsonRequestReader implements Iterator<IBaseResource>, Closeable {
+
+    private final IParser parser;
+    private final BufferedReader reader;
+    private String next;
+    private int lineNumber;
+
+    public NdjsonRequestReader(FhirContext fhirContext, HttpServletRequest request) throws IOException {
+        this.parser = fhirContext.newJsonParser();
+        this.reader = request.getReader();
+    }
+
+    /**
+     * Whether {@code contentType} (a Content-Type header) is newline-delimited
+     * JSON.
+     */
+    public static boolean isNdjson(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        int parameters = contentType.indexOf(';');
+        return NdjsonResponseWriter.isRequested(parameters < 0 ? contentType : contentType.substring(0, parameters));
+    }
+
+    @Override
+    public boolean hasNext() {
+        try {
+            while (this.next == null) {
+                String line = this.reader.readLine();
+                if (line == null) {
+                    return false;
+                }
+                this.lineNumber++;
+                if (!line.trim().isEmpty()) {
+                    this.next = line;
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read the request body", e);
+        }
+    }
+
+    @Override
+    public IBaseResource next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        String line = this.next;
+        this.next = null;
+        try {
+            return this.parser.parseResource(line);
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException(
+                    String.format("Line %d of the request body is not a resource: %s", this.lineNumber, e.getMessage()),
+                    e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.reader.close();
+    }
+}
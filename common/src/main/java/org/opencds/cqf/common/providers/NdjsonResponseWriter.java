@@ -0,0 +1,63 @@
+package org.opencds.cqf.common.providers;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+
+/**
+ * Writes resources to an HTTP response as newline-delimited JSON, one resource
+ * per line. Each line is flushed as soon as it is written, so the client can
+ * start processing the output while the server is still producing it and the
+ * server doesn't have to hold the whole output.
+ */
+public class NdjsonResponseWriter implements Closeable {
+
+    public static final String CONTENT_TYPE = "application/fhir+ndjson";
+
+    private static final Set<String> FORMATS = new HashSet<>(
+            Arrays.asList(CONTENT_TYPE, "application/ndjson", "ndjson"));
+
+    private final IParser parser;
+    private final Writer writer;
+
+    /**
+     * Starts the response, its status and content type can't be changed
+     * afterwards.
+     */
+    public NdjsonResponseWriter(FhirContext fhirContext, HttpServletResponse response) throws IOException {
+        this.parser = fhirContext.newJsonParser().setPrettyPrint(false);
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(CONTENT_TYPE);
+        response.setCharacterEncoding("UTF-8");
+        this.writer = response.getWriter();
+    }
+
+    /**
+     * Whether {@code outputFormat} (an _outputFormat parameter) asks for
+     * newline-delimited JSON.
+     */
+    public static boolean isRequested(String outputFormat) {
+        return outputFormat != null && FORMATS.contains(outputFormat.trim().toLowerCase());
+    }
+
+    public synchronized void write(IBaseResource resource) throws IOException {
+        this.parser.encodeResourceToWriter(resource, this.writer);
+        this.writer.write('\n');
+        this.writer.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        this.writer.close();
+    }
+}
@@ -5,38 +5,125 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.stream.Collectors;
 
 import javax.inject.Inject;
 
+import org.hl7.fhir.instance.model.api.IBaseReference;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.opencds.cqf.cql.engine.fhir.retrieve.SearchParamFhirRetrieveProvider;
 import org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterMap;
 import org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterResolver;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.runtime.Interval;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeSearchParam;
 import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
 import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
 import ca.uhn.fhir.model.api.IQueryParameterType;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.util.FhirTerser;
 
 @Component
 public class JpaFhirRetrieveProvider extends SearchParamFhirRetrieveProvider {
 
     private static final Logger logger = LoggerFactory.getLogger(JpaFhirRetrieveProvider.class);
 
+    // Number of results read at a time from a search whose total is not known
+    private static final int SEARCH_PAGE_SIZE = 1000;
+
     DaoRegistry registry;
 
+    private PatientBatch patientBatch;
+    private String currentPatient;
+    // The kinds of retrieve seen so far, which a prefetch runs for the next batch
+    private final Map<String, BatchQuery> knownQueries = new ConcurrentHashMap<>();
+    private final Set<String> unbatchedQueries = ConcurrentHashMap.newKeySet();
+
     @Inject
     public JpaFhirRetrieveProvider(DaoRegistry registry, SearchParameterResolver searchParameterResolver) {
         super(searchParameterResolver);
         this.registry = registry;
     }
 
+    /**
+     * Sets the patients that are about to be evaluated. While a batch is set,
+     * the first retrieve of each kind in the Patient context is executed once for
+     * all of the patients in the batch and the following retrieves of that kind
+     * are answered from the results. Passing null turns batching off.
+     */
+    public void setPatientBatch(Collection<String> patientIds) {
+        this.setPatientBatch(patientIds == null ? null : new PatientBatch(patientIds));
+    }
+
+    /**
+     * Sets a batch, possibly already filled by {@link #prefetch(Collection, Executor)}.
+     */
+    public void setPatientBatch(PatientBatch patientBatch) {
+        this.patientBatch = patientBatch;
+    }
+
+    /**
+     * Runs every kind of retrieve this provider has batched so far for the given
+     * patients on {@code executor}, so that their data is loaded while the
+     * current batch is still being evaluated. Retrieves that are first seen with
+     * the returned batch are still run on demand.
+     */
+    public CompletableFuture<PatientBatch> prefetch(Collection<String> patientIds, Executor executor) {
+        PatientBatch batch = new PatientBatch(patientIds);
+        return CompletableFuture.supplyAsync(() -> {
+            prefetch(batch);
+            return batch;
+        }, executor);
+    }
+
+    /**
+     * Runs every kind of retrieve this provider has batched so far that
+     * {@code batch} does not hold yet, on the calling thread. A batch may be
+     * shared by the providers of several measures, which then retrieve the data
+     * they have in common once.
+     */
+    public void prefetch(PatientBatch batch) {
+        for (Map.Entry<String, BatchQuery> query : new ArrayList<>(this.knownQueries.entrySet())) {
+            if (batch.contains(query.getKey()) || this.unbatchedQueries.contains(query.getKey())) {
+                continue;
+            }
+            Map<String, List<Object>> results = executeBatch(query.getValue(), batch.getPatientIds());
+            if (results == null) {
+                this.unbatchedQueries.add(query.getKey());
+            } else {
+                batch.put(query.getKey(), results);
+            }
+        }
+    }
+
+    @Override
+    public Iterable<Object> retrieve(String context, String contextPath, Object contextValue, String dataType,
+            String templateId, String codePath, Iterable<Code> codes, String valueSet, String datePath,
+            String dateLowPath, String dateHighPath, Interval dateRange) {
+        this.currentPatient = "Patient".equals(context) && contextValue != null
+                ? stripPatientPrefix(contextValue.toString())
+                : null;
+        return super.retrieve(context, contextPath, contextValue, dataType, templateId, codePath, codes, valueSet,
+                datePath, dateLowPath, dateHighPath, dateRange);
+    }
+
     @Override
     protected Iterable<Object> executeQueries(String dataType, List<SearchParameterMap> queries) {
         if (queries == null || queries.isEmpty()) {
@@ -52,6 +139,171 @@ public class JpaFhirRetrieveProvider extends SearchParamFhirRetrieveProvider {
     }
 
     protected Collection<Object> executeQuery(String dataType, SearchParameterMap map) {
+        if (this.patientBatch != null && this.currentPatient != null
+                && this.patientBatch.getPatientIds().contains(this.currentPatient)) {
+            Collection<Object> batched = executeBatchedQuery(dataType, map);
+            if (batched != null) {
+                return batched;
+            }
+        }
+
+        return search(dataType, toHapiMap(map.entrySet()));
+    }
+
+    private Collection<Object> executeBatchedQuery(String dataType, SearchParameterMap map) {
+        String patientParam = findPatientParam(map);
+        if (patientParam == null) {
+            return null;
+        }
+
+        FhirContext fhirContext = this.registry.getResourceDao(dataType).getContext();
+        String queryKey = queryKey(fhirContext, dataType, map, patientParam);
+        if (this.unbatchedQueries.contains(queryKey)) {
+            return null;
+        }
+
+        Map<String, List<Object>> results = this.patientBatch.get(queryKey);
+        if (results == null) {
+            BatchQuery query = this.knownQueries.computeIfAbsent(queryKey,
+                    x -> new BatchQuery(dataType, map, patientParam));
+            results = executeBatch(query, this.patientBatch.getPatientIds());
+            if (results == null) {
+                this.unbatchedQueries.add(queryKey);
+                return null;
+            }
+            this.patientBatch.put(queryKey, results);
+        }
+
+        return new ArrayList<>(results.getOrDefault(this.currentPatient, Collections.emptyList()));
+    }
+
+    /*
+     * Runs the query with the patient parameter replaced by all of the given
+     * patients and indexes the results by patient. Returns null if a result
+     * can't be attributed to one of the patients, in which case the query is
+     * run per patient.
+     */
+    private Map<String, List<Object>> executeBatch(BatchQuery query, Set<String> patientIds) {
+        FhirContext fhirContext = this.registry.getResourceDao(query.dataType).getContext();
+        Map<String, List<List<IQueryParameterType>>> batchMap = new LinkedHashMap<>(query.parameters);
+
+        boolean isReference = query.patientTemplate instanceof ReferenceParam;
+        boolean prefixed = isReference && ((ReferenceParam) query.patientTemplate).getValue().startsWith("Patient/");
+
+        List<IQueryParameterType> patients = new ArrayList<>();
+        for (String id : patientIds) {
+            patients.add(isReference ? new ReferenceParam(prefixed ? "Patient/" + id : id) : new TokenParam(id));
+        }
+
+        batchMap.put(query.patientParam, Collections.singletonList(patients));
+
+        List<String> referencePaths = isReference ? referencePaths(fhirContext, query.dataType, query.patientParam)
+                : null;
+        if (referencePaths != null && referencePaths.isEmpty()) {
+            return null;
+        }
+
+        FhirTerser terser = fhirContext.newTerser();
+        Map<String, List<Object>> index = new HashMap<>();
+        for (Object result : search(query.dataType, toHapiMap(batchMap.entrySet()))) {
+            IBaseResource resource = (IBaseResource) result;
+            Set<String> owners = new HashSet<>();
+            if (referencePaths == null) {
+                owners.add(resource.getIdElement().getIdPart());
+            } else {
+                for (String path : referencePaths) {
+                    for (IBaseReference reference : terser.getValues(resource, path, IBaseReference.class)) {
+                        if (reference.getReferenceElement() != null) {
+                            owners.add(reference.getReferenceElement().getIdPart());
+                        }
+                    }
+                }
+            }
+
+            owners.retainAll(patientIds);
+            if (owners.isEmpty()) {
+                return null;
+            }
+            owners.forEach(owner -> index.computeIfAbsent(owner, x -> new ArrayList<>()).add(resource));
+        }
+
+        logger.debug("Retrieved {} for {} patients in one query", query.dataType, patientIds.size());
+        return index;
+    }
+
+    private String findPatientParam(SearchParameterMap map) {
+        for (Map.Entry<String, List<List<IQueryParameterType>>> entry : map.entrySet()) {
+            if (entry.getValue().size() != 1 || entry.getValue().get(0).size() != 1) {
+                continue;
+            }
+
+            IQueryParameterType param = entry.getValue().get(0).get(0);
+            String value = null;
+            if (param instanceof ReferenceParam) {
+                value = ((ReferenceParam) param).getValue();
+            } else if (param instanceof TokenParam && entry.getKey().equals("_id")) {
+                value = ((TokenParam) param).getValue();
+            }
+
+            if (value != null && stripPatientPrefix(value).equals(this.currentPatient)) {
+                return entry.getKey();
+            }
+        }
+
+        return null;
+    }
+
+    private static String queryKey(FhirContext fhirContext, String dataType, SearchParameterMap map,
+            String patientParam) {
+        Map<String, String> params = new TreeMap<>();
+        for (Map.Entry<String, List<List<IQueryParameterType>>> entry : map.entrySet()) {
+            if (!entry.getKey().equals(patientParam)) {
+                params.put(entry.getKey(), entry.getValue().stream()
+                        .map(or -> or.stream()
+                                .map(x -> (x.getQueryParameterQualifier() != null ? x.getQueryParameterQualifier()
+                                        : "") + "=" + x.getValueAsQueryToken(fhirContext))
+                                .collect(Collectors.joining(",")))
+                        .collect(Collectors.joining("&")));
+            }
+        }
+
+        return dataType + "?" + patientParam + "&" + params.toString();
+    }
+
+    /*
+     * The simple paths (e.g. Observation.subject) of the references a search
+     * parameter matches, used to attribute batched results to patients.
+     */
+    private static List<String> referencePaths(FhirContext fhirContext, String dataType, String paramName) {
+        RuntimeSearchParam searchParam = fhirContext.getResourceDefinition(dataType).getSearchParam(paramName);
+        List<String> paths = new ArrayList<>();
+        if (searchParam == null || searchParam.getPath() == null) {
+            return paths;
+        }
+
+        for (String path : searchParam.getPath().split("\\|")) {
+            path = path.trim();
+            if (path.startsWith("(") && path.endsWith(")")) {
+                path = path.substring(1, path.length() - 1).trim();
+            }
+            int where = path.indexOf(".where(");
+            if (where >= 0) {
+                path = path.substring(0, where);
+            }
+            if (path.startsWith(dataType + ".") && path.matches("[A-Za-z.]+")) {
+                paths.add(path);
+            }
+        }
+
+        return paths;
+    }
+
+    static String stripPatientPrefix(String id) {
+        return id.startsWith("Patient/") ? id.substring("Patient/".length()) : id;
+    }
+
+    private ca.uhn.fhir.jpa.searchparam.SearchParameterMap toHapiMap(
+            Collection<Map.Entry<String, List<List<IQueryParameterType>>>> entries) {
         // TODO: Once HAPI breaks this out from the server dependencies
         // we can include it on its own.
         ca.uhn.fhir.jpa.searchparam.SearchParameterMap hapiMap = new ca.uhn.fhir.jpa.searchparam.SearchParameterMap();
@@ -63,7 +315,7 @@ public class JpaFhirRetrieveProvider extends SearchParamFhirRetrieveProvider {
             Method method = puts.get(0);
             method.setAccessible(true);
 
-            for (Map.Entry<String, List<List<IQueryParameterType>>> entry : map.entrySet()) {
+            for (Map.Entry<String, List<List<IQueryParameterType>>> entry : entries) {
                 method.invoke(hapiMap, entry.getKey(), entry.getValue());
             }
 
@@ -71,11 +323,26 @@ public class JpaFhirRetrieveProvider extends SearchParamFhirRetrieveProvider {
             logger.warn("Error converting search parameter map", e);
         }
 
+        return hapiMap;
+    }
+
+    private Collection<Object> search(String dataType, ca.uhn.fhir.jpa.searchparam.SearchParameterMap hapiMap) {
         IFhirResourceDao<?> dao = this.registry.getResourceDao(dataType);
 
         IBundleProvider bundleProvider = dao.search(hapiMap);
         if (bundleProvider.size() == null) {
-            return resolveResourceList(bundleProvider.getResources(0, 10000));
+            // The total isn't known until the search is complete, so page through
+            // it instead of stopping at a fixed count, which would silently drop
+            // the results of a large (e.g. batched) query
+            List<IBaseResource> resourceList = new ArrayList<>();
+            for (int from = 0;; from += SEARCH_PAGE_SIZE) {
+                List<IBaseResource> page = bundleProvider.getResources(from, from + SEARCH_PAGE_SIZE);
+                if (page.isEmpty()) {
+                    break;
+                }
+                resourceList.addAll(page);
+            }
+            return resolveResourceList(resourceList);
         }
         if (bundleProvider.size() == 0) {
             return new ArrayList<>();
@@ -93,4 +360,24 @@ public class JpaFhirRetrieveProvider extends SearchParamFhirRetrieveProvider {
         // ret.addAll(resourceList);
         return ret;
     }
-}
\ No newline at end of file
+
+    /*
+     * A retrieve in the Patient context with the patient parameter taken out, so
+     * it can be run for any batch of patients.
+     */
+    private static class BatchQuery {
+        private final String dataType;
+        private final Map<String, List<List<IQueryParameterType>>> parameters = new LinkedHashMap<>();
+        private final String patientParam;
+        private final IQueryParameterType patientTemplate;
+
+        BatchQuery(String dataType, SearchParameterMap map, String patientParam) {
+            this.dataType = dataType;
+            this.patientParam = patientParam;
+            for (Map.Entry<String, List<List<IQueryParameterType>>> entry : map.entrySet()) {
+                this.parameters.put(entry.getKey(), entry.getValue());
+            }
+            this.patientTemplate = this.parameters.get(patientParam).get(0).get(0);
+        }
+    }
+}
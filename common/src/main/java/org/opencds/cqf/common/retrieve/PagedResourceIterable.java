@@ -0,0 +1,164 @@
+package org.opencds.cqf.common.retrieve;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+
+import com.google.common.collect.Iterators;
+
+/**
+ * Enumerates resources one page at a time so that at most a single page of
+ * resources is held in memory while the caller works through them. Each call to
+ * {@link #pages()} or {@link #iterator()} starts a new pass over the source.
+ */
+public class PagedResourceIterable<T extends IBaseResource> implements Iterable<T> {
+
+    private final Function<Integer, Iterator<List<T>>> pageSource;
+    private final Supplier<Integer> counter;
+    private final int pageSize;
+
+    private PagedResourceIterable(Function<Integer, Iterator<List<T>>> pageSource, Supplier<Integer> counter,
+            int pageSize) {
+        this.pageSource = pageSource;
+        this.counter = counter;
+        this.pageSize = Math.max(1, pageSize);
+    }
+
+    /**
+     * Pages through the results of a search of the given resource type.
+     */
+    public static <T extends IBaseResource> PagedResourceIterable<T> forSearch(DaoRegistry registry,
+            String resourceType, SearchParameterMap map, int pageSize) {
+        return new PagedResourceIterable<>(size -> new SearchPageIterator<>(registry, resourceType, map, size),
+                () -> registry.getResourceDao(resourceType).search(map).size(), pageSize);
+    }
+
+    /**
+     * Wraps resources that are already in memory.
+     */
+    public static <T extends IBaseResource> PagedResourceIterable<T> forList(List<T> resources, int pageSize) {
+        return new PagedResourceIterable<>(size -> partition(resources, size).iterator(), resources::size,
+                pageSize);
+    }
+
+    /**
+     * The resources matching {@code predicate}, in pages of at most the same
+     * size. They can't be counted without enumerating them.
+     */
+    public PagedResourceIterable<T> filter(Predicate<T> predicate) {
+        return new PagedResourceIterable<>(
+                size -> Iterators.filter(Iterators.transform(this.pageSource.apply(size),
+                        page -> page.stream().filter(predicate).collect(Collectors.toList())),
+                        page -> !page.isEmpty()),
+                () -> null, this.pageSize);
+    }
+
+    public int getPageSize() {
+        return this.pageSize;
+    }
+
+    /**
+     * The number of resources, or null if the source can't tell without
+     * enumerating them. Searches are counted with a separate query.
+     */
+    public Integer count() {
+        return this.counter.get();
+    }
+
+    public Iterator<List<T>> pages() {
+        return this.pageSource.apply(this.pageSize);
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        Iterator<List<T>> pages = this.pages();
+        return new Iterator<T>() {
+            private Iterator<T> current = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!current.hasNext() && pages.hasNext()) {
+                    current = pages.next().iterator();
+                }
+                return current.hasNext();
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return current.next();
+            }
+        };
+    }
+
+    public static <T> List<List<T>> partition(List<T> items, int size) {
+        List<List<T>> partitions = new ArrayList<>();
+        for (int start = 0; start < items.size(); start += size) {
+            partitions.add(items.subList(start, Math.min(start + size, items.size())));
+        }
+        return partitions;
+    }
+
+    private static class SearchPageIterator<T extends IBaseResource> implements Iterator<List<T>> {
+        private final IBundleProvider bundleProvider;
+        private final Integer total;
+        private final int pageSize;
+        private int offset = 0;
+        private List<T> next;
+
+        SearchPageIterator(DaoRegistry registry, String resourceType, SearchParameterMap map, int pageSize) {
+            IFhirResourceDao<?> dao = registry.getResourceDao(resourceType);
+            this.bundleProvider = dao.search(map);
+            this.total = this.bundleProvider.size();
+            this.pageSize = pageSize;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public boolean hasNext() {
+            if (next == null) {
+                if (total != null && offset >= total) {
+                    return false;
+                }
+
+                int to = total != null ? Math.min(offset + pageSize, total) : offset + pageSize;
+                List<IBaseResource> resources = bundleProvider.getResources(offset, to);
+                if (resources == null || resources.isEmpty()) {
+                    return false;
+                }
+
+                offset += resources.size();
+                next = new ArrayList<>();
+                resources.forEach(x -> next.add((T) x));
+            }
+
+            return true;
+        }
+
+        @Override
+        public List<T> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            List<T> page = next;
+            next = null;
+            return page;
+        }
+    }
+}
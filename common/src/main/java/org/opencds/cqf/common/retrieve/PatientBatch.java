@@ -0,0 +1,53 @@
+package org.opencds.cqf.common.retrieve;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * The data retrieved for a chunk of patients, per query and then per patient.
+ * Filled by {@link JpaFhirRetrieveProvider}, either as the chunk is evaluated or
+ * ahead of time by a prefetch.
+ */
+public class PatientBatch {
+
+    private final Set<String> patientIds;
+    private final ConcurrentMap<String, Map<String, List<Object>>> results = new ConcurrentHashMap<>();
+    private final AtomicInteger resourceCount = new AtomicInteger();
+
+    public PatientBatch(Collection<String> patientIds) {
+        this.patientIds = Collections.unmodifiableSet(
+                patientIds.stream().map(JpaFhirRetrieveProvider::stripPatientPrefix).collect(Collectors.toSet()));
+    }
+
+    public Set<String> getPatientIds() {
+        return this.patientIds;
+    }
+
+    /**
+     * The number of resources held, used to bound how much data is prefetched.
+     */
+    public int getResourceCount() {
+        return this.resourceCount.get();
+    }
+
+    boolean contains(String queryKey) {
+        return this.results.containsKey(queryKey);
+    }
+
+    Map<String, List<Object>> get(String queryKey) {
+        return this.results.get(queryKey);
+    }
+
+    void put(String queryKey, Map<String, List<Object>> resultsByPatient) {
+        if (this.results.putIfAbsent(queryKey, resultsByPatient) == null) {
+            this.resourceCount.addAndGet(resultsByPatient.values().stream().mapToInt(List::size).sum());
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package org.opencds.cqf.common.retrieve;
+
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import org.opencds.cqf.cql.engine.data.CompositeDataProvider;
+import org.opencds.cqf.cql.engine.model.ModelResolver;
+
+/**
+ * Data provider backed by the JPA server that lets the evaluation announce the
+ * patients it is about to evaluate, so their data can be retrieved in batches
+ * (see {@link JpaFhirRetrieveProvider#setPatientBatch(Collection)}).
+ */
+public class PatientBatchDataProvider extends CompositeDataProvider {
+
+    private final JpaFhirRetrieveProvider retrieveProvider;
+
+    public PatientBatchDataProvider(ModelResolver modelResolver, JpaFhirRetrieveProvider retrieveProvider) {
+        super(modelResolver, retrieveProvider);
+        this.retrieveProvider = retrieveProvider;
+    }
+
+    public void setPatientBatch(Collection<String> patientIds) {
+        this.retrieveProvider.setPatientBatch(patientIds);
+    }
+
+    public void setPatientBatch(PatientBatch patientBatch) {
+        this.retrieveProvider.setPatientBatch(patientBatch);
+    }
+
+    public CompletableFuture<PatientBatch> prefetch(Collection<String> patientIds, Executor executor) {
+        return this.retrieveProvider.prefetch(patientIds, executor);
+    }
+
+    public void prefetch(PatientBatch patientBatch) {
+        this.retrieveProvider.prefetch(patientBatch);
+    }
+}
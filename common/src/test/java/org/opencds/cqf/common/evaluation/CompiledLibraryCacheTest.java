@@ -0,0 +1,102 @@
+package org.opencds.cqf.common.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cqframework.cql.elm.execution.IncludeDef;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.junit.Test;
+
+public class CompiledLibraryCacheTest {
+
+    private final CompiledLibraryCache cache = new CompiledLibraryCache(1000000);
+    private final AtomicInteger compilations = new AtomicInteger();
+
+    @Test
+    public void compilesOncePerSource() {
+        Library first = get("Test", "define X: 1");
+        assertSame(first, get("Test", "define X: 1"));
+        assertEquals(1, this.compilations.get());
+
+        get("Test", "define X: 2");
+        assertEquals(2, this.compilations.get());
+    }
+
+    @Test
+    public void invalidateDropsIncludingLibraries() {
+        get("Common", "common");
+        get("Test", "test", "Common");
+        get("Other", "other");
+        assertEquals(3, this.compilations.get());
+
+        this.cache.invalidate("Common");
+
+        get("Other", "other");
+        assertEquals(3, this.compilations.get());
+        get("Common", "common");
+        get("Test", "test", "Common");
+        assertEquals(5, this.compilations.get());
+    }
+
+    @Test
+    public void concurrentRequestsWaitForOneCompilation() throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Library>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(() -> {
+                    start.await();
+                    return this.cache.get(identifier("Test"), "source".getBytes(StandardCharsets.UTF_8), () -> {
+                        this.compilations.incrementAndGet();
+                        Thread.sleep(50);
+                        return library("Test");
+                    });
+                }));
+            }
+            start.countDown();
+
+            Library library = results.get(0).get(10, TimeUnit.SECONDS);
+            for (Future<Library> result : results) {
+                assertSame(library, result.get(10, TimeUnit.SECONDS));
+            }
+            assertEquals(1, this.compilations.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Library get(String name, String source, String... includes) {
+        return this.cache.get(identifier(name), source.getBytes(StandardCharsets.UTF_8), () -> {
+            this.compilations.incrementAndGet();
+            return library(name, includes);
+        });
+    }
+
+    private static Library library(String name, String... includes) {
+        Library library = new Library().withIdentifier(identifier(name));
+        if (includes.length > 0) {
+            Library.Includes defs = new Library.Includes();
+            for (String include : includes) {
+                defs.withDef(new IncludeDef().withLocalIdentifier(include).withPath(include).withVersion("1.0"));
+            }
+            library.withIncludes(defs);
+        }
+        return library;
+    }
+
+    private static VersionedIdentifier identifier(String name) {
+        return new VersionedIdentifier().withId(name).withVersion("1.0");
+    }
+}
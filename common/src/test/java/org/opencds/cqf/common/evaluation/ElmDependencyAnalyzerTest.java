@@ -0,0 +1,75 @@
+package org.opencds.cqf.common.evaluation;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.xml.namespace.QName;
+
+import org.cqframework.cql.elm.execution.Count;
+import org.cqframework.cql.elm.execution.Exists;
+import org.cqframework.cql.elm.execution.Expression;
+import org.cqframework.cql.elm.execution.ExpressionDef;
+import org.cqframework.cql.elm.execution.ExpressionRef;
+import org.cqframework.cql.elm.execution.FunctionDef;
+import org.cqframework.cql.elm.execution.FunctionRef;
+import org.cqframework.cql.elm.execution.IncludeDef;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.Literal;
+import org.cqframework.cql.elm.execution.ParameterRef;
+import org.cqframework.cql.elm.execution.Retrieve;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.junit.Test;
+import org.opencds.cqf.cql.engine.execution.LibraryLoader;
+
+public class ElmDependencyAnalyzerTest {
+
+    private static final QName ENCOUNTER = new QName("http://hl7.org/fhir", "Encounter");
+    private static final QName INTEGER = new QName("urn:hl7-org:elm-types:r1", "Integer");
+
+    @Test
+    public void classifiesDefinitionsByPatientContext() {
+        Library common = library("Common",
+                def("Patient", "Common Encounters", new Retrieve().withDataType(ENCOUNTER)),
+                def("Patient", "Common Constant", new Literal().withValueType(INTEGER).withValue("1")));
+        Library library = library("Test",
+                def("Patient", "Period", new ParameterRef().withName("Measurement Period")),
+                def("Patient", "Encounters", new Retrieve().withDataType(ENCOUNTER)),
+                def("Patient", "Has Encounter", new Exists().withOperand(new ExpressionRef().withName("Encounters"))),
+                def("Unfiltered", "All Encounters", new Retrieve().withDataType(ENCOUNTER)),
+                def("Patient", "Encounter Count",
+                        new Count().withSource(new ExpressionRef().withName("All Encounters"))),
+                new FunctionDef().withName("Recent").withContext("Patient")
+                        .withExpression(new Retrieve().withDataType(ENCOUNTER)),
+                def("Patient", "Recent Encounters", new FunctionRef().withName("Recent")),
+                def("Patient", "Included Constant",
+                        new ExpressionRef().withLibraryName("Common").withName("Common Constant")),
+                def("Patient", "Included Encounters",
+                        new ExpressionRef().withLibraryName("Common").withName("Common Encounters")),
+                def("Patient", "Unknown", new ExpressionRef().withName("Missing")));
+        library.withIncludes(new Library.Includes().withDef(
+                new IncludeDef().withLocalIdentifier("Common").withPath("Common").withVersion("1.0")));
+
+        LibraryLoader loader = identifier -> {
+            assertEquals("Common", identifier.getId());
+            return common;
+        };
+
+        Set<String> independent = ElmDependencyAnalyzer.findPatientIndependentExpressions(library, loader);
+
+        assertEquals(new HashSet<>(Arrays.asList("Test|1.0|Period", "Test|1.0|All Encounters",
+                "Test|1.0|Encounter Count", "Test|1.0|Included Constant", "Common|1.0|Common Constant")),
+                independent);
+    }
+
+    private static Library library(String name, ExpressionDef... defs) {
+        return new Library().withIdentifier(new VersionedIdentifier().withId(name).withVersion("1.0"))
+                .withStatements(new Library.Statements().withDef(defs));
+    }
+
+    private static ExpressionDef def(String context, String name, Expression expression) {
+        return new ExpressionDef().withName(name).withContext(context).withExpression(expression);
+    }
+}
@@ -0,0 +1,85 @@
+package org.opencds.cqf.common.evaluation;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.cqframework.cql.cql2elm.CqlTranslatorOptions;
+import org.junit.Test;
+
+public class LibraryLoaderTest {
+
+    private static final String VERSION = "1.5.0";
+
+    @Test
+    public void elmWithTheSameOptionsAndVersionIsCompatible() {
+        assertTrue(isCompatible(xml(defaultOptions(), VERSION)));
+        assertTrue(isCompatible(json(defaultOptions(), VERSION)));
+    }
+
+    @Test
+    public void optionsThatOnlyAddMetadataDontMatter() {
+        List<String> options = defaultOptions();
+        options.add("EnableResultTypes");
+        options.add("EnableDetailedErrors");
+        options.remove("EnableLocators");
+
+        assertTrue(isCompatible(xml(options, VERSION)));
+    }
+
+    @Test
+    public void elmWithDifferentOptionsIsIncompatible() {
+        List<String> options = defaultOptions();
+        options.add("RequireFromKeyword");
+
+        assertFalse(isCompatible(xml(options, VERSION)));
+    }
+
+    @Test
+    public void elmWithoutOptionsIsIncompatible() {
+        assertFalse(isCompatible(("<library xmlns=\"urn:hl7-org:elm:r1\"><annotation translatorVersion=\"" + VERSION
+                + "\" xsi:type=\"a:CqlToElmInfo\"/></library>").getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void elmOfAnotherTranslatorVersionIsIncompatible() {
+        assertFalse(isCompatible(xml(defaultOptions(), "1.4.0")));
+    }
+
+    @Test
+    public void elmWithoutATranslatorVersionIsIncompatible() {
+        assertFalse(isCompatible(xml(defaultOptions(), null)));
+        assertFalse(isCompatible(json(defaultOptions(), null)));
+    }
+
+    @Test
+    public void noElmIsCompatibleWithAnUnknownTranslatorVersion() {
+        assertFalse(LibraryLoader.isCompatible("Test", xml(defaultOptions(), VERSION), null));
+    }
+
+    private static boolean isCompatible(byte[] elm) {
+        return LibraryLoader.isCompatible("Test", elm, VERSION);
+    }
+
+    private static List<String> defaultOptions() {
+        List<String> options = new ArrayList<>();
+        CqlTranslatorOptions.defaultOptions().getOptions().forEach(option -> options.add(option.toString()));
+        return options;
+    }
+
+    private static byte[] xml(List<String> options, String version) {
+        return ("<library xmlns=\"urn:hl7-org:elm:r1\"><annotation"
+                + (version != null ? " translatorVersion=\"" + version + "\"" : "") + " translatorOptions=\""
+                + String.join(",", options) + "\" xsi:type=\"a:CqlToElmInfo\"/></library>")
+                        .getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] json(List<String> options, String version) {
+        return ("{\"library\":{\"annotation\":[{"
+                + (version != null ? "\"translatorVersion\":\"" + version + "\"," : "") + "\"translatorOptions\":\""
+                + String.join(",", options) + "\",\"type\":\"CqlToElmInfo\"}]}}").getBytes(StandardCharsets.UTF_8);
+    }
+}
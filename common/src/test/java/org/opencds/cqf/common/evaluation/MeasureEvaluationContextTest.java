@@ -0,0 +1,145 @@
+package org.opencds.cqf.common.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.junit.Test;
+
+public class MeasureEvaluationContextTest {
+
+    private static final VersionedIdentifier LIBRARY_ID = new VersionedIdentifier().withId("Cache")
+            .withVersion("1.0");
+
+    private final ExpressionCacheStatistics statistics = new ExpressionCacheStatistics();
+    private final PatientIndependentExpressionCache sharedCache = new PatientIndependentExpressionCache(
+            Collections.singleton(MeasureEvaluationContext.cacheKey(LIBRARY_ID, "Measurement Period End")));
+    private final MeasureEvaluationContext context = context(this.sharedCache);
+
+    @Test
+    public void resultsOfAPatientAreDroppedWhenThePatientChanges() {
+        this.context.setContextValue("Patient", "p1");
+        this.context.addExpressionToCache(LIBRARY_ID, "Denominator", true);
+
+        this.context.setContextValue("Patient", "p1");
+        assertTrue(this.context.isExpressionInCache(LIBRARY_ID, "Denominator"));
+        assertEquals(true, this.context.getExpressionResultFromCache(LIBRARY_ID, "Denominator"));
+
+        this.context.setContextValue("Patient", "p2");
+        assertFalse(this.context.isExpressionInCache(LIBRARY_ID, "Denominator"));
+
+        assertEquals(1, this.statistics.getHits());
+        assertEquals(1, this.statistics.getMisses());
+    }
+
+    @Test
+    public void patientIndependentResultsAreKeptAcrossPatients() {
+        this.context.setContextValue("Patient", "p1");
+        this.context.addExpressionToCache(LIBRARY_ID, "Measurement Period End", "2020-12-31");
+
+        this.context.setContextValue("Patient", "p2");
+        assertTrue(this.context.isExpressionInCache(LIBRARY_ID, "Measurement Period End"));
+        assertEquals("2020-12-31", this.context.getExpressionResultFromCache(LIBRARY_ID, "Measurement Period End"));
+
+        // Another Context of the run, as a parallel worker has, sees it too
+        MeasureEvaluationContext worker = context(this.sharedCache);
+        worker.setContextValue("Patient", "p3");
+        assertTrue(worker.isExpressionInCache(LIBRARY_ID, "Measurement Period End"));
+    }
+
+    @Test
+    public void nullPatientIndependentResultIsCached() {
+        this.context.setContextValue("Patient", "p1");
+        this.context.addExpressionToCache(LIBRARY_ID, "Measurement Period End", null);
+
+        this.context.setContextValue("Patient", "p2");
+        assertTrue(this.context.isExpressionInCache(LIBRARY_ID, "Measurement Period End"));
+        assertNull(this.context.getExpressionResultFromCache(LIBRARY_ID, "Measurement Period End"));
+    }
+
+    @Test
+    public void everyResultIsScopedToThePatientWithoutASharedCache() {
+        MeasureEvaluationContext unshared = context(null);
+        unshared.setContextValue("Patient", "p1");
+        unshared.addExpressionToCache(LIBRARY_ID, "Measurement Period End", "2020-12-31");
+
+        unshared.setContextValue("Patient", "p2");
+        assertFalse(unshared.isExpressionInCache(LIBRARY_ID, "Measurement Period End"));
+        assertFalse(this.sharedCache.contains(MeasureEvaluationContext.cacheKey(LIBRARY_ID,
+                "Measurement Period End")));
+    }
+
+    @Test
+    public void sharedResultCreditsEveryPatientWithItsEvaluatedResources() {
+        this.context.setContextValue("Patient", "p1");
+        evaluate(this.context, "Measurement Period End", "2020-12-31", "Organization/o1");
+        assertEquals(Collections.singletonList("Organization/o1"), this.context.getEvaluatedResources());
+        this.context.clearEvaluatedResources();
+
+        this.context.setContextValue("Patient", "p2");
+        assertTrue(this.context.isExpressionInCache(LIBRARY_ID, "Measurement Period End"));
+        this.context.getExpressionResultFromCache(LIBRARY_ID, "Measurement Period End");
+        assertEquals(Collections.singletonList("Organization/o1"), this.context.getEvaluatedResources());
+
+        MeasureEvaluationContext worker = context(this.sharedCache);
+        worker.setContextValue("Patient", "p3");
+        worker.getExpressionResultFromCache(LIBRARY_ID, "Measurement Period End");
+        assertEquals(Collections.singletonList("Organization/o1"), worker.getEvaluatedResources());
+    }
+
+    @Test
+    public void cachedResultCreditsEveryPopulationOfThePatient() {
+        this.context.setContextValue("Patient", "p1");
+        evaluate(this.context, "Denominator", true, "Encounter/e1");
+        // The engine's second check before caching the result isn't another miss
+        assertEquals(0, this.statistics.getHits());
+        assertEquals(1, this.statistics.getMisses());
+        // Recorded for the first population that used it
+        this.context.clearEvaluatedResources();
+
+        assertTrue(this.context.isExpressionInCache(LIBRARY_ID, "Denominator"));
+        this.context.getExpressionResultFromCache(LIBRARY_ID, "Denominator");
+        assertEquals(Collections.singletonList("Encounter/e1"), this.context.getEvaluatedResources());
+        assertEquals(1, this.statistics.getHits());
+        assertEquals(1, this.statistics.getMisses());
+    }
+
+    @Test
+    public void expressionIsCreditedWithTheResourcesOfTheExpressionsItReferences() {
+        this.context.setContextValue("Patient", "p1");
+        assertFalse(this.context.isExpressionInCache(LIBRARY_ID, "Numerator"));
+        this.context.getEvaluatedResources().add("Encounter/e1");
+        evaluate(this.context, "Denominator", true, "Condition/c1");
+        this.context.getEvaluatedResources().add("Observation/o1");
+        assertFalse(this.context.isExpressionInCache(LIBRARY_ID, "Numerator"));
+        this.context.addExpressionToCache(LIBRARY_ID, "Numerator", true);
+        assertEquals(2, this.statistics.getMisses());
+        this.context.clearEvaluatedResources();
+
+        this.context.getExpressionResultFromCache(LIBRARY_ID, "Numerator");
+        assertEquals(Arrays.asList("Encounter/e1", "Condition/c1", "Observation/o1"),
+                this.context.getEvaluatedResources());
+        this.context.clearEvaluatedResources();
+        this.context.getExpressionResultFromCache(LIBRARY_ID, "Denominator");
+        assertEquals(Collections.singletonList("Condition/c1"), this.context.getEvaluatedResources());
+    }
+
+    // As the engine evaluates an expression that is not cached yet
+    private static void evaluate(MeasureEvaluationContext context, String name, Object result,
+            String evaluatedResource) {
+        assertFalse(context.isExpressionInCache(LIBRARY_ID, name));
+        context.getEvaluatedResources().add(evaluatedResource);
+        assertFalse(context.isExpressionInCache(LIBRARY_ID, name));
+        context.addExpressionToCache(LIBRARY_ID, name, result);
+    }
+
+    private MeasureEvaluationContext context(PatientIndependentExpressionCache cache) {
+        return new MeasureEvaluationContext(new Library().withIdentifier(LIBRARY_ID), this.statistics, cache);
+    }
+}
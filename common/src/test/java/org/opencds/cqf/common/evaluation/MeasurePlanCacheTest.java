@@ -0,0 +1,234 @@
+package org.opencds.cqf.common.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cqframework.cql.elm.execution.IncludeDef;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.junit.Test;
+
+public class MeasurePlanCacheTest {
+
+    private final CompiledLibraryCache libraryCache = new CompiledLibraryCache(1000000);
+    private final MeasurePlanCache cache = new MeasurePlanCache(10, this.libraryCache);
+    private final AtomicInteger compilations = new AtomicInteger();
+
+    @Test
+    public void compilesOncePerMeasureVersion() {
+        MeasurePlan<Void> plan = get("1");
+        assertSame(plan, get("1"));
+        assertEquals(1, this.compilations.get());
+
+        assertNotSame(plan, get("2"));
+        assertEquals(2, this.compilations.get());
+    }
+
+    @Test
+    public void measureWithoutVersionIsCompiledEveryTime() {
+        get(null);
+        get(null);
+
+        assertEquals(2, this.compilations.get());
+        assertEquals(0, this.cache.size());
+    }
+
+    @Test
+    public void invalidateAllDropsEveryPlan() {
+        get("1");
+        this.cache.invalidateAll();
+        get("1");
+
+        assertEquals(2, this.compilations.get());
+    }
+
+    @Test
+    public void libraryChangeDropsOnlyThePlansIncludingIt() {
+        compileLibrary("Common");
+        compileLibrary("Test", "Common");
+        compileLibrary("Other");
+        MeasurePlan<Void> test = get("test", "1", "Test");
+        MeasurePlan<Void> other = get("other", "1", "Other");
+
+        this.cache.invalidate("Common");
+
+        assertSame(other, get("other", "1", "Other"));
+        assertNotSame(test, get("test", "1", "Test"));
+        assertEquals(3, this.compilations.get());
+
+        this.cache.invalidate("Other");
+
+        assertNotSame(other, get("other", "1", "Other"));
+        assertEquals(4, this.compilations.get());
+    }
+
+    // The libraries a plan includes are only known once they are compiled, a
+    // plan whose compilation learns it includes a library that changed meanwhile
+    // is not kept.
+    @Test
+    public void planCompiledAcrossAChangeOfAnIncludedLibraryIsNotKept() throws Exception {
+        compileLibrary("Common");
+        MeasurePlan<Void> other = get("other", "1", "Other");
+        CountDownLatch compiling = new CountDownLatch(1);
+        CountDownLatch committed = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<MeasurePlan<Void>> inFlight = executor.submit(() -> this.cache.get("test", "1", () -> {
+                compiling.countDown();
+                committed.await();
+                compileLibrary("Test", "Common");
+                return compile("Test");
+            }));
+
+            assertTrue(compiling.await(10, TimeUnit.SECONDS));
+            // Before and after the commit
+            this.cache.invalidate("Common");
+            this.cache.invalidate("Common");
+            committed.countDown();
+            MeasurePlan<Void> stale = inFlight.get(10, TimeUnit.SECONDS);
+
+            assertEquals(1, this.cache.size());
+            assertNotSame(stale, get("test", "1", "Test"));
+            assertSame(other, get("other", "1", "Other"));
+            assertEquals(3, this.compilations.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void compilationErrorsArePassedOn() {
+        this.cache.get("measure", "1", () -> {
+            throw new IllegalArgumentException("Evaluation of Measure using multiple Models is not supported");
+        });
+    }
+
+    // A plan compiled while a Library change is being committed may have read
+    // the old Library, the invalidation that runs after the commit drops it.
+    @Test
+    public void invalidationAfterTheCommitDropsPlansCompiledMeanwhile() throws Exception {
+        CountDownLatch compiling = new CountDownLatch(1);
+        CountDownLatch committed = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<MeasurePlan<Void>> inFlight = executor.submit(() -> this.cache.get("measure", "1", () -> {
+                compiling.countDown();
+                committed.await();
+                return compile();
+            }));
+
+            assertTrue(compiling.await(10, TimeUnit.SECONDS));
+            // Before the commit
+            this.cache.invalidateAll();
+            committed.countDown();
+            MeasurePlan<Void> stale = inFlight.get(10, TimeUnit.SECONDS);
+            // After the commit
+            this.cache.invalidateAll();
+
+            assertNotSame(stale, get("1"));
+            assertEquals(2, this.compilations.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // A compilation that started before a Library change was committed and ends
+    // after the invalidations before and after the commit read the old Library,
+    // the plan it returns is not kept.
+    @Test
+    public void planCompiledAcrossBothInvalidationsIsNotKept() throws Exception {
+        CountDownLatch compiling = new CountDownLatch(1);
+        CountDownLatch committed = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<MeasurePlan<Void>> inFlight = executor.submit(() -> this.cache.get("measure", "1", () -> {
+                compiling.countDown();
+                committed.await();
+                return compile();
+            }));
+
+            assertTrue(compiling.await(10, TimeUnit.SECONDS));
+            // Before and after the commit
+            this.cache.invalidateAll();
+            this.cache.invalidateAll();
+            committed.countDown();
+            MeasurePlan<Void> stale = inFlight.get(10, TimeUnit.SECONDS);
+
+            assertEquals(0, this.cache.size());
+            assertNotSame(stale, get("1"));
+            assertEquals(2, this.compilations.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // A request that starts after the commit never gets the plan of a
+    // compilation that started before it, even when it waits for it.
+    @Test
+    public void requestAfterTheInvalidationDoesNotGetAPlanCompiledBefore() throws Exception {
+        CountDownLatch compiling = new CountDownLatch(1);
+        CountDownLatch committed = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<MeasurePlan<Void>> inFlight = executor.submit(() -> this.cache.get("measure", "1", () -> {
+                compiling.countDown();
+                committed.await();
+                return compile();
+            }));
+
+            assertTrue(compiling.await(10, TimeUnit.SECONDS));
+            this.cache.invalidateAll();
+            Future<MeasurePlan<Void>> after = executor.submit(() -> get("1"));
+            committed.countDown();
+
+            MeasurePlan<Void> stale = inFlight.get(10, TimeUnit.SECONDS);
+            MeasurePlan<Void> current = after.get(10, TimeUnit.SECONDS);
+            assertNotSame(stale, current);
+            assertSame(current, get("1"));
+            assertEquals(2, this.compilations.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private MeasurePlan<Void> get(String version) {
+        return get("measure", version, "Test");
+    }
+
+    private MeasurePlan<Void> get(String measureId, String version, String libraryName) {
+        return this.cache.get(measureId, version, () -> compile(libraryName));
+    }
+
+    private MeasurePlan<Void> compile() {
+        return compile("Test");
+    }
+
+    private MeasurePlan<Void> compile(String libraryName) {
+        this.compilations.incrementAndGet();
+        Library library = new Library()
+                .withIdentifier(new VersionedIdentifier().withId(libraryName).withVersion("1.0"));
+        return new MeasurePlan<>(identifier -> null, library, null, null);
+    }
+
+    // What loading the library of a plan teaches the compiled library cache
+    private void compileLibrary(String name, String... includes) {
+        Library library = new Library().withIdentifier(new VersionedIdentifier().withId(name).withVersion("1.0"));
+        if (includes.length > 0) {
+            library.withIncludes(new Library.Includes());
+            for (String include : includes) {
+                library.getIncludes().getDef().add(new IncludeDef().withPath(include).withVersion("1.0"));
+            }
+        }
+        this.libraryCache.get(library.getIdentifier(), name.getBytes(StandardCharsets.UTF_8), () -> library);
+    }
+}
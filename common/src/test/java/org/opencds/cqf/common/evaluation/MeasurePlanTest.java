@@ -0,0 +1,68 @@
+package org.opencds.cqf.common.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cqframework.cql.elm.execution.IncludeDef;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.junit.Test;
+import org.opencds.cqf.cql.engine.execution.LibraryLoader;
+
+public class MeasurePlanTest {
+
+    private final Map<String, Library> libraries = new HashMap<>();
+    private final AtomicInteger loads = new AtomicInteger();
+
+    @Test
+    public void requestLoadersServeTheCompiledLibrariesOfThePlan() {
+        Library primary = library("Test", "1.0", "Common", "1.0");
+        library("Common", "1.0", "Helpers", null);
+        library("Helpers", null);
+        MeasurePlan<Void> plan = new MeasurePlan<>(this::load, primary, null, null);
+        int loadsOfThePlan = this.loads.get();
+
+        LibraryLoader first = plan.createLibraryLoader(this::load);
+        LibraryLoader second = plan.createLibraryLoader(this::load);
+        assertSame(this.libraries.get("Common-1.0"), first.load(identifier("Common", "1.0")));
+        assertSame(this.libraries.get("Common-1.0"), second.load(identifier("Common", "1.0")));
+        assertSame(this.libraries.get("Helpers"), second.load(identifier("Helpers", null)));
+        assertEquals(loadsOfThePlan, this.loads.get());
+    }
+
+    @Test
+    public void requestLoaderLoadsOtherLibrariesItself() {
+        MeasurePlan<Void> plan = new MeasurePlan<>(this::load, library("Test", "1.0"), null, null);
+        Library other = new Library().withIdentifier(identifier("Other", "1.0"));
+
+        LibraryLoader loader = plan.createLibraryLoader(identifier -> other);
+        assertSame(other, loader.load(identifier("Other", "1.0")));
+    }
+
+    private Library load(VersionedIdentifier identifier) {
+        this.loads.incrementAndGet();
+        String key = identifier.getVersion() == null ? identifier.getId()
+                : identifier.getId() + "-" + identifier.getVersion();
+        return this.libraries.get(key);
+    }
+
+    private Library library(String name, String version, String... include) {
+        Library library = new Library().withIdentifier(identifier(name, version));
+        if (include.length > 0) {
+            library.withIncludes(new Library.Includes());
+            library.getIncludes().getDef()
+                    .add(new IncludeDef().withLocalIdentifier(include[0]).withPath(include[0])
+                            .withVersion(include[1]));
+        }
+        this.libraries.put(version == null ? name : name + "-" + version, library);
+        return library;
+    }
+
+    private static VersionedIdentifier identifier(String name, String version) {
+        return new VersionedIdentifier().withId(name).withVersion(version);
+    }
+}
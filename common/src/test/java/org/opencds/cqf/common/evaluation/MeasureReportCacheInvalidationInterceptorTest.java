@@ -0,0 +1,68 @@
+package org.opencds.cqf.common.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.hl7.fhir.r4.model.Binary;
+import org.hl7.fhir.r4.model.Medication;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.junit.Before;
+import org.junit.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+
+public class MeasureReportCacheInvalidationInterceptorTest {
+
+    private static final FhirContext FHIR_CONTEXT = FhirContext.forR4();
+
+    private final MeasureReportCache cache = new MeasureReportCache(1000, 0);
+    private final MeasureReportCacheInvalidationInterceptor interceptor = new MeasureReportCacheInvalidationInterceptor(
+            FHIR_CONTEXT, this.cache);
+
+    @Before
+    public void setUp() {
+        this.cache.put(key("p1"), new MeasureReport());
+        this.cache.put(key("p2"), new MeasureReport());
+    }
+
+    @Test
+    public void patientCompartmentResourceDropsTheReportsOfItsPatient() {
+        this.interceptor.resourceCreated(new Observation().setSubject(new Reference("Patient/p1")));
+
+        assertNull(this.cache.get(key("p1")));
+        assertNotNull(this.cache.get(key("p2")));
+        assertEquals(0, this.cache.getInvalidateAllCount());
+    }
+
+    @Test
+    public void resourceOutsideThePatientCompartmentDropsEveryReport() {
+        this.interceptor.resourceUpdated(new Medication(), new Medication());
+        assertEquals(0, this.cache.size());
+
+        this.cache.put(key("p1"), new MeasureReport());
+        this.interceptor.resourceDeleted(new Organization());
+        assertEquals(0, this.cache.size());
+
+        this.cache.put(key("p1"), new MeasureReport());
+        this.interceptor.resourceCreated(new ValueSet());
+        assertEquals(0, this.cache.size());
+    }
+
+    @Test
+    public void bookkeepingResourcesAreIgnored() {
+        this.interceptor.resourceCreated(new Binary());
+        this.interceptor.resourceCreated(new MeasureReport().setSubject(new Reference("Patient/p1")));
+
+        assertNotNull(this.cache.get(key("p1")));
+        assertNotNull(this.cache.get(key("p2")));
+    }
+
+    private MeasureReportCache.Key key(String patientId) {
+        return this.cache.newKey("measure", "1", "2019-01-01", "2019-12-31", null, "patient", patientId);
+    }
+}
@@ -0,0 +1,127 @@
+package org.opencds.cqf.common.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.junit.Test;
+
+public class MeasureReportCacheTest {
+
+    private final MeasureReportCache cache = new MeasureReportCache(1000, 0);
+
+    @Test
+    public void reportsAreCachedUntilTheirPatientChanges() {
+        MeasureReport first = report(1);
+        MeasureReport second = report(2);
+        this.cache.put(key("p1"), first);
+        this.cache.put(key("p2"), second);
+        assertSame(first, this.cache.get(key("p1")));
+
+        this.cache.invalidatePatient("p1");
+
+        assertNull(this.cache.get(key("p1")));
+        assertSame(second, this.cache.get(key("p2")));
+        assertEquals(1, this.cache.getPatientInvalidationCount());
+    }
+
+    @Test
+    public void invalidateAllDropsEveryReport() {
+        this.cache.put(key("p1"), report(1));
+        this.cache.put(key("p2"), report(2));
+
+        this.cache.invalidateAll();
+
+        assertNull(this.cache.get(key("p1")));
+        assertNull(this.cache.get(key("p2")));
+        assertEquals(0, this.cache.size());
+    }
+
+    @Test
+    public void reportEvaluatedAcrossAPatientInvalidationIsNotCached() {
+        MeasureReportCache.Key key = key("p1");
+        this.cache.invalidatePatient("p1");
+        this.cache.put(key, report(1));
+
+        assertNull(this.cache.get(key("p1")));
+    }
+
+    @Test
+    public void reportEvaluatedAcrossAnInvalidateAllIsNotCached() {
+        MeasureReportCache.Key key = key("p1");
+        this.cache.invalidateAll();
+        this.cache.put(key, report(1));
+
+        assertNull(this.cache.get(key("p1")));
+    }
+
+    @Test
+    public void disabledCacheKeepsNothing() {
+        MeasureReportCache disabled = new MeasureReportCache(0, 0);
+        assertFalse(disabled.isEnabled());
+
+        MeasureReportCache.Key key = disabled.newKey("m", "1", null, null, null, null, "p1");
+        disabled.put(key, report(1));
+
+        assertNull(disabled.get(key));
+    }
+
+    // Writers evaluate reports of the data version they read while the data is
+    // changed and invalidated, as the interceptor does. Once they are done, the
+    // cached report must be of the current version.
+    @Test
+    public void concurrentInvalidationsNeverLeaveAStaleReport() throws Exception {
+        AtomicInteger data = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(5);
+        try {
+            for (int round = 0; round < 50; round++) {
+                List<Future<?>> tasks = new ArrayList<>();
+                for (int writer = 0; writer < 4; writer++) {
+                    tasks.add(executor.submit(() -> {
+                        for (int i = 0; i < 500; i++) {
+                            MeasureReportCache.Key key = key("p1");
+                            this.cache.put(key, report(data.get()));
+                        }
+                    }));
+                }
+                tasks.add(executor.submit(() -> {
+                    for (int i = 0; i < 50; i++) {
+                        data.incrementAndGet();
+                        this.cache.invalidatePatient("p1");
+                    }
+                }));
+                for (Future<?> task : tasks) {
+                    task.get(30, TimeUnit.SECONDS);
+                }
+
+                IBaseResource cached = this.cache.get(key("p1"));
+                if (cached != null) {
+                    assertEquals(String.valueOf(data.get()), cached.getIdElement().getIdPart());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private MeasureReportCache.Key key(String patientId) {
+        return this.cache.newKey("measure", "1", "2019-01-01", "2019-12-31", null, "patient", patientId);
+    }
+
+    private static MeasureReport report(int version) {
+        MeasureReport report = new MeasureReport();
+        report.setId(String.valueOf(version));
+        return report;
+    }
+}
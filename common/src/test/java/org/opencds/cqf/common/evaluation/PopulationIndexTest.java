@@ -0,0 +1,69 @@
+package org.opencds.cqf.common.evaluation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import org.junit.Test;
+
+public class PopulationIndexTest {
+
+    @Test
+    public void mapFromNumbersNewMembersInTheOtherIndexOrder() {
+        PopulationIndex report = new PopulationIndex();
+        report.indexOf("a");
+        report.indexOf("b");
+
+        PopulationIndex worker = new PopulationIndex();
+        worker.indexOf("c", "Patient C");
+        worker.indexOf("a");
+        worker.indexOf("d");
+
+        assertArrayEquals(new int[] { 2, 0, 3 }, report.mapFrom(worker));
+        assertEquals("c", report.getKey(2));
+        assertEquals("Patient C", report.getDisplay(2));
+        assertEquals("d", report.getKey(3));
+    }
+
+    @Test
+    public void remapRenumbersMembers() {
+        BitSet members = new BitSet();
+        members.set(0);
+        members.set(2);
+
+        BitSet remapped = PopulationIndex.remap(members, new int[] { 5, 1, 3 });
+
+        BitSet expected = new BitSet();
+        expected.set(3);
+        expected.set(5);
+        assertEquals(expected, remapped);
+    }
+
+    @Test
+    public void mergingWorkersInPartitionOrderMatchesASequentialPass() {
+        PopulationIndex sequential = new PopulationIndex();
+        BitSet sequentialMembers = new BitSet();
+        for (String key : Arrays.asList("p1", "p2", "p3", "p4")) {
+            sequentialMembers.set(sequential.indexOf(key));
+        }
+
+        PopulationIndex first = new PopulationIndex();
+        BitSet firstMembers = new BitSet();
+        PopulationIndex second = new PopulationIndex();
+        BitSet secondMembers = new BitSet();
+        // The workers interleave, but each numbers its own partition
+        secondMembers.set(second.indexOf("p3"));
+        firstMembers.set(first.indexOf("p1"));
+        secondMembers.set(second.indexOf("p4"));
+        firstMembers.set(first.indexOf("p2"));
+
+        PopulationIndex report = new PopulationIndex();
+        BitSet members = PopulationIndex.remap(firstMembers, report.mapFrom(first));
+        members.or(PopulationIndex.remap(secondMembers, report.mapFrom(second)));
+
+        assertEquals(sequential.getKeys(sequentialMembers), report.getKeys(members));
+        assertEquals(Arrays.asList("p1", "p2", "p3", "p4"), report.getKeys(members));
+    }
+}
@@ -0,0 +1,107 @@
+package org.opencds.cqf.common.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class QuantileSketchTest {
+
+    @Test
+    public void quantilesAreExactUpToTheCapacity() {
+        QuantileSketch sketch = new QuantileSketch();
+        assertTrue(Double.isNaN(sketch.getMedian()));
+
+        for (double value : new double[] { 4, 1, 3, 2 }) {
+            sketch.add(value);
+        }
+        assertEquals(2.5, sketch.getMedian(), 0);
+        assertEquals(1, sketch.getQuantile(0), 0);
+        assertEquals(4, sketch.getQuantile(1), 0);
+
+        sketch.add(5);
+        assertEquals(3, sketch.getMedian(), 0);
+    }
+
+    @Test
+    public void rankErrorStaysWithinTheBound() {
+        int count = 100000;
+        QuantileSketch sketch = new QuantileSketch();
+        for (int value : shuffled(count)) {
+            sketch.add(value);
+        }
+
+        assertEquals(count, sketch.getCount());
+        assertWithinBound(sketch, count);
+    }
+
+    @Test
+    public void mergedSketchesStayWithinTheBound() {
+        int count = 100000;
+        QuantileSketch[] partitions = new QuantileSketch[4];
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i] = new QuantileSketch();
+        }
+        List<Integer> values = shuffled(count);
+        for (int i = 0; i < values.size(); i++) {
+            partitions[i % partitions.length].add(values.get(i));
+        }
+
+        QuantileSketch merged = new QuantileSketch();
+        for (QuantileSketch partition : partitions) {
+            merged.merge(partition);
+        }
+
+        assertEquals(count, merged.getCount());
+        assertWithinBound(merged, count);
+    }
+
+    @Test
+    public void aggregateReadBackMergesAsTheOriginalDoes() {
+        int count = 10000;
+        ObservationAggregate[] partitions = { new ObservationAggregate(), new ObservationAggregate() };
+        List<Integer> values = shuffled(count);
+        for (int i = 0; i < values.size(); i++) {
+            partitions[i % partitions.length].add(values.get(i));
+        }
+
+        ObservationAggregate merged = new ObservationAggregate();
+        ObservationAggregate readBack = new ObservationAggregate();
+        for (ObservationAggregate partition : partitions) {
+            merged.merge(partition);
+            readBack.merge(ObservationAggregate.fromBytes(partition.toBytes()));
+        }
+
+        assertEquals(count, readBack.getCount());
+        assertEquals(merged.getSum(), readBack.getSum(), 0);
+        assertEquals(1, readBack.getMin(), 0);
+        assertEquals(count, readBack.getMax(), 0);
+        assertEquals(merged.getMedian(), readBack.getMedian(), 0);
+        assertTrue(Double.isNaN(ObservationAggregate.fromBytes(new ObservationAggregate().toBytes()).getMedian()));
+    }
+
+    // The values are 1 to count, so a value is its own rank
+    private static void assertWithinBound(QuantileSketch sketch, int count) {
+        double bound = Math.log((double) count / QuantileSketch.DEFAULT_CAPACITY) / Math.log(2)
+                / QuantileSketch.DEFAULT_CAPACITY;
+        for (int percentile = 5; percentile < 100; percentile += 5) {
+            double quantile = percentile / 100.0;
+            double error = Math.abs(sketch.getQuantile(quantile) - quantile * count) / count;
+            assertTrue("rank error " + error + " at " + quantile, error <= bound);
+        }
+    }
+
+    private static List<Integer> shuffled(int count) {
+        List<Integer> values = new ArrayList<>(count);
+        for (int i = 1; i <= count; i++) {
+            values.add(i);
+        }
+        Collections.shuffle(values, new Random(42));
+        return values;
+    }
+}
@@ -0,0 +1,80 @@
+package org.opencds.cqf.common.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+public class SpillableIdSetTest {
+
+    @Test
+    public void inMemoryIdsComeOutSortedOnce() {
+        try (SpillableIdSet ids = new SpillableIdSet(100)) {
+            assertTrue(ids.isEmpty());
+            ids.add("b");
+            ids.add("a");
+            ids.add("b");
+
+            assertFalse(ids.isEmpty());
+            assertEquals(Arrays.asList("a", "b"), toList(ids));
+        }
+    }
+
+    @Test
+    public void spilledRunsAreMergedWithoutDuplicates() {
+        TreeSet<String> expected = new TreeSet<>();
+        try (SpillableIdSet ids = new SpillableIdSet(3)) {
+            // Every id is added twice, far apart, so duplicates land in different runs
+            for (int round = 0; round < 2; round++) {
+                for (int i = 0; i < 10; i++) {
+                    String id = "Patient/" + (i * 7 % 10);
+                    ids.add(id);
+                    expected.add(id);
+                }
+            }
+
+            assertEquals(new ArrayList<>(expected), toList(ids));
+            // Iterating doesn't consume the set
+            assertEquals(new ArrayList<>(expected), toList(ids));
+        }
+    }
+
+    @Test
+    public void addAllMergesAndDeduplicates() {
+        try (SpillableIdSet first = new SpillableIdSet(2); SpillableIdSet second = new SpillableIdSet(2)) {
+            for (String id : Arrays.asList("e", "a", "c", "g")) {
+                first.add(id);
+            }
+            for (String id : Arrays.asList("c", "b", "g", "f", "a")) {
+                second.add(id);
+            }
+
+            first.addAll(second);
+
+            assertEquals(Arrays.asList("a", "b", "c", "e", "f", "g"), toList(first));
+        }
+    }
+
+    @Test
+    public void closeEmptiesTheSet() {
+        SpillableIdSet ids = new SpillableIdSet(1);
+        ids.add("a");
+        ids.add("b");
+        ids.close();
+
+        assertTrue(ids.isEmpty());
+        assertEquals(new ArrayList<String>(), toList(ids));
+    }
+
+    private static List<String> toList(SpillableIdSet ids) {
+        List<String> result = new ArrayList<>();
+        ids.forEach(result::add);
+        return result;
+    }
+}
@@ -0,0 +1,44 @@
+package org.opencds.cqf.common.helpers;
+
+import org.cqframework.cql.cql2elm.CqlTranslator;
+import org.cqframework.cql.cql2elm.LibraryManager;
+import org.cqframework.cql.cql2elm.ModelManager;
+
+/**
+ * Compares the time the direct conversion and the ELM XML round trip take to
+ * turn a translated library into its execution model, what LibraryLoader saves
+ * per library. Not a unit test: timings depend on the machine, so it only
+ * prints them. Run it with the test classpath, e.g. from the IDE.
+ */
+public class ElmExecutionModelConverterBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+
+        ModelManager modelManager = new ModelManager();
+        CqlTranslator translator = TranslatorHelper.getTranslator(ElmExecutionModelConverterTest.CQL,
+                new LibraryManager(modelManager), modelManager);
+        org.hl7.elm.r1.Library translated = translator.getTranslatedLibrary().getLibrary();
+
+        // Warm up both paths before timing them
+        for (int i = 0; i < iterations; i++) {
+            ElmExecutionModelConverter.convert(translated);
+            ElmExecutionModelConverterTest.throughXml(translator, translated);
+        }
+
+        long direct = 0;
+        long xml = 0;
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            ElmExecutionModelConverter.convert(translated);
+            direct += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            ElmExecutionModelConverterTest.throughXml(translator, translated);
+            xml += System.nanoTime() - start;
+        }
+
+        System.out.println(String.format("%d conversions: direct %d ms, ELM XML %d ms", iterations,
+                direct / 1000000, xml / 1000000));
+    }
+}
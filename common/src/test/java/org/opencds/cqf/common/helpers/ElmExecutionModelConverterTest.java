@@ -0,0 +1,146 @@
+package org.opencds.cqf.common.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import org.cqframework.cql.cql2elm.CqlTranslator;
+import org.cqframework.cql.cql2elm.LibraryManager;
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.SortDirection;
+import org.junit.Test;
+
+public class ElmExecutionModelConverterTest {
+
+    private static final String EXECUTION_PACKAGE = Library.class.getPackage().getName();
+
+    static final String CQL = String.join("\n",
+            "library ConversionTest version '1.0'",
+            "",
+            "codesystem \"LOINC\": 'http://loinc.org'",
+            "valueset \"Encounters\": 'http://example.org/ValueSet/encounters'",
+            "code \"Height\": '8302-2' from \"LOINC\" display 'Body height'",
+            "",
+            "parameter \"Measurement Period\" Interval<DateTime>",
+            "    default Interval[@2019-01-01T00:00:00.0, @2020-01-01T00:00:00.0)",
+            "",
+            "define \"Numbers\": { 3, 1, 2 }",
+            "define \"Sorted\": \"Numbers\" N return N sort desc",
+            "define \"Squares\": \"Numbers\" N let S: N * N where S > 1 return Tuple { n: N, square: S }",
+            "define \"In Period\": @2019-06-01T00:00:00.0 during \"Measurement Period\"",
+            "define \"Same Month\": @2019-06-01 same month as @2019-06-15",
+            "define \"Total\": Sum(\"Numbers\")",
+            "define private function \"Double\"(value Integer): value * 2",
+            "define \"Doubled\": \"Double\"(21)",
+            "define \"Height Code\": \"Height\"",
+            "define \"Size\": if \"Total\" > 5 then 'large' else 'small'");
+
+    @Test
+    public void directConversionMatchesTheElmXmlRoundTrip() throws Exception {
+        ModelManager modelManager = new ModelManager();
+        CqlTranslator translator = TranslatorHelper.getTranslator(CQL, new LibraryManager(modelManager),
+                modelManager);
+        assertEquals(Collections.emptyList(), translator.getErrors());
+        org.hl7.elm.r1.Library translated = translator.getTranslatedLibrary().getLibrary();
+
+        assertSameElement("library", throughXml(translator, translated),
+                ElmExecutionModelConverter.convert(translated));
+    }
+
+    @Test
+    public void enumListItemsAreConvertedToTheListElementType() throws Exception {
+        Method listGetter = Sorts.class.getMethod("getDirections");
+        assertEquals(SortDirection.class, ElmExecutionModelConverter.elementType(listGetter));
+        assertEquals(Object.class, ElmExecutionModelConverter.elementType(Sorts.class.getMethod("getItems")));
+
+        assertSame(SortDirection.DESC, new ElmExecutionModelConverter().convertValue(org.hl7.elm.r1.SortDirection.DESC,
+                ElmExecutionModelConverter.elementType(listGetter)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void enumWithoutATargetEnumTypeIsRejected() {
+        new ElmExecutionModelConverter().convertValue(org.hl7.elm.r1.SortDirection.DESC, Object.class);
+    }
+
+    static Library throughXml(CqlTranslator translator, org.hl7.elm.r1.Library library) throws Exception {
+        return TranslatorHelper.readLibrary(
+                new ByteArrayInputStream(translator.convertToXml(library).getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /*
+     * Compares the properties of two execution model elements the way the
+     * converter copies them, translator annotations aside.
+     */
+    private static void assertSameElement(String path, Object expected, Object actual) throws Exception {
+        assertSameElement(path, expected, actual, Collections.newSetFromMap(new IdentityHashMap<>()));
+    }
+
+    private static void assertSameElement(String path, Object expected, Object actual, Set<Object> visited)
+            throws Exception {
+        if (expected == null || actual == null) {
+            assertSame(path, expected, actual);
+            return;
+        }
+
+        assertEquals(path, expected.getClass(), actual.getClass());
+        if (expected instanceof List) {
+            List<?> expectedItems = (List<?>) expected;
+            List<?> actualItems = (List<?>) actual;
+            assertEquals(path, expectedItems.size(), actualItems.size());
+            for (int i = 0; i < expectedItems.size(); i++) {
+                assertSameElement(path + "[" + i + "]", expectedItems.get(i), actualItems.get(i), visited);
+            }
+            return;
+        }
+
+        if (!isExecutionElement(expected.getClass())) {
+            assertEquals(path, expected, actual);
+            return;
+        }
+
+        if (!visited.add(expected)) {
+            return;
+        }
+
+        for (Method getter : expected.getClass().getMethods()) {
+            if (getter.getParameterCount() != 0 || Modifier.isStatic(getter.getModifiers())
+                    || !getter.getDeclaringClass().getPackage().getName().equals(EXECUTION_PACKAGE)
+                    || getter.getName().equals("getAnnotation")
+                    || !(getter.getName().startsWith("get") || getter.getName().startsWith("is"))) {
+                continue;
+            }
+
+            assertSameElement(path + "." + getter.getName(), getter.invoke(expected), getter.invoke(actual),
+                    visited);
+        }
+    }
+
+    private static boolean isExecutionElement(Class<?> type) {
+        for (Class<?> current = type; current != null; current = current.getSuperclass()) {
+            if (current.getPackage() != null && current.getPackage().getName().equals(EXECUTION_PACKAGE)) {
+                return !current.isEnum();
+            }
+        }
+        return false;
+    }
+
+    public static class Sorts {
+        public List<SortDirection> getDirections() {
+            return null;
+        }
+
+        @SuppressWarnings("rawtypes")
+        public List getItems() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package org.opencds.cqf.common.retrieve;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.Test;
+import org.opencds.cqf.common.testing.TestDao;
+import org.opencds.cqf.common.testing.TestDaoRegistry;
+import org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterResolver;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+
+public class JpaFhirRetrieveProviderTest {
+
+    private static final FhirContext FHIR_CONTEXT = FhirContext.forR4();
+
+    private final List<Observation> observations = new ArrayList<>();
+    // The patients each search asked for
+    private final List<Set<String>> searches = new ArrayList<>();
+    // The pages read from searches whose size is not known
+    private final List<String> pages = new ArrayList<>();
+    private final JpaFhirRetrieveProvider provider = new JpaFhirRetrieveProvider(registry(),
+            new SearchParameterResolver(FHIR_CONTEXT));
+
+    @Test
+    public void batchedResultsAreAttributedToTheirPatient() {
+        addObservations("a", 2);
+        addObservations("c", 1);
+        this.provider.setPatientBatch(Arrays.asList("a", "b", "Patient/c"));
+
+        assertEquals(Arrays.asList("a-0", "a-1"), retrieve("a"));
+        assertEquals(Collections.emptyList(), retrieve("b"));
+        assertEquals(Collections.singletonList("c-0"), retrieve("c"));
+
+        // One search for the whole batch
+        assertEquals(Collections.singletonList(new TreeSet<>(Arrays.asList("a", "b", "c"))), this.searches);
+    }
+
+    @Test
+    public void patientOutsideTheBatchIsSearchedOnItsOwn() {
+        addObservations("a", 1);
+        addObservations("d", 1);
+        this.provider.setPatientBatch(Arrays.asList("a", "b"));
+
+        assertEquals(Collections.singletonList("d-0"), retrieve("d"));
+        assertEquals(Collections.singletonList("a-0"), retrieve("a"));
+
+        assertEquals(Arrays.asList(Collections.singleton("d"), new TreeSet<>(Arrays.asList("a", "b"))),
+                this.searches);
+    }
+
+    @Test
+    public void batchedSearchIsReadPastOnePage() {
+        // More results than JpaFhirRetrieveProvider reads at a time
+        addObservations("a", 800);
+        addObservations("b", 700);
+        this.provider.setPatientBatch(Arrays.asList("a", "b"));
+
+        assertEquals(800, retrieve("a").size());
+        assertEquals(700, retrieve("b").size());
+
+        assertEquals(1, this.searches.size());
+        assertEquals(Arrays.asList("0-1000", "1000-2000", "2000-3000"), this.pages);
+    }
+
+    @Test
+    public void resultOfNoPatientOfTheBatchTurnsBatchingOff() {
+        addObservations("a", 1);
+        Observation group = new Observation();
+        group.setId("group-0");
+        group.setSubject(new Reference("Group/g"));
+        this.observations.add(group);
+        this.provider.setPatientBatch(Arrays.asList("a", "b"));
+
+        // What the search of each patient returns
+        assertEquals(Arrays.asList("a-0", "group-0"), retrieve("a"));
+        assertEquals(Collections.singletonList("group-0"), retrieve("b"));
+
+        // The batched search, then a search per patient
+        assertEquals(Arrays.asList(new TreeSet<>(Arrays.asList("a", "b")), Collections.singleton("a"),
+                Collections.singleton("b")), this.searches);
+    }
+
+    private List<String> retrieve(String patientId) {
+        List<String> ids = new ArrayList<>();
+        for (Object result : this.provider.retrieve("Patient", "subject", patientId, "Observation", null, null,
+                null, null, null, null, null, null)) {
+            ids.add(((IBaseResource) result).getIdElement().getIdPart());
+        }
+        return ids;
+    }
+
+    private void addObservations(String patientId, int count) {
+        for (int i = 0; i < count; i++) {
+            Observation observation = new Observation();
+            observation.setId(patientId + "-" + i);
+            observation.setSubject(new Reference("Patient/" + patientId));
+            this.observations.add(observation);
+        }
+    }
+
+    /*
+     * The Observations whose subject is one of the searched patients, or that
+     * have a Group subject. Like a JPA search whose total isn't counted, the
+     * size of the results is unknown.
+     */
+    private List<IBaseResource> search(SearchParameterMap map) {
+        Set<String> patients = new TreeSet<>();
+        for (Map.Entry<String, List<List<IQueryParameterType>>> entry : map.entrySet()) {
+            for (List<IQueryParameterType> or : entry.getValue()) {
+                for (IQueryParameterType param : or) {
+                    if (param instanceof ReferenceParam) {
+                        patients.add(((ReferenceParam) param).getIdPart());
+                    }
+                }
+            }
+        }
+        assertFalse(map.toString(), patients.isEmpty());
+        this.searches.add(patients);
+
+        List<IBaseResource> results = new ArrayList<>();
+        Set<String> subjects = new HashSet<>(patients);
+        for (Observation observation : this.observations) {
+            String subject = observation.getSubject().getReferenceElement().getIdPart();
+            if (subjects.contains(subject) || observation.getSubject().getReference().startsWith("Group/")) {
+                results.add(observation);
+            }
+        }
+        return results;
+    }
+
+    private DaoRegistry registry() {
+        TestDao observationDao = new TestDao()
+                .on("getContext", args -> FHIR_CONTEXT)
+                .on("search", args -> new SimpleBundleProvider(search((SearchParameterMap) args[0])) {
+                    @Override
+                    public Integer size() {
+                        return null;
+                    }
+
+                    @Override
+                    public List<IBaseResource> getResources(int theFromIndex, int theToIndex) {
+                        pages.add(theFromIndex + "-" + theToIndex);
+                        // Like a JPA search, a page past the end is empty
+                        int end = super.size();
+                        return super.getResources(Math.min(theFromIndex, end), Math.min(theToIndex, end));
+                    }
+                });
+        return new TestDaoRegistry().register("Observation", observationDao);
+    }
+}
@@ -0,0 +1,50 @@
+package org.opencds.cqf.common.testing;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.api.dao.IFhirSystemDao;
+
+/**
+ * An in-memory DAO for tests: it answers the methods a test gives answers for,
+ * by name, and throws UnsupportedOperationException for any other, so a test
+ * fails when the code under test starts to call a method it doesn't fake.
+ */
+public class TestDao {
+
+    public interface Answer {
+        Object answer(Object[] args) throws Exception;
+    }
+
+    private final Map<String, Answer> answers = new HashMap<>();
+
+    public TestDao on(String method, Answer answer) {
+        this.answers.put(method, answer);
+        return this;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T extends IBaseResource> IFhirResourceDao<T> resourceDao() {
+        return (IFhirResourceDao<T>) proxy(IFhirResourceDao.class);
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T, M> IFhirSystemDao<T, M> systemDao() {
+        return (IFhirSystemDao<T, M>) proxy(IFhirSystemDao.class);
+    }
+
+    private Object proxy(Class<?> type) {
+        return Proxy.newProxyInstance(TestDao.class.getClassLoader(), new Class<?>[] { type },
+                (proxy, method, args) -> {
+                    Answer answer = this.answers.get(method.getName());
+                    if (answer == null) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    return answer.answer(args);
+                });
+    }
+}
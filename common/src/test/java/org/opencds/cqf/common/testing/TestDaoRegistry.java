@@ -0,0 +1,55 @@
+package org.opencds.cqf.common.testing;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.api.dao.IFhirSystemDao;
+import ca.uhn.fhir.model.api.annotation.ResourceDef;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+
+/**
+ * A DaoRegistry of the TestDaos a test registers. Like the server's, it
+ * rejects the resource types it has no DAO for.
+ */
+public class TestDaoRegistry extends DaoRegistry {
+
+    private final Map<String, IFhirResourceDao<?>> resourceDaos = new HashMap<>();
+    private IFhirSystemDao<?, ?> systemDao;
+
+    public TestDaoRegistry register(String resourceType, TestDao dao) {
+        this.resourceDaos.put(resourceType, dao.resourceDao());
+        return this;
+    }
+
+    public TestDaoRegistry registerSystemDao(TestDao dao) {
+        this.systemDao = dao.systemDao();
+        return this;
+    }
+
+    @Override
+    public IFhirResourceDao<?> getResourceDao(String resourceType) {
+        IFhirResourceDao<?> dao = this.resourceDaos.get(resourceType);
+        if (dao == null) {
+            throw new InvalidRequestException("Unknown resource type: " + resourceType);
+        }
+        return dao;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <R extends IBaseResource> IFhirResourceDao<R> getResourceDao(Class<R> resourceType) {
+        return (IFhirResourceDao<R>) getResourceDao(resourceType.getAnnotation(ResourceDef.class).name());
+    }
+
+    @Override
+    public IFhirSystemDao<?, ?> getSystemDao() {
+        if (this.systemDao == null) {
+            throw new UnsupportedOperationException("getSystemDao");
+        }
+        return this.systemDao;
+    }
+}
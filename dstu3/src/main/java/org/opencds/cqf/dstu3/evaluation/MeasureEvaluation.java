@@ -1,8 +1,7 @@
 package org.opencds.cqf.dstu3.evaluation;
 
-import java.lang.reflect.Field;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.function.Supplier;
 
 import org.cqframework.cql.elm.execution.ExpressionDef;
 import org.cqframework.cql.elm.execution.FunctionDef;
@@ -16,16 +15,22 @@ import org.hl7.fhir.dstu3.model.Measure;
 import org.hl7.fhir.dstu3.model.MeasureReport;
 import org.hl7.fhir.dstu3.model.Observation;
 import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.dstu3.model.Quantity;
 import org.hl7.fhir.dstu3.model.Reference;
 import org.hl7.fhir.dstu3.model.Resource;
 import org.hl7.fhir.dstu3.model.StringType;
 import org.hl7.fhir.dstu3.model.UriType;
-import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.evaluation.MeasureEvaluationContext;
 import org.opencds.cqf.common.evaluation.MeasurePopulationType;
 import org.opencds.cqf.common.evaluation.MeasureScoring;
+import org.opencds.cqf.common.evaluation.ObservationAggregate;
+import org.opencds.cqf.common.evaluation.PatientDataPipeline;
+import org.opencds.cqf.common.evaluation.PatientPartitionExecutor;
+import org.opencds.cqf.common.evaluation.PopulationIndex;
+import org.opencds.cqf.common.retrieve.PagedResourceIterable;
 import org.opencds.cqf.cql.engine.execution.Context;
 import org.opencds.cqf.cql.engine.execution.Variable;
-import org.opencds.cqf.cql.engine.runtime.Code;
 import org.opencds.cqf.cql.engine.runtime.Interval;
 import org.opencds.cqf.dstu3.builders.MeasureReportBuilder;
 import org.slf4j.Logger;
@@ -33,7 +38,6 @@ import org.slf4j.LoggerFactory;
 
 import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
 import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
-import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.param.ReferenceParam;
 
 public class MeasureEvaluation {
@@ -42,10 +46,36 @@ public class MeasureEvaluation {
 
     private Interval measurementPeriod;
     private DaoRegistry registry;
+    private Supplier<Context> contextFactory;
+    private int parallelism;
+    private boolean containObservations = HapiProperties.getMeasureEvaluationContainObservations();
 
     public MeasureEvaluation(DaoRegistry registry, Interval measurementPeriod) {
+        this(registry, measurementPeriod, null, 1);
+    }
+
+    /**
+     * @param contextFactory creates an independent execution Context (same library,
+     *                       parameters, data and terminology providers) for each
+     *                       parallel worker
+     * @param parallelism    the number of workers population and patient-list
+     *                       evaluations are partitioned across
+     */
+    public MeasureEvaluation(DaoRegistry registry, Interval measurementPeriod, Supplier<Context> contextFactory,
+            int parallelism) {
         this.registry = registry;
         this.measurementPeriod = measurementPeriod;
+        this.contextFactory = contextFactory;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Whether the measure observations of continuous variable groups are added
+     * to the reports as contained Observations, besides being aggregated into
+     * the measure score.
+     */
+    public void setContainObservations(boolean containObservations) {
+        this.containObservations = containObservations;
     }
 
     public MeasureReport evaluatePatientMeasure(Measure measure, Context context, String patientId) {
@@ -67,36 +97,32 @@ public class MeasureEvaluation {
 
         boolean isSingle = true;
         return evaluate(measure, context,
-                patient == null ? Collections.emptyList() : Collections.singletonList(patient),
+                PagedResourceIterable.forList(
+                        patient == null ? Collections.<Patient>emptyList() : Collections.singletonList(patient), 1),
                 MeasureReport.MeasureReportType.INDIVIDUAL, isSingle);
     }
 
     public MeasureReport evaluatePatientListMeasure(Measure measure, Context context, String practitionerRef) {
         logger.info("Generating patient-list report");
 
-        List<Patient> patients = practitionerRef == null ? getAllPatients() : getPractitionerPatients(practitionerRef);
+        PagedResourceIterable<Patient> patients = practitionerRef == null ? getAllPatients()
+                : getPractitionerPatients(practitionerRef);
         boolean isSingle = false;
         return evaluate(measure, context, patients, MeasureReport.MeasureReportType.PATIENTLIST, isSingle);
     }
 
-    private List<Patient> getPractitionerPatients(String practitionerRef) {
+    private PagedResourceIterable<Patient> getPractitionerPatients(String practitionerRef) {
         SearchParameterMap map = new SearchParameterMap();
         map.add("general-practitioner", new ReferenceParam(
                 practitionerRef.startsWith("Practitioner/") ? practitionerRef : "Practitioner/" + practitionerRef));
 
-        List<Patient> patients = new ArrayList<>();
-        IBundleProvider patientProvider = registry.getResourceDao("Patient").search(map);
-        List<IBaseResource> patientList = patientProvider.getResources(0, patientProvider.size());
-        patientList.forEach(x -> patients.add((Patient) x));
-        return patients;
+        return PagedResourceIterable.forSearch(registry, "Patient", map,
+                HapiProperties.getMeasureEvaluationPatientPageSize());
     }
 
-    private List<Patient> getAllPatients() {
-        List<Patient> patients = new ArrayList<>();
-        IBundleProvider patientProvider = registry.getResourceDao("Patient").search(new SearchParameterMap());
-        List<IBaseResource> patientList = patientProvider.getResources(0, patientProvider.size());
-        patientList.forEach(x -> patients.add((Patient) x));
-        return patients;
+    private PagedResourceIterable<Patient> getAllPatients() {
+        return PagedResourceIterable.forSearch(registry, "Patient", new SearchParameterMap(),
+                HapiProperties.getMeasureEvaluationPatientPageSize());
     }
 
     public MeasureReport evaluatePopulationMeasure(Measure measure, Context context) {
@@ -106,30 +132,15 @@ public class MeasureEvaluation {
         return evaluate(measure, context, getAllPatients(), MeasureReport.MeasureReportType.SUMMARY, isSingle);
     }
 
-    @SuppressWarnings("unchecked")
-    private void clearExpressionCache(Context context) {
-        // Hack to clear expression cache
-        // See cqf-ruler github issue #153
-        try {
-            Field privateField = Context.class.getDeclaredField("expressions");
-            privateField.setAccessible(true);
-            LinkedHashMap<String, Object> expressions = (LinkedHashMap<String, Object>) privateField.get(context);
-            expressions.clear();
-
-        } catch (Exception e) {
-            logger.warn("Error resetting expression cache", e);
-        }
-    }
-
-    private Resource evaluateObservationCriteria(Context context, Patient patient, Resource resource, Measure.MeasureGroupPopulationComponent pop, MeasureReport report) {
+    private void evaluateObservation(Context context, Patient patient, String key, Resource resource,
+            MeasureGroupState state, MeasureReport report) {
+        Measure.MeasureGroupPopulationComponent pop = state.getCriteria(MeasurePopulationType.MEASUREOBSERVATION);
         if (pop == null || !pop.hasCriteria()) {
-            return null;
+            return;
         }
 
         context.setContextValue("Patient", patient.getIdElement().getIdPart());
 
-        clearExpressionCache(context);
-
         String observationName = pop.getCriteria();
         ExpressionDef ed = context.resolveExpressionRef(observationName);
         if (!(ed instanceof FunctionDef)) {
@@ -146,16 +157,42 @@ public class MeasureEvaluation {
             context.popWindow();
         }
 
-        if (result instanceof Resource) {
-            return (Resource)result;
+        Double value = getObservationValue(result);
+        state.addObservation(key, value);
+        if (!this.containObservations) {
+            return;
+        }
+
+        Resource observation = result instanceof Resource ? (Resource) result
+                : createObservation(observationName, value, report);
+        report.addContained(observation);
+        // TODO: Add to the evaluatedResources bundle
+        //report.getEvaluatedResources().add(new Reference("#" + observation.getId()));
+    }
+
+    private Double getObservationValue(Object result) {
+        if (result instanceof Observation) {
+            Observation observation = (Observation) result;
+            return observation.hasValueQuantity() && observation.getValueQuantity().hasValue()
+                    ? observation.getValueQuantity().getValue().doubleValue()
+                    : null;
+        }
+        if (result instanceof Quantity) {
+            return ((Quantity) result).hasValue() ? ((Quantity) result).getValue().doubleValue() : null;
         }
+        return ObservationAggregate.valueOf(result);
+    }
 
+    private Observation createObservation(String observationName, Double value, MeasureReport report) {
         Observation obs = new Observation();
         obs.setStatus(Observation.ObservationStatus.FINAL);
         obs.setId(UUID.randomUUID().toString());
         CodeableConcept cc = new CodeableConcept();
         cc.setText(observationName);
         obs.setCode(cc);
+        if (value != null) {
+            obs.setValue(new Quantity().setValue(value));
+        }
         Extension obsExtension = new Extension().setUrl("http://hl7.org/fhir/StructureDefinition/cqf-measureInfo");
         Extension extExtMeasure = new Extension()
                 .setUrl("measure")
@@ -178,8 +215,6 @@ public class MeasureEvaluation {
 
         context.setContextValue("Patient", patient.getIdElement().getIdPart());
 
-        clearExpressionCache(context);
-
         Object result = context.resolveExpressionRef(pop.getCriteria()).evaluate(context);
         if (result == null) {
             return Collections.emptyList();
@@ -196,34 +231,50 @@ public class MeasureEvaluation {
         return (Iterable<Resource>) result;
     }
 
-    private boolean evaluatePopulationCriteria(Context context, Patient patient,
-            Measure.MeasureGroupPopulationComponent criteria, HashMap<String, Resource> population,
-            HashMap<String, Patient> populationPatients, Measure.MeasureGroupPopulationComponent exclusionCriteria,
-            HashMap<String, Resource> exclusionPopulation, HashMap<String, Patient> exclusionPatients) {
+    private boolean evaluatePopulationCriteria(Context context, Patient patient, MeasureGroupState state,
+            MeasurePopulationType populationType, MeasurePopulationType exclusionType) {
+        return evaluatePopulationCriteria(context, patient, state, populationType, exclusionType, null);
+    }
+
+    /**
+     * @param members if not null, receives the patient's resources that are in
+     *                the population (not excluded), by id
+     */
+    private boolean evaluatePopulationCriteria(Context context, Patient patient, MeasureGroupState state,
+            MeasurePopulationType populationType, MeasurePopulationType exclusionType,
+            Map<String, Resource> members) {
+        Measure.MeasureGroupPopulationComponent criteria = state.getCriteria(populationType);
         boolean inPopulation = false;
         if (criteria != null) {
             for (Resource resource : evaluateCriteria(context, patient, criteria)) {
                 inPopulation = true;
-                population.put(resource.getIdElement().getIdPart(), resource);
+                state.addResource(populationType, resource);
+                if (members != null) {
+                    members.put(resource.getIdElement().getIdPart(), resource);
+                }
             }
         }
 
         if (inPopulation) {
             // Are they in the exclusion?
+            Measure.MeasureGroupPopulationComponent exclusionCriteria = state.getCriteria(exclusionType);
             if (exclusionCriteria != null) {
                 for (Resource resource : evaluateCriteria(context, patient, exclusionCriteria)) {
                     inPopulation = false;
-                    exclusionPopulation.put(resource.getIdElement().getIdPart(), resource);
-                    population.remove(resource.getIdElement().getIdPart());
+                    state.addResource(exclusionType, resource);
+                    state.removeResource(populationType, resource.getIdElement().getIdPart());
+                    if (members != null) {
+                        members.remove(resource.getIdElement().getIdPart());
+                    }
                 }
             }
         }
 
-        if (inPopulation && populationPatients != null) {
-            populationPatients.put(patient.getIdElement().getIdPart(), patient);
+        if (inPopulation) {
+            state.addPatient(populationType, patient);
         }
-        if (!inPopulation && exclusionPatients != null) {
-            exclusionPatients.put(patient.getIdElement().getIdPart(), patient);
+        if (!inPopulation && exclusionType != null) {
+            state.addPatient(exclusionType, patient);
         }
 
         return inPopulation;
@@ -231,40 +282,39 @@ public class MeasureEvaluation {
 
     private void addPopulationCriteriaReport(MeasureReport report,
             MeasureReport.MeasureReportGroupComponent reportGroup,
-            Measure.MeasureGroupPopulationComponent populationCriteria, int populationCount,
-            Iterable<Patient> patientPopulation) {
+            Measure.MeasureGroupPopulationComponent populationCriteria, MeasureGroupState state,
+            MeasurePopulationType populationType) {
         if (populationCriteria != null) {
             MeasureReport.MeasureReportGroupPopulationComponent populationReport = new MeasureReport.MeasureReportGroupPopulationComponent();
             populationReport.setIdentifier(populationCriteria.getIdentifier());
             populationReport.setCode(populationCriteria.getCode());
-            if (report.getType() == MeasureReport.MeasureReportType.PATIENTLIST && patientPopulation != null) {
+            if (report.getType() == MeasureReport.MeasureReportType.PATIENTLIST && state.hasPatients(populationType)) {
                 ListResource subjectList = new ListResource();
                 subjectList.setId(UUID.randomUUID().toString());
                 populationReport.setPatients(new Reference().setReference("#" + subjectList.getId()));
-                for (Patient patient : patientPopulation) {
+                state.forEachPatient(populationType, (patientId, name) -> {
                     ListResource.ListEntryComponent entry = new ListResource.ListEntryComponent()
                             .setItem(new Reference()
-                                    .setReference(patient.getIdElement().getIdPart().startsWith("Patient/")
-                                            ? patient.getIdElement().getIdPart()
-                                            : String.format("Patient/%s", patient.getIdElement().getIdPart()))
-                                    .setDisplay(patient.getNameFirstRep().getNameAsSingleString()));
+                                    .setReference(patientId.startsWith("Patient/") ? patientId
+                                            : String.format("Patient/%s", patientId))
+                                    .setDisplay(name));
                     subjectList.addEntry(entry);
-                }
+                });
                 report.addContained(subjectList);
             }
-            populationReport.setCount(populationCount);
+            populationReport.setCount(state.getCount(populationType));
             reportGroup.addPopulation(populationReport);
         }
     }
 
-    private MeasureReport evaluate(Measure measure, Context context, List<Patient> patients,
+    private MeasureReport evaluate(Measure measure, Context context, PagedResourceIterable<Patient> patients,
             MeasureReport.MeasureReportType type, boolean isSingle) {
         MeasureReportBuilder reportBuilder = new MeasureReportBuilder();
         reportBuilder.buildStatus("complete");
         reportBuilder.buildType(type);
         reportBuilder.buildMeasureReference(measure.getIdElement().getValue());
-        if (type == MeasureReport.MeasureReportType.INDIVIDUAL && !patients.isEmpty()) {
-            reportBuilder.buildPatientReference(patients.get(0).getIdElement().getValue());
+        if (type == MeasureReport.MeasureReportType.INDIVIDUAL && patients.iterator().hasNext()) {
+            reportBuilder.buildPatientReference(patients.iterator().next().getIdElement().getValue());
         }
         reportBuilder.buildPeriod(measurementPeriod);
 
@@ -279,256 +329,58 @@ public class MeasureEvaluation {
             throw new RuntimeException("Measure scoring is required in order to calculate.");
         }
 
-        List<Measure.MeasureSupplementalDataComponent> sde = new ArrayList<>();
-        HashMap<String, HashMap<String, Integer>> sdeAccumulators = null;
+        // Every group's populations and the supplemental data are evaluated in a
+        // single pass over the patients
+        List<MeasureGroupState> states = new ArrayList<>();
+        PopulationIndex resourceIndex = new PopulationIndex();
+        PopulationIndex patientIndex = new PopulationIndex();
         for (Measure.MeasureGroupComponent group : measure.getGroup()) {
+            states.add(new MeasureGroupState(group, type, resourceIndex, patientIndex));
+        }
+        SupplementalDataAccumulator sdeAccumulators = new SupplementalDataAccumulator();
+        List<Measure.MeasureSupplementalDataComponent> sde = measure.getSupplementalData();
+
+        if (isParallel(measureScoring)) {
+            evaluatePatientsInParallel(measure, patients, measureScoring, states, resources, codeToResourceMap,
+                    sdeAccumulators, sde, report);
+        } else {
+            evaluatePatients(measure, context, patients, measureScoring, states, resources, codeToResourceMap,
+                    sdeAccumulators, sde, report);
+        }
+
+        for (MeasureGroupState state : states) {
+            Measure.MeasureGroupComponent group = state.getGroup();
             MeasureReport.MeasureReportGroupComponent reportGroup = new MeasureReport.MeasureReportGroupComponent();
             reportGroup.setIdentifier(group.getIdentifier());
             report.getGroup().add(reportGroup);
 
-            // Declare variables to avoid a hash lookup on every patient
-            // TODO: Isn't quite right, there may be multiple initial populations for a
-            // ratio measure...
-            Measure.MeasureGroupPopulationComponent initialPopulationCriteria = null;
-            Measure.MeasureGroupPopulationComponent numeratorCriteria = null;
-            Measure.MeasureGroupPopulationComponent numeratorExclusionCriteria = null;
-            Measure.MeasureGroupPopulationComponent denominatorCriteria = null;
-            Measure.MeasureGroupPopulationComponent denominatorExclusionCriteria = null;
-            Measure.MeasureGroupPopulationComponent denominatorExceptionCriteria = null;
-            Measure.MeasureGroupPopulationComponent measurePopulationCriteria = null;
-            Measure.MeasureGroupPopulationComponent measurePopulationExclusionCriteria = null;
-            // TODO: Isn't quite right, there may be multiple measure observations...
-            Measure.MeasureGroupPopulationComponent measureObservationCriteria = null;
-
-            HashMap<String, Resource> initialPopulation = null;
-            HashMap<String, Resource> numerator = null;
-            HashMap<String, Resource> numeratorExclusion = null;
-            HashMap<String, Resource> denominator = null;
-            HashMap<String, Resource> denominatorExclusion = null;
-            HashMap<String, Resource> denominatorException = null;
-            HashMap<String, Resource> measurePopulation = null;
-            HashMap<String, Resource> measurePopulationExclusion = null;
-            HashMap<String, Resource> measureObservation = null;
-
-            HashMap<String, Patient> initialPopulationPatients = null;
-            HashMap<String, Patient> numeratorPatients = null;
-            HashMap<String, Patient> numeratorExclusionPatients = null;
-            HashMap<String, Patient> denominatorPatients = null;
-            HashMap<String, Patient> denominatorExclusionPatients = null;
-            HashMap<String, Patient> denominatorExceptionPatients = null;
-            HashMap<String, Patient> measurePopulationPatients = null;
-            HashMap<String, Patient> measurePopulationExclusionPatients = null;
-
-            sdeAccumulators = new HashMap<>();
-            sde = measure.getSupplementalData();
-            for (Measure.MeasureGroupPopulationComponent pop : group.getPopulation()) {
-                MeasurePopulationType populationType = MeasurePopulationType
-                        .fromCode(pop.getCode().getCodingFirstRep().getCode());
-                if (populationType != null) {
-                    switch (populationType) {
-                        case INITIALPOPULATION:
-                            initialPopulationCriteria = pop;
-                            initialPopulation = new HashMap<String, Resource>();
-                            if (type == MeasureReport.MeasureReportType.PATIENTLIST) {
-                                initialPopulationPatients = new HashMap<String, Patient>();
-                            }
-                            break;
-                        case NUMERATOR:
-                            numeratorCriteria = pop;
-                            numerator = new HashMap<String, Resource>();
-                            if (type == MeasureReport.MeasureReportType.PATIENTLIST) {
-                                numeratorPatients = new HashMap<String, Patient>();
-                            }
-                            break;
-                        case NUMERATOREXCLUSION:
-                            numeratorExclusionCriteria = pop;
-                            numeratorExclusion = new HashMap<String, Resource>();
-                            if (type == MeasureReport.MeasureReportType.PATIENTLIST) {
-                                numeratorExclusionPatients = new HashMap<String, Patient>();
-                            }
-                            break;
-                        case DENOMINATOR:
-                            denominatorCriteria = pop;
-                            denominator = new HashMap<String, Resource>();
-                            if (type == MeasureReport.MeasureReportType.PATIENTLIST) {
-                                denominatorPatients = new HashMap<String, Patient>();
-                            }
-                            break;
-                        case DENOMINATOREXCLUSION:
-                            denominatorExclusionCriteria = pop;
-                            denominatorExclusion = new HashMap<String, Resource>();
-                            if (type == MeasureReport.MeasureReportType.PATIENTLIST) {
-                                denominatorExclusionPatients = new HashMap<String, Patient>();
-                            }
-                            break;
-                        case DENOMINATOREXCEPTION:
-                            denominatorExceptionCriteria = pop;
-                            denominatorException = new HashMap<String, Resource>();
-                            if (type == MeasureReport.MeasureReportType.PATIENTLIST) {
-                                denominatorExceptionPatients = new HashMap<String, Patient>();
-                            }
-                            break;
-                        case MEASUREPOPULATION:
-                            measurePopulationCriteria = pop;
-                            measurePopulation = new HashMap<String, Resource>();
-                            if (type == MeasureReport.MeasureReportType.PATIENTLIST) {
-                                measurePopulationPatients = new HashMap<String, Patient>();
-                            }
-                            break;
-                        case MEASUREPOPULATIONEXCLUSION:
-                            measurePopulationExclusionCriteria = pop;
-                            measurePopulationExclusion = new HashMap<String, Resource>();
-                            if (type == MeasureReport.MeasureReportType.PATIENTLIST) {
-                                measurePopulationExclusionPatients = new HashMap<String, Patient>();
-                            }
-                            break;
-                        case MEASUREOBSERVATION:
-                            measureObservationCriteria = pop;
-                            measureObservation = new HashMap<>();
-                            break;
-                    }
-                }
+            // Calculate actual measure score, Count(numerator) / Count(denominator)
+            if ((measureScoring == MeasureScoring.PROPORTION || measureScoring == MeasureScoring.RATIO)
+                    && state.hasPopulation(MeasurePopulationType.DENOMINATOR)
+                    && state.hasPopulation(MeasurePopulationType.NUMERATOR)
+                    && state.getCount(MeasurePopulationType.DENOMINATOR) > 0) {
+                reportGroup.setMeasureScore(state.getCount(MeasurePopulationType.NUMERATOR)
+                        / (double) state.getCount(MeasurePopulationType.DENOMINATOR));
             }
 
-            switch (measureScoring) {
-                case PROPORTION:
-                case RATIO: {
-
-                    // For each patient in the initial population
-                    for (Patient patient : patients) {
-
-                        // Are they in the initial population?
-                        boolean inInitialPopulation = evaluatePopulationCriteria(context, patient,
-                                initialPopulationCriteria, initialPopulation, initialPopulationPatients, null, null,
-                                null);
-                        populateResourceMap(context, MeasurePopulationType.INITIALPOPULATION, resources,
-                                codeToResourceMap);
-
-                        if (inInitialPopulation) {
-                            // Are they in the denominator?
-                            boolean inDenominator = evaluatePopulationCriteria(context, patient, denominatorCriteria,
-                                    denominator, denominatorPatients, denominatorExclusionCriteria,
-                                    denominatorExclusion, denominatorExclusionPatients);
-                            populateResourceMap(context, MeasurePopulationType.DENOMINATOR, resources,
-                                    codeToResourceMap);
-
-                            if (inDenominator) {
-                                // Are they in the numerator?
-                                boolean inNumerator = evaluatePopulationCriteria(context, patient, numeratorCriteria,
-                                        numerator, numeratorPatients, numeratorExclusionCriteria, numeratorExclusion,
-                                        numeratorExclusionPatients);
-                                populateResourceMap(context, MeasurePopulationType.NUMERATOR, resources,
-                                        codeToResourceMap);
-
-                                if (!inNumerator && inDenominator && (denominatorExceptionCriteria != null)) {
-                                    // Are they in the denominator exception?
-                                    boolean inException = false;
-                                    for (Resource resource : evaluateCriteria(context, patient,
-                                            denominatorExceptionCriteria)) {
-                                        inException = true;
-                                        denominatorException.put(resource.getIdElement().getIdPart(), resource);
-                                        denominator.remove(resource.getIdElement().getIdPart());
-                                        populateResourceMap(context, MeasurePopulationType.DENOMINATOREXCEPTION,
-                                                resources, codeToResourceMap);
-                                    }
-                                    if (inException) {
-                                        if (denominatorExceptionPatients != null) {
-                                            denominatorExceptionPatients.put(patient.getIdElement().getIdPart(),
-                                                    patient);
-                                        }
-                                        if (denominatorPatients != null) {
-                                            denominatorPatients.remove(patient.getIdElement().getIdPart());
-                                        }
-                                    }
-                                }
-                            }
-                        }
-                        populateSDEAccumulators(measure, context, patient, sdeAccumulators, sde);
-                    }
-
-                    // Calculate actual measure score, Count(numerator) / Count(denominator)
-                    if (denominator != null && numerator != null && denominator.size() > 0) {
-                        reportGroup.setMeasureScore(numerator.size() / (double) denominator.size());
-                    }
-
-                    break;
-                }
-                case CONTINUOUSVARIABLE: {
-
-                    // For each patient in the patient list
-                    for (Patient patient : patients) {
-
-                        // Are they in the initial population?
-                        boolean inInitialPopulation = evaluatePopulationCriteria(context, patient,
-                                initialPopulationCriteria, initialPopulation, initialPopulationPatients, null, null,
-                                null);
-                        populateResourceMap(context, MeasurePopulationType.INITIALPOPULATION, resources,
-                                codeToResourceMap);
-
-                        if (inInitialPopulation) {
-                            // Are they in the measure population?
-                            boolean inMeasurePopulation = evaluatePopulationCriteria(context, patient,
-                                    measurePopulationCriteria, measurePopulation, measurePopulationPatients,
-                                    measurePopulationExclusionCriteria, measurePopulationExclusion,
-                                    measurePopulationExclusionPatients);
-
-                            if (inMeasurePopulation) {
-                                for (Resource resource : measurePopulation.values()) {
-                                    Resource observation = evaluateObservationCriteria(context, patient, resource, measureObservationCriteria, report);
-                                    measureObservation.put(resource.getIdElement().getIdPart(), observation);
-                                    report.addContained(observation);
-                                    // TODO: Add to the evaluatedResources bundle
-                                    //report.getEvaluatedResources().add(new Reference("#" + observation.getId()));
-                                }
-                            }
-                        }
-                        populateSDEAccumulators(measure, context, patient, sdeAccumulators,sde);
-                    }
-
-                    break;
-                }
-                case COHORT: {
-
-                    // For each patient in the patient list
-                    for (Patient patient : patients) {
-                        evaluatePopulationCriteria(context, patient,
-                                initialPopulationCriteria, initialPopulation, initialPopulationPatients, null, null,
-                                null);
-                        populateResourceMap(context, MeasurePopulationType.INITIALPOPULATION, resources,
-                                codeToResourceMap);
-                        populateSDEAccumulators(measure, context, patient, sdeAccumulators, sde);
-                    }
-
-                    break;
+            // For continuous variables, the aggregate of the measure observations
+            if (measureScoring == MeasureScoring.CONTINUOUSVARIABLE && state.getObservations() != null) {
+                // DSTU3 elements have no getExtensionByUrl
+                List<Extension> aggregateMethod = state.getCriteria(MeasurePopulationType.MEASUREOBSERVATION)
+                        .getExtensionsByUrl(ObservationAggregate.AGGREGATE_METHOD_URL);
+                Double score = state.getObservations().get(!aggregateMethod.isEmpty()
+                        && aggregateMethod.get(0).hasValue() ? aggregateMethod.get(0).getValue().primitiveValue()
+                                : null);
+                if (score != null) {
+                    reportGroup.setMeasureScore(score);
                 }
             }
 
             // Add population reports for each group
-            addPopulationCriteriaReport(report, reportGroup, initialPopulationCriteria,
-                    initialPopulation != null ? initialPopulation.size() : 0,
-                    initialPopulationPatients != null ? initialPopulationPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, numeratorCriteria,
-                    numerator != null ? numerator.size() : 0,
-                    numeratorPatients != null ? numeratorPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, numeratorExclusionCriteria,
-                    numeratorExclusion != null ? numeratorExclusion.size() : 0,
-                    numeratorExclusionPatients != null ? numeratorExclusionPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, denominatorCriteria,
-                    denominator != null ? denominator.size() : 0,
-                    denominatorPatients != null ? denominatorPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, denominatorExclusionCriteria,
-                    denominatorExclusion != null ? denominatorExclusion.size() : 0,
-                    denominatorExclusionPatients != null ? denominatorExclusionPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, denominatorExceptionCriteria,
-                    denominatorException != null ? denominatorException.size() : 0,
-                    denominatorExceptionPatients != null ? denominatorExceptionPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, measurePopulationCriteria,
-                    measurePopulation != null ? measurePopulation.size() : 0,
-                    measurePopulationPatients != null ? measurePopulationPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, measurePopulationExclusionCriteria,
-                    measurePopulationExclusion != null ? measurePopulationExclusion.size() : 0,
-                    measurePopulationExclusionPatients != null ? measurePopulationExclusionPatients.values() : null);
-            // TODO: Measure Observations...
+            for (MeasurePopulationType populationType : MeasurePopulationType.values()) {
+                addPopulationCriteriaReport(report, reportGroup, state.getCriteria(populationType), state,
+                        populationType);
+            }
         }
 
         for (String key : codeToResourceMap.keySet()) {
@@ -565,112 +417,202 @@ public class MeasureEvaluation {
             */
         }
 
-        if (sdeAccumulators.size() > 0) {
-            report = processAccumulators(report, sdeAccumulators, sde, isSingle, patients);
+        if (!sdeAccumulators.isEmpty()) {
+            report = processAccumulators(report, sdeAccumulators, isSingle);
+        }
+
+        if (context instanceof MeasureEvaluationContext) {
+            logger.info("Expression cache for Measure/{}: {}", measure.getIdElement().getIdPart(),
+                    ((MeasureEvaluationContext) context).getCacheStatistics());
         }
 
         return report;
     }
 
-    private void populateSDEAccumulators(Measure measure, Context context, Patient patient,HashMap<String, HashMap<String, Integer>> sdeAccumulators,
-                                         List<Measure.MeasureSupplementalDataComponent> sde){
-        context.setContextValue("Patient", patient.getIdElement().getIdPart());
-        List<Object> sdeList = sde.stream().map(sdeItem -> context.resolveExpressionRef(sdeItem.getCriteria()).evaluate(context)).collect(Collectors.toList());
-        if(!sdeList.isEmpty()) {
-            for (int i = 0; i < sdeList.size(); i++) {
-                Object sdeListItem = sdeList.get(i);
-                if(null != sdeListItem) {
-                    String sdeAccumulatorKey = sde.get(i).getId();
-                    if(null == sdeAccumulatorKey || sdeAccumulatorKey.length() < 1){
-                        sdeAccumulatorKey = sde.get(i).getCriteria();
+    private boolean isParallel(MeasureScoring measureScoring) {
+        // Measure observations added to the report are added from the thread
+        // evaluating the patient, so those stay sequential.
+        return this.contextFactory != null && this.parallelism > 1
+                && !(measureScoring == MeasureScoring.CONTINUOUSVARIABLE && this.containObservations);
+    }
+
+    private void evaluatePatientsInParallel(Measure measure, PagedResourceIterable<Patient> patients,
+            MeasureScoring measureScoring, List<MeasureGroupState> states, HashMap<String, Resource> resources,
+            HashMap<String, HashSet<String>> codeToResourceMap,
+            SupplementalDataAccumulator sdeAccumulators,
+            List<Measure.MeasureSupplementalDataComponent> sde, MeasureReport report) {
+        logger.info("Evaluating patients in pages of {} with parallelism {}", patients.getPageSize(),
+                this.parallelism);
+
+        new PatientPartitionExecutor(this.parallelism).execute(patients.pages(), this.contextFactory,
+                (workerContext, page) -> {
+                    PartialResult partial = new PartialResult(states);
+                    evaluatePatients(measure, workerContext, page, measureScoring, partial.states,
+                            partial.resources, partial.codeToResourceMap, partial.sdeAccumulators, sde, report);
+                    return partial;
+                }, partial -> {
+                    for (int i = 0; i < states.size(); i++) {
+                        states.get(i).merge(partial.states.get(i));
                     }
-                    HashMap<String, Integer> sdeItemMap = sdeAccumulators.get(sdeAccumulatorKey);
-                    String code = "";
-
-                    switch (sdeListItem.getClass().getSimpleName()) {
-                        case "Code":
-                            code = ((Code) sdeListItem).getCode();
-                            break;
-                        case "ArrayList":
-                            if (((ArrayList<?>) sdeListItem).size() > 0) {
-                                code  = ((Coding) ((ArrayList<?>) sdeListItem).get(0)).getCode();
-                            }else{
-                                continue;
-                            }
-                            break;
+                    partial.resources.forEach(resources::putIfAbsent);
+                    partial.codeToResourceMap.forEach(
+                            (code, ids) -> codeToResourceMap.computeIfAbsent(code, x -> new HashSet<>()).addAll(ids));
+                    sdeAccumulators.merge(partial.sdeAccumulators);
+                });
+    }
+
+    private void evaluatePatients(Measure measure, Context context, Iterable<Patient> patients,
+            MeasureScoring measureScoring, List<MeasureGroupState> states, HashMap<String, Resource> resources,
+            HashMap<String, HashSet<String>> codeToResourceMap,
+            SupplementalDataAccumulator sdeAccumulators,
+            List<Measure.MeasureSupplementalDataComponent> sde, MeasureReport report) {
+        new PatientDataPipeline<Patient>(context, patient -> patient.getIdElement().getIdPart()).run(patients,
+                chunk -> {
+                    for (Patient patient : chunk) {
+                        for (MeasureGroupState state : states) {
+                            evaluatePatientGroup(context, patient, measureScoring, state, resources,
+                                    codeToResourceMap, report);
+                        }
+                        sdeAccumulators.accumulate(context, patient, sde);
                     }
-                    if(null == code){
-                        continue;
+                });
+    }
+
+    private void evaluatePatientGroup(Context context, Patient patient, MeasureScoring measureScoring,
+            MeasureGroupState state, HashMap<String, Resource> resources,
+            HashMap<String, HashSet<String>> codeToResourceMap, MeasureReport report) {
+        switch (measureScoring) {
+            case PROPORTION:
+            case RATIO: {
+
+                // Are they in the initial population?
+                boolean inInitialPopulation = evaluatePopulationCriteria(context, patient, state,
+                        MeasurePopulationType.INITIALPOPULATION, null);
+                populateResourceMap(context, MeasurePopulationType.INITIALPOPULATION, resources,
+                        codeToResourceMap);
+
+                if (inInitialPopulation) {
+                    // Are they in the denominator?
+                    boolean inDenominator = evaluatePopulationCriteria(context, patient, state,
+                            MeasurePopulationType.DENOMINATOR, MeasurePopulationType.DENOMINATOREXCLUSION);
+                    populateResourceMap(context, MeasurePopulationType.DENOMINATOR, resources,
+                            codeToResourceMap);
+
+                    if (inDenominator) {
+                        // Are they in the numerator?
+                        boolean inNumerator = evaluatePopulationCriteria(context, patient, state,
+                                MeasurePopulationType.NUMERATOR, MeasurePopulationType.NUMERATOREXCLUSION);
+                        populateResourceMap(context, MeasurePopulationType.NUMERATOR, resources,
+                                codeToResourceMap);
+
+                        Measure.MeasureGroupPopulationComponent denominatorExceptionCriteria = state
+                                .getCriteria(MeasurePopulationType.DENOMINATOREXCEPTION);
+                        if (!inNumerator && inDenominator && (denominatorExceptionCriteria != null)) {
+                            // Are they in the denominator exception?
+                            boolean inException = false;
+                            for (Resource resource : evaluateCriteria(context, patient,
+                                    denominatorExceptionCriteria)) {
+                                inException = true;
+                                state.addResource(MeasurePopulationType.DENOMINATOREXCEPTION, resource);
+                                state.removeResource(MeasurePopulationType.DENOMINATOR,
+                                        resource.getIdElement().getIdPart());
+                                populateResourceMap(context, MeasurePopulationType.DENOMINATOREXCEPTION,
+                                        resources, codeToResourceMap);
+                            }
+                            if (inException) {
+                                state.addPatient(MeasurePopulationType.DENOMINATOREXCEPTION, patient);
+                                state.removePatient(MeasurePopulationType.DENOMINATOR,
+                                        patient.getIdElement().getIdPart());
+                            }
+                        }
                     }
-                    if (null != sdeItemMap && null != sdeItemMap.get(code)) {
-                        Integer sdeItemValue = sdeItemMap.get(code);
-                        sdeItemValue++;
-                        sdeItemMap.put(code, sdeItemValue);
-                        sdeAccumulators.get(sdeAccumulatorKey).put(code, sdeItemValue);
-                    } else {
-                        if (null == sdeAccumulators.get(sdeAccumulatorKey)) {
-                            HashMap<String, Integer> newSDEItem = new HashMap<>();
-                            newSDEItem.put(code, 1);
-                            sdeAccumulators.put(sdeAccumulatorKey, newSDEItem);
-                        } else {
-                            sdeAccumulators.get(sdeAccumulatorKey).put(code, 1);
+                }
+
+                break;
+            }
+            case CONTINUOUSVARIABLE: {
+
+                // Are they in the initial population?
+                boolean inInitialPopulation = evaluatePopulationCriteria(context, patient, state,
+                        MeasurePopulationType.INITIALPOPULATION, null);
+                populateResourceMap(context, MeasurePopulationType.INITIALPOPULATION, resources,
+                        codeToResourceMap);
+
+                if (inInitialPopulation) {
+                    // Are they in the measure population?
+                    Map<String, Resource> measurePopulation = new LinkedHashMap<>();
+                    boolean inMeasurePopulation = evaluatePopulationCriteria(context, patient, state,
+                            MeasurePopulationType.MEASUREPOPULATION,
+                            MeasurePopulationType.MEASUREPOPULATIONEXCLUSION, measurePopulation);
+                    populateResourceMap(context, MeasurePopulationType.MEASUREPOPULATION, resources,
+                            codeToResourceMap);
+
+                    // Only this patient's members are observed, the aggregate holds the others'
+                    if (inMeasurePopulation) {
+                        for (Map.Entry<String, Resource> member : measurePopulation.entrySet()) {
+                            evaluateObservation(context, patient, member.getKey(), member.getValue(), state,
+                                    report);
                         }
                     }
                 }
+
+                break;
             }
+            case COHORT: {
+
+                evaluatePopulationCriteria(context, patient, state, MeasurePopulationType.INITIALPOPULATION,
+                        null);
+                populateResourceMap(context, MeasurePopulationType.INITIALPOPULATION, resources,
+                        codeToResourceMap);
+
+                break;
+            }
+        }
+    }
+
+    private static class PartialResult {
+        private final List<MeasureGroupState> states = new ArrayList<>();
+        private final HashMap<String, Resource> resources = new HashMap<>();
+        private final HashMap<String, HashSet<String>> codeToResourceMap = new HashMap<>();
+        private final SupplementalDataAccumulator sdeAccumulators = new SupplementalDataAccumulator();
+
+        private PartialResult(List<MeasureGroupState> states) {
+            PopulationIndex resourceIndex = new PopulationIndex();
+            PopulationIndex patientIndex = new PopulationIndex();
+            states.forEach(state -> this.states.add(state.copyEmpty(resourceIndex, patientIndex)));
         }
     }
 
-    private MeasureReport processAccumulators(MeasureReport report, HashMap<String, HashMap<String, Integer>> sdeAccumulators,
-                                              List<Measure.MeasureSupplementalDataComponent> sde, boolean isSingle, List<Patient> patients){
+    private MeasureReport processAccumulators(MeasureReport report, SupplementalDataAccumulator sdeAccumulators,
+                                              boolean isSingle){
         List<Reference> newRefList = new ArrayList<>();
-        sdeAccumulators.forEach((sdeKey, sdeAccumulator) -> {
-            sdeAccumulator.forEach((sdeAccumulatorKey, sdeAccumulatorValue)->{
-                Observation obs = new Observation();
-                obs.setStatus(Observation.ObservationStatus.FINAL);
-                obs.setId(UUID.randomUUID().toString());
-                Coding valueCoding = new Coding();
-                if(sdeKey.equalsIgnoreCase("sde-sex")){
-                    valueCoding.setCode(sdeAccumulatorKey);
-                }else {
-                    String coreCategory = sdeKey.substring(sdeKey.lastIndexOf('-'));
-                    patients.forEach((pt)-> {
-                        pt.getExtension().forEach((ptExt) -> {
-                            if (ptExt.getUrl().contains(coreCategory)) {
-                                String code = ((Coding) ptExt.getExtension().get(0).getValue()).getCode();
-                                if(code.equalsIgnoreCase(sdeAccumulatorKey)) {
-                                    valueCoding.setSystem(((Coding) ptExt.getExtension().get(0).getValue()).getSystem());
-                                    valueCoding.setCode(code);
-                                    valueCoding.setDisplay(((Coding) ptExt.getExtension().get(0).getValue()).getDisplay());
-                                }
-                            }
-                        });
-                    });
-                }
-                CodeableConcept obsCodeableConcept = new CodeableConcept();
-                Extension obsExtension = new Extension().setUrl("http://hl7.org/fhir/StructureDefinition/cqf-measureInfo");
-                Extension extExtMeasure = new Extension()
-                        .setUrl("measure")
-                        .setValue(new StringType("http://hl7.org/fhir/us/cqfmeasures/" + report.getMeasure()));
-                obsExtension.addExtension(extExtMeasure);
-                Extension extExtPop = new Extension()
-                        .setUrl("populationId")
-                        .setValue(new StringType(sdeKey));
-                obsExtension.addExtension(extExtPop);
-                obs.addExtension(obsExtension);
-                obs.setValue(new IntegerType(sdeAccumulatorValue));
-                if(!isSingle) {
-                    valueCoding.setCode(sdeAccumulatorKey);
-                    obsCodeableConcept.setCoding(Collections.singletonList(valueCoding));
-                    obs.setCode(obsCodeableConcept);
-                }else{
-                    obs.setCode(new CodeableConcept().setText(sdeKey));
-                    obsCodeableConcept.setCoding(Collections.singletonList(valueCoding));
-                    obs.setValue(obsCodeableConcept);
-                }
-                newRefList.add(new Reference("#" + obs.getId()));
-                report.addContained(obs);
-            });
+        sdeAccumulators.forEach((sdeKey, sdeCount) -> {
+            Observation obs = new Observation();
+            obs.setStatus(Observation.ObservationStatus.FINAL);
+            obs.setId(UUID.randomUUID().toString());
+            Coding valueCoding = sdeCount.getCoding().copy();
+            CodeableConcept obsCodeableConcept = new CodeableConcept();
+            Extension obsExtension = new Extension().setUrl("http://hl7.org/fhir/StructureDefinition/cqf-measureInfo");
+            Extension extExtMeasure = new Extension()
+                    .setUrl("measure")
+                    .setValue(new StringType("http://hl7.org/fhir/us/cqfmeasures/" + report.getMeasure()));
+            obsExtension.addExtension(extExtMeasure);
+            Extension extExtPop = new Extension()
+                    .setUrl("populationId")
+                    .setValue(new StringType(sdeKey));
+            obsExtension.addExtension(extExtPop);
+            obs.addExtension(obsExtension);
+            obs.setValue(new IntegerType(sdeCount.getCount()));
+            if(!isSingle) {
+                obsCodeableConcept.setCoding(Collections.singletonList(valueCoding));
+                obs.setCode(obsCodeableConcept);
+            }else{
+                obs.setCode(new CodeableConcept().setText(sdeKey));
+                obsCodeableConcept.setCoding(Collections.singletonList(valueCoding));
+                obs.setValue(obsCodeableConcept);
+            }
+            newRefList.add(new Reference("#" + obs.getId()));
+            report.addContained(obs);
         });
 
         // TODO: Evaluated resources
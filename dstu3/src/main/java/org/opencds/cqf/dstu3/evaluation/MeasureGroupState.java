@@ -0,0 +1,207 @@
+package org.opencds.cqf.dstu3.evaluation;
+
+import java.util.BitSet;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+import org.hl7.fhir.dstu3.model.Measure;
+import org.hl7.fhir.dstu3.model.MeasureReport;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.opencds.cqf.common.evaluation.MeasurePopulationType;
+import org.opencds.cqf.common.evaluation.ObservationAggregate;
+import org.opencds.cqf.common.evaluation.PopulationIndex;
+
+/**
+ * Holds the population criteria of a single Measure group together with the
+ * resources and patients accumulated for each population. Populations are
+ * bitmaps over a {@link PopulationIndex} of resource keys and patient ids, so
+ * exclusions and exceptions are set operations and no Patient is kept for the
+ * subject lists (only its name). Resources aren't kept either, the measure
+ * observations of a continuous variable group are aggregated as they are
+ * evaluated, see {@link ObservationAggregate}.
+ * Partial states built by parallel workers (see
+ * {@link #copyEmpty(PopulationIndex, PopulationIndex)}) number their members
+ * in indexes of their own and are combined with
+ * {@link #merge(MeasureGroupState)} in patient order, which renumbers them and
+ * yields the same result as a sequential pass.
+ */
+public class MeasureGroupState {
+
+    private final Measure.MeasureGroupComponent group;
+    private final MeasureReport.MeasureReportType type;
+    private final PopulationIndex resourceIndex;
+    private final PopulationIndex patientIndex;
+
+    private final Map<MeasurePopulationType, Measure.MeasureGroupPopulationComponent> criteria = new EnumMap<>(
+            MeasurePopulationType.class);
+    private final Map<MeasurePopulationType, BitSet> resources = new EnumMap<>(MeasurePopulationType.class);
+    private final Map<MeasurePopulationType, BitSet> patients = new EnumMap<>(MeasurePopulationType.class);
+    private final ObservationAggregate observations;
+
+    // Removals are recorded so that a later partition can remove members added
+    // by an earlier one when the partial states are merged.
+    private final Map<MeasurePopulationType, BitSet> removedResources = new EnumMap<>(MeasurePopulationType.class);
+    private final Map<MeasurePopulationType, BitSet> removedPatients = new EnumMap<>(MeasurePopulationType.class);
+
+    public MeasureGroupState(Measure.MeasureGroupComponent group, MeasureReport.MeasureReportType type) {
+        this(group, type, new PopulationIndex(), new PopulationIndex());
+    }
+
+    /**
+     * @param resourceIndex numbers resource keys, may be shared by the groups of a report
+     * @param patientIndex  numbers patient ids, may be shared by the groups of a report
+     */
+    public MeasureGroupState(Measure.MeasureGroupComponent group, MeasureReport.MeasureReportType type,
+            PopulationIndex resourceIndex, PopulationIndex patientIndex) {
+        this.group = group;
+        this.type = type;
+        this.resourceIndex = resourceIndex;
+        this.patientIndex = patientIndex;
+
+        // TODO: Isn't quite right, there may be multiple initial populations for a
+        // ratio measure, and multiple measure observations...
+        for (Measure.MeasureGroupPopulationComponent pop : group.getPopulation()) {
+            MeasurePopulationType populationType = MeasurePopulationType
+                    .fromCode(pop.getCode().getCodingFirstRep().getCode());
+            if (populationType != null) {
+                this.criteria.put(populationType, pop);
+                this.resources.put(populationType, new BitSet());
+                this.removedResources.put(populationType, new BitSet());
+                if (type == MeasureReport.MeasureReportType.PATIENTLIST
+                        && populationType != MeasurePopulationType.MEASUREOBSERVATION) {
+                    this.patients.put(populationType, new BitSet());
+                    this.removedPatients.put(populationType, new BitSet());
+                }
+            }
+        }
+        this.observations = this.criteria.containsKey(MeasurePopulationType.MEASUREOBSERVATION)
+                ? new ObservationAggregate()
+                : null;
+    }
+
+    public Measure.MeasureGroupComponent getGroup() {
+        return this.group;
+    }
+
+    public Measure.MeasureGroupPopulationComponent getCriteria(MeasurePopulationType populationType) {
+        return populationType == null ? null : this.criteria.get(populationType);
+    }
+
+    public boolean hasPopulation(MeasurePopulationType populationType) {
+        return this.resources.containsKey(populationType);
+    }
+
+    public void addResource(MeasurePopulationType populationType, Resource resource) {
+        this.addResourceKey(populationType, resource.getIdElement().getIdPart());
+    }
+
+    /**
+     * Counts a member known only by its key, e.g. as restored from a stored
+     * result or the resource a measure observation was made for.
+     */
+    public void addResourceKey(MeasurePopulationType populationType, String key) {
+        BitSet population = this.resources.get(populationType);
+        if (population != null) {
+            population.set(this.resourceIndex.indexOf(key));
+        }
+    }
+
+    /**
+     * Counts the measure observation made for the resource {@code key} of the
+     * measure population and aggregates its value, if it has one.
+     */
+    public void addObservation(String key, Double value) {
+        this.addResourceKey(MeasurePopulationType.MEASUREOBSERVATION, key);
+        if (this.observations != null && value != null) {
+            this.observations.add(value);
+        }
+    }
+
+    /**
+     * The aggregate of the measure observations, null when the group has no
+     * measure observation population.
+     */
+    public ObservationAggregate getObservations() {
+        return this.observations;
+    }
+
+    public void removeResource(MeasurePopulationType populationType, String key) {
+        BitSet population = this.resources.get(populationType);
+        if (population != null) {
+            int index = this.resourceIndex.indexOf(key);
+            population.clear(index);
+            this.removedResources.get(populationType).set(index);
+        }
+    }
+
+    public void addPatient(MeasurePopulationType populationType, Patient patient) {
+        BitSet population = this.patients.get(populationType);
+        if (population != null) {
+            population.set(this.patientIndex.indexOf(patient.getIdElement().getIdPart(),
+                    patient.getNameFirstRep().getNameAsSingleString()));
+        }
+    }
+
+    public void removePatient(MeasurePopulationType populationType, String key) {
+        BitSet population = this.patients.get(populationType);
+        if (population != null) {
+            int index = this.patientIndex.indexOf(key);
+            population.clear(index);
+            this.removedPatients.get(populationType).set(index);
+        }
+    }
+
+    public int getCount(MeasurePopulationType populationType) {
+        BitSet population = this.resources.get(populationType);
+        return population != null ? population.cardinality() : 0;
+    }
+
+    public boolean hasPatients(MeasurePopulationType populationType) {
+        return this.patients.containsKey(populationType);
+    }
+
+    /**
+     * Hands the id and name of each patient in the population to {@code action},
+     * in the order they were evaluated.
+     */
+    public void forEachPatient(MeasurePopulationType populationType, BiConsumer<String, String> action) {
+        BitSet population = this.patients.get(populationType);
+        if (population != null) {
+            for (int index = population.nextSetBit(0); index >= 0; index = population.nextSetBit(index + 1)) {
+                action.accept(this.patientIndex.getKey(index), this.patientIndex.getDisplay(index));
+            }
+        }
+    }
+
+    /**
+     * An empty state for the same group, numbering its members in the given
+     * indexes, which the partial states of a worker's groups share.
+     */
+    public MeasureGroupState copyEmpty(PopulationIndex resourceIndex, PopulationIndex patientIndex) {
+        return new MeasureGroupState(this.group, this.type, resourceIndex, patientIndex);
+    }
+
+    public void merge(MeasureGroupState other) {
+        int[] resourceMapping = this.resourceIndex.mapFrom(other.resourceIndex);
+        for (Map.Entry<MeasurePopulationType, BitSet> entry : other.resources.entrySet()) {
+            BitSet removed = PopulationIndex.remap(other.removedResources.get(entry.getKey()), resourceMapping);
+            this.resources.get(entry.getKey()).andNot(removed);
+            this.removedResources.get(entry.getKey()).or(removed);
+            this.resources.get(entry.getKey()).or(PopulationIndex.remap(entry.getValue(), resourceMapping));
+        }
+
+        if (this.observations != null) {
+            this.observations.merge(other.observations);
+        }
+
+        int[] patientMapping = this.patientIndex.mapFrom(other.patientIndex);
+        for (Map.Entry<MeasurePopulationType, BitSet> entry : other.patients.entrySet()) {
+            BitSet removed = PopulationIndex.remap(other.removedPatients.get(entry.getKey()), patientMapping);
+            this.patients.get(entry.getKey()).andNot(removed);
+            this.removedPatients.get(entry.getKey()).or(removed);
+            this.patients.get(entry.getKey()).or(PopulationIndex.remap(entry.getValue(), patientMapping));
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package org.opencds.cqf.dstu3.evaluation;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+import org.hl7.fhir.dstu3.model.CodeableConcept;
+import org.hl7.fhir.dstu3.model.Coding;
+import org.hl7.fhir.dstu3.model.Measure;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.opencds.cqf.cql.engine.execution.Context;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.runtime.Concept;
+
+/**
+ * Counts the values of the supplemental data elements of a Measure, by element
+ * and code. The Coding of a value (system, code and display) is captured when
+ * the code is first seen, so the report's supplemental data Observations are
+ * built from the counts alone, without going back to the patients. Each code
+ * has a single counter, keyed by the code's first occurrence, which the later
+ * occurrences only increment. Partial accumulators (e.g. of parallel workers)
+ * are combined with {@link #merge(SupplementalDataAccumulator)}.
+ */
+public class SupplementalDataAccumulator {
+
+    // By element key, then code
+    private final Map<String, Map<String, Count>> elements = new LinkedHashMap<>();
+
+    /**
+     * Counts the values the supplemental data elements {@code sde} have for
+     * {@code patient}.
+     */
+    public void accumulate(Context context, Patient patient, List<Measure.MeasureSupplementalDataComponent> sde) {
+        if (sde.isEmpty()) {
+            return;
+        }
+
+        context.setContextValue("Patient", patient.getIdElement().getIdPart());
+        for (Measure.MeasureSupplementalDataComponent element : sde) {
+            Object value = context.resolveExpressionRef(element.getCriteria()).evaluate(context);
+            add(getKey(element), value);
+        }
+    }
+
+    /**
+     * The key an element's counts are reported under: its id, or its criteria
+     * when it has none.
+     */
+    public static String getKey(Measure.MeasureSupplementalDataComponent element) {
+        String key = element.getId();
+        return key == null || key.isEmpty() ? element.getCriteria() : key;
+    }
+
+    public void add(String key, Coding coding, int count) {
+        if (coding == null || coding.getCode() == null || count <= 0) {
+            return;
+        }
+
+        Map<String, Count> counts = this.elements.computeIfAbsent(key, x -> new HashMap<>());
+        Count existing = counts.get(coding.getCode());
+        if (existing != null) {
+            existing.count += count;
+        } else {
+            counts.put(coding.getCode(),
+                    new Count(new Coding().setSystem(coding.getSystem()).setCode(coding.getCode())
+                            .setDisplay(coding.getDisplay()), count));
+        }
+    }
+
+    public void merge(SupplementalDataAccumulator other) {
+        other.forEach((key, count) -> add(key, count.coding, count.count));
+    }
+
+    public boolean isEmpty() {
+        return this.elements.isEmpty();
+    }
+
+    /**
+     * Hands each element key and the count of each of its codes to
+     * {@code action}.
+     */
+    public void forEach(BiConsumer<String, Count> action) {
+        this.elements.forEach((key, counts) -> counts.values().forEach(count -> action.accept(key, count)));
+    }
+
+    private void add(String key, Object value) {
+        if (value instanceof Iterable) {
+            // e.g. the extension codings of a patient's race, only the first is counted
+            Iterator<?> values = ((Iterable<?>) value).iterator();
+            value = values.hasNext() ? values.next() : null;
+        }
+
+        if (value instanceof Code) {
+            add(key, toCoding((Code) value), 1);
+        } else if (value instanceof Concept) {
+            Iterator<Code> codes = ((Concept) value).getCodes().iterator();
+            if (codes.hasNext()) {
+                add(key, toCoding(codes.next()), 1);
+            }
+        } else if (value instanceof Coding) {
+            add(key, (Coding) value, 1);
+        } else if (value instanceof CodeableConcept && ((CodeableConcept) value).hasCoding()) {
+            add(key, ((CodeableConcept) value).getCodingFirstRep(), 1);
+        }
+    }
+
+    private static Coding toCoding(Code code) {
+        return new Coding().setSystem(code.getSystem()).setCode(code.getCode()).setDisplay(code.getDisplay());
+    }
+
+    /**
+     * The number of patients with a code, and the code's Coding.
+     */
+    public static class Count {
+        private final Coding coding;
+        private int count;
+
+        private Count(Coding coding, int count) {
+            this.coding = coding;
+            this.count = count;
+        }
+
+        public Coding getCoding() {
+            return this.coding;
+        }
+
+        public int getCount() {
+            return this.count;
+        }
+    }
+}
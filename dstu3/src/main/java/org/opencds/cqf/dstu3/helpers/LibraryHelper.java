@@ -24,11 +24,11 @@ public class LibraryHelper {
         LibraryManager libraryManager = new LibraryManager(modelManager);
         libraryManager.getLibrarySourceLoader().clearProviders();
 
-        libraryManager.getLibrarySourceLoader().registerProvider(
-                new LibrarySourceProvider<org.hl7.fhir.dstu3.model.Library, org.hl7.fhir.dstu3.model.Attachment>(
-                        provider, x -> x.getContent(), x -> x.getContentType(), x -> x.getData()));
+        LibrarySourceProvider<org.hl7.fhir.dstu3.model.Library, org.hl7.fhir.dstu3.model.Attachment> sourceProvider = new LibrarySourceProvider<>(
+                provider, x -> x.getContent(), x -> x.getContentType(), x -> x.getData());
+        libraryManager.getLibrarySourceLoader().registerProvider(sourceProvider);
 
-        return new LibraryLoader(libraryManager, modelManager);
+        return new LibraryLoader(libraryManager, modelManager, sourceProvider);
     }
 
     public static List<org.cqframework.cql.elm.execution.Library> loadLibraries(Measure measure,
@@ -39,8 +39,8 @@ import org.hl7.fhir.instance.model.api.IAnyResource;
 import org.hl7.fhir.instance.model.api.IBase;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.opencds.cqf.common.evaluation.EvaluationProviderFactory;
+import org.opencds.cqf.common.evaluation.PatientPartitionExecutor;
 import org.opencds.cqf.common.providers.LibraryResolutionProvider;
-import org.opencds.cqf.cql.engine.data.DataProvider;
 import org.opencds.cqf.cql.engine.execution.LibraryLoader;
 import org.opencds.cqf.dstu3.evaluation.MeasureEvaluation;
 import org.opencds.cqf.dstu3.evaluation.MeasureEvaluationSeed;
@@ -175,7 +175,8 @@ public class MeasureOperationsProvider {
             @OperationParam(name = "practitioner") String practitionerRef,
             @OperationParam(name = "lastReceivedOn") String lastReceivedOn,
             @OperationParam(name = "source") String source, @OperationParam(name = "user") String user,
-            @OperationParam(name = "pass") String pass) throws InternalErrorException, FHIRException {
+            @OperationParam(name = "pass") String pass,
+            @OperationParam(name = "_parallelism") String parallelism) throws InternalErrorException, FHIRException {
         LibraryLoader libraryLoader = LibraryHelper.createLibraryLoader(this.libraryResolutionProvider);
         MeasureEvaluationSeed seed = new MeasureEvaluationSeed(this.factory, libraryLoader,
                 this.libraryResolutionProvider);
@@ -189,7 +190,8 @@ public class MeasureOperationsProvider {
 
         // resolve report type
         MeasureEvaluation evaluator = new MeasureEvaluation(this.registry,
-                seed.getMeasurementPeriod());
+                seed.getMeasurementPeriod(), seed::createContext,
+                PatientPartitionExecutor.resolveParallelism(parallelism));
         if (reportType != null) {
             switch (reportType) {
                 case "patient":
@@ -287,17 +289,17 @@ public class MeasureOperationsProvider {
     }
 
     private List<String> getPatientListFromGroup(String subjectGroupRef){
-        List<String> patientList = new ArrayList<>();
-
-        DataProvider dataProvider = this.factory.createDataProvider("FHIR", "3");
-        Iterable<Object> groupRetrieve = dataProvider.retrieve("Group", "id", subjectGroupRef, "Group", null, null, null,
-                null, null, null, null, null);
-        Group group;
-        if (groupRetrieve.iterator().hasNext()) {
-            group = (Group) groupRetrieve.iterator().next();
-            group.getMember().forEach(member -> patientList.add(member.getEntity().getReference()));
+        // Only the member references are needed, so read the Group directly
+        // rather than going through a CQL data provider; the members' Patient
+        // resources are loaded one at a time as each report is evaluated.
+        Group group = this.registry.getResourceDao(Group.class).read(new IdType(subjectGroupRef));
+        if (group == null) {
+            return new ArrayList<>();
         }
-        return patientList;
+
+        return group.getMember().stream()
+                .map(member -> member.getEntity().getReference())
+                .collect(Collectors.toList());
     }
 
     @SuppressWarnings("unused")
@@ -378,7 +380,7 @@ public class MeasureOperationsProvider {
 
             // TODO - this is configured for patient-level evaluation only
             report = evaluateMeasure(measureResource.getIdElement(), periodStart, periodEnd, null, "patient", subject, null,
-            null, null, null, null, null);
+            null, null, null, null, null, null);
 
             report.setId(UUID.randomUUID().toString());
             report.setDate(new Date());
@@ -541,7 +543,7 @@ public class MeasureOperationsProvider {
         // TODO: Spec says that the periods are not required, but I am not sure what to
         // do when they aren't supplied so I made them required
         MeasureReport report = evaluateMeasure(theId, periodStart, periodEnd, null, null, patientRef, null,
-                practitionerRef, lastReceivedOn, null, null, null);
+                practitionerRef, lastReceivedOn, null, null, null, null);
         report.setGroup(null);
 
         Parameters parameters = new Parameters();
@@ -9,11 +9,14 @@ import javax.sql.DataSource;
 import org.opencds.cqf.common.config.HapiProperties;
 import org.opencds.cqf.r4.providers.ActivityDefinitionApplyProvider;
 import org.opencds.cqf.r4.providers.ApplyCqlOperationProvider;
+import org.opencds.cqf.r4.providers.AsyncJobProvider;
+import org.opencds.cqf.r4.providers.CacheStatisticsProvider;
 import org.opencds.cqf.r4.providers.CacheValueSetsProvider;
 import org.opencds.cqf.r4.providers.CodeSystemUpdateProvider;
 import org.opencds.cqf.r4.providers.CqlExecutionProvider;
 import org.opencds.cqf.r4.providers.LibraryOperationsProvider;
 import org.opencds.cqf.r4.providers.MeasureOperationsProvider;
+import org.opencds.cqf.r4.providers.MeasureShardProvider;
 import org.opencds.cqf.r4.providers.ObservationProvider;
 import org.opencds.cqf.r4.providers.PlanDefinitionApplyProvider;
 import org.opencds.cqf.r4.providers.QuestionnaireProvider;
@@ -96,11 +99,14 @@ public class FhirServerConfigR4 extends BaseJavaConfigR4 {
         List<Class<?>> classes = new ArrayList<>();
         classes.add(ActivityDefinitionApplyProvider.class);
         classes.add(ApplyCqlOperationProvider.class);
+        classes.add(AsyncJobProvider.class);
+        classes.add(CacheStatisticsProvider.class);
         classes.add(CacheValueSetsProvider.class);
         classes.add(CodeSystemUpdateProvider.class);
         classes.add(CqlExecutionProvider.class);
         classes.add(LibraryOperationsProvider.class);
         classes.add(MeasureOperationsProvider.class);
+        classes.add(MeasureShardProvider.class);
         classes.add(PlanDefinitionApplyProvider.class);
 
         // The plugin API will need to a way to determine whether a particular
@@ -0,0 +1,136 @@
+package org.opencds.cqf.r4.evaluation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.cqframework.cql.elm.execution.ExpressionDef;
+import org.cqframework.cql.elm.execution.Library;
+import org.hl7.fhir.r4.model.Measure;
+import org.opencds.cqf.common.evaluation.MeasurePopulationType;
+import org.opencds.cqf.common.evaluation.MeasureScoring;
+import org.opencds.cqf.cql.engine.execution.Context;
+
+/**
+ * What the evaluation of a Measure looks up in the Measure and its primary
+ * library for every run and patient, resolved once per version of the Measure
+ * (it is the definition of its {@link org.opencds.cqf.common.evaluation.MeasurePlan}):
+ * the scoring, the population type of each population of each group, the key
+ * and expression of each supplemental data element and the expression
+ * definitions of the primary library by name. It holds no FHIR elements, so it
+ * can be read by parallel workers.
+ */
+public class MeasureDefinition {
+
+    private final String measureId;
+    private final String measureVersion;
+    private final MeasureScoring scoring;
+    private final List<Map<MeasurePopulationType, Integer>> populations = new ArrayList<>();
+    private final List<SupplementalData> supplementalData = new ArrayList<>();
+    private final Map<String, ExpressionDef> expressions = new HashMap<>();
+
+    /**
+     * @param library the primary library of the Measure, or null to resolve the
+     *                expressions from the Context they are evaluated in
+     */
+    public MeasureDefinition(Measure measure, Library library) {
+        this.measureId = measure.getIdElement().getIdPart();
+        this.measureVersion = measure.getIdElement().getVersionIdPart();
+        this.scoring = MeasureScoring.fromCode(measure.getScoring().getCodingFirstRep().getCode());
+
+        for (Measure.MeasureGroupComponent group : measure.getGroup()) {
+            this.populations.add(Collections.unmodifiableMap(resolvePopulations(group)));
+        }
+        for (Measure.MeasureSupplementalDataComponent element : measure.getSupplementalData()) {
+            this.supplementalData.add(new SupplementalData(SupplementalDataAccumulator.getKey(element),
+                    element.getCriteria().getExpression()));
+        }
+
+        // The first definition of a name, as the Context resolves it
+        if (library != null && library.getStatements() != null) {
+            for (ExpressionDef def : library.getStatements().getDef()) {
+                this.expressions.putIfAbsent(def.getName(), def);
+            }
+        }
+    }
+
+    /**
+     * The index of each population of {@code group} by population type.
+     */
+    public static Map<MeasurePopulationType, Integer> resolvePopulations(Measure.MeasureGroupComponent group) {
+        Map<MeasurePopulationType, Integer> populations = new EnumMap<>(MeasurePopulationType.class);
+        // TODO: Isn't quite right, there may be multiple initial populations for a
+        // ratio measure, and multiple measure observations...
+        for (int i = 0; i < group.getPopulation().size(); i++) {
+            MeasurePopulationType populationType = MeasurePopulationType
+                    .fromCode(group.getPopulation().get(i).getCode().getCodingFirstRep().getCode());
+            if (populationType != null) {
+                populations.put(populationType, i);
+            }
+        }
+        return populations;
+    }
+
+    /**
+     * Whether this is the definition of {@code measure}, i.e. of the same
+     * version of it.
+     */
+    public boolean isDefinitionOf(Measure measure) {
+        return this.measureVersion != null && Objects.equals(this.measureId, measure.getIdElement().getIdPart())
+                && this.measureVersion.equals(measure.getIdElement().getVersionIdPart())
+                && this.populations.size() == measure.getGroup().size();
+    }
+
+    /**
+     * The scoring of the Measure, null if it has none.
+     */
+    public MeasureScoring getScoring() {
+        return this.scoring;
+    }
+
+    /**
+     * The index of each population of the {@code groupIndex}th group by
+     * population type.
+     */
+    public Map<MeasurePopulationType, Integer> getPopulations(int groupIndex) {
+        return this.populations.get(groupIndex);
+    }
+
+    public List<SupplementalData> getSupplementalData() {
+        return this.supplementalData;
+    }
+
+    /**
+     * The definition named {@code name} of the primary library, which
+     * {@code context} is evaluating.
+     */
+    public ExpressionDef resolveExpression(Context context, String name) {
+        ExpressionDef def = this.expressions.get(name);
+        return def != null ? def : context.resolveExpressionRef(name);
+    }
+
+    /**
+     * A supplemental data element, and the key its counts are reported under.
+     */
+    public static class SupplementalData {
+        private final String key;
+        private final String expression;
+
+        private SupplementalData(String key, String expression) {
+            this.key = key;
+            this.expression = expression;
+        }
+
+        public String getKey() {
+            return this.key;
+        }
+
+        public String getExpression() {
+            return this.expression;
+        }
+    }
+}
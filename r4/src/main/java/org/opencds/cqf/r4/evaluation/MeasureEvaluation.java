@@ -1,15 +1,20 @@
 package org.opencds.cqf.r4.evaluation;
 
-import java.lang.reflect.Field;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
 import java.util.stream.Collectors;
 
 import org.cqframework.cql.elm.execution.ExpressionDef;
 import org.cqframework.cql.elm.execution.FunctionDef;
-import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Base64BinaryType;
 import org.hl7.fhir.r4.model.CanonicalType;
 import org.hl7.fhir.r4.model.CodeableConcept;
 import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Element;
+import org.hl7.fhir.r4.model.Expression;
 import org.hl7.fhir.r4.model.Extension;
 import org.hl7.fhir.r4.model.IdType;
 import org.hl7.fhir.r4.model.IntegerType;
@@ -18,38 +23,146 @@ import org.hl7.fhir.r4.model.Measure;
 import org.hl7.fhir.r4.model.MeasureReport;
 import org.hl7.fhir.r4.model.Observation;
 import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.PrimitiveType;
 import org.hl7.fhir.r4.model.Quantity;
 import org.hl7.fhir.r4.model.Reference;
 import org.hl7.fhir.r4.model.Resource;
 import org.hl7.fhir.r4.model.StringType;
+import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.evaluation.EvaluatedResourceTracker;
+import org.opencds.cqf.common.evaluation.EvaluatedResourcesMode;
+import org.opencds.cqf.common.evaluation.EvaluationProgress;
+import org.opencds.cqf.common.evaluation.MeasureEvaluationContext;
 import org.opencds.cqf.common.evaluation.MeasurePopulationType;
 import org.opencds.cqf.common.evaluation.MeasureScoring;
+import org.opencds.cqf.common.evaluation.ObservationAggregate;
+import org.opencds.cqf.common.evaluation.PatientDataPipeline;
+import org.opencds.cqf.common.evaluation.PatientPartitionExecutor;
+import org.opencds.cqf.common.evaluation.PatientShard;
+import org.opencds.cqf.common.evaluation.PopulationIndex;
+import org.opencds.cqf.common.retrieve.PagedResourceIterable;
 import org.opencds.cqf.cql.engine.data.DataProvider;
 import org.opencds.cqf.cql.engine.execution.Context;
 import org.opencds.cqf.cql.engine.execution.Variable;
 import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.runtime.Concept;
 import org.opencds.cqf.cql.engine.runtime.Interval;
 import org.opencds.cqf.r4.builders.MeasureReportBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
 import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
-import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+
+import com.google.common.collect.Iterables;
 
 public class MeasureEvaluation {
 
     private static final Logger logger = LoggerFactory.getLogger(MeasureEvaluation.class);
 
+    /**
+     * References the contained List of the ids of the evaluated resources of a
+     * report evaluated in ids mode.
+     */
+    public static final String EVALUATED_RESOURCES_URL =
+            "http://opencds.org/fhir/StructureDefinition/cqf-ruler-evaluated-resources";
+
+    /**
+     * Carries the measure observations of a continuous variable group or
+     * stratum of a shard's report, a serialized {@link ObservationAggregate},
+     * from which {@link MeasureReportMerger} scores the merged report.
+     */
+    public static final String OBSERVATION_AGGREGATE_URL =
+            "http://opencds.org/fhir/StructureDefinition/cqf-ruler-observation-aggregate";
+
     private DataProvider provider;
     private Interval measurementPeriod;
     private DaoRegistry registry;
+    private Supplier<Context> contextFactory;
+    private int parallelism;
+    private EvaluationProgress progress;
+    private MeasureResultStore resultStore;
+    private PatientShard shard;
+    private EvaluatedResourcesMode evaluatedResourcesMode = EvaluatedResourcesMode.FULL;
+    private boolean containObservations = HapiProperties.getMeasureEvaluationContainObservations();
+    private MeasureDefinition definition;
 
     public MeasureEvaluation(DataProvider provider, DaoRegistry registry, Interval measurementPeriod) {
+        this(provider, registry, measurementPeriod, null, 1);
+    }
+
+    /**
+     * @param contextFactory creates an independent execution Context (same library,
+     *                       parameters, data and terminology providers) for each
+     *                       parallel worker
+     * @param parallelism    the number of workers population and subject-list
+     *                       evaluations are partitioned across
+     */
+    public MeasureEvaluation(DataProvider provider, DaoRegistry registry, Interval measurementPeriod,
+            Supplier<Context> contextFactory, int parallelism) {
         this.provider = provider;
         this.registry = registry;
         this.measurementPeriod = measurementPeriod;
+        this.contextFactory = contextFactory;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Reports each evaluated patient to {@code progress}.
+     */
+    public void setProgress(EvaluationProgress progress) {
+        this.progress = progress;
+    }
+
+    /**
+     * Lets population reports reuse the stored results of patients whose data did
+     * not change since the last run.
+     */
+    public void setResultStore(MeasureResultStore resultStore) {
+        this.resultStore = resultStore;
+    }
+
+    /**
+     * Restricts population and subject-list reports to the patients of
+     * {@code shard}.
+     */
+    public void setShard(PatientShard shard) {
+        this.shard = shard;
+    }
+
+    /**
+     * Sets what is tracked for the evaluatedResource element of the reports,
+     * full by default.
+     */
+    public void setEvaluatedResourcesMode(EvaluatedResourcesMode evaluatedResourcesMode) {
+        this.evaluatedResourcesMode = evaluatedResourcesMode;
+    }
+
+    /**
+     * Whether the measure observations of continuous variable groups are added
+     * to the reports as contained Observations, besides being aggregated into
+     * the measure score.
+     */
+    public void setContainObservations(boolean containObservations) {
+        this.containObservations = containObservations;
+    }
+
+    /**
+     * Sets the definition of the Measure resolved by its plan, see
+     * {@link MeasureEvaluationSeed#getDefinition()}. Without one, or for
+     * another version of the Measure, it is resolved for each report.
+     */
+    public void setDefinition(MeasureDefinition definition) {
+        this.definition = definition;
+    }
+
+    private MeasureDefinition getDefinition(Measure measure) {
+        return this.definition != null && this.definition.isDefinitionOf(measure) ? this.definition
+                : new MeasureDefinition(measure, null);
     }
 
     public MeasureReport evaluatePatientMeasure(Measure measure, Context context, String patientId) {
@@ -68,36 +181,59 @@ public class MeasureEvaluation {
 
         boolean isSingle = true;
         return evaluate(measure, context,
-                patient == null ? Collections.emptyList() : Collections.singletonList(patient),
+                PagedResourceIterable.forList(
+                        patient == null ? Collections.<Patient>emptyList() : Collections.singletonList(patient), 1),
+                MeasureReport.MeasureReportType.INDIVIDUAL, isSingle);
+    }
+
+    /**
+     * The individual report of a patient that was already loaded, e.g. while
+     * enumerating a population.
+     */
+    public MeasureReport evaluatePatientMeasure(Measure measure, Context context, Patient patient) {
+        boolean isSingle = true;
+        return evaluate(measure, context, PagedResourceIterable.forList(Collections.singletonList(patient), 1),
                 MeasureReport.MeasureReportType.INDIVIDUAL, isSingle);
     }
 
     public MeasureReport evaluateSubjectListMeasure(Measure measure, Context context, String practitionerRef) {
         logger.info("Generating patient-list report");
 
-        List<Patient> patients = practitionerRef == null ? getAllPatients() : getPractitionerPatients(practitionerRef);
+        PagedResourceIterable<Patient> patients = practitionerRef == null ? getAllPatients()
+                : getPractitionerPatients(practitionerRef);
         boolean isSingle = false;
         return evaluate(measure, context, patients, MeasureReport.MeasureReportType.SUBJECTLIST, isSingle);
     }
 
-    private List<Patient> getPractitionerPatients(String practitionerRef) {
+    private PagedResourceIterable<Patient> getPractitionerPatients(String practitionerRef) {
+        return inShard(findPatients(this.registry, practitionerRef));
+    }
+
+    private PagedResourceIterable<Patient> getAllPatients() {
+        return inShard(findPatients(this.registry, null));
+    }
+
+    /**
+     * All patients (practitionerRef null) or those of the practitioner.
+     */
+    static PagedResourceIterable<Patient> findPatients(DaoRegistry registry, String practitionerRef) {
         SearchParameterMap map = new SearchParameterMap();
-        map.add("general-practitioner", new ReferenceParam(
-                practitionerRef.startsWith("Practitioner/") ? practitionerRef : "Practitioner/" + practitionerRef));
+        if (practitionerRef != null) {
+            map.add("general-practitioner", new ReferenceParam(practitionerRef.startsWith("Practitioner/")
+                    ? practitionerRef : "Practitioner/" + practitionerRef));
+        }
 
-        List<Patient> patients = new ArrayList<>();
-        IBundleProvider patientProvider = registry.getResourceDao("Patient").search(map);
-        List<IBaseResource> patientList = patientProvider.getResources(0, patientProvider.size());
-        patientList.forEach(x -> patients.add((Patient) x));
-        return patients;
+        return PagedResourceIterable.forSearch(registry, "Patient", map,
+                HapiProperties.getMeasureEvaluationPatientPageSize());
     }
 
-    private List<Patient> getAllPatients() {
-        List<Patient> patients = new ArrayList<>();
-        IBundleProvider patientProvider = registry.getResourceDao("Patient").search(new SearchParameterMap());
-        List<IBaseResource> patientList = patientProvider.getResources(0, patientProvider.size());
-        patientList.forEach(x -> patients.add((Patient) x));
-        return patients;
+    private PagedResourceIterable<Patient> inShard(PagedResourceIterable<Patient> patients) {
+        if (this.shard == null) {
+            return patients;
+        }
+
+        PatientShard shard = this.shard;
+        return patients.filter(patient -> shard.contains(patient.getIdElement().getIdPart()));
     }
 
     public MeasureReport evaluatePopulationMeasure(Measure measure, Context context) {
@@ -107,32 +243,17 @@ public class MeasureEvaluation {
         return evaluate(measure, context, getAllPatients(), MeasureReport.MeasureReportType.SUMMARY, isSingle);
     }
 
-    @SuppressWarnings("unchecked")
-    private void clearExpressionCache(Context context) {
-        // Hack to clear expression cache
-        // See cqf-ruler github issue #153
-        try {
-            Field privateField = Context.class.getDeclaredField("expressions");
-            privateField.setAccessible(true);
-            LinkedHashMap<String, Object> expressions = (LinkedHashMap<String, Object>) privateField.get(context);
-            expressions.clear();
-
-        } catch (Exception e) {
-            logger.warn("Error resetting expression cache", e);
-        }
-    }
-
-    private Resource evaluateObservationCriteria(Context context, Patient patient, Resource resource, Measure.MeasureGroupPopulationComponent pop, MeasureReport report) {
+    private void evaluateObservation(Context context, MeasureDefinition definition, Patient patient, String key,
+            Resource resource, MeasureGroupState state, MeasureReport report) {
+        Measure.MeasureGroupPopulationComponent pop = state.getCriteria(MeasurePopulationType.MEASUREOBSERVATION);
         if (pop == null || !pop.hasCriteria()) {
-            return null;
+            return;
         }
 
         context.setContextValue("Patient", patient.getIdElement().getIdPart());
 
-        clearExpressionCache(context);
-
         String observationName = pop.getCriteria().getExpression();
-        ExpressionDef ed = context.resolveExpressionRef(observationName);
+        ExpressionDef ed = definition.resolveExpression(context, observationName);
         if (!(ed instanceof FunctionDef)) {
             throw new IllegalArgumentException(String.format("Measure observation %s does not reference a function definition", observationName));
         }
@@ -147,16 +268,41 @@ public class MeasureEvaluation {
             context.popWindow();
         }
 
-        if (result instanceof Resource) {
-            return (Resource)result;
+        Double value = getObservationValue(result);
+        state.addObservation(key, value);
+        if (!this.containObservations) {
+            return;
+        }
+
+        Resource observation = result instanceof Resource ? (Resource) result
+                : createObservation(observationName, value, report);
+        report.addContained(observation);
+        report.getEvaluatedResource().add(new Reference("#" + observation.getId()));
+    }
+
+    private Double getObservationValue(Object result) {
+        if (result instanceof Observation) {
+            Observation observation = (Observation) result;
+            return observation.hasValueQuantity() && observation.getValueQuantity().hasValue()
+                    ? observation.getValueQuantity().getValue().doubleValue()
+                    : null;
+        }
+        if (result instanceof Quantity) {
+            return ((Quantity) result).hasValue() ? ((Quantity) result).getValue().doubleValue() : null;
         }
+        return ObservationAggregate.valueOf(result);
+    }
 
+    private Observation createObservation(String observationName, Double value, MeasureReport report) {
         Observation obs = new Observation();
         obs.setStatus(Observation.ObservationStatus.FINAL);
         obs.setId(UUID.randomUUID().toString());
         CodeableConcept cc = new CodeableConcept();
         cc.setText(observationName);
         obs.setCode(cc);
+        if (value != null) {
+            obs.setValue(new Quantity().setValue(value));
+        }
         Extension obsExtension = new Extension().setUrl("http://hl7.org/fhir/StructureDefinition/cqf-measureInfo");
         Extension extExtMeasure = new Extension()
                 .setUrl("measure")
@@ -171,7 +317,7 @@ public class MeasureEvaluation {
     }
 
     @SuppressWarnings("unchecked")
-    private Iterable<Resource> evaluateCriteria(Context context, Patient patient,
+    private Iterable<Resource> evaluateCriteria(Context context, MeasureDefinition definition, Patient patient,
             Measure.MeasureGroupPopulationComponent pop) {
         if (pop == null || !pop.hasCriteria()) {
             return Collections.emptyList();
@@ -179,9 +325,7 @@ public class MeasureEvaluation {
 
         context.setContextValue("Patient", patient.getIdElement().getIdPart());
 
-        clearExpressionCache(context);
-
-        Object result = context.resolveExpressionRef(pop.getCriteria().getExpression()).evaluate(context);
+        Object result = definition.resolveExpression(context, pop.getCriteria().getExpression()).evaluate(context);
         if (result == null) {
             return Collections.emptyList();
         }
@@ -197,34 +341,50 @@ public class MeasureEvaluation {
         return (Iterable<Resource>) result;
     }
 
-    private boolean evaluatePopulationCriteria(Context context, Patient patient,
-            Measure.MeasureGroupPopulationComponent criteria, HashMap<String, Resource> population,
-            HashMap<String, Patient> populationPatients, Measure.MeasureGroupPopulationComponent exclusionCriteria,
-            HashMap<String, Resource> exclusionPopulation, HashMap<String, Patient> exclusionPatients) {
+    private boolean evaluatePopulationCriteria(Context context, MeasureDefinition definition, Patient patient,
+            MeasureGroupState state, MeasurePopulationType populationType, MeasurePopulationType exclusionType) {
+        return evaluatePopulationCriteria(context, definition, patient, state, populationType, exclusionType, null);
+    }
+
+    /**
+     * @param members if not null, receives the patient's resources that are in
+     *                the population (not excluded), by id
+     */
+    private boolean evaluatePopulationCriteria(Context context, MeasureDefinition definition, Patient patient,
+            MeasureGroupState state, MeasurePopulationType populationType, MeasurePopulationType exclusionType,
+            Map<String, Resource> members) {
+        Measure.MeasureGroupPopulationComponent criteria = state.getCriteria(populationType);
         boolean inPopulation = false;
         if (criteria != null) {
-            for (Resource resource : evaluateCriteria(context, patient, criteria)) {
+            for (Resource resource : evaluateCriteria(context, definition, patient, criteria)) {
                 inPopulation = true;
-                population.put(resource.getIdElement().getIdPart(), resource);
+                state.addResource(populationType, resource);
+                if (members != null) {
+                    members.put(resource.getIdElement().getIdPart(), resource);
+                }
             }
         }
 
         if (inPopulation) {
             // Are they in the exclusion?
+            Measure.MeasureGroupPopulationComponent exclusionCriteria = state.getCriteria(exclusionType);
             if (exclusionCriteria != null) {
-                for (Resource resource : evaluateCriteria(context, patient, exclusionCriteria)) {
+                for (Resource resource : evaluateCriteria(context, definition, patient, exclusionCriteria)) {
                     inPopulation = false;
-                    exclusionPopulation.put(resource.getIdElement().getIdPart(), resource);
-                    population.remove(resource.getIdElement().getIdPart());
+                    state.addResource(exclusionType, resource);
+                    state.removeResource(populationType, resource.getIdElement().getIdPart());
+                    if (members != null) {
+                        members.remove(resource.getIdElement().getIdPart());
+                    }
                 }
             }
         }
 
-        if (inPopulation && populationPatients != null) {
-            populationPatients.put(patient.getIdElement().getIdPart(), patient);
+        if (inPopulation) {
+            state.addPatient(populationType, patient);
         }
-        if (!inPopulation && exclusionPatients != null) {
-            exclusionPatients.put(patient.getIdElement().getIdPart(), patient);
+        if (!inPopulation && exclusionType != null) {
+            state.addPatient(exclusionType, patient);
         }
 
         return inPopulation;
@@ -232,472 +392,758 @@ public class MeasureEvaluation {
 
     private void addPopulationCriteriaReport(MeasureReport report,
             MeasureReport.MeasureReportGroupComponent reportGroup,
-            Measure.MeasureGroupPopulationComponent populationCriteria, int populationCount,
-            Iterable<Patient> patientPopulation) {
+            Measure.MeasureGroupPopulationComponent populationCriteria, MeasureGroupState state,
+            MeasurePopulationType populationType) {
         if (populationCriteria != null) {
             MeasureReport.MeasureReportGroupPopulationComponent populationReport = new MeasureReport.MeasureReportGroupPopulationComponent();
             populationReport.setCode(populationCriteria.getCode());
-            if (report.getType() == MeasureReport.MeasureReportType.SUBJECTLIST && patientPopulation != null) {
+            if (report.getType() == MeasureReport.MeasureReportType.SUBJECTLIST && state.hasPatients(populationType)) {
                 ListResource SUBJECTLIST = new ListResource();
                 SUBJECTLIST.setId(UUID.randomUUID().toString());
                 populationReport.setSubjectResults(new Reference().setReference("#" + SUBJECTLIST.getId()));
-                for (Patient patient : patientPopulation) {
+                state.forEachPatient(populationType, (patientId, name) -> {
                     ListResource.ListEntryComponent entry = new ListResource.ListEntryComponent()
                             .setItem(new Reference()
-                                    .setReference(patient.getIdElement().getIdPart().startsWith("Patient/")
-                                            ? patient.getIdElement().getIdPart()
-                                            : String.format("Patient/%s", patient.getIdElement().getIdPart()))
-                                    .setDisplay(patient.getNameFirstRep().getNameAsSingleString()));
+                                    .setReference(patientId.startsWith("Patient/") ? patientId
+                                            : String.format("Patient/%s", patientId))
+                                    .setDisplay(name));
                     SUBJECTLIST.addEntry(entry);
-                }
+                });
                 report.addContained(SUBJECTLIST);
             }
-            populationReport.setCount(populationCount);
+            populationReport.setCount(state.getCount(populationType));
             reportGroup.addPopulation(populationReport);
         }
     }
 
-    private MeasureReport evaluate(Measure measure, Context context, List<Patient> patients,
+    private MeasureReport evaluate(Measure measure, Context context, PagedResourceIterable<Patient> patients,
             MeasureReport.MeasureReportType type, boolean isSingle) {
-        MeasureReportBuilder reportBuilder = new MeasureReportBuilder();
-        reportBuilder.buildStatus("complete");
-        reportBuilder.buildType(type);
-        reportBuilder.buildMeasureReference(
-                measure.getIdElement().getResourceType() + "/" + measure.getIdElement().getIdPart());
-        if (type == MeasureReport.MeasureReportType.INDIVIDUAL && !patients.isEmpty()) {
-            IdType patientId = patients.get(0).getIdElement();
-            reportBuilder.buildPatientReference(patientId.getResourceType() + "/" + patientId.getIdPart());
-        }
-        reportBuilder.buildPeriod(measurementPeriod);
-
-        MeasureReport report = reportBuilder.build();
-
-        HashMap<String, Resource> resources = new HashMap<>();
-        HashMap<String, HashSet<String>> codeToResourceMap = new HashMap<>();
-        Set<String> evaluatedResourcesList = new HashSet<>();
-
-        MeasureScoring measureScoring = MeasureScoring.fromCode(measure.getScoring().getCodingFirstRep().getCode());
-        if (measureScoring == null) {
-            throw new RuntimeException("Measure scoring is required in order to calculate.");
-        }
-
-        List<Measure.MeasureSupplementalDataComponent> sde = new ArrayList<>();
-        HashMap<String, HashMap<String, Integer>> sdeAccumulators = null;
-        for (Measure.MeasureGroupComponent group : measure.getGroup()) {
-            MeasureReport.MeasureReportGroupComponent reportGroup = new MeasureReport.MeasureReportGroupComponent();
-            reportGroup.setId(group.getId());
-            report.getGroup().add(reportGroup);
-
-            // Declare variables to avoid a hash lookup on every patient
-            // TODO: Isn't quite right, there may be multiple initial populations for a
-            // ratio measure...
-            Measure.MeasureGroupPopulationComponent initialPopulationCriteria = null;
-            Measure.MeasureGroupPopulationComponent numeratorCriteria = null;
-            Measure.MeasureGroupPopulationComponent numeratorExclusionCriteria = null;
-            Measure.MeasureGroupPopulationComponent denominatorCriteria = null;
-            Measure.MeasureGroupPopulationComponent denominatorExclusionCriteria = null;
-            Measure.MeasureGroupPopulationComponent denominatorExceptionCriteria = null;
-            Measure.MeasureGroupPopulationComponent measurePopulationCriteria = null;
-            Measure.MeasureGroupPopulationComponent measurePopulationExclusionCriteria = null;
-            // TODO: Isn't quite right, there may be multiple measure observations...
-            Measure.MeasureGroupPopulationComponent measureObservationCriteria = null;
-
-            HashMap<String, Resource> initialPopulation = null;
-            HashMap<String, Resource> numerator = null;
-            HashMap<String, Resource> numeratorExclusion = null;
-            HashMap<String, Resource> denominator = null;
-            HashMap<String, Resource> denominatorExclusion = null;
-            HashMap<String, Resource> denominatorException = null;
-            HashMap<String, Resource> measurePopulation = null;
-            HashMap<String, Resource> measurePopulationExclusion = null;
-            HashMap<String, Resource> measureObservation = null;
-
-            HashMap<String, Patient> initialPopulationPatients = null;
-            HashMap<String, Patient> numeratorPatients = null;
-            HashMap<String, Patient> numeratorExclusionPatients = null;
-            HashMap<String, Patient> denominatorPatients = null;
-            HashMap<String, Patient> denominatorExclusionPatients = null;
-            HashMap<String, Patient> denominatorExceptionPatients = null;
-            HashMap<String, Patient> measurePopulationPatients = null;
-            HashMap<String, Patient> measurePopulationExclusionPatients = null;
-
-            sdeAccumulators = new HashMap<>();
-             sde = measure.getSupplementalData();
-            for (Measure.MeasureGroupPopulationComponent pop : group.getPopulation()) {
-                MeasurePopulationType populationType = MeasurePopulationType
-                        .fromCode(pop.getCode().getCodingFirstRep().getCode());
-                if (populationType != null) {
-                    switch (populationType) {
-                        case INITIALPOPULATION:
-                            initialPopulationCriteria = pop;
-                            initialPopulation = new HashMap<>();
-                            if (type == MeasureReport.MeasureReportType.SUBJECTLIST) {
-                                initialPopulationPatients = new HashMap<>();
-                            }
-                            break;
-                        case NUMERATOR:
-                            numeratorCriteria = pop;
-                            numerator = new HashMap<>();
-                            if (type == MeasureReport.MeasureReportType.SUBJECTLIST) {
-                                numeratorPatients = new HashMap<>();
-                            }
-                            break;
-                        case NUMERATOREXCLUSION:
-                            numeratorExclusionCriteria = pop;
-                            numeratorExclusion = new HashMap<>();
-                            if (type == MeasureReport.MeasureReportType.SUBJECTLIST) {
-                                numeratorExclusionPatients = new HashMap<>();
-                            }
-                            break;
-                        case DENOMINATOR:
-                            denominatorCriteria = pop;
-                            denominator = new HashMap<>();
-                            if (type == MeasureReport.MeasureReportType.SUBJECTLIST) {
-                                denominatorPatients = new HashMap<>();
-                            }
-                            break;
-                        case DENOMINATOREXCLUSION:
-                            denominatorExclusionCriteria = pop;
-                            denominatorExclusion = new HashMap<>();
-                            if (type == MeasureReport.MeasureReportType.SUBJECTLIST) {
-                                denominatorExclusionPatients = new HashMap<>();
-                            }
-                            break;
-                        case DENOMINATOREXCEPTION:
-                            denominatorExceptionCriteria = pop;
-                            denominatorException = new HashMap<>();
-                            if (type == MeasureReport.MeasureReportType.SUBJECTLIST) {
-                                denominatorExceptionPatients = new HashMap<>();
-                            }
-                            break;
-                        case MEASUREPOPULATION:
-                            measurePopulationCriteria = pop;
-                            measurePopulation = new HashMap<>();
-                            if (type == MeasureReport.MeasureReportType.SUBJECTLIST) {
-                                measurePopulationPatients = new HashMap<>();
-                            }
-                            break;
-                        case MEASUREPOPULATIONEXCLUSION:
-                            measurePopulationExclusionCriteria = pop;
-                            measurePopulationExclusion = new HashMap<>();
-                            if (type == MeasureReport.MeasureReportType.SUBJECTLIST) {
-                                measurePopulationExclusionPatients = new HashMap<>();
-                            }
-                            break;
-                        case MEASUREOBSERVATION:
-                            measureObservationCriteria = pop;
-                            measureObservation = new HashMap<>();
-                            break;
-                    }
-                }
+        String patientReference = null;
+        if (type == MeasureReport.MeasureReportType.INDIVIDUAL && patients.iterator().hasNext()) {
+            IdType patientId = patients.iterator().next().getIdElement();
+            patientReference = patientId.getResourceType() + "/" + patientId.getIdPart();
+        }
+
+        MeasureRun run = new MeasureRun(measure, context, type, isSingle, patientReference);
+        if (this.progress != null && this.progress.getTotal() == null) {
+            this.progress.setTotal(patients.count());
+        }
+
+        if (isIncremental(measure, type, run.measureScoring)) {
+            evaluatePatientsIncrementally(context, patients, run.definition, run.states, run.evaluatedResources,
+                    run.sdeAccumulators, run.report);
+        } else if (isParallel(run.measureScoring)) {
+            evaluatePatientsInParallel(patients, run.definition, run.states, run.evaluatedResources,
+                    run.sdeAccumulators, run.report);
+        } else {
+            evaluatePatients(context, patients, run.definition, run.states, run.evaluatedResources,
+                    run.sdeAccumulators, run.report);
+        }
+
+        return run.complete();
+    }
+
+    /**
+     * Starts a population report whose patients are handed to it one at a time
+     * by the caller, see {@link MultiMeasureEvaluation}.
+     */
+    public MeasureRun startPopulationRun(Measure measure, Context context) {
+        return new MeasureRun(measure, context, MeasureReport.MeasureReportType.SUMMARY, false, null);
+    }
+
+    /**
+     * Starts a patient-list report whose patients are handed to it one at a time
+     * by the caller, see {@link MultiMeasureEvaluation}.
+     */
+    public MeasureRun startSubjectListRun(Measure measure, Context context) {
+        return new MeasureRun(measure, context, MeasureReport.MeasureReportType.SUBJECTLIST, false, null);
+    }
+
+    /**
+     * The patients of a population (practitionerRef null) or patient-list report.
+     */
+    public PagedResourceIterable<Patient> getPatients(String practitionerRef) {
+        return practitionerRef == null ? getAllPatients() : getPractitionerPatients(practitionerRef);
+    }
+
+    /**
+     * The report of one Measure being built and what the patients evaluated so
+     * far contributed to it.
+     */
+    public class MeasureRun {
+        private final Measure measure;
+        private final Context context;
+        private final boolean isSingle;
+        private final MeasureDefinition definition;
+        private final MeasureScoring measureScoring;
+        private final MeasureReport report;
+        private final EvaluatedResourceTracker evaluatedResources;
+        // Every group's populations and the supplemental data are evaluated in a
+        // single pass over the patients
+        private final List<MeasureGroupState> states = new ArrayList<>();
+        private final SupplementalDataAccumulator sdeAccumulators = new SupplementalDataAccumulator();
+
+        private MeasureRun(Measure measure, Context context, MeasureReport.MeasureReportType type,
+                boolean isSingle, String patientReference) {
+            this.measure = measure;
+            this.context = context;
+            this.isSingle = isSingle;
+            this.evaluatedResources = new EvaluatedResourceTracker(evaluatedResourcesMode,
+                    HapiProperties.getMeasureEvaluationEvaluatedResourcesSpillThreshold());
+
+            MeasureReportBuilder reportBuilder = new MeasureReportBuilder();
+            reportBuilder.buildStatus("complete");
+            reportBuilder.buildType(type);
+            reportBuilder.buildMeasureReference(
+                    measure.getIdElement().getResourceType() + "/" + measure.getIdElement().getIdPart());
+            if (patientReference != null) {
+                reportBuilder.buildPatientReference(patientReference);
             }
+            reportBuilder.buildPeriod(measurementPeriod);
+            this.report = reportBuilder.build();
 
-            switch (measureScoring) {
-                case PROPORTION:
-                case RATIO: {
-
-                    // For each patient in the initial population
-                    for (Patient patient : patients) {
-                        // Are they in the initial population?
-                        boolean inInitialPopulation = evaluatePopulationCriteria(context, patient,
-                                initialPopulationCriteria, initialPopulation, initialPopulationPatients, null, null,
-                                null);
-                        populateResourceMap(context, MeasurePopulationType.INITIALPOPULATION, resources,
-                                codeToResourceMap);
-
-                        if (inInitialPopulation) {
-                            // Are they in the denominator?
-                            boolean inDenominator = evaluatePopulationCriteria(context, patient, denominatorCriteria,
-                                    denominator, denominatorPatients, denominatorExclusionCriteria,
-                                    denominatorExclusion, denominatorExclusionPatients);
-                            populateResourceMap(context, MeasurePopulationType.DENOMINATOR, resources,
-                                    codeToResourceMap);
-
-                            if (inDenominator) {
-                                // Are they in the numerator?
-                                boolean inNumerator = evaluatePopulationCriteria(context, patient, numeratorCriteria,
-                                        numerator, numeratorPatients, numeratorExclusionCriteria, numeratorExclusion,
-                                        numeratorExclusionPatients);
-                                populateResourceMap(context, MeasurePopulationType.NUMERATOR, resources,
-                                        codeToResourceMap);
-
-                                if (!inNumerator && inDenominator && (denominatorExceptionCriteria != null)) {
-                                    // Are they in the denominator exception?
-                                    boolean inException = false;
-                                    for (Resource resource : evaluateCriteria(context, patient,
-                                            denominatorExceptionCriteria)) {
-                                        inException = true;
-                                        denominatorException.put(resource.getIdElement().getIdPart(), resource);
-                                        denominator.remove(resource.getIdElement().getIdPart());
-                                        populateResourceMap(context, MeasurePopulationType.DENOMINATOREXCEPTION,
-                                                resources, codeToResourceMap);
-                                    }
-                                    if (inException) {
-                                        if (denominatorExceptionPatients != null) {
-                                            denominatorExceptionPatients.put(patient.getIdElement().getIdPart(),
-                                                    patient);
-                                        }
-                                        if (denominatorPatients != null) {
-                                            denominatorPatients.remove(patient.getIdElement().getIdPart());
-                                        }
-                                    }
-                                }
-                            }
-                        }
-                        populateSDEAccumulators(measure, context, patient, sdeAccumulators, sde);
-                    }
+            this.definition = getDefinition(measure);
+            this.measureScoring = this.definition.getScoring();
+            if (this.measureScoring == null) {
+                throw new RuntimeException("Measure scoring is required in order to calculate.");
+            }
 
-                    // Calculate actual measure score, Count(numerator) / Count(denominator)
-                    if (denominator != null && numerator != null && denominator.size() > 0) {
-                        reportGroup.setMeasureScore(new Quantity(numerator.size() / (double) denominator.size()));
-                    }
+            // The groups number the same patients and resources
+            PopulationIndex resourceIndex = new PopulationIndex();
+            PopulationIndex patientIndex = new PopulationIndex();
+            for (int i = 0; i < measure.getGroup().size(); i++) {
+                this.states.add(new MeasureGroupState(measure.getGroup().get(i), this.definition.getPopulations(i),
+                        type, resourceIndex, patientIndex));
+            }
+        }
 
-                    break;
-                }
-                case CONTINUOUSVARIABLE: {
-
-                    // For each patient in the patient list
-                    for (Patient patient : patients) {
-
-                        // Are they in the initial population?
-                        boolean inInitialPopulation = evaluatePopulationCriteria(context, patient,
-                                initialPopulationCriteria, initialPopulation, initialPopulationPatients, null, null,
-                                null);
-                        populateResourceMap(context, MeasurePopulationType.INITIALPOPULATION, resources,
-                                codeToResourceMap);
-
-                        if (inInitialPopulation) {
-                            // Are they in the measure population?
-                            boolean inMeasurePopulation = evaluatePopulationCriteria(context, patient,
-                                    measurePopulationCriteria, measurePopulation, measurePopulationPatients,
-                                    measurePopulationExclusionCriteria, measurePopulationExclusion,
-                                    measurePopulationExclusionPatients);
-
-                            if (inMeasurePopulation) {
-                                for (Resource resource : measurePopulation.values()) {
-                                    Resource observation = evaluateObservationCriteria(context, patient, resource, measureObservationCriteria, report);
-                                    measureObservation.put(resource.getIdElement().getIdPart(), observation);
-                                    report.addContained(observation);
-                                    report.getEvaluatedResource().add(new Reference("#" + observation.getId()));
-                                }
-                            }
-                        }
-                        populateSDEAccumulators(measure, context, patient, sdeAccumulators,sde);
-                    }
+        // An empty run of the same report for a parallel worker, see newPartialRun
+        private MeasureRun(MeasureRun parent, Context context) {
+            this.measure = parent.measure;
+            this.context = context;
+            this.isSingle = parent.isSingle;
+            this.definition = parent.definition;
+            this.measureScoring = parent.measureScoring;
+            // Only written to by contained measure observations, which aren't evaluated in parallel
+            this.report = parent.report;
+            this.evaluatedResources = parent.evaluatedResources.copyEmpty();
+
+            PopulationIndex resourceIndex = new PopulationIndex();
+            PopulationIndex patientIndex = new PopulationIndex();
+            parent.states.forEach(state -> this.states.add(state.copyEmpty(resourceIndex, patientIndex)));
+        }
+
+        public Context getContext() {
+            return this.context;
+        }
+
+        /**
+         * Whether the patients can be split across parallel workers, each with its
+         * own execution Context (see {@link #createWorkerContext()}).
+         */
+        public boolean canEvaluateInParallel() {
+            return MeasureEvaluation.this.canEvaluateInParallel(this.measureScoring);
+        }
+
+        public Context createWorkerContext() {
+            return contextFactory.get();
+        }
+
+        /**
+         * An empty run of the same report that evaluates patients with
+         * {@code workerContext}, whose results are added with {@link #merge}.
+         */
+        public MeasureRun newPartialRun(Context workerContext) {
+            return new MeasureRun(this, workerContext);
+        }
+
+        /**
+         * Adds what the patients of a partial run contributed. Merged in patient
+         * order, the report is the same as if they were evaluated by this run.
+         */
+        public void merge(MeasureRun partial) {
+            for (int i = 0; i < this.states.size(); i++) {
+                this.states.get(i).merge(partial.states.get(i));
+            }
+            this.evaluatedResources.merge(partial.evaluatedResources);
+            partial.evaluatedResources.close();
+            this.sdeAccumulators.merge(partial.sdeAccumulators);
+        }
 
-                    break;
+        public void evaluatePatient(Patient patient) {
+            for (MeasureGroupState state : this.states) {
+                evaluatePatientGroup(this.context, this.definition, patient, state, this.evaluatedResources,
+                        this.report);
+            }
+            this.sdeAccumulators.accumulate(this.context, patient, this.definition);
+        }
+
+        /**
+         * Builds the report from what the patients contributed.
+         */
+        public MeasureReport complete() {
+            MeasureReport report = this.report;
+
+            for (MeasureGroupState state : this.states) {
+                Measure.MeasureGroupComponent group = state.getGroup();
+                MeasureReport.MeasureReportGroupComponent reportGroup = new MeasureReport.MeasureReportGroupComponent();
+                reportGroup.setId(group.getId());
+                report.getGroup().add(reportGroup);
+
+                reportGroup.setMeasureScore(
+                        getMeasureScore(this.measureScoring, state, state::getCount, state.getObservations()));
+                addObservationAggregate(reportGroup, state.getObservations());
+
+                // Add population reports for each group
+                for (MeasurePopulationType populationType : MeasurePopulationType.values()) {
+                    addPopulationCriteriaReport(report, reportGroup, state.getCriteria(populationType), state,
+                            populationType);
                 }
-                case COHORT: {
-
-                    // For each patient in the patient list
-                    for (Patient patient : patients) {
-                        evaluatePopulationCriteria(context, patient,
-                                initialPopulationCriteria, initialPopulation, initialPopulationPatients, null, null,
-                                null);
-                        populateResourceMap(context, MeasurePopulationType.INITIALPOPULATION, resources,
-                                codeToResourceMap);
-                        populateSDEAccumulators(measure, context, patient, sdeAccumulators, sde);
-                    }
 
-                    break;
+                for (StratifierState stratifier : state.getStratifiers()) {
+                    addStratifierReport(reportGroup, stratifier, state, this.measureScoring);
                 }
             }
 
-            // Add population reports for each group
-            addPopulationCriteriaReport(report, reportGroup, initialPopulationCriteria,
-                    initialPopulation != null ? initialPopulation.size() : 0,
-                    initialPopulationPatients != null ? initialPopulationPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, numeratorCriteria,
-                    numerator != null ? numerator.size() : 0,
-                    numeratorPatients != null ? numeratorPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, numeratorExclusionCriteria,
-                    numeratorExclusion != null ? numeratorExclusion.size() : 0,
-                    numeratorExclusionPatients != null ? numeratorExclusionPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, denominatorCriteria,
-                    denominator != null ? denominator.size() : 0,
-                    denominatorPatients != null ? denominatorPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, denominatorExclusionCriteria,
-                    denominatorExclusion != null ? denominatorExclusion.size() : 0,
-                    denominatorExclusionPatients != null ? denominatorExclusionPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, denominatorExceptionCriteria,
-                    denominatorException != null ? denominatorException.size() : 0,
-                    denominatorExceptionPatients != null ? denominatorExceptionPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, measurePopulationCriteria,
-                    measurePopulation != null ? measurePopulation.size() : 0,
-                    measurePopulationPatients != null ? measurePopulationPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, measurePopulationExclusionCriteria,
-                    measurePopulationExclusion != null ? measurePopulationExclusion.size() : 0,
-                    measurePopulationExclusionPatients != null ? measurePopulationExclusionPatients.values() : null);
-            // TODO: Measure Observations...
-        }
-
-        for (String key : codeToResourceMap.keySet()) {
-            org.hl7.fhir.r4.model.ListResource list = new org.hl7.fhir.r4.model.ListResource();
-            for (String element : codeToResourceMap.get(key)) {
-                org.hl7.fhir.r4.model.ListResource.ListEntryComponent comp = new org.hl7.fhir.r4.model.ListResource.ListEntryComponent();
-                comp.setItem(new Reference('#' + element));
-                list.addEntry(comp);
+            // After the contained measure observations, if any
+            if (this.evaluatedResources.getMode() == EvaluatedResourcesMode.IDS) {
+                addEvaluatedResourceList(report, this.evaluatedResources);
+            } else {
+                this.evaluatedResources.forEachId(id -> this.report.addEvaluatedResource(new Reference("#" + id)));
+            }
+            this.evaluatedResources.close();
+
+            if (!this.sdeAccumulators.isEmpty()) {
+                report = processAccumulators(report, this.sdeAccumulators, this.isSingle);
+            }
+
+            if (this.context instanceof MeasureEvaluationContext) {
+                logger.info("Expression cache for Measure/{}: {}", this.measure.getIdElement().getIdPart(),
+                        ((MeasureEvaluationContext) this.context).getCacheStatistics());
+            }
+
+            return report;
+        }
+    }
+
+    /**
+     * In ids mode the evaluated resources are not contained in the report, their
+     * ids are listed in a contained List that the report references with an
+     * extension. The List holds at most
+     * measure_evaluation.evaluated_resources_max_ids of them (the first ones in
+     * sorted order), and says so in a note when there were more.
+     */
+    private void addEvaluatedResourceList(MeasureReport report, EvaluatedResourceTracker evaluatedResources) {
+        if (evaluatedResources.isEmpty()) {
+            return;
+        }
+
+        int maxIds = HapiProperties.getMeasureEvaluationEvaluatedResourcesMaxIds();
+        ListResource list = new ListResource();
+        list.setId(UUID.randomUUID().toString());
+        AtomicInteger total = new AtomicInteger();
+        evaluatedResources.forEachId(id -> {
+            if (total.getAndIncrement() < maxIds) {
+                list.addEntry().setItem(new Reference(id));
+            }
+        });
+        String display = list.getEntry().size() + " evaluated resource ids";
+        if (total.get() > list.getEntry().size()) {
+            display = String.format("%d of %d evaluated resource ids", list.getEntry().size(), total.get());
+            list.addNote().setText(String.format("Only the first %d of the %d evaluated resource ids are listed",
+                    list.getEntry().size(), total.get()));
+        }
+        report.addContained(list);
+        report.addExtension(new Extension(EVALUATED_RESOURCES_URL, new Reference("#" + list.getId())
+                .setDisplay(display)));
+    }
+
+    private Quantity getMeasureScore(MeasureScoring measureScoring, MeasureGroupState state,
+            ToIntFunction<MeasurePopulationType> count, ObservationAggregate observations) {
+        // Calculate actual measure score, Count(numerator) / Count(denominator)
+        if ((measureScoring == MeasureScoring.PROPORTION || measureScoring == MeasureScoring.RATIO)
+                && state.hasPopulation(MeasurePopulationType.DENOMINATOR)
+                && state.hasPopulation(MeasurePopulationType.NUMERATOR)
+                && count.applyAsInt(MeasurePopulationType.DENOMINATOR) > 0) {
+            return new Quantity(count.applyAsInt(MeasurePopulationType.NUMERATOR)
+                    / (double) count.applyAsInt(MeasurePopulationType.DENOMINATOR));
+        }
+
+        // For continuous variables, the aggregate of the measure observations
+        if (measureScoring == MeasureScoring.CONTINUOUSVARIABLE && observations != null) {
+            Double score = observations
+                    .get(getAggregateMethod(state.getCriteria(MeasurePopulationType.MEASUREOBSERVATION)));
+            return score != null ? new Quantity().setValue(score) : null;
+        }
+
+        return null;
+    }
+
+    /**
+     * The cqfm-aggregateMethod of a measure-observation population, null when it
+     * has none (the median).
+     */
+    static String getAggregateMethod(Measure.MeasureGroupPopulationComponent observationCriteria) {
+        Extension aggregateMethod = observationCriteria == null ? null
+                : observationCriteria.getExtensionByUrl(ObservationAggregate.AGGREGATE_METHOD_URL);
+        return aggregateMethod != null && aggregateMethod.hasValue() ? aggregateMethod.getValue().primitiveValue()
+                : null;
+    }
+
+    // A shard's report only has the score of its own patients, the merged
+    // report is scored from the observations of all of them
+    private void addObservationAggregate(Element element, ObservationAggregate observations) {
+        if (this.shard != null && observations != null) {
+            element.addExtension(new Extension(OBSERVATION_AGGREGATE_URL,
+                    new Base64BinaryType(observations.toBytes())));
+        }
+    }
+
+    private void addStratifierReport(MeasureReport.MeasureReportGroupComponent reportGroup,
+            StratifierState stratifier, MeasureGroupState state, MeasureScoring measureScoring) {
+        Measure.MeasureGroupStratifierComponent definition = stratifier.getStratifier();
+        MeasureReport.MeasureReportGroupStratifierComponent reportStratifier = reportGroup.addStratifier();
+        if (definition.hasCode()) {
+            reportStratifier.addCode(definition.getCode());
+        }
+
+        for (StratifierState.Stratum stratum : stratifier.getStrata()) {
+            MeasureReport.StratifierGroupComponent reportStratum = reportStratifier.addStratum();
+            if (definition.hasComponent()) {
+                for (int i = 0; i < definition.getComponent().size(); i++) {
+                    reportStratum.addComponent().setCode(definition.getComponent().get(i).getCode())
+                            .setValue(stratum.getValues().get(i));
+                }
+            } else {
+                reportStratum.setValue(stratum.getValues().get(0));
             }
 
-            if (!list.isEmpty()) {
-                list.setId("List/" + UUID.randomUUID().toString());
-                list.setTitle(key);
-                resources.put(list.getId(), list);
-                list.getEntry().forEach(listResource -> evaluatedResourcesList.add(listResource.getItem().getReference()));
+            for (MeasurePopulationType populationType : MeasurePopulationType.values()) {
+                Measure.MeasureGroupPopulationComponent criteria = state.getCriteria(populationType);
+                if (criteria != null) {
+                    reportStratum.addPopulation().setCode(criteria.getCode())
+                            .setCount(stratum.getCount(populationType));
+                }
             }
+            reportStratum.setMeasureScore(
+                    getMeasureScore(measureScoring, state, stratum::getCount, stratum.getObservations()));
+            addObservationAggregate(reportStratum, stratum.getObservations());
+        }
+    }
+
+    private boolean isParallel(MeasureScoring measureScoring) {
+        return this.parallelism > 1 && canEvaluateInParallel(measureScoring);
+    }
+
+    private boolean canEvaluateInParallel(MeasureScoring measureScoring) {
+        // Measure observations added to the report are added from the thread
+        // evaluating the patient, so those stay sequential.
+        return this.contextFactory != null
+                && !(measureScoring == MeasureScoring.CONTINUOUSVARIABLE && this.containObservations);
+    }
+
+    private boolean isIncremental(Measure measure, MeasureReport.MeasureReportType type,
+            MeasureScoring measureScoring) {
+        // Measure observation values and strata are not stored
+        return this.resultStore != null && this.shard == null && type == MeasureReport.MeasureReportType.SUMMARY
+                && measureScoring != MeasureScoring.CONTINUOUSVARIABLE
+                && measure.getGroup().stream().noneMatch(Measure.MeasureGroupComponent::hasStratifier);
+    }
+
+    private void evaluatePatientsIncrementally(Context context, Iterable<Patient> patients,
+            MeasureDefinition definition, List<MeasureGroupState> states, EvaluatedResourceTracker evaluatedResources,
+            SupplementalDataAccumulator sdeAccumulators, MeasureReport report) {
+        long evaluatedAt = System.currentTimeMillis();
+        // Taken before anything is read, changes made during the run are found
+        // by the next one
+        long historyMark = this.resultStore.findHistoryMark();
+        MeasureResultStore.Manifest previous = this.resultStore.load();
+        Set<String> changed = previous == null ? null
+                : this.resultStore.findChangedPatients(previous.getHistoryMark());
+        if (changed != null && reuseStoredResults(context, previous, changed, evaluatedAt, historyMark, definition,
+                states, evaluatedResources, sdeAccumulators, report)) {
+            return;
         }
 
-        if (!evaluatedResourcesList.isEmpty()) {
-            List<Reference> evaluatedResourceIds = new ArrayList<>();
-            evaluatedResourcesList.forEach((resource) -> {
-                evaluatedResourceIds.add(new Reference(resource));
+        // Every patient is evaluated, and the results written a chunk at a time
+        MeasureResultStore.Manifest current = new MeasureResultStore.Manifest(evaluatedAt, historyMark);
+        MeasureResultStore.ChunkWriter writer = this.resultStore.appendTo(current);
+        int evaluated = evaluateAndKeepResults(context, patients, definition, states, evaluatedResources,
+                sdeAccumulators, report, writer::add);
+        writer.flush();
+
+        logger.info("Evaluated all {} patients, stored their results in {} chunks", evaluated,
+                current.getChunkCount());
+        this.resultStore.save(current, previous);
+    }
+
+    /**
+     * Aggregates the stored results of the patients that didn't change since the
+     * last run, evaluates the others and rewrites only the chunks they are stored
+     * in. Returns false, without having aggregated anything, if the stored
+     * results are incomplete.
+     */
+    private boolean reuseStoredResults(Context context, MeasureResultStore.Manifest previous, Set<String> changed,
+            long evaluatedAt, long historyMark, MeasureDefinition definition, List<MeasureGroupState> states,
+            EvaluatedResourceTracker evaluatedResources, SupplementalDataAccumulator sdeAccumulators,
+            MeasureReport report) {
+        // Aggregated apart until every chunk has been read
+        PartialResult stored = new PartialResult(states, evaluatedResources.copyEmpty());
+        Map<Integer, List<String>> changedByChunk = new TreeMap<>();
+        AtomicInteger reused = new AtomicInteger();
+        for (int i = 0; i < previous.getChunkCount(); i++) {
+            MeasureResultStore.Chunk chunk = this.resultStore.loadChunk(previous, i);
+            if (chunk == null) {
+                stored.evaluatedResources.close();
+                return false;
+            }
+
+            int index = i;
+            chunk.forEach((patientId, result) -> {
+                if (changed.contains(patientId)) {
+                    changedByChunk.computeIfAbsent(index, x -> new ArrayList<>()).add(patientId);
+                    return;
+                }
+                result.applyTo(stored.states, stored.evaluatedResources, stored.sdeAccumulators);
+                reused.incrementAndGet();
+                if (this.progress != null) {
+                    this.progress.patientProcessed();
+                }
             });
-            report.setEvaluatedResource(evaluatedResourceIds);
         }
 
-        if (sdeAccumulators.size() > 0) {
-            report = processAccumulators(report, sdeAccumulators, sde, isSingle, patients);
+        for (int i = 0; i < states.size(); i++) {
+            states.get(i).merge(stored.states.get(i));
+        }
+        evaluatedResources.merge(stored.evaluatedResources);
+        stored.evaluatedResources.close();
+        sdeAccumulators.merge(stored.sdeAccumulators);
+
+        // Patients that were deleted since are no longer found
+        Map<String, MeasureResultStore.PatientResult> results = new HashMap<>();
+        int evaluated = evaluateAndKeepResults(context, readPatients(changed), definition, states,
+                evaluatedResources, sdeAccumulators, report, results::put);
+
+        MeasureResultStore.Manifest current = previous.next(evaluatedAt, historyMark);
+        for (Map.Entry<Integer, List<String>> entry : changedByChunk.entrySet()) {
+            MeasureResultStore.Chunk chunk = this.resultStore.loadChunk(previous, entry.getKey());
+            if (chunk == null) {
+                // The report is complete, but the next run has to start over
+                return true;
+            }
+            for (String patientId : entry.getValue()) {
+                chunk.remove(patientId);
+                MeasureResultStore.PatientResult result = results.remove(patientId);
+                if (result != null) {
+                    chunk.put(patientId, result);
+                }
+            }
+            this.resultStore.saveChunk(current, entry.getKey(), chunk);
         }
 
-        return report;
+        // New patients
+        MeasureResultStore.ChunkWriter writer = this.resultStore.appendTo(current);
+        results.forEach(writer::add);
+        writer.flush();
+
+        logger.info("Evaluated {} patients, reused the stored results of {} others, rewrote {} of {} chunks",
+                evaluated, reused.get(), changedByChunk.size(), current.getChunkCount());
+        this.resultStore.save(current, previous);
+        return true;
     }
 
-    private void populateSDEAccumulators(Measure measure, Context context, Patient patient,HashMap<String, HashMap<String, Integer>> sdeAccumulators,
-                                         List<Measure.MeasureSupplementalDataComponent> sde){
-        context.setContextValue("Patient", patient.getIdElement().getIdPart());
-        List<Object> sdeList = sde.stream().map(sdeItem -> context.resolveExpressionRef(sdeItem.getCriteria().getExpression()).evaluate(context)).collect(Collectors.toList());
-        if(!sdeList.isEmpty()) {
-            for (int i = 0; i < sdeList.size(); i++) {
-                Object sdeListItem = sdeList.get(i);
-                if(null != sdeListItem) {
-                    String sdeAccumulatorKey = sde.get(i).getCode().getText();
-                    if(null == sdeAccumulatorKey || sdeAccumulatorKey.length() < 1){
-                        sdeAccumulatorKey = sde.get(i).getCriteria().getExpression();
+    private Iterable<Patient> readPatients(Set<String> patientIds) {
+        IFhirResourceDao<Patient> patientDao = this.registry.getResourceDao(Patient.class);
+        return Iterables.filter(Iterables.transform(patientIds, patientId -> {
+            try {
+                return patientDao.read(new IdType("Patient", patientId));
+            } catch (ResourceNotFoundException | ResourceGoneException e) {
+                return null;
+            }
+        }), Objects::nonNull);
+    }
+
+    /**
+     * Evaluates each patient on its own so that its result can be stored, hands
+     * the result to {@code results} and adds it to the report being built.
+     * Returns the number of patients evaluated.
+     */
+    private int evaluateAndKeepResults(Context context, Iterable<Patient> patients, MeasureDefinition definition,
+            List<MeasureGroupState> states, EvaluatedResourceTracker evaluatedResources,
+            SupplementalDataAccumulator sdeAccumulators, MeasureReport report,
+            BiConsumer<String, MeasureResultStore.PatientResult> results) {
+        AtomicInteger evaluated = new AtomicInteger();
+        new PatientDataPipeline<Patient>(context, patient -> patient.getIdElement().getIdPart()).run(patients,
+                chunk -> {
+                    for (Patient patient : chunk) {
+                        // The stored results keep the evaluated resources whatever this
+                        // run reports, so that later runs can reuse them
+                        PartialResult partial = new PartialResult(states,
+                                new EvaluatedResourceTracker(EvaluatedResourcesMode.FULL, Integer.MAX_VALUE));
+                        for (MeasureGroupState state : partial.states) {
+                            evaluatePatientGroup(context, definition, patient, state, partial.evaluatedResources,
+                                    report);
+                        }
+                        partial.sdeAccumulators.accumulate(context, patient, definition);
+
+                        MeasureResultStore.PatientResult result = new MeasureResultStore.PatientResult(
+                                partial.states, partial.evaluatedResources, partial.sdeAccumulators);
+                        result.applyTo(states, evaluatedResources, sdeAccumulators);
+                        results.accept(patient.getIdElement().getIdPart(), result);
+                        evaluated.incrementAndGet();
+                        if (this.progress != null) {
+                            this.progress.patientProcessed();
+                        }
                     }
-                    HashMap<String, Integer> sdeItemMap = sdeAccumulators.get(sdeAccumulatorKey);
-                    String code = "";
-
-                    switch (sdeListItem.getClass().getSimpleName()) {
-                        case "Code":
-                            code = ((Code) sdeListItem).getCode();
-                            break;
-                        case "ArrayList":
-                            if (((ArrayList<?>) sdeListItem).size() > 0) {
-                                if (((ArrayList<?>) sdeListItem).get(0).getClass().getSimpleName().equals("Coding")) {
-                                    code  = ((Coding) ((ArrayList<?>) sdeListItem).get(0)).getCode();
-                                } else {
-                                    continue;
-                                }
-                            }else{
-                                continue;
-                            }
-                            break;
+                });
+        return evaluated.get();
+    }
+
+    private void evaluatePatientsInParallel(PagedResourceIterable<Patient> patients, MeasureDefinition definition,
+            List<MeasureGroupState> states, EvaluatedResourceTracker evaluatedResources,
+            SupplementalDataAccumulator sdeAccumulators, MeasureReport report) {
+        logger.info("Evaluating patients in pages of {} with parallelism {}", patients.getPageSize(),
+                this.parallelism);
+
+        new PatientPartitionExecutor(this.parallelism).execute(patients.pages(), this.contextFactory,
+                (workerContext, page) -> {
+                    PartialResult partial = new PartialResult(states, evaluatedResources.copyEmpty());
+                    evaluatePatients(workerContext, page, definition, partial.states, partial.evaluatedResources,
+                            partial.sdeAccumulators, report);
+                    return partial;
+                }, partial -> {
+                    for (int i = 0; i < states.size(); i++) {
+                        states.get(i).merge(partial.states.get(i));
+                    }
+                    evaluatedResources.merge(partial.evaluatedResources);
+                    partial.evaluatedResources.close();
+                    sdeAccumulators.merge(partial.sdeAccumulators);
+                });
+    }
+
+    private void evaluatePatients(Context context, Iterable<Patient> patients, MeasureDefinition definition,
+            List<MeasureGroupState> states, EvaluatedResourceTracker evaluatedResources,
+            SupplementalDataAccumulator sdeAccumulators, MeasureReport report) {
+        new PatientDataPipeline<Patient>(context, patient -> patient.getIdElement().getIdPart()).run(patients,
+                chunk -> {
+                    for (Patient patient : chunk) {
+                        for (MeasureGroupState state : states) {
+                            evaluatePatientGroup(context, definition, patient, state, evaluatedResources, report);
+                        }
+                        sdeAccumulators.accumulate(context, patient, definition);
+                        if (this.progress != null) {
+                            this.progress.patientProcessed();
+                        }
                     }
-                    if(null == code){
-                        continue;
+                });
+    }
+
+    private void evaluatePatientGroup(Context context, MeasureDefinition definition, Patient patient,
+            MeasureGroupState state, EvaluatedResourceTracker evaluatedResources, MeasureReport report) {
+        if (!state.getStratifiers().isEmpty()) {
+            state.setCurrentStrata(evaluateStrata(context, definition, patient, state));
+        }
+
+        switch (definition.getScoring()) {
+            case PROPORTION:
+            case RATIO: {
+
+                // Are they in the initial population?
+                boolean inInitialPopulation = evaluatePopulationCriteria(context, definition, patient, state,
+                        MeasurePopulationType.INITIALPOPULATION, null);
+                evaluatedResources.record(context);
+
+                if (inInitialPopulation) {
+                    // Are they in the denominator?
+                    boolean inDenominator = evaluatePopulationCriteria(context, definition, patient, state,
+                            MeasurePopulationType.DENOMINATOR, MeasurePopulationType.DENOMINATOREXCLUSION);
+                    evaluatedResources.record(context);
+
+                    if (inDenominator) {
+                        // Are they in the numerator?
+                        boolean inNumerator = evaluatePopulationCriteria(context, definition, patient, state,
+                                MeasurePopulationType.NUMERATOR, MeasurePopulationType.NUMERATOREXCLUSION);
+                        evaluatedResources.record(context);
+
+                        Measure.MeasureGroupPopulationComponent denominatorExceptionCriteria = state
+                                .getCriteria(MeasurePopulationType.DENOMINATOREXCEPTION);
+                        if (!inNumerator && inDenominator && (denominatorExceptionCriteria != null)) {
+                            // Are they in the denominator exception?
+                            boolean inException = false;
+                            for (Resource resource : evaluateCriteria(context, definition, patient,
+                                    denominatorExceptionCriteria)) {
+                                inException = true;
+                                state.addResource(MeasurePopulationType.DENOMINATOREXCEPTION, resource);
+                                state.removeResource(MeasurePopulationType.DENOMINATOR,
+                                        resource.getIdElement().getIdPart());
+                                evaluatedResources.record(context);
+                            }
+                            if (inException) {
+                                state.addPatient(MeasurePopulationType.DENOMINATOREXCEPTION, patient);
+                                state.removePatient(MeasurePopulationType.DENOMINATOR,
+                                        patient.getIdElement().getIdPart());
+                            }
+                        }
                     }
-                    if (null != sdeItemMap && null != sdeItemMap.get(code)) {
-                        Integer sdeItemValue = sdeItemMap.get(code);
-                        sdeItemValue++;
-                        sdeItemMap.put(code, sdeItemValue);
-                        sdeAccumulators.get(sdeAccumulatorKey).put(code, sdeItemValue);
-                    } else {
-                        if (null == sdeAccumulators.get(sdeAccumulatorKey)) {
-                            HashMap<String, Integer> newSDEItem = new HashMap<>();
-                            newSDEItem.put(code, 1);
-                            sdeAccumulators.put(sdeAccumulatorKey, newSDEItem);
-                        } else {
-                            sdeAccumulators.get(sdeAccumulatorKey).put(code, 1);
+                }
+
+                break;
+            }
+            case CONTINUOUSVARIABLE: {
+
+                // Are they in the initial population?
+                boolean inInitialPopulation = evaluatePopulationCriteria(context, definition, patient, state,
+                        MeasurePopulationType.INITIALPOPULATION, null);
+                evaluatedResources.record(context);
+
+                if (inInitialPopulation) {
+                    // Are they in the measure population?
+                    Map<String, Resource> measurePopulation = new LinkedHashMap<>();
+                    boolean inMeasurePopulation = evaluatePopulationCriteria(context, definition, patient, state,
+                            MeasurePopulationType.MEASUREPOPULATION,
+                            MeasurePopulationType.MEASUREPOPULATIONEXCLUSION, measurePopulation);
+                    evaluatedResources.record(context);
+
+                    // Only this patient's members are observed, the aggregate holds the others'
+                    if (inMeasurePopulation) {
+                        for (Map.Entry<String, Resource> member : measurePopulation.entrySet()) {
+                            evaluateObservation(context, definition, patient, member.getKey(), member.getValue(),
+                                    state, report);
                         }
+                        evaluatedResources.record(context);
                     }
                 }
+
+                break;
+            }
+            case COHORT: {
+
+                evaluatePopulationCriteria(context, definition, patient, state, MeasurePopulationType.INITIALPOPULATION,
+                        null);
+                evaluatedResources.record(context);
+
+                break;
             }
         }
     }
 
-    private MeasureReport processAccumulators(MeasureReport report, HashMap<String, HashMap<String, Integer>> sdeAccumulators,
-                                              List<Measure.MeasureSupplementalDataComponent> sde, boolean isSingle, List<Patient> patients){
-        List<Reference> newRefList = new ArrayList<>();
-        sdeAccumulators.forEach((sdeKey, sdeAccumulator) -> {
-            sdeAccumulator.forEach((sdeAccumulatorKey, sdeAccumulatorValue)->{
-                Observation obs = new Observation();
-                obs.setStatus(Observation.ObservationStatus.FINAL);
-                obs.setId(UUID.randomUUID().toString());
-                Coding valueCoding = new Coding();
-                if(sdeKey.equalsIgnoreCase("sde-sex")){
-                    valueCoding.setCode(sdeAccumulatorKey);
-                }else {
-                    String coreCategory = sdeKey.substring(sdeKey.lastIndexOf('-') >= 0 ? sdeKey.lastIndexOf('-') : 0);
-                    patients.forEach((pt)-> {
-                        pt.getExtension().forEach((ptExt) -> {
-                            if (ptExt.getUrl().contains(coreCategory)) {
-                                String code = ((Coding) ptExt.getExtension().get(0).getValue()).getCode();
-                                if(code.equalsIgnoreCase(sdeAccumulatorKey)) {
-                                    valueCoding.setSystem(((Coding) ptExt.getExtension().get(0).getValue()).getSystem());
-                                    valueCoding.setCode(code);
-                                    valueCoding.setDisplay(((Coding) ptExt.getExtension().get(0).getValue()).getDisplay());
-                                }
-                            }
-                        });
-                    });
-                }
-                CodeableConcept obsCodeableConcept = new CodeableConcept();
-                Extension obsExtension = new Extension().setUrl("http://hl7.org/fhir/StructureDefinition/cqf-measureInfo");
-                Extension extExtMeasure = new Extension()
-                        .setUrl("measure")
-                        .setValue(new CanonicalType("http://hl7.org/fhir/us/cqfmeasures/" + report.getMeasure()));
-                obsExtension.addExtension(extExtMeasure);
-                Extension extExtPop = new Extension()
-                        .setUrl("populationId")
-                        .setValue(new StringType(sdeKey));
-                obsExtension.addExtension(extExtPop);
-                obs.addExtension(obsExtension);
-                obs.setValue(new IntegerType(sdeAccumulatorValue));
-                if(!isSingle) {
-                    valueCoding.setCode(sdeAccumulatorKey);
-                    obsCodeableConcept.setCoding(Collections.singletonList(valueCoding));
-                    obs.setCode(obsCodeableConcept);
-                }else{
-                    obs.setCode(new CodeableConcept().setText(sdeKey));
-                    obsCodeableConcept.setCoding(Collections.singletonList(valueCoding));
-                    obs.setValue(obsCodeableConcept);
+    /**
+     * The strata the patient is in, one per stratifier of the group whose
+     * expressions have a value for the patient.
+     */
+    private List<StratifierState.Stratum> evaluateStrata(Context context, MeasureDefinition definition,
+            Patient patient, MeasureGroupState state) {
+        context.setContextValue("Patient", patient.getIdElement().getIdPart());
+
+        List<StratifierState.Stratum> strata = new ArrayList<>();
+        for (StratifierState stratifier : state.getStratifiers()) {
+            Measure.MeasureGroupStratifierComponent stratifierDefinition = stratifier.getStratifier();
+            List<CodeableConcept> values = new ArrayList<>();
+            if (stratifierDefinition.hasComponent()) {
+                for (Measure.MeasureGroupStratifierComponentComponent component : stratifierDefinition
+                        .getComponent()) {
+                    values.add(evaluateStratifierValue(context, definition, component.getCriteria()));
                 }
-                newRefList.add(new Reference("#" + obs.getId()));
-                report.addContained(obs);
-            });
-        });
-        newRefList.addAll(report.getEvaluatedResource());
-        report.setEvaluatedResource(newRefList);
-        return report;
+            } else {
+                values.add(evaluateStratifierValue(context, definition, stratifierDefinition.getCriteria()));
+            }
+            if (values.contains(null)) {
+                continue;
+            }
+
+            String key = values.stream().map(this::getStratumKey).collect(Collectors.joining("|"));
+            strata.add(stratifier.getStratum(key, values));
+        }
+        return strata;
     }
 
-    private void populateResourceMap(Context context, MeasurePopulationType type, HashMap<String, Resource> resources,
-            HashMap<String, HashSet<String>> codeToResourceMap) {
-        if (context.getEvaluatedResources().isEmpty()) {
-            return;
+    private CodeableConcept evaluateStratifierValue(Context context, MeasureDefinition definition,
+            Expression criteria) {
+        if (criteria == null || !criteria.hasExpression()) {
+            return null;
         }
 
-        if (!codeToResourceMap.containsKey(type.toCode())) {
-            codeToResourceMap.put(type.toCode(), new HashSet<>());
+        Object result = definition.resolveExpression(context, criteria.getExpression()).evaluate(context);
+        if (result instanceof Iterable) {
+            Iterator<?> values = ((Iterable<?>) result).iterator();
+            result = values.hasNext() ? values.next() : null;
+        }
+
+        if (result == null) {
+            return null;
+        } else if (result instanceof Code) {
+            Code code = (Code) result;
+            return new CodeableConcept().addCoding(new Coding(code.getSystem(), code.getCode(), code.getDisplay()));
+        } else if (result instanceof Concept) {
+            CodeableConcept concept = new CodeableConcept().setText(((Concept) result).getDisplay());
+            for (Code code : ((Concept) result).getCodes()) {
+                concept.addCoding(new Coding(code.getSystem(), code.getCode(), code.getDisplay()));
+            }
+            return concept;
+        } else if (result instanceof Coding) {
+            return new CodeableConcept().addCoding(((Coding) result).copy());
+        } else if (result instanceof CodeableConcept) {
+            return ((CodeableConcept) result).copy();
+        } else if (result instanceof PrimitiveType) {
+            return new CodeableConcept().setText(((PrimitiveType<?>) result).getValueAsString());
         }
+        return new CodeableConcept().setText(result.toString());
+    }
 
-        HashSet<String> codeHashSet = codeToResourceMap.get((type.toCode()));
+    private String getStratumKey(CodeableConcept value) {
+        if (value.hasCoding()) {
+            Coding coding = value.getCodingFirstRep();
+            return (coding.hasSystem() ? coding.getSystem() : "") + "#" + coding.getCode();
+        }
+        return value.getText();
+    }
 
-        for (Object o : context.getEvaluatedResources()) {
-            if (o instanceof Resource) {
-                Resource r = (Resource) o;
-                String id = (r.getIdElement().getResourceType() != null ? (r.getIdElement().getResourceType() + "/")
-                        : "") + r.getIdElement().getIdPart();
-                if (!codeHashSet.contains(id)) {
-                    codeHashSet.add(id);
-                }
+    private static class PartialResult {
+        private final List<MeasureGroupState> states = new ArrayList<>();
+        private final EvaluatedResourceTracker evaluatedResources;
+        private final SupplementalDataAccumulator sdeAccumulators = new SupplementalDataAccumulator();
 
-                if (!resources.containsKey(id)) {
-                    resources.put(id, r);
-                }
-            }
+        private PartialResult(List<MeasureGroupState> states, EvaluatedResourceTracker evaluatedResources) {
+            PopulationIndex resourceIndex = new PopulationIndex();
+            PopulationIndex patientIndex = new PopulationIndex();
+            states.forEach(state -> this.states.add(state.copyEmpty(resourceIndex, patientIndex)));
+            this.evaluatedResources = evaluatedResources;
         }
+    }
 
-        context.clearEvaluatedResources();
+    private MeasureReport processAccumulators(MeasureReport report, SupplementalDataAccumulator sdeAccumulators,
+                                              boolean isSingle){
+        List<Reference> newRefList = new ArrayList<>();
+        sdeAccumulators.forEach((sdeKey, sdeCount) -> {
+            Observation obs = new Observation();
+            obs.setStatus(Observation.ObservationStatus.FINAL);
+            obs.setId(UUID.randomUUID().toString());
+            Coding valueCoding = sdeCount.getCoding().copy();
+            CodeableConcept obsCodeableConcept = new CodeableConcept();
+            Extension obsExtension = new Extension().setUrl("http://hl7.org/fhir/StructureDefinition/cqf-measureInfo");
+            Extension extExtMeasure = new Extension()
+                    .setUrl("measure")
+                    .setValue(new CanonicalType("http://hl7.org/fhir/us/cqfmeasures/" + report.getMeasure()));
+            obsExtension.addExtension(extExtMeasure);
+            Extension extExtPop = new Extension()
+                    .setUrl("populationId")
+                    .setValue(new StringType(sdeKey));
+            obsExtension.addExtension(extExtPop);
+            obs.addExtension(obsExtension);
+            obs.setValue(new IntegerType(sdeCount.getCount()));
+            if(!isSingle) {
+                obsCodeableConcept.setCoding(Collections.singletonList(valueCoding));
+                obs.setCode(obsCodeableConcept);
+            }else{
+                obs.setCode(new CodeableConcept().setText(sdeKey));
+                obsCodeableConcept.setCoding(Collections.singletonList(valueCoding));
+                obs.setValue(obsCodeableConcept);
+            }
+            newRefList.add(new Reference("#" + obs.getId()));
+            report.addContained(obs);
+        });
+        newRefList.addAll(report.getEvaluatedResource());
+        report.setEvaluatedResource(newRefList);
+        return report;
     }
 }
\ No newline at end of file
@@ -1,14 +1,16 @@
 package org.opencds.cqf.r4.evaluation;
 
 import java.util.Date;
-import java.util.List;
 
-import org.apache.commons.lang3.tuple.Triple;
 import org.cqframework.cql.elm.execution.Library;
 import org.hl7.fhir.r4.model.Measure;
 import org.opencds.cqf.common.evaluation.EvaluationProviderFactory;
+import org.opencds.cqf.common.evaluation.ExpressionCacheStatistics;
+import org.opencds.cqf.common.evaluation.MeasureEvaluationContext;
+import org.opencds.cqf.common.evaluation.MeasurePlan;
+import org.opencds.cqf.common.evaluation.MeasurePlanCache;
+import org.opencds.cqf.common.evaluation.PatientIndependentExpressionCache;
 import org.opencds.cqf.common.helpers.DateHelper;
-import org.opencds.cqf.common.helpers.UsingHelper;
 import org.opencds.cqf.common.providers.LibraryResolutionProvider;
 import org.opencds.cqf.cql.engine.data.DataProvider;
 import org.opencds.cqf.cql.engine.debug.DebugMap;
@@ -23,15 +25,23 @@ public class MeasureEvaluationSeed {
     private Measure measure;
     private Context context;
     private Interval measurementPeriod;
+    // Loads the libraries the plan doesn't hold
+    private LibraryLoader requestLibraryLoader;
     private LibraryLoader libraryLoader;
     private LibraryResolutionProvider<org.hl7.fhir.r4.model.Library> libraryResourceProvider;
     private EvaluationProviderFactory providerFactory;
     private DataProvider dataProvider;
+    private Library library;
+    private MeasurePlan<MeasureDefinition> plan;
+    private TerminologyProvider terminologyProvider;
+    private String productLine;
+    private ExpressionCacheStatistics cacheStatistics;
+    private PatientIndependentExpressionCache sharedExpressionCache;
 
     public MeasureEvaluationSeed(EvaluationProviderFactory providerFactory, LibraryLoader libraryLoader,
             LibraryResolutionProvider<org.hl7.fhir.r4.model.Library> libraryResourceProvider) {
         this.providerFactory = providerFactory;
-        this.libraryLoader = libraryLoader;
+        this.requestLibraryLoader = libraryLoader;
         this.libraryResourceProvider = libraryResourceProvider;
     }
 
@@ -51,49 +61,106 @@ public class MeasureEvaluationSeed {
         return this.dataProvider;
     }
 
+    /**
+     * The definition of the Measure that was set up, resolved once per version
+     * of it, see {@link MeasureEvaluation#setDefinition(MeasureDefinition)}.
+     */
+    public MeasureDefinition getDefinition() {
+        return this.plan.getDefinition();
+    }
+
     public void setup(Measure measure, String periodStart, String periodEnd, String productLine, String source,
             String user, String pass) {
         this.measure = measure;
 
-        LibraryHelper.loadLibraries(measure, this.libraryLoader, this.libraryResourceProvider);
-
-        // resolve primary library
-        Library library = LibraryHelper.resolvePrimaryLibrary(measure, libraryLoader, this.libraryResourceProvider);
+        // The libraries and what is derived from them are prepared once per
+        // version of the Measure, each request only gets a loader of its own
+        plan = MeasurePlanCache.getInstance().get(measure.getIdElement().getIdPart(),
+                measure.getIdElement().getVersionIdPart(), () -> compilePlan(measure));
+        libraryLoader = plan.createLibraryLoader(this.requestLibraryLoader);
+        library = plan.getLibrary();
 
         // resolve execution context
-        context = new Context(library);
+        cacheStatistics = new ExpressionCacheStatistics();
+        sharedExpressionCache = plan.createSharedExpressionCache();
+        context = new MeasureEvaluationContext(library, cacheStatistics, sharedExpressionCache);
         context.registerLibraryLoader(libraryLoader);
 
-        List<Triple<String, String, String>> usingDefs = UsingHelper.getUsingUrlAndVersion(library.getUsings());
+        // The plan holds the default terminology provider and the model resolvers
+        terminologyProvider = plan.getTerminologyProvider(source, user, pass);
+        if (terminologyProvider != null) {
+            context.registerTerminologyProvider(terminologyProvider);
+        }
+        this.dataProvider = plan.registerDataProviders(context, terminologyProvider);
+
+        // resolve the measurement period
+        measurementPeriod = new Interval(DateHelper.resolveRequestDate(periodStart, true), true,
+                DateHelper.resolveRequestDate(periodEnd, false), true);
+        this.productLine = productLine;
+
+        bindParameters(context);
 
-        if (usingDefs.size() > 1) {
-            throw new IllegalArgumentException(
-                    "Evaluation of Measure using multiple Models is not supported at this time.");
+        context.setExpressionCaching(true);
+
+        DebugMap debugMap = new DebugMap();
+        debugMap.setIsLoggingEnabled(true);
+        context.setDebugMap(debugMap);
+    }
+
+    private MeasurePlan<MeasureDefinition> compilePlan(Measure measure) {
+        LibraryHelper.loadLibraries(measure, this.requestLibraryLoader, this.libraryResourceProvider);
+
+        // resolve primary library
+        Library primaryLibrary = LibraryHelper.resolvePrimaryLibrary(measure, this.requestLibraryLoader,
+                this.libraryResourceProvider);
+        return new MeasurePlan<>(this.requestLibraryLoader, primaryLibrary, this.providerFactory,
+                new MeasureDefinition(measure, primaryLibrary));
+    }
+
+    /**
+     * Creates a new execution Context for the Measure that was set up, with the same
+     * library, parameters and terminology provider. Each Context gets its own data
+     * provider so that it can be used on a separate thread.
+     */
+    public Context createContext() {
+        if (this.library == null) {
+            throw new IllegalStateException("MeasureEvaluationSeed.setup must be called before creating a Context");
         }
 
-        // If there are no Usings, there is probably not any place the Terminology
-        // actually used so I think the assumption that at least one provider exists is
-        // ok.
-        TerminologyProvider terminologyProvider = null;
-        if (usingDefs.size() > 0) {
-            // Creates a terminology provider based on the first using statement. This
-            // assumes the terminology
-            // server matches the FHIR version of the CQL.
-            terminologyProvider = this.providerFactory.createTerminologyProvider(usingDefs.get(0).getLeft(),
-                    usingDefs.get(0).getMiddle(), source, user, pass);
-            context.registerTerminologyProvider(terminologyProvider);
+        Context workerContext = new MeasureEvaluationContext(this.library, this.cacheStatistics,
+                this.sharedExpressionCache);
+        workerContext.registerLibraryLoader(this.libraryLoader);
+
+        if (this.terminologyProvider != null) {
+            workerContext.registerTerminologyProvider(this.terminologyProvider);
         }
 
-        for (Triple<String, String, String> def : usingDefs) {
-            this.dataProvider = this.providerFactory.createDataProvider(def.getLeft(), def.getMiddle(),
-                    terminologyProvider);
-            context.registerDataProvider(def.getRight(), dataProvider);
+        this.plan.registerDataProviders(workerContext, this.terminologyProvider);
+
+        bindParameters(workerContext);
+        workerContext.setExpressionCaching(true);
+
+        DebugMap debugMap = new DebugMap();
+        debugMap.setIsLoggingEnabled(true);
+        workerContext.setDebugMap(debugMap);
+
+        return workerContext;
+    }
+
+    /**
+     * Creates a new data provider for the Measure that was set up, to be used on
+     * the same thread as a Context from {@link #createContext()}.
+     */
+    public DataProvider createDataProvider() {
+        if (this.library == null) {
+            throw new IllegalStateException(
+                    "MeasureEvaluationSeed.setup must be called before creating a data provider");
         }
 
-        // resolve the measurement period
-        measurementPeriod = new Interval(DateHelper.resolveRequestDate(periodStart, true), true,
-                DateHelper.resolveRequestDate(periodEnd, false), true);
+        return this.plan.createDataProvider(this.terminologyProvider);
+    }
 
+    private void bindParameters(Context context) {
         context.setParameter(null, "Measurement Period",
                 new Interval(DateTime.fromJavaDate((Date) measurementPeriod.getStart()), true,
                         DateTime.fromJavaDate((Date) measurementPeriod.getEnd()), true));
@@ -101,11 +168,5 @@ public class MeasureEvaluationSeed {
         if (productLine != null) {
             context.setParameter(null, "Product Line", productLine);
         }
-
-        context.setExpressionCaching(true);
-
-        DebugMap debugMap = new DebugMap();
-        debugMap.setIsLoggingEnabled(true);
-        context.setDebugMap(debugMap);
     }
 }
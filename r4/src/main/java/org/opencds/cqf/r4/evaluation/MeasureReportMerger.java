@@ -0,0 +1,359 @@
+package org.opencds.cqf.r4.evaluation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.hl7.fhir.r4.model.Base64BinaryType;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Element;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.ListResource;
+import org.hl7.fhir.r4.model.Measure;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.StringType;
+import org.opencds.cqf.common.evaluation.MeasurePopulationType;
+import org.opencds.cqf.common.evaluation.MeasureScoring;
+import org.opencds.cqf.common.evaluation.ObservationAggregate;
+
+/**
+ * Combines the population and subject-list reports of disjoint sets of
+ * patients (e.g. the shards of a sharded evaluation) into the report of all of
+ * them: population counts are added up (in the groups and in their strata, by
+ * stratum value), subject lists concatenated, the supplemental data counts
+ * added up by code and measure observations kept. Proportion and ratio scores
+ * are computed again from the counts, continuous variable scores from the
+ * observation aggregates the shard reports carry (see
+ * {@link MeasureEvaluation#OBSERVATION_AGGREGATE_URL}).
+ */
+public class MeasureReportMerger {
+
+    private static final String MEASURE_INFO_URL = "http://hl7.org/fhir/StructureDefinition/cqf-measureInfo";
+
+    private final Measure measure;
+
+    public MeasureReportMerger(Measure measure) {
+        this.measure = measure;
+    }
+
+    public MeasureReport merge(List<MeasureReport> reports) {
+        if (reports.isEmpty()) {
+            throw new IllegalArgumentException("There are no reports to merge");
+        }
+
+        MeasureReport merged = reports.get(0).copy();
+        Map<String, Observation> supplementalData = new HashMap<>();
+        for (Resource contained : merged.getContained()) {
+            String key = getSupplementalDataKey(contained);
+            if (key != null) {
+                supplementalData.put(key, (Observation) contained);
+            }
+        }
+
+        for (MeasureReport report : reports.subList(1, reports.size())) {
+            // Contained resources whose content went into one the merged report already has
+            Set<String> folded = new HashSet<>();
+            for (int i = 0; i < report.getGroup().size() && i < merged.getGroup().size(); i++) {
+                mergeGroup(merged, merged.getGroup().get(i), report, report.getGroup().get(i),
+                        folded);
+            }
+            mergeEvaluatedResourceLists(merged, report, folded);
+
+            for (Resource contained : report.getContained()) {
+                String id = getLocalId(contained);
+                if (folded.contains(id)) {
+                    continue;
+                }
+
+                String key = getSupplementalDataKey(contained);
+                Observation existing = key == null ? null : supplementalData.get(key);
+                if (existing != null) {
+                    existing.setValue(new IntegerType(((IntegerType) existing.getValue()).getValue()
+                            + ((IntegerType) ((Observation) contained).getValue()).getValue()));
+                    folded.add(id);
+                    continue;
+                }
+                Resource copy = contained.copy();
+                if (key != null) {
+                    supplementalData.put(key, (Observation) copy);
+                }
+                merged.addContained(copy);
+            }
+
+            Set<String> references = new HashSet<>();
+            merged.getEvaluatedResource().forEach(reference -> references.add(reference.getReference()));
+            for (Reference reference : report.getEvaluatedResource()) {
+                String value = reference.getReference();
+                if (value != null && !folded.contains(value.replaceFirst("^#", ""))
+                        && references.add(value)) {
+                    merged.addEvaluatedResource(reference.copy());
+                }
+            }
+        }
+
+        MeasureScoring scoring = MeasureScoring.fromCode(this.measure.getScoring().getCodingFirstRep().getCode());
+        if (scoring == MeasureScoring.CONTINUOUSVARIABLE) {
+            for (int i = 0; i < merged.getGroup().size(); i++) {
+                MeasureReport.MeasureReportGroupComponent group = merged.getGroup().get(i);
+                String aggregateMethod = i < this.measure.getGroup().size()
+                        ? MeasureEvaluation.getAggregateMethod(getObservationCriteria(this.measure.getGroup().get(i)))
+                        : null;
+                group.setMeasureScore(getObservationScore(group, aggregateMethod));
+                for (MeasureReport.MeasureReportGroupStratifierComponent stratifier : group.getStratifier()) {
+                    for (MeasureReport.StratifierGroupComponent stratum : stratifier.getStratum()) {
+                        stratum.setMeasureScore(getObservationScore(stratum, aggregateMethod));
+                    }
+                }
+            }
+        } else if (scoring == MeasureScoring.PROPORTION || scoring == MeasureScoring.RATIO) {
+            for (MeasureReport.MeasureReportGroupComponent group : merged.getGroup()) {
+                MeasureReport.MeasureReportGroupPopulationComponent numerator = getPopulation(group,
+                        MeasurePopulationType.NUMERATOR);
+                MeasureReport.MeasureReportGroupPopulationComponent denominator = getPopulation(group,
+                        MeasurePopulationType.DENOMINATOR);
+                group.setMeasureScore(null);
+                if (numerator != null && denominator != null && denominator.getCount() > 0) {
+                    group.setMeasureScore(new Quantity(numerator.getCount() / (double) denominator.getCount()));
+                }
+
+                for (MeasureReport.MeasureReportGroupStratifierComponent stratifier : group.getStratifier()) {
+                    for (MeasureReport.StratifierGroupComponent stratum : stratifier.getStratum()) {
+                        MeasureReport.StratifierGroupPopulationComponent stratumNumerator = getStratumPopulation(
+                                stratum, MeasurePopulationType.NUMERATOR.toCode());
+                        MeasureReport.StratifierGroupPopulationComponent stratumDenominator = getStratumPopulation(
+                                stratum, MeasurePopulationType.DENOMINATOR.toCode());
+                        stratum.setMeasureScore(null);
+                        if (stratumNumerator != null && stratumDenominator != null
+                                && stratumDenominator.getCount() > 0) {
+                            stratum.setMeasureScore(new Quantity(
+                                    stratumNumerator.getCount() / (double) stratumDenominator.getCount()));
+                        }
+                    }
+                }
+            }
+        }
+
+        return merged;
+    }
+
+    private void mergeGroup(MeasureReport merged, MeasureReport.MeasureReportGroupComponent mergedGroup,
+            MeasureReport report, MeasureReport.MeasureReportGroupComponent group, Set<String> folded) {
+        for (MeasureReport.MeasureReportGroupPopulationComponent population : group.getPopulation()) {
+            MeasurePopulationType populationType = MeasurePopulationType
+                    .fromCode(population.getCode().getCodingFirstRep().getCode());
+            MeasureReport.MeasureReportGroupPopulationComponent mergedPopulation = getPopulation(mergedGroup,
+                    populationType);
+            if (mergedPopulation == null) {
+                mergedGroup.addPopulation(population.copy());
+                continue;
+            }
+
+            mergedPopulation.setCount(mergedPopulation.getCount() + population.getCount());
+            if (population.hasSubjectResults() && mergedPopulation.hasSubjectResults()) {
+                ListResource list = (ListResource) getContained(report, population.getSubjectResults());
+                ListResource mergedList = (ListResource) getContained(merged, mergedPopulation.getSubjectResults());
+                if (list != null && mergedList != null) {
+                    list.getEntry().forEach(entry -> mergedList.addEntry(entry.copy()));
+                    folded.add(getLocalId(list));
+                }
+            }
+        }
+
+        mergeObservationAggregates(mergedGroup, group);
+
+        for (int i = 0; i < group.getStratifier().size() && i < mergedGroup.getStratifier().size(); i++) {
+            mergeStratifier(mergedGroup.getStratifier().get(i), group.getStratifier().get(i));
+        }
+    }
+
+    private void mergeObservationAggregates(Element merged, Element element) {
+        Extension extension = element.getExtensionByUrl(MeasureEvaluation.OBSERVATION_AGGREGATE_URL);
+        if (extension == null) {
+            return;
+        }
+
+        Extension mergedExtension = merged.getExtensionByUrl(MeasureEvaluation.OBSERVATION_AGGREGATE_URL);
+        if (mergedExtension == null) {
+            merged.addExtension(extension.copy());
+            return;
+        }
+
+        ObservationAggregate observations = readObservationAggregate(mergedExtension);
+        observations.merge(readObservationAggregate(extension));
+        mergedExtension.setValue(new Base64BinaryType(observations.toBytes()));
+    }
+
+    /*
+     * The score of the observations merged into the group or stratum. The
+     * aggregate is only exchanged between shards and coordinator, so it is
+     * removed from the merged report.
+     */
+    private Quantity getObservationScore(Element element, String aggregateMethod) {
+        Extension extension = element.getExtensionByUrl(MeasureEvaluation.OBSERVATION_AGGREGATE_URL);
+        if (extension == null) {
+            return null;
+        }
+
+        element.getExtension().remove(extension);
+        Double score = readObservationAggregate(extension).get(aggregateMethod);
+        return score != null ? new Quantity().setValue(score) : null;
+    }
+
+    private ObservationAggregate readObservationAggregate(Extension extension) {
+        return ObservationAggregate.fromBytes(((Base64BinaryType) extension.getValue()).getValue());
+    }
+
+    private Measure.MeasureGroupPopulationComponent getObservationCriteria(Measure.MeasureGroupComponent group) {
+        for (Measure.MeasureGroupPopulationComponent population : group.getPopulation()) {
+            if (MeasurePopulationType.MEASUREOBSERVATION.toCode()
+                    .equals(population.getCode().getCodingFirstRep().getCode())) {
+                return population;
+            }
+        }
+        return null;
+    }
+
+    // In ids mode each report lists the ids of its evaluated resources in a
+    // contained List, the merged report lists them all in the first one
+    private void mergeEvaluatedResourceLists(MeasureReport merged, MeasureReport report, Set<String> folded) {
+        for (Extension extension : report.getExtensionsByUrl(MeasureEvaluation.EVALUATED_RESOURCES_URL)) {
+            ListResource list = (ListResource) getContained(report, (Reference) extension.getValue());
+            Extension mergedExtension = merged.getExtensionByUrl(MeasureEvaluation.EVALUATED_RESOURCES_URL);
+            ListResource mergedList = mergedExtension == null ? null
+                    : (ListResource) getContained(merged, (Reference) mergedExtension.getValue());
+            if (list == null || mergedList == null) {
+                // Copied along with the other contained resources
+                merged.addExtension(extension.copy());
+                continue;
+            }
+
+            Set<String> ids = new HashSet<>();
+            mergedList.getEntry().forEach(entry -> ids.add(entry.getItem().getReference()));
+            for (ListResource.ListEntryComponent entry : list.getEntry()) {
+                if (ids.add(entry.getItem().getReference())) {
+                    mergedList.addEntry(entry.copy());
+                }
+            }
+            mergedExtension.setValue(new Reference(((Reference) mergedExtension.getValue()).getReference())
+                    .setDisplay(mergedList.getEntry().size() + " evaluated resource ids"));
+            folded.add(getLocalId(list));
+        }
+    }
+
+    private void mergeStratifier(MeasureReport.MeasureReportGroupStratifierComponent mergedStratifier,
+            MeasureReport.MeasureReportGroupStratifierComponent stratifier) {
+        Map<String, MeasureReport.StratifierGroupComponent> strata = new HashMap<>();
+        mergedStratifier.getStratum().forEach(stratum -> strata.put(getStratumKey(stratum), stratum));
+
+        for (MeasureReport.StratifierGroupComponent stratum : stratifier.getStratum()) {
+            MeasureReport.StratifierGroupComponent mergedStratum = strata.get(getStratumKey(stratum));
+            if (mergedStratum == null) {
+                MeasureReport.StratifierGroupComponent copy = stratum.copy();
+                mergedStratifier.addStratum(copy);
+                strata.put(getStratumKey(copy), copy);
+                continue;
+            }
+
+            for (MeasureReport.StratifierGroupPopulationComponent population : stratum.getPopulation()) {
+                MeasureReport.StratifierGroupPopulationComponent mergedPopulation = getStratumPopulation(
+                        mergedStratum, population.getCode().getCodingFirstRep().getCode());
+                if (mergedPopulation == null) {
+                    mergedStratum.addPopulation(population.copy());
+                } else {
+                    mergedPopulation.setCount(mergedPopulation.getCount() + population.getCount());
+                }
+            }
+            mergeObservationAggregates(mergedStratum, stratum);
+        }
+    }
+
+    private MeasureReport.StratifierGroupPopulationComponent getStratumPopulation(
+            MeasureReport.StratifierGroupComponent stratum, String populationCode) {
+        for (MeasureReport.StratifierGroupPopulationComponent population : stratum.getPopulation()) {
+            if (populationCode != null && populationCode.equals(population.getCode().getCodingFirstRep().getCode())) {
+                return population;
+            }
+        }
+        return null;
+    }
+
+    private String getStratumKey(MeasureReport.StratifierGroupComponent stratum) {
+        if (stratum.hasValue()) {
+            return getValueKey(stratum.getValue());
+        }
+
+        List<String> keys = new ArrayList<>();
+        stratum.getComponent().forEach(component -> keys.add(getValueKey(component.getValue())));
+        return String.join("|", keys);
+    }
+
+    private String getValueKey(CodeableConcept value) {
+        if (value.hasCoding()) {
+            Coding coding = value.getCodingFirstRep();
+            return (coding.hasSystem() ? coding.getSystem() : "") + "#" + coding.getCode();
+        }
+        return value.getText();
+    }
+
+    private MeasureReport.MeasureReportGroupPopulationComponent getPopulation(
+            MeasureReport.MeasureReportGroupComponent group, MeasurePopulationType populationType) {
+        if (populationType == null) {
+            return null;
+        }
+
+        for (MeasureReport.MeasureReportGroupPopulationComponent population : group.getPopulation()) {
+            if (populationType.toCode().equals(population.getCode().getCodingFirstRep().getCode())) {
+                return population;
+            }
+        }
+        return null;
+    }
+
+    private Resource getContained(MeasureReport report, Reference reference) {
+        String id = reference.getReference() == null ? null : reference.getReference().replaceFirst("^#", "");
+        for (Resource contained : report.getContained()) {
+            if (getLocalId(contained).equals(id)) {
+                return contained;
+            }
+        }
+        return null;
+    }
+
+    private String getLocalId(Resource contained) {
+        return contained.getIdElement().getIdPart() == null ? ""
+                : contained.getIdElement().getIdPart().replaceFirst("^#", "");
+    }
+
+    // Supplemental data observations hold a count per code, measure observations
+    // are kept as they are
+    private String getSupplementalDataKey(Resource contained) {
+        if (!(contained instanceof Observation)) {
+            return null;
+        }
+
+        Observation observation = (Observation) contained;
+        Extension measureInfo = observation.getExtensionByUrl(MEASURE_INFO_URL);
+        if (measureInfo == null || !(observation.getValue() instanceof IntegerType)
+                || !observation.getCode().hasCoding()) {
+            return null;
+        }
+
+        Extension populationId = measureInfo.getExtensionByUrl("populationId");
+        Coding coding = observation.getCode().getCodingFirstRep();
+        return String.join("|",
+                populationId != null && populationId.getValue() instanceof StringType
+                        ? ((StringType) populationId.getValue()).getValue()
+                        : "",
+                coding.getSystem() == null ? "" : coding.getSystem(),
+                coding.getCode() == null ? "" : coding.getCode());
+    }
+}
@@ -0,0 +1,556 @@
+package org.opencds.cqf.r4.evaluation;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.sql.DataSource;
+
+import org.hl7.fhir.instance.model.api.IAnyResource;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Measure;
+import org.hl7.fhir.r4.model.Reference;
+import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.evaluation.EvaluatedResourceTracker;
+import org.opencds.cqf.common.evaluation.MeasurePopulationType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.hash.Hashing;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.model.api.ResourceMetadataKeyEnum;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.util.FhirTerser;
+
+/**
+ * Keeps the per-patient results of a population report (population
+ * membership, evaluated resources and supplemental data) for one Measure
+ * version, measurement period and product line, so the next run only has to
+ * re-evaluate the patients whose data changed since. The results are stored in
+ * chunks of at most {@link #CHUNK_SIZE} patients, each a gzipped row of the
+ * {@value #TABLE} table of the server's database, and a manifest row recording
+ * which version of each chunk belongs to the run that wrote them, so that a
+ * run only rewrites the chunks holding patients that changed. Every server
+ * sharing the database sees the same last run. The results hold patient data,
+ * so they are kept out of the FHIR API (and of the server's history).
+ * <p>
+ * Changes are found in the server's history, from the newest _lastUpdated it
+ * held when the last run started (its high-water mark) less
+ * measure_evaluation.incremental_transaction_margin. A change committed by a
+ * transaction that started longer than the margin before that run is older
+ * than the mark when it becomes visible, and is missed until something else
+ * makes every patient be evaluated again (e.g. a Library or Measure change).
+ * A changed resource is attributed to the patients it references and to those
+ * its previous version referenced, which it may have been moved away from.
+ */
+public class MeasureResultStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(MeasureResultStore.class);
+
+    public static final int CHUNK_SIZE = 1000;
+    static final String TABLE = "CQF_MEASURE_RESULT";
+    // The chunk index of the manifest row
+    private static final int MANIFEST = -1;
+    private static final int HISTORY_PAGE_SIZE = 1000;
+
+    // Changes to these may change any patient's result
+    private static final Set<String> INVALIDATING_TYPES = new HashSet<>(Arrays.asList("Measure", "Library",
+            "ValueSet", "CodeSystem", "ConceptMap", "SearchParameter"));
+    // Bookkeeping of the server itself, never read by measure logic
+    private static final Set<String> IGNORED_TYPES = new HashSet<>(
+            Arrays.asList("Binary", "Task", "MeasureReport", "AuditEvent", "Subscription"));
+
+    // The data sources whose table is known to exist
+    private static final Set<DataSource> initialized = ConcurrentHashMap.newKeySet();
+
+    private final DaoRegistry registry;
+    private final DataSource dataSource;
+    private final long transactionMargin;
+    private final String key;
+    private final String rowKey;
+    private final Gson gson = new Gson();
+
+    public MeasureResultStore(DaoRegistry registry, DataSource dataSource, Measure measure, String periodStart,
+            String periodEnd, String productLine) {
+        this(registry, dataSource, HapiProperties.getMeasureEvaluationIncrementalTransactionMargin(), measure,
+                periodStart, periodEnd, productLine);
+    }
+
+    /**
+     * @param dataSource        the database the results are stored in
+     * @param transactionMargin how long before the last run started (in
+     *                          milliseconds) the changes looked for start
+     */
+    public MeasureResultStore(DaoRegistry registry, DataSource dataSource, long transactionMargin, Measure measure,
+            String periodStart, String periodEnd, String productLine) {
+        this.registry = registry;
+        this.dataSource = dataSource;
+        this.transactionMargin = transactionMargin;
+        this.key = String.join("|", measure.getIdElement().toUnqualified().getValue(), periodStart, periodEnd,
+                productLine == null ? "" : productLine);
+        this.rowKey = Hashing.sha256().hashString(this.key, StandardCharsets.UTF_8).toString();
+    }
+
+    /**
+     * The manifest of the last run, or null if there is none.
+     */
+    public Manifest load() {
+        Manifest manifest = read(MANIFEST, Manifest.class);
+        return manifest != null && this.key.equals(manifest.key) && manifest.chunks != null ? manifest : null;
+    }
+
+    /**
+     * The chunk {@code index} of the results {@code manifest} lists, or null if
+     * it is missing or was written by another run.
+     */
+    public Chunk loadChunk(Manifest manifest, int index) {
+        Chunk chunk = read(index, Chunk.class);
+        if (chunk == null || chunk.patients == null || chunk.writtenAt != manifest.chunks.get(index)) {
+            logger.warn("Chunk {} of the stored results for {} is missing or stale", index, this.key);
+            return null;
+        }
+
+        return chunk;
+    }
+
+    /**
+     * Writes chunk {@code index} (which may be one past the last) of the results
+     * {@code manifest} lists.
+     */
+    public void saveChunk(Manifest manifest, int index, Chunk chunk) {
+        chunk.writtenAt = manifest.evaluatedAt;
+        write(index, chunk);
+        if (index == manifest.chunks.size()) {
+            manifest.chunks.add(chunk.writtenAt);
+        } else {
+            manifest.chunks.set(index, chunk.writtenAt);
+        }
+    }
+
+    /**
+     * Writes {@code manifest} once all of its chunks are, and deletes the chunks
+     * of {@code previous} that are no longer part of the results.
+     */
+    public void save(Manifest manifest, Manifest previous) {
+        manifest.key = this.key;
+        write(MANIFEST, manifest);
+        if (previous != null && previous.chunks.size() > manifest.chunks.size()) {
+            try (Connection connection = getConnection();
+                    PreparedStatement delete = connection.prepareStatement(
+                            "DELETE FROM " + TABLE + " WHERE RESULT_KEY = ? AND CHUNK_INDEX >= ?")) {
+                delete.setString(1, this.rowKey);
+                delete.setInt(2, manifest.chunks.size());
+                delete.executeUpdate();
+            } catch (SQLException e) {
+                logger.warn("Unable to delete the unused chunks of the stored results for {}", this.key, e);
+            }
+        }
+    }
+
+    /**
+     * A writer adding results to the last chunk of {@code manifest}, and to new
+     * chunks once it is full.
+     */
+    public ChunkWriter appendTo(Manifest manifest) {
+        int last = manifest.chunks.size() - 1;
+        Chunk tail = last < 0 ? null : loadChunk(manifest, last);
+        return tail == null ? new ChunkWriter(manifest, manifest.chunks.size(), new Chunk())
+                : new ChunkWriter(manifest, last, tail);
+    }
+
+    /**
+     * The newest _lastUpdated of the server's history, to record as the
+     * history mark of a run starting now. 0 if the history is empty.
+     */
+    public long findHistoryMark() {
+        // The history is sorted newest first
+        List<IBaseResource> newest = this.registry.getSystemDao().history(null, null, null).getResources(0, 1);
+        if (newest.isEmpty() || newest.get(0).getMeta().getLastUpdated() == null) {
+            return 0;
+        }
+        return newest.get(0).getMeta().getLastUpdated().getTime();
+    }
+
+    /**
+     * The ids of the patients whose data changed since the history mark
+     * {@code since} (less the transaction margin), or null if the changes can't
+     * be attributed to patients and everyone has to be evaluated again.
+     */
+    public Set<String> findChangedPatients(long since) {
+        IBundleProvider history = this.registry.getSystemDao().history(new Date(since - this.transactionMargin),
+                null, null);
+        FhirTerser terser = this.registry.getSystemDao().getContext().newTerser();
+        Set<String> patients = new HashSet<>();
+        for (int from = 0;; from += HISTORY_PAGE_SIZE) {
+            List<IBaseResource> page = history.getResources(from, from + HISTORY_PAGE_SIZE);
+
+            for (IBaseResource resource : page) {
+                String type = resource.getIdElement().getResourceType();
+                if (IGNORED_TYPES.contains(type)) {
+                    continue;
+                }
+                if ("Patient".equals(type)) {
+                    patients.add(resource.getIdElement().getIdPart());
+                    continue;
+                }
+                if (INVALIDATING_TYPES.contains(type)) {
+                    logger.info("{} changed, evaluating every patient", resource.getIdElement().toUnqualified());
+                    return null;
+                }
+
+                // Deleted versions have no content left to find the patient in
+                boolean deleted = resource instanceof IAnyResource
+                        && ResourceMetadataKeyEnum.DELETED_AT.get((IAnyResource) resource) != null;
+                Set<String> referenced = findReferencedPatients(terser, resource);
+                // An update may have moved the resource away from a patient, whose
+                // results change too
+                Set<String> previouslyReferenced = deleted ? null : findPreviouslyReferencedPatients(terser, resource);
+                if (deleted || previouslyReferenced == null
+                        || (referenced.isEmpty() && previouslyReferenced.isEmpty())) {
+                    logger.info("{} can't be attributed to a patient, evaluating every patient",
+                            resource.getIdElement().toUnqualified());
+                    return null;
+                }
+                patients.addAll(referenced);
+                patients.addAll(previouslyReferenced);
+            }
+
+            if (page.size() < HISTORY_PAGE_SIZE) {
+                return patients;
+            }
+        }
+    }
+
+    private Set<String> findReferencedPatients(FhirTerser terser, IBaseResource resource) {
+        Set<String> referenced = new HashSet<>();
+        for (Reference reference : terser.getAllPopulatedChildElementsOfType(resource, Reference.class)) {
+            if ("Patient".equals(reference.getReferenceElement().getResourceType())) {
+                referenced.add(reference.getReferenceElement().getIdPart());
+            }
+        }
+        return referenced;
+    }
+
+    /*
+     * The patients the version before the one in the history referenced, none
+     * for a first version, null when that version can't be read anymore.
+     */
+    private Set<String> findPreviouslyReferencedPatients(FhirTerser terser, IBaseResource resource) {
+        IIdType id = resource.getIdElement();
+        if (!id.hasVersionIdPart() || !id.isVersionIdPartValidLong() || id.getVersionIdPartAsLong() <= 1) {
+            return Collections.emptySet();
+        }
+
+        try {
+            IBaseResource previous = this.registry.getResourceDao(id.getResourceType())
+                    .read(id.withVersion(String.valueOf(id.getVersionIdPartAsLong() - 1)));
+            return findReferencedPatients(terser, previous);
+        } catch (ResourceGoneException e) {
+            // The resource was deleted before, so it was no one's
+            return Collections.emptySet();
+        } catch (ResourceNotFoundException e) {
+            return null;
+        }
+    }
+
+    private <T> T read(int index, Class<T> type) {
+        byte[] content;
+        try (Connection connection = getConnection();
+                PreparedStatement select = connection.prepareStatement(
+                        "SELECT CONTENT FROM " + TABLE + " WHERE RESULT_KEY = ? AND CHUNK_INDEX = ?")) {
+            select.setString(1, this.rowKey);
+            select.setInt(2, index);
+            try (ResultSet resultSet = select.executeQuery()) {
+                if (!resultSet.next()) {
+                    return null;
+                }
+                content = resultSet.getBytes(1);
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Unable to read the stored measure results", e);
+        }
+
+        try (Reader reader = new InputStreamReader(new GZIPInputStream(new ByteArrayInputStream(content)),
+                StandardCharsets.UTF_8)) {
+            return this.gson.fromJson(reader, type);
+        } catch (IOException | JsonParseException e) {
+            logger.warn("Ignoring unreadable stored results {} for {}", index, this.key, e);
+            return null;
+        }
+    }
+
+    // Replaced in one transaction, so a reader never sees a row missing
+    private void write(int index, Object content) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(bytes), StandardCharsets.UTF_8)) {
+            this.gson.toJson(content, writer);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to store the measure results", e);
+        }
+
+        try (Connection connection = getConnection()) {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try (PreparedStatement delete = connection.prepareStatement(
+                    "DELETE FROM " + TABLE + " WHERE RESULT_KEY = ? AND CHUNK_INDEX = ?");
+                    PreparedStatement insert = connection.prepareStatement(
+                            "INSERT INTO " + TABLE + " (RESULT_KEY, CHUNK_INDEX, CONTENT) VALUES (?, ?, ?)")) {
+                delete.setString(1, this.rowKey);
+                delete.setInt(2, index);
+                delete.executeUpdate();
+                insert.setString(1, this.rowKey);
+                insert.setInt(2, index);
+                insert.setBytes(3, bytes.toByteArray());
+                insert.executeUpdate();
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Unable to store the measure results", e);
+        }
+    }
+
+    private Connection getConnection() throws SQLException {
+        Connection connection = this.dataSource.getConnection();
+        if (!initialized.contains(this.dataSource)) {
+            try {
+                createTable(connection);
+            } catch (SQLException e) {
+                connection.close();
+                throw e;
+            }
+            initialized.add(this.dataSource);
+        }
+        return connection;
+    }
+
+    private static void createTable(Connection connection) throws SQLException {
+        if (tableExists(connection)) {
+            return;
+        }
+
+        String product = connection.getMetaData().getDatabaseProductName().toLowerCase(Locale.ROOT);
+        String binaryType = product.contains("postgres") ? "BYTEA"
+                : product.contains("mysql") || product.contains("mariadb") ? "LONGBLOB"
+                        : product.contains("sql server") ? "VARBINARY(MAX)" : "BLOB";
+        try (PreparedStatement create = connection.prepareStatement("CREATE TABLE " + TABLE
+                + " (RESULT_KEY VARCHAR(64) NOT NULL, CHUNK_INDEX INTEGER NOT NULL, CONTENT " + binaryType
+                + " NOT NULL, PRIMARY KEY (RESULT_KEY, CHUNK_INDEX))")) {
+            create.executeUpdate();
+        } catch (SQLException e) {
+            // Another server may have created it in the meantime
+            if (!tableExists(connection)) {
+                throw e;
+            }
+        }
+    }
+
+    // Databases differ in the case they keep unquoted names in
+    private static boolean tableExists(Connection connection) throws SQLException {
+        try (ResultSet tables = connection.getMetaData().getTables(null, null, null, new String[] { "TABLE" })) {
+            while (tables.next()) {
+                if (TABLE.equalsIgnoreCase(tables.getString("TABLE_NAME"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The chunks of the results of one run.
+     */
+    public static class Manifest {
+        private String key;
+        private long evaluatedAt;
+        // The history mark when the run started
+        private long historyMark;
+        // When each chunk was written, a chunk that doesn't match is stale
+        private List<Long> chunks = new ArrayList<>();
+
+        public Manifest(long evaluatedAt, long historyMark) {
+            this.evaluatedAt = evaluatedAt;
+            this.historyMark = historyMark;
+        }
+
+        /**
+         * The manifest of a run started at {@code evaluatedAt} that keeps the
+         * chunks of this one it doesn't rewrite.
+         */
+        public Manifest next(long evaluatedAt, long historyMark) {
+            Manifest next = new Manifest(evaluatedAt, historyMark);
+            next.chunks.addAll(this.chunks);
+            return next;
+        }
+
+        public long getEvaluatedAt() {
+            return this.evaluatedAt;
+        }
+
+        public long getHistoryMark() {
+            return this.historyMark;
+        }
+
+        public int getChunkCount() {
+            return this.chunks.size();
+        }
+    }
+
+    /**
+     * The results of some of the patients of a run, by patient id.
+     */
+    public static class Chunk {
+        private long writtenAt;
+        private Map<String, PatientResult> patients = new LinkedHashMap<>();
+
+        public PatientResult get(String patientId) {
+            return this.patients.get(patientId);
+        }
+
+        public void put(String patientId, PatientResult result) {
+            this.patients.put(patientId, result);
+        }
+
+        public PatientResult remove(String patientId) {
+            return this.patients.remove(patientId);
+        }
+
+        public void forEach(BiConsumer<String, PatientResult> action) {
+            this.patients.forEach(action);
+        }
+
+        public int size() {
+            return this.patients.size();
+        }
+
+        public boolean isFull() {
+            return this.patients.size() >= CHUNK_SIZE;
+        }
+    }
+
+    /**
+     * Adds results to a chunk, writing it and starting the next one whenever it
+     * is full. {@link #flush()} writes the last one.
+     */
+    public class ChunkWriter {
+        private final Manifest manifest;
+        private int index;
+        private Chunk chunk;
+        private boolean dirty;
+
+        private ChunkWriter(Manifest manifest, int index, Chunk chunk) {
+            this.manifest = manifest;
+            this.index = index;
+            this.chunk = chunk;
+        }
+
+        public void add(String patientId, PatientResult result) {
+            if (this.chunk.isFull()) {
+                flush();
+                this.index++;
+                this.chunk = new Chunk();
+            }
+            this.chunk.put(patientId, result);
+            this.dirty = true;
+        }
+
+        public void flush() {
+            if (this.dirty) {
+                saveChunk(this.manifest, this.index, this.chunk);
+                this.dirty = false;
+            }
+        }
+    }
+
+    /**
+     * What a single patient contributed to the report.
+     */
+    public static class PatientResult {
+        // Per group, the keys of the resources in each population (by code)
+        private List<Map<String, List<String>>> groups = new ArrayList<>();
+        private List<String> evaluatedResources = new ArrayList<>();
+        // Per supplemental data element, the codes and their counts
+        private Map<String, List<SupplementalDataCount>> supplementalData = new HashMap<>();
+
+        public PatientResult(List<MeasureGroupState> states, EvaluatedResourceTracker evaluatedResources,
+                SupplementalDataAccumulator sdeAccumulators) {
+            for (MeasureGroupState state : states) {
+                Map<String, List<String>> group = new HashMap<>();
+                for (MeasurePopulationType populationType : MeasurePopulationType.values()) {
+                    List<String> keys = state.getResourceKeys(populationType);
+                    if (keys != null && !keys.isEmpty()) {
+                        group.put(populationType.toCode(), new ArrayList<>(keys));
+                    }
+                }
+                this.groups.add(group);
+            }
+            evaluatedResources.forEachId(this.evaluatedResources::add);
+            sdeAccumulators.forEach((sdeKey, count) -> this.supplementalData
+                    .computeIfAbsent(sdeKey, x -> new ArrayList<>()).add(new SupplementalDataCount(count)));
+        }
+
+        /**
+         * Adds this patient's contribution to the report being built.
+         */
+        public void applyTo(List<MeasureGroupState> states, EvaluatedResourceTracker evaluatedResources,
+                SupplementalDataAccumulator sdeAccumulators) {
+            for (int i = 0; i < states.size() && i < this.groups.size(); i++) {
+                MeasureGroupState state = states.get(i);
+                this.groups.get(i).forEach((code, keys) -> keys
+                        .forEach(key -> state.addResourceKey(MeasurePopulationType.fromCode(code), key)));
+            }
+            this.evaluatedResources.forEach(evaluatedResources::add);
+            this.supplementalData.forEach((sdeKey, counts) -> counts.forEach(count -> sdeAccumulators.add(sdeKey,
+                    new Coding(count.system, count.code, count.display), count.count)));
+        }
+    }
+
+    private static class SupplementalDataCount {
+        private String system;
+        private String code;
+        private String display;
+        private int count;
+
+        private SupplementalDataCount(SupplementalDataAccumulator.Count count) {
+            this.system = count.getCoding().getSystem();
+            this.code = count.getCoding().getCode();
+            this.display = count.getCoding().getDisplay();
+            this.count = count.getCount();
+        }
+    }
+}
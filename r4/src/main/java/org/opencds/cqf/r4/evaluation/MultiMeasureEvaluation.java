@@ -0,0 +1,112 @@
+package org.opencds.cqf.r4.evaluation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Patient;
+import org.opencds.cqf.common.evaluation.EvaluationProgress;
+import org.opencds.cqf.common.evaluation.PatientDataPipeline;
+import org.opencds.cqf.common.evaluation.PatientPartitionExecutor;
+import org.opencds.cqf.common.retrieve.PagedResourceIterable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+
+/**
+ * Evaluates several measures over the same patients in a single pass: each
+ * chunk of patients is enumerated once, its data is retrieved once for all of
+ * the measures (the retrieves every measure has seen so far are prefetched
+ * together, see {@link PatientDataPipeline}) and every measure is evaluated for
+ * a patient before moving on to the next one. With a parallelism above one the
+ * pages of patients are spread over workers that each have their own execution
+ * Context per measure, and their results are merged in page order.
+ */
+public class MultiMeasureEvaluation {
+
+    private static final Logger logger = LoggerFactory.getLogger(MultiMeasureEvaluation.class);
+
+    private final DaoRegistry registry;
+    private final List<MeasureEvaluation.MeasureRun> runs;
+    private final int parallelism;
+    private EvaluationProgress progress;
+
+    /**
+     * @param parallelism the number of workers the patients are partitioned
+     *                    across, see {@link PatientPartitionExecutor}
+     */
+    public MultiMeasureEvaluation(DaoRegistry registry, List<MeasureEvaluation.MeasureRun> runs,
+            int parallelism) {
+        this.registry = registry;
+        this.runs = runs;
+        this.parallelism = parallelism;
+    }
+
+    public void setProgress(EvaluationProgress progress) {
+        this.progress = progress;
+    }
+
+    /**
+     * Evaluates every measure for all patients (practitionerRef null) or for
+     * those of the practitioner.
+     *
+     * @return the reports, in the order of the runs
+     */
+    public List<MeasureReport> evaluate(String practitionerRef) {
+        PagedResourceIterable<Patient> patients = MeasureEvaluation.findPatients(this.registry, practitionerRef);
+        logger.info("Evaluating {} measures together", this.runs.size());
+        if (this.progress != null) {
+            this.progress.setTotal(patients.count());
+        }
+
+        if (this.parallelism > 1 && this.runs.stream().allMatch(MeasureEvaluation.MeasureRun::canEvaluateInParallel)) {
+            evaluateInParallel(patients);
+        } else {
+            evaluatePatients(this.runs, patients);
+        }
+
+        List<MeasureReport> reports = new ArrayList<>();
+        for (MeasureEvaluation.MeasureRun run : this.runs) {
+            reports.add(run.complete());
+        }
+        return reports;
+    }
+
+    private void evaluateInParallel(PagedResourceIterable<Patient> patients) {
+        logger.info("Evaluating patients in pages of {} with parallelism {}", patients.getPageSize(),
+                this.parallelism);
+
+        new PatientPartitionExecutor(this.parallelism).execute(patients.pages(),
+                () -> this.runs.stream().map(MeasureEvaluation.MeasureRun::createWorkerContext)
+                        .collect(Collectors.toList()),
+                (contexts, page) -> {
+                    List<MeasureEvaluation.MeasureRun> partials = new ArrayList<>();
+                    for (int i = 0; i < this.runs.size(); i++) {
+                        partials.add(this.runs.get(i).newPartialRun(contexts.get(i)));
+                    }
+                    evaluatePatients(partials, page);
+                    return partials;
+                }, partials -> {
+                    for (int i = 0; i < this.runs.size(); i++) {
+                        this.runs.get(i).merge(partials.get(i));
+                    }
+                });
+    }
+
+    private void evaluatePatients(List<MeasureEvaluation.MeasureRun> runs, Iterable<Patient> patients) {
+        new PatientDataPipeline<Patient>(
+                runs.stream().map(MeasureEvaluation.MeasureRun::getContext).collect(Collectors.toList()),
+                patient -> patient.getIdElement().getIdPart()).run(patients, chunk -> {
+                    for (Patient patient : chunk) {
+                        for (MeasureEvaluation.MeasureRun run : runs) {
+                            run.evaluatePatient(patient);
+                        }
+                        if (this.progress != null) {
+                            this.progress.patientProcessed();
+                        }
+                    }
+                });
+    }
+}
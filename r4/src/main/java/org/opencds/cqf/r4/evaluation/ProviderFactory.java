@@ -6,11 +6,12 @@ import org.opencds.cqf.common.evaluation.EvaluationProviderFactory;
 import org.opencds.cqf.common.helpers.ClientHelper;
 import org.opencds.cqf.common.providers.R4ApelonFhirTerminologyProvider;
 import org.opencds.cqf.common.retrieve.JpaFhirRetrieveProvider;
-import org.opencds.cqf.cql.engine.data.CompositeDataProvider;
+import org.opencds.cqf.common.retrieve.PatientBatchDataProvider;
 import org.opencds.cqf.cql.engine.data.DataProvider;
 import org.opencds.cqf.cql.engine.fhir.model.R4FhirModelResolver;
 import org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterResolver;
 import org.opencds.cqf.cql.engine.fhir.terminology.R4FhirTerminologyProvider;
+import org.opencds.cqf.cql.engine.model.ModelResolver;
 import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
 import org.springframework.stereotype.Component;
 
@@ -45,20 +46,33 @@ public class ProviderFactory implements EvaluationProviderFactory {
     }
 
     public DataProvider createDataProvider(String model, String version, TerminologyProvider terminologyProvider) {
+        return this.createDataProvider(model, version, terminologyProvider, this.createModelResolver(model, version));
+    }
+
+    public DataProvider createDataProvider(String model, String version, TerminologyProvider terminologyProvider,
+            ModelResolver modelResolver) {
         if (model.equals("FHIR") && version.startsWith("4")) {
-            R4FhirModelResolver modelResolver = new R4FhirModelResolver();
             JpaFhirRetrieveProvider retrieveProvider = new JpaFhirRetrieveProvider(this.registry,
                     new SearchParameterResolver(this.fhirContext));
             retrieveProvider.setTerminologyProvider(terminologyProvider);
             retrieveProvider.setExpandValueSets(true);
 
-            return new CompositeDataProvider(modelResolver, retrieveProvider);
+            return new PatientBatchDataProvider(modelResolver, retrieveProvider);
         }
 
         throw new IllegalArgumentException(
                 String.format("Can't construct a data provider for model %s version %s", model, version));
     }
 
+    public ModelResolver createModelResolver(String model, String version) {
+        if (model.equals("FHIR") && version.startsWith("4")) {
+            return new R4FhirModelResolver();
+        }
+
+        throw new IllegalArgumentException(
+                String.format("Can't construct a model resolver for model %s version %s", model, version));
+    }
+
     public TerminologyProvider createTerminologyProvider(String model, String version, String url, String user,
             String pass) {
         if (url != null && !url.isEmpty()) {
@@ -0,0 +1,130 @@
+package org.opencds.cqf.r4.evaluation;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Measure;
+import org.opencds.cqf.common.evaluation.MeasurePopulationType;
+import org.opencds.cqf.common.evaluation.ObservationAggregate;
+import org.opencds.cqf.common.evaluation.PopulationIndex;
+
+/**
+ * The strata of one stratifier of a Measure group, with the members of each
+ * population in each stratum. The members are bitmaps over the same index as
+ * the group's populations (see {@link MeasureGroupState}), which adds them to
+ * the strata of the patient being evaluated as it adds them to the group, so
+ * the strata come out of the same pass over the patients. Partial states are
+ * combined with {@link #merge(StratifierState, int[])} like the group's.
+ */
+public class StratifierState {
+
+    private final Measure.MeasureGroupStratifierComponent stratifier;
+    private final Map<String, Stratum> strata = new LinkedHashMap<>();
+
+    public StratifierState(Measure.MeasureGroupStratifierComponent stratifier) {
+        this.stratifier = stratifier;
+    }
+
+    public Measure.MeasureGroupStratifierComponent getStratifier() {
+        return this.stratifier;
+    }
+
+    /**
+     * The stratum for {@code key}, created with {@code values} (one per
+     * stratifier component, or the single value of the stratifier) when it is
+     * first seen.
+     */
+    public Stratum getStratum(String key, List<CodeableConcept> values) {
+        return this.strata.computeIfAbsent(key, x -> new Stratum(values));
+    }
+
+    /**
+     * The strata, in the order they were first seen.
+     */
+    public Collection<Stratum> getStrata() {
+        return Collections.unmodifiableCollection(this.strata.values());
+    }
+
+    public StratifierState copyEmpty() {
+        return new StratifierState(this.stratifier);
+    }
+
+    /**
+     * @param resourceMapping the number each member of {@code other} has in the
+     *                        index of this state, see
+     *                        {@link PopulationIndex#mapFrom(PopulationIndex)}
+     */
+    public void merge(StratifierState other, int[] resourceMapping) {
+        other.strata.forEach((key, stratum) -> getStratum(key, stratum.values).merge(stratum, resourceMapping));
+    }
+
+    public static class Stratum {
+        private final List<CodeableConcept> values;
+        private final Map<MeasurePopulationType, BitSet> resources = new EnumMap<>(MeasurePopulationType.class);
+        private final Map<MeasurePopulationType, BitSet> removedResources = new EnumMap<>(
+                MeasurePopulationType.class);
+        private ObservationAggregate observations;
+
+        private Stratum(List<CodeableConcept> values) {
+            this.values = values;
+        }
+
+        public List<CodeableConcept> getValues() {
+            return this.values;
+        }
+
+        public int getCount(MeasurePopulationType populationType) {
+            BitSet population = this.resources.get(populationType);
+            return population != null ? population.cardinality() : 0;
+        }
+
+        /**
+         * The aggregate of the measure observations of the stratum, null when
+         * there are none.
+         */
+        public ObservationAggregate getObservations() {
+            return this.observations;
+        }
+
+        void add(MeasurePopulationType populationType, int index) {
+            this.resources.computeIfAbsent(populationType, x -> new BitSet()).set(index);
+        }
+
+        void remove(MeasurePopulationType populationType, int index) {
+            this.resources.computeIfAbsent(populationType, x -> new BitSet()).clear(index);
+            this.removedResources.computeIfAbsent(populationType, x -> new BitSet()).set(index);
+        }
+
+        void observe(double value) {
+            if (this.observations == null) {
+                this.observations = new ObservationAggregate();
+            }
+            this.observations.add(value);
+        }
+
+        private void merge(Stratum other, int[] resourceMapping) {
+            for (Map.Entry<MeasurePopulationType, BitSet> entry : other.removedResources.entrySet()) {
+                BitSet removed = PopulationIndex.remap(entry.getValue(), resourceMapping);
+                this.resources.computeIfAbsent(entry.getKey(), x -> new BitSet()).andNot(removed);
+                this.removedResources.computeIfAbsent(entry.getKey(), x -> new BitSet()).or(removed);
+            }
+            for (Map.Entry<MeasurePopulationType, BitSet> entry : other.resources.entrySet()) {
+                this.resources.computeIfAbsent(entry.getKey(), x -> new BitSet())
+                        .or(PopulationIndex.remap(entry.getValue(), resourceMapping));
+            }
+
+            if (other.observations != null) {
+                if (this.observations == null) {
+                    this.observations = new ObservationAggregate();
+                }
+                this.observations.merge(other.observations);
+            }
+        }
+    }
+}
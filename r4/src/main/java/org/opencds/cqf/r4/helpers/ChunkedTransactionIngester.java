@@ -0,0 +1,376 @@
+package org.opencds.cqf.r4.helpers;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Reference;
+import org.opencds.cqf.common.config.HapiProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.IFhirSystemDao;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.util.FhirTerser;
+
+/**
+ * Commits a stream of transaction entries as a series of transactions of up to
+ * a batch size each, instead of a single transaction holding its locks for the
+ * whole submission.
+ * <p>
+ * Entries are added in units that must not be split (e.g. a transaction Bundle
+ * whose entries reference each other through urn:uuid fullUrls). Within a batch
+ * the entries are ordered so that referenced resources are written before the
+ * resources referencing them. Batches are committed on a pool of threads, a
+ * batch that references a resource of a batch that is still being committed
+ * waits for that one. Batches that fail are retried once, one after the other,
+ * once all the others are done, since they may reference resources that only
+ * came later in the submission. Every batch is committed with the request of
+ * the submission, so its authorization, interceptors and request id apply to
+ * each of the writes.
+ * <p>
+ * The threads are shared by every submission (submit_data.max_threads of
+ * them), so concurrent submissions don't add threads. The parallelism of a
+ * submission bounds how many of its batches are committed at once.
+ */
+public class ChunkedTransactionIngester implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChunkedTransactionIngester.class);
+
+    private static final int DEFAULT_MAX_THREADS = 8;
+
+    private static final AtomicInteger threadCounter = new AtomicInteger();
+
+    private static final ExecutorService sharedExecutor = Executors.newFixedThreadPool(resolveMaxThreads(),
+            runnable -> {
+                Thread thread = new Thread(runnable, "submit-data-" + threadCounter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private final IFhirSystemDao<Bundle, ?> systemDao;
+    private final RequestDetails details;
+    private final FhirTerser terser;
+    private final int batchSize;
+    private final int maxInFlight;
+    private final Executor executor;
+
+    private final List<Batch> batches = new ArrayList<>();
+    private final Deque<CompletableFuture<Void>> inFlight = new ArrayDeque<>();
+    private final Map<String, CompletableFuture<Void>> committedBy = new HashMap<>();
+    private List<Entry> pending = new ArrayList<>();
+
+    /**
+     * @param batchSize   the number of entries per transaction, a unit larger than
+     *                    that gets a transaction of its own
+     * @param parallelism the number of transactions committed at the same time
+     */
+    public ChunkedTransactionIngester(FhirContext fhirContext, IFhirSystemDao<Bundle, ?> systemDao,
+            RequestDetails details, int batchSize, int parallelism) {
+        this.systemDao = systemDao;
+        this.details = details;
+        this.terser = fhirContext.newTerser();
+        this.batchSize = Math.max(1, batchSize);
+        int threads = Math.max(1, parallelism);
+        this.maxInFlight = threads * 2;
+        this.executor = new BoundedExecutor(sharedExecutor, threads);
+    }
+
+    /**
+     * The number of shared threads, submit_data.max_threads. A value that is not
+     * a positive integer is ignored with a warning.
+     */
+    private static int resolveMaxThreads() {
+        try {
+            int maxThreads = HapiProperties.getSubmitDataMaxThreads();
+            if (maxThreads > 0) {
+                return maxThreads;
+            }
+            logger.warn("Ignoring submit_data.max_threads value {}, it must be positive. Using {} threads.",
+                    maxThreads, DEFAULT_MAX_THREADS);
+        } catch (NumberFormatException e) {
+            logger.warn("Ignoring submit_data.max_threads value {}, it is not a number. Using {} threads.",
+                    HapiProperties.getProperty("submit_data.max_threads"), DEFAULT_MAX_THREADS);
+        }
+        return DEFAULT_MAX_THREADS;
+    }
+
+    /**
+     * Adds entries that are committed in the same transaction.
+     */
+    public void add(List<Bundle.BundleEntryComponent> unit) {
+        if (unit.isEmpty()) {
+            return;
+        }
+
+        if (!this.pending.isEmpty() && this.pending.size() + unit.size() > this.batchSize) {
+            flush();
+        }
+
+        for (Bundle.BundleEntryComponent entry : unit) {
+            this.pending.add(new Entry(entry));
+        }
+
+        if (this.pending.size() >= this.batchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Commits the remaining entries, waits for all batches and returns their
+     * outcomes as a batch-response Bundle, one entry per batch.
+     */
+    public Bundle finish() {
+        flush();
+        this.inFlight.forEach(CompletableFuture::join);
+        this.inFlight.clear();
+        this.committedBy.clear();
+
+        for (Batch batch : this.batches) {
+            if (batch.error != null) {
+                logger.info("Retrying batch {} of the submission after {}", batch.number, batch.error.getMessage());
+                commit(batch);
+            }
+        }
+
+        Bundle response = new Bundle().setType(Bundle.BundleType.BATCHRESPONSE);
+        for (Batch batch : this.batches) {
+            response.addEntry().setResponse(batch.toResponse());
+        }
+
+        return response;
+    }
+
+    /**
+     * Waits for the batches that are still being committed, so that none of them
+     * outlives the request of the submission.
+     */
+    @Override
+    public void close() {
+        for (CompletableFuture<Void> commit : this.inFlight) {
+            commit.handle((result, error) -> null).join();
+        }
+        this.inFlight.clear();
+    }
+
+    private void flush() {
+        if (this.pending.isEmpty()) {
+            return;
+        }
+
+        Batch batch = new Batch(this.batches.size() + 1, order(this.pending));
+        this.pending = new ArrayList<>();
+        this.batches.add(batch);
+
+        Set<CompletableFuture<Void>> dependencies = new LinkedHashSet<>();
+        for (Entry entry : batch.entries) {
+            for (String reference : entry.references) {
+                CompletableFuture<Void> dependency = this.committedBy.get(reference);
+                if (dependency != null) {
+                    dependencies.add(dependency);
+                }
+            }
+        }
+
+        // A batch is committed even if one it depends on failed, its failure is
+        // what the retry at the end picks up
+        CompletableFuture<Void> commit = CompletableFuture
+                .allOf(dependencies.toArray(new CompletableFuture<?>[0]))
+                .handle((result, error) -> null)
+                .thenRunAsync(() -> commit(batch), this.executor);
+        for (Entry entry : batch.entries) {
+            if (entry.key != null) {
+                this.committedBy.put(entry.key, commit);
+            }
+        }
+        this.inFlight.add(commit);
+
+        // Keeps the number of batches held in memory bounded
+        while (this.inFlight.size() > this.maxInFlight) {
+            this.inFlight.poll().join();
+            this.committedBy.values().removeIf(CompletableFuture::isDone);
+        }
+    }
+
+    private void commit(Batch batch) {
+        Bundle transaction = new Bundle().setType(Bundle.BundleType.TRANSACTION);
+        for (Entry entry : batch.entries) {
+            transaction.addEntry(entry.entry);
+        }
+
+        try {
+            this.systemDao.transaction(this.details, transaction);
+            batch.error = null;
+            // Only failed batches are kept around for the retry
+            batch.entries = new ArrayList<>();
+        } catch (RuntimeException e) {
+            logger.warn("Batch {} of the submission failed: {}", batch.number, e.getMessage());
+            batch.error = e;
+        }
+    }
+
+    // Orders the entries so that the ones referenced by others in the batch come first
+    private List<Entry> order(List<Entry> entries) {
+        Map<String, Entry> byKey = new HashMap<>();
+        for (Entry entry : entries) {
+            entry.references = references(entry.entry);
+            if (entry.key != null) {
+                byKey.put(entry.key, entry);
+            }
+        }
+
+        List<Entry> ordered = new ArrayList<>(entries.size());
+        Set<Entry> visited = new HashSet<>();
+        for (Entry entry : entries) {
+            visit(entry, byKey, visited, ordered);
+        }
+        return ordered;
+    }
+
+    private void visit(Entry entry, Map<String, Entry> byKey, Set<Entry> visited, List<Entry> ordered) {
+        if (!visited.add(entry)) {
+            return;
+        }
+
+        for (String reference : entry.references) {
+            Entry referenced = byKey.get(reference);
+            if (referenced != null) {
+                visit(referenced, byKey, visited, ordered);
+            }
+        }
+        ordered.add(entry);
+    }
+
+    private Set<String> references(Bundle.BundleEntryComponent entry) {
+        Set<String> references = new HashSet<>();
+        if (entry.hasResource()) {
+            for (Reference reference : this.terser.getAllPopulatedChildElementsOfType(entry.getResource(),
+                    Reference.class)) {
+                String key = key(reference.getReferenceElement());
+                if (key != null) {
+                    references.add(key);
+                }
+            }
+        }
+        return references;
+    }
+
+    private static String key(IIdType id) {
+        if (id == null || id.isLocal() || !id.hasResourceType() || !id.hasIdPart()) {
+            return null;
+        }
+        return id.getResourceType() + "/" + id.getIdPart();
+    }
+
+    /*
+     * Runs at most a number of tasks at a time on the shared threads, the others
+     * wait in a queue of their own instead of taking up shared threads.
+     */
+    private static class BoundedExecutor implements Executor {
+        private final Executor delegate;
+        private final int maxRunning;
+        private final Queue<Runnable> queued = new ArrayDeque<>();
+        private int running;
+
+        private BoundedExecutor(Executor delegate, int maxRunning) {
+            this.delegate = delegate;
+            this.maxRunning = maxRunning;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            synchronized (this) {
+                this.queued.add(task);
+            }
+            startQueued();
+        }
+
+        private void startQueued() {
+            Runnable next;
+            synchronized (this) {
+                if (this.running >= this.maxRunning || this.queued.isEmpty()) {
+                    return;
+                }
+                next = this.queued.poll();
+                this.running++;
+            }
+
+            this.delegate.execute(() -> {
+                try {
+                    next.run();
+                } finally {
+                    synchronized (this) {
+                        this.running--;
+                    }
+                    startQueued();
+                }
+            });
+        }
+    }
+
+    private static class Entry {
+        private final Bundle.BundleEntryComponent entry;
+        // The resource the entry writes, when its id is known up front (PUT)
+        private final String key;
+        private Set<String> references;
+
+        private Entry(Bundle.BundleEntryComponent entry) {
+            this.entry = entry;
+            this.key = entry.hasRequest() && entry.getRequest().getMethod() == Bundle.HTTPVerb.PUT
+                    && entry.getRequest().hasUrl() ? key(new IdType(entry.getRequest().getUrl())) : null;
+        }
+    }
+
+    private static class Batch {
+        private final int number;
+        private final int size;
+        private List<Entry> entries;
+        private volatile RuntimeException error;
+
+        private Batch(int number, List<Entry> entries) {
+            this.number = number;
+            this.size = entries.size();
+            this.entries = entries;
+        }
+
+        private Bundle.BundleEntryResponseComponent toResponse() {
+            OperationOutcome outcome = new OperationOutcome();
+            Bundle.BundleEntryResponseComponent response = new Bundle.BundleEntryResponseComponent()
+                    .setOutcome(outcome);
+            if (this.error == null) {
+                response.setStatus("200 OK");
+                outcome.addIssue().setSeverity(OperationOutcome.IssueSeverity.INFORMATION)
+                        .setCode(OperationOutcome.IssueType.INFORMATIONAL)
+                        .setDiagnostics(String.format("Batch %d: %d entries committed", this.number, this.size));
+            } else {
+                int status = this.error instanceof BaseServerResponseException
+                        ? ((BaseServerResponseException) this.error).getStatusCode()
+                        : 500;
+                response.setStatus(String.valueOf(status));
+                outcome.addIssue().setSeverity(OperationOutcome.IssueSeverity.ERROR)
+                        .setCode(OperationOutcome.IssueType.EXCEPTION)
+                        .setDiagnostics(String.format("Batch %d: %d entries not committed: %s", this.number,
+                                this.size, this.error.getMessage()));
+            }
+            return response;
+        }
+    }
+}
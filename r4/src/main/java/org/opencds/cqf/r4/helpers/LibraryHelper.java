@@ -22,11 +22,11 @@ public class LibraryHelper {
         LibraryManager libraryManager = new LibraryManager(modelManager);
         libraryManager.getLibrarySourceLoader().clearProviders();
 
-        libraryManager.getLibrarySourceLoader().registerProvider(
-                new LibrarySourceProvider<org.hl7.fhir.r4.model.Library, org.hl7.fhir.r4.model.Attachment>(provider,
-                        x -> x.getContent(), x -> x.getContentType(), x -> x.getData()));
+        LibrarySourceProvider<org.hl7.fhir.r4.model.Library, org.hl7.fhir.r4.model.Attachment> sourceProvider = new LibrarySourceProvider<>(
+                provider, x -> x.getContent(), x -> x.getContentType(), x -> x.getData());
+        libraryManager.getLibrarySourceLoader().registerProvider(sourceProvider);
 
-        return new LibraryLoader(libraryManager, modelManager);
+        return new LibraryLoader(libraryManager, modelManager, sourceProvider);
     }
 
     public static LibraryLoader createLibraryLoader(org.cqframework.cql.cql2elm.LibrarySourceProvider provider) {
@@ -36,7 +36,8 @@ public class LibraryHelper {
 
         libraryManager.getLibrarySourceLoader().registerProvider(provider);
 
-        return new LibraryLoader(libraryManager, modelManager);
+        return new LibraryLoader(libraryManager, modelManager,
+                provider instanceof LibrarySourceProvider ? (LibrarySourceProvider<?, ?>) provider : null);
     }
 
     public static org.hl7.fhir.r4.model.Library resolveLibraryReference(LibraryResolutionProvider<org.hl7.fhir.r4.model.Library> libraryResourceProvider, String reference) {
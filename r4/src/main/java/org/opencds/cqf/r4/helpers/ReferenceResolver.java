@@ -0,0 +1,154 @@
+package org.opencds.cqf.r4.helpers;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Iterables;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.param.TokenOrListParam;
+import ca.uhn.fhir.util.FhirTerser;
+
+/**
+ * Adds resources and the resources they reference to the "resource"
+ * parameters of a Parameters resource (e.g. the output of $collect-data).
+ * References are followed level by level: all of the references of a level
+ * that the Parameters does not hold yet are grouped by resource type and read
+ * with _id searches of up to {@link #BATCH_SIZE} ids, instead of one read per
+ * reference.
+ */
+public class ReferenceResolver {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReferenceResolver.class);
+
+    public static final int BATCH_SIZE = 200;
+
+    private final DaoRegistry registry;
+    private final FhirTerser terser;
+    private final int depth;
+
+    /**
+     * @param depth the number of levels of references followed, 0 only adds the
+     *              resources themselves
+     */
+    public ReferenceResolver(FhirContext fhirContext, DaoRegistry registry, int depth) {
+        this.registry = registry;
+        this.terser = fhirContext.newTerser();
+        this.depth = depth;
+    }
+
+    /**
+     * Adds {@code resources}, the resources identified by {@code ids} and the
+     * resources they reference (up to the depth) to {@code parameters}, skipping
+     * the ones it already holds.
+     */
+    public void resolve(Collection<? extends Resource> resources, Collection<IIdType> ids, Parameters parameters) {
+        Set<String> known = new HashSet<>();
+        for (Parameters.ParametersParameterComponent parameter : parameters.getParameter()) {
+            if (parameter.hasResource()) {
+                known.add(key(parameter.getResource()));
+            }
+        }
+
+        List<IBaseResource> level = new ArrayList<>();
+        for (Resource resource : resources) {
+            if (known.add(key(resource))) {
+                addResource(parameters, resource);
+                level.add(resource);
+            }
+        }
+
+        Map<String, Set<String>> outstanding = new LinkedHashMap<>();
+        for (IIdType id : ids) {
+            addOutstanding(outstanding, known, id);
+        }
+        for (int i = 0;; i++) {
+            level.addAll(read(outstanding, known, parameters));
+            if (i >= this.depth) {
+                break;
+            }
+
+            outstanding = new LinkedHashMap<>();
+            for (IBaseResource resource : level) {
+                for (Reference reference : this.terser.getAllPopulatedChildElementsOfType(resource,
+                        Reference.class)) {
+                    addOutstanding(outstanding, known, reference.getReferenceElement());
+                }
+            }
+            if (outstanding.isEmpty()) {
+                break;
+            }
+            level = new ArrayList<>();
+        }
+    }
+
+    private List<IBaseResource> read(Map<String, Set<String>> outstanding, Set<String> known,
+            Parameters parameters) {
+        List<IBaseResource> read = new ArrayList<>();
+        for (Map.Entry<String, Set<String>> type : outstanding.entrySet()) {
+            for (List<String> batch : Iterables.partition(type.getValue(), BATCH_SIZE)) {
+                SearchParameterMap map = new SearchParameterMap();
+                map.setLoadSynchronous(true);
+                TokenOrListParam idParam = new TokenOrListParam();
+                batch.forEach(id -> idParam.add(null, id));
+                map.add("_id", idParam);
+
+                IBundleProvider results;
+                try {
+                    results = this.registry.getResourceDao(type.getKey()).search(map);
+                } catch (RuntimeException e) {
+                    logger.warn("Unable to resolve references to {}: {}", type.getKey(), e.getMessage());
+                    break;
+                }
+
+                Integer size = results.size();
+                for (IBaseResource resource : results.getResources(0, size != null ? size : batch.size())) {
+                    if (known.add(key(resource))) {
+                        addResource(parameters, (Resource) resource);
+                        read.add(resource);
+                    }
+                }
+            }
+        }
+        return read;
+    }
+
+    private void addOutstanding(Map<String, Set<String>> outstanding, Set<String> known, IIdType id) {
+        if (id == null || id.isLocal() || !id.hasResourceType() || !id.hasIdPart()
+                || known.contains(key(id))) {
+            return;
+        }
+        outstanding.computeIfAbsent(id.getResourceType(), x -> new LinkedHashSet<>()).add(id.getIdPart());
+    }
+
+    private void addResource(Parameters parameters, Resource resource) {
+        parameters.addParameter(new Parameters.ParametersParameterComponent().setName("resource")
+                .setResource(resource));
+    }
+
+    private String key(IBaseResource resource) {
+        IIdType id = resource.getIdElement();
+        return (id.hasResourceType() ? id.getResourceType() : resource.fhirType()) + "/" + id.getIdPart();
+    }
+
+    private String key(IIdType id) {
+        return id.getResourceType() + "/" + id.getIdPart();
+    }
+}
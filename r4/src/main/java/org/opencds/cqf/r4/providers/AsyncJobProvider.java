@@ -0,0 +1,384 @@
+package org.opencds.cqf.r4.providers;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.sql.DataSource;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Binary;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.r4.model.Task;
+import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.evaluation.EvaluationProgress;
+import org.opencds.cqf.common.exceptions.AsyncRequestAcceptedException;
+import org.opencds.cqf.common.retrieve.PagedResourceIterable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.annotation.IdParam;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.param.DateRangeParam;
+import ca.uhn.fhir.rest.param.TokenOrListParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.exceptions.UnclassifiedServerFailureException;
+
+import com.google.common.util.concurrent.Striped;
+
+/**
+ * Runs operations requested with "Prefer: respond-async" in the background,
+ * following the FHIR asynchronous request pattern. Each request is tracked by a
+ * Task (status, progress and a reference to the result) and its result is
+ * stored as a Binary, so both survive a restart. The status URL returned with
+ * the 202 response is Task/[id]/$async-status. The Task is only updated when
+ * the request changes state, the instance running a request saves its progress
+ * every {@value #PROGRESS_INTERVAL_MILLIS} ms in the
+ * {@value JobProgressTable#TABLE} table of the server's database, where every
+ * instance can read it. Finished requests are deleted with their result after
+ * async_jobs.retention.
+ * <p>
+ * Each Task is owned by the instance that accepted the request (an owner
+ * identifier in the {@link #INSTANCE_SYSTEM} system). Each instance keeps a
+ * lease (async_jobs.lease_timeout) in the {@value InstanceLeaseTable#TABLE}
+ * table of the server's database. Requests of an instance whose lease expired,
+ * because it stopped, are marked failed by whichever instance sees them first.
+ */
+@Component
+public class AsyncJobProvider {
+
+    private static final Logger logger = LoggerFactory.getLogger(AsyncJobProvider.class);
+
+    public static final String JOB_TAG_SYSTEM = "http://opencds.org/fhir/CodeSystem/cqf-ruler-async-job";
+    // Identifies the server instances that own Tasks, by a random id per instance
+    public static final String INSTANCE_SYSTEM = "http://opencds.org/fhir/NamingSystem/cqf-ruler-instance";
+    private static final String RESULT_CONTENT_TYPE = "application/fhir+json";
+    private static final int TASK_PAGE_SIZE = 100;
+    static final long PROGRESS_INTERVAL_MILLIS = 10000;
+    // Locks the updates of a Task, striped by Task id
+    private static final Striped<Lock> taskLocks = Striped.lazyWeakLock(1024);
+
+    private static final AtomicInteger threadCounter = new AtomicInteger();
+    private static final ExecutorService executor = new ThreadPoolExecutor(
+            Math.max(1, HapiProperties.getAsyncJobsThreads()), Math.max(1, HapiProperties.getAsyncJobsThreads()),
+            0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(Math.max(1, HapiProperties.getAsyncJobsQueueSize())),
+            runnable -> {
+                Thread thread = new Thread(runnable, "async-job-" + threadCounter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private final String instanceId = UUID.randomUUID().toString();
+    private DaoRegistry registry;
+    private IFhirResourceDao<Task> taskDao;
+    private IFhirResourceDao<Binary> binaryDao;
+    private InstanceLeaseTable leases;
+    private JobProgressTable progressTable;
+
+    // The Tasks of the requests this instance accepted and has not finished
+    private final Set<String> activeJobs = ConcurrentHashMap.newKeySet();
+    // The progress of the requests this instance is running, by Task id
+    private final Map<String, EvaluationProgress> progressByJob = new ConcurrentHashMap<>();
+    private ScheduledExecutorService leaseKeeper;
+
+    @Inject
+    public AsyncJobProvider(DaoRegistry registry, DataSource dataSource) {
+        this.registry = registry;
+        this.taskDao = registry.getResourceDao(Task.class);
+        this.binaryDao = registry.getResourceDao(Binary.class);
+        this.leases = new InstanceLeaseTable(dataSource);
+        this.progressTable = new JobProgressTable(dataSource);
+    }
+
+    public static boolean isAsyncRequested(RequestDetails details) {
+        String prefer = details == null ? null : details.getHeader("Prefer");
+        return prefer != null && prefer.contains("respond-async");
+    }
+
+    /**
+     * The owner of the Tasks this server instance works on.
+     */
+    public Reference getInstanceReference() {
+        return new Reference().setIdentifier(new Identifier().setSystem(INSTANCE_SYSTEM).setValue(this.instanceId));
+    }
+
+    boolean isOwnedByThisInstance(Task task) {
+        Identifier owner = task.getOwner().getIdentifier();
+        return INSTANCE_SYSTEM.equals(owner.getSystem()) && this.instanceId.equals(owner.getValue());
+    }
+
+    /**
+     * Starts {@code job} in the background and returns the 202 response to throw
+     * from the operation.
+     */
+    public AsyncRequestAcceptedException submit(String operation, RequestDetails details,
+            Function<EvaluationProgress, Resource> job) {
+        Task task = new Task();
+        task.getMeta().addTag(JOB_TAG_SYSTEM, operation, null);
+        task.setStatus(Task.TaskStatus.ACCEPTED);
+        task.setIntent(Task.TaskIntent.ORDER);
+        task.setCode(new CodeableConcept().setText(operation));
+        task.setAuthoredOn(new Date());
+        task.setLastModified(new Date());
+        task.setOwner(getInstanceReference());
+        // Only the path, the query may carry credentials (e.g. $evaluate-measure's user and pass)
+        task.addInput().setType(new CodeableConcept().setText("request"))
+                .setValue(new StringType(details.getRequestPath()));
+        IIdType taskId = this.taskDao.create(task).getId().toUnqualifiedVersionless();
+
+        this.activeJobs.add(taskId.getIdPart());
+        try {
+            executor.execute(() -> run(taskId, operation, job));
+        } catch (RejectedExecutionException e) {
+            this.activeJobs.remove(taskId.getIdPart());
+            fail(taskId, "Too many asynchronous requests");
+            throw new UnclassifiedServerFailureException(503,
+                    "Too many asynchronous requests are waiting, please retry later");
+        }
+
+        logger.info("Started {} as Task/{}", operation, taskId.getIdPart());
+        return new AsyncRequestAcceptedException(
+                details.getFhirServerBase() + "/Task/" + taskId.getIdPart() + "/$async-status", null);
+    }
+
+    @Operation(name = "$async-status", idempotent = true, type = Task.class)
+    public IBaseResource asyncStatus(@IdParam IdType theId) {
+        Task task = this.taskDao.read(theId);
+        if (task.getMeta().getTag(JOB_TAG_SYSTEM, task.getCode().getText()) == null) {
+            throw new ResourceNotFoundException(
+                    String.format("Task/%s is not an asynchronous request", theId.getIdPart()));
+        }
+
+        switch (task.getStatus()) {
+            case COMPLETED:
+                Reference result = (Reference) task.getOutputFirstRep().getValue();
+                Binary binary = this.binaryDao.read(new IdType(result.getReference()));
+                return this.binaryDao.getContext().newJsonParser()
+                        .parseResource(new String(binary.getData(), StandardCharsets.UTF_8));
+            case FAILED:
+                throw new InternalErrorException(task.getStatusReason().getText());
+            default:
+                // Up to date if this instance runs the request, else as last saved
+                String taskId = task.getIdElement().getIdPart();
+                EvaluationProgress running = this.progressByJob.get(taskId);
+                String progress = running != null ? running.toString() : this.progressTable.read(taskId);
+                throw new AsyncRequestAcceptedException(null, progress != null ? progress
+                        : task.getStatus() == Task.TaskStatus.INPROGRESS ? "In progress" : "Waiting to start");
+        }
+    }
+
+    @PostConstruct
+    public void startLeaseKeeper() {
+        long interval = Math.max(1000, HapiProperties.getAsyncJobsLeaseTimeout() / 4);
+        this.leaseKeeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "async-job-lease");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.leaseKeeper.scheduleWithFixedDelay(() -> {
+            renewLease();
+            failInterruptedJobs();
+            deleteExpiredJobs();
+        }, 0, interval, TimeUnit.MILLISECONDS);
+        this.leaseKeeper.scheduleWithFixedDelay(this::saveProgress, PROGRESS_INTERVAL_MILLIS,
+                PROGRESS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stopLeaseKeeper() {
+        if (this.leaseKeeper != null) {
+            this.leaseKeeper.shutdownNow();
+        }
+    }
+
+    private void renewLease() {
+        try {
+            long now = System.currentTimeMillis();
+            this.leases.renew(this.instanceId, now);
+            // Those of instances that stopped long ago, their requests are failed by now
+            this.leases.removeExpired(now - 2L * HapiProperties.getAsyncJobsLeaseTimeout());
+        } catch (Exception e) {
+            logger.warn("Unable to renew the lease of this server instance", e);
+        }
+    }
+
+    private void saveProgress() {
+        for (Map.Entry<String, EvaluationProgress> job : this.progressByJob.entrySet()) {
+            try {
+                this.progressTable.save(job.getKey(), job.getValue().toString());
+            } catch (Exception e) {
+                logger.warn("Unable to save the progress of Task/{}", job.getKey(), e);
+            }
+        }
+    }
+
+    /**
+     * Requests whose instance stopped can't be resumed. Requests of other
+     * instances are left alone while their instance keeps its lease.
+     */
+    private void failInterruptedJobs() {
+        try {
+            Map<String, Long> renewedAt = this.leases.read();
+            SearchParameterMap map = new SearchParameterMap();
+            map.add("_tag", new TokenParam().setSystem(JOB_TAG_SYSTEM));
+            map.add("status", new TokenOrListParam().add(Task.TaskStatus.ACCEPTED.toCode())
+                    .add(Task.TaskStatus.INPROGRESS.toCode()));
+            long expired = System.currentTimeMillis() - HapiProperties.getAsyncJobsLeaseTimeout();
+            for (Task task : PagedResourceIterable.<Task>forSearch(this.registry, "Task", map, TASK_PAGE_SIZE)) {
+                IIdType taskId = task.getIdElement().toUnqualifiedVersionless();
+                if (this.activeJobs.contains(taskId.getIdPart())) {
+                    continue;
+                }
+
+                // An accepted request of this instance may not be among the
+                // active ones yet, one it runs stays there until it is done
+                boolean orphaned = isOwnedByThisInstance(task) && task.getStatus() == Task.TaskStatus.INPROGRESS;
+                // An instance without a lease may not have renewed it yet, its
+                // Task tells how long ago the request was accepted
+                Long ownerRenewedAt = renewedAt.get(task.getOwner().getIdentifier().getValue());
+                long lastSeen = ownerRenewedAt != null ? ownerRenewedAt
+                        : task.hasLastModified() ? task.getLastModified().getTime() : 0;
+                boolean leaseExpired = lastSeen < expired;
+                if (orphaned || leaseExpired) {
+                    logger.info("Task/{} was interrupted, its server stopped", taskId.getIdPart());
+                    fail(taskId, "Interrupted, the server running the request stopped");
+                    this.progressTable.remove(taskId.getIdPart());
+                }
+            }
+        } catch (Exception e) {
+            logger.warn("Unable to update the status of interrupted asynchronous requests", e);
+        }
+    }
+
+    /**
+     * Deletes the requests that finished more than async_jobs.retention ago and
+     * their results, a page of them at a time.
+     */
+    private void deleteExpiredJobs() {
+        try {
+            SearchParameterMap map = new SearchParameterMap();
+            map.add("_tag", new TokenParam().setSystem(JOB_TAG_SYSTEM));
+            map.add("status", new TokenOrListParam().add(Task.TaskStatus.COMPLETED.toCode())
+                    .add(Task.TaskStatus.FAILED.toCode()));
+            map.setLastUpdated(new DateRangeParam(null,
+                    new Date(System.currentTimeMillis() - HapiProperties.getAsyncJobsRetention())));
+
+            // Collected first, deleting them would shift the pages of the search
+            List<Task> expired = new ArrayList<>();
+            for (Task task : PagedResourceIterable.<Task>forSearch(this.registry, "Task", map, TASK_PAGE_SIZE)) {
+                expired.add(task);
+                if (expired.size() >= TASK_PAGE_SIZE) {
+                    break;
+                }
+            }
+
+            for (Task task : expired) {
+                IIdType taskId = task.getIdElement().toUnqualifiedVersionless();
+                // The Task first, it references its result
+                this.taskDao.delete(taskId);
+                if (task.getOutputFirstRep().getValue() instanceof Reference) {
+                    Reference result = (Reference) task.getOutputFirstRep().getValue();
+                    this.binaryDao.delete(new IdType(result.getReference()));
+                }
+                // Saved once more if the request finished while its progress was saved
+                this.progressTable.remove(taskId.getIdPart());
+                logger.info("Deleted the expired asynchronous request Task/{}", taskId.getIdPart());
+            }
+        } catch (Exception e) {
+            logger.warn("Unable to delete expired asynchronous requests", e);
+        }
+    }
+
+    private void run(IIdType taskId, String operation, Function<EvaluationProgress, Resource> job) {
+        update(taskId, task -> task.setStatus(Task.TaskStatus.INPROGRESS));
+
+        // Saved every PROGRESS_INTERVAL_MILLIS by the lease keeper, the Task only
+        // gets the final count
+        EvaluationProgress progress = new EvaluationProgress(current -> {
+        });
+        this.progressByJob.put(taskId.getIdPart(), progress);
+
+        try {
+            Resource result = job.apply(progress);
+
+            Binary binary = new Binary();
+            binary.setContentType(RESULT_CONTENT_TYPE);
+            binary.setData(this.binaryDao.getContext().newJsonParser().encodeResourceToString(result)
+                    .getBytes(StandardCharsets.UTF_8));
+            IIdType binaryId = this.binaryDao.create(binary).getId().toUnqualifiedVersionless();
+
+            update(taskId, task -> {
+                task.setBusinessStatus(new CodeableConcept().setText(progress.toString()));
+                task.addOutput().setType(new CodeableConcept().setText("result"))
+                        .setValue(new Reference(binaryId.getValue()));
+                task.setStatus(Task.TaskStatus.COMPLETED);
+            });
+            logger.info("Completed {} for Task/{}", operation, taskId.getIdPart());
+        } catch (Exception e) {
+            logger.error(String.format("Error running %s for Task/%s", operation, taskId.getIdPart()), e);
+            fail(taskId, e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName());
+        } finally {
+            this.progressByJob.remove(taskId.getIdPart());
+            this.activeJobs.remove(taskId.getIdPart());
+            try {
+                this.progressTable.remove(taskId.getIdPart());
+            } catch (Exception e) {
+                logger.warn("Unable to delete the progress of Task/{}", taskId.getIdPart(), e);
+            }
+        }
+    }
+
+    private void fail(IIdType taskId, String reason) {
+        update(taskId, task -> {
+            task.setStatus(Task.TaskStatus.FAILED);
+            task.setStatusReason(new CodeableConcept().setText(reason));
+        });
+    }
+
+    // A request may be failed by the lease keeper while it finishes, updates
+    // of the same Task are serialized, those of different Tasks rarely wait
+    private void update(IIdType taskId, Consumer<Task> change) {
+        Lock lock = taskLocks.get(taskId.getIdPart());
+        lock.lock();
+        try {
+            Task task = this.taskDao.read(taskId);
+            change.accept(task);
+            task.setLastModified(new Date());
+            this.taskDao.update(task);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
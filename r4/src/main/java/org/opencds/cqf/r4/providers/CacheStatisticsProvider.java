@@ -0,0 +1,63 @@
+package org.opencds.cqf.r4.providers;
+
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.DecimalType;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.Parameters;
+import org.opencds.cqf.common.evaluation.CompiledLibraryCache;
+import org.opencds.cqf.common.evaluation.MeasurePlanCache;
+import org.opencds.cqf.common.evaluation.MeasureReportCache;
+import org.springframework.stereotype.Component;
+
+import com.google.common.cache.CacheStats;
+
+import ca.uhn.fhir.rest.annotation.Operation;
+
+@Component
+public class CacheStatisticsProvider {
+
+    /*
+     *
+     * NOTE that $cache-statistics is not a standard FHIR operation. It reports
+     * the hits, misses and evictions of the server's process-wide caches since
+     * it was started.
+     *
+     */
+    @Operation(name = "$cache-statistics", idempotent = true)
+    public Parameters cacheStatistics() {
+        Parameters parameters = new Parameters();
+
+        MeasureReportCache reportCache = MeasureReportCache.getInstance();
+        Parameters.ParametersParameterComponent reports = addCache(parameters, "measureReportCache",
+                reportCache.getStats(), reportCache.size());
+        reports.addPart().setName("enabled").setValue(new BooleanType(reportCache.isEnabled()));
+        reports.addPart().setName("patientInvalidationCount")
+                .setValue(count(reportCache.getPatientInvalidationCount()));
+        reports.addPart().setName("invalidateAllCount").setValue(count(reportCache.getInvalidateAllCount()));
+
+        CompiledLibraryCache libraryCache = CompiledLibraryCache.getInstance();
+        addCache(parameters, "compiledLibraryCache", libraryCache.getStats(), libraryCache.size());
+
+        MeasurePlanCache planCache = MeasurePlanCache.getInstance();
+        addCache(parameters, "measurePlanCache", planCache.getStats(), planCache.size());
+
+        return parameters;
+    }
+
+    private Parameters.ParametersParameterComponent addCache(Parameters parameters, String name, CacheStats stats,
+            long size) {
+        Parameters.ParametersParameterComponent cache = parameters.addParameter().setName(name);
+        cache.addPart().setName("size").setValue(count(size));
+        cache.addPart().setName("hitCount").setValue(count(stats.hitCount()));
+        cache.addPart().setName("missCount").setValue(count(stats.missCount()));
+        cache.addPart().setName("hitRate").setValue(new DecimalType(stats.hitRate()));
+        cache.addPart().setName("evictionCount").setValue(count(stats.evictionCount()));
+        cache.addPart().setName("averageLoadPenaltyMillis")
+                .setValue(new DecimalType(stats.averageLoadPenalty() / 1000000.0));
+        return cache;
+    }
+
+    private static IntegerType count(long count) {
+        return new IntegerType((int) Math.min(count, Integer.MAX_VALUE));
+    }
+}
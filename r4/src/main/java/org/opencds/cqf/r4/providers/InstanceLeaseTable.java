@@ -0,0 +1,125 @@
+package org.opencds.cqf.r4.providers;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.sql.DataSource;
+
+/**
+ * The leases of the server instances sharing the database, one row of the
+ * {@value #TABLE} table per instance with the time it last renewed its lease.
+ * The row is updated in place, so renewing a lease doesn't add to the history
+ * of any resource.
+ */
+class InstanceLeaseTable {
+
+    static final String TABLE = "CQF_INSTANCE_LEASE";
+
+    private static final Set<DataSource> initialized = ConcurrentHashMap.newKeySet();
+
+    private final DataSource dataSource;
+
+    InstanceLeaseTable(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    void renew(String instanceId, long renewedAt) {
+        try (Connection connection = getConnection();
+                PreparedStatement update = connection.prepareStatement(
+                        "UPDATE " + TABLE + " SET RENEWED_AT = ? WHERE INSTANCE_ID = ?")) {
+            update.setLong(1, renewedAt);
+            update.setString(2, instanceId);
+            if (update.executeUpdate() == 0) {
+                try (PreparedStatement insert = connection.prepareStatement(
+                        "INSERT INTO " + TABLE + " (INSTANCE_ID, RENEWED_AT) VALUES (?, ?)")) {
+                    insert.setString(1, instanceId);
+                    insert.setLong(2, renewedAt);
+                    insert.executeUpdate();
+                }
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Unable to renew the lease of the server instance", e);
+        }
+    }
+
+    /**
+     * The time each instance last renewed its lease, by instance id.
+     */
+    Map<String, Long> read() {
+        Map<String, Long> leases = new HashMap<>();
+        try (Connection connection = getConnection();
+                PreparedStatement select = connection.prepareStatement(
+                        "SELECT INSTANCE_ID, RENEWED_AT FROM " + TABLE);
+                ResultSet resultSet = select.executeQuery()) {
+            while (resultSet.next()) {
+                leases.put(resultSet.getString(1), resultSet.getLong(2));
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Unable to read the leases of the server instances", e);
+        }
+        return leases;
+    }
+
+    /**
+     * Deletes the leases last renewed before {@code renewedBefore}, those of
+     * instances that stopped.
+     */
+    void removeExpired(long renewedBefore) {
+        try (Connection connection = getConnection();
+                PreparedStatement delete = connection.prepareStatement(
+                        "DELETE FROM " + TABLE + " WHERE RENEWED_AT < ?")) {
+            delete.setLong(1, renewedBefore);
+            delete.executeUpdate();
+        } catch (SQLException e) {
+            throw new RuntimeException("Unable to delete the expired leases of the server instances", e);
+        }
+    }
+
+    private Connection getConnection() throws SQLException {
+        Connection connection = this.dataSource.getConnection();
+        if (!initialized.contains(this.dataSource)) {
+            try {
+                createTable(connection);
+            } catch (SQLException e) {
+                connection.close();
+                throw e;
+            }
+            initialized.add(this.dataSource);
+        }
+        return connection;
+    }
+
+    private static void createTable(Connection connection) throws SQLException {
+        if (tableExists(connection)) {
+            return;
+        }
+
+        try (PreparedStatement create = connection.prepareStatement("CREATE TABLE " + TABLE
+                + " (INSTANCE_ID VARCHAR(64) NOT NULL, RENEWED_AT BIGINT NOT NULL, PRIMARY KEY (INSTANCE_ID))")) {
+            create.executeUpdate();
+        } catch (SQLException e) {
+            // Another server may have created it in the meantime
+            if (!tableExists(connection)) {
+                throw e;
+            }
+        }
+    }
+
+    // Databases differ in the case they keep unquoted names in
+    private static boolean tableExists(Connection connection) throws SQLException {
+        try (ResultSet tables = connection.getMetaData().getTables(null, null, null, new String[] { "TABLE" })) {
+            while (tables.next()) {
+                if (TABLE.equalsIgnoreCase(tables.getString("TABLE_NAME"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,118 @@
+package org.opencds.cqf.r4.providers;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.sql.DataSource;
+
+/**
+ * The progress of the running asynchronous requests, one row of the
+ * {@value #TABLE} table per request with the progress its instance last
+ * saved, so any instance sharing the database can report it. The row is
+ * updated in place, so saving the progress doesn't add to the history of the
+ * request's Task.
+ */
+class JobProgressTable {
+
+    static final String TABLE = "CQF_ASYNC_JOB_PROGRESS";
+
+    private static final Set<DataSource> initialized = ConcurrentHashMap.newKeySet();
+
+    private final DataSource dataSource;
+
+    JobProgressTable(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    void save(String taskId, String progress) {
+        try (Connection connection = getConnection();
+                PreparedStatement update = connection.prepareStatement(
+                        "UPDATE " + TABLE + " SET PROGRESS = ? WHERE TASK_ID = ?")) {
+            update.setString(1, progress);
+            update.setString(2, taskId);
+            if (update.executeUpdate() == 0) {
+                try (PreparedStatement insert = connection.prepareStatement(
+                        "INSERT INTO " + TABLE + " (TASK_ID, PROGRESS) VALUES (?, ?)")) {
+                    insert.setString(1, taskId);
+                    insert.setString(2, progress);
+                    insert.executeUpdate();
+                }
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Unable to save the progress of the asynchronous request", e);
+        }
+    }
+
+    /**
+     * The progress last saved for the request, null if there is none.
+     */
+    String read(String taskId) {
+        try (Connection connection = getConnection();
+                PreparedStatement select = connection.prepareStatement(
+                        "SELECT PROGRESS FROM " + TABLE + " WHERE TASK_ID = ?")) {
+            select.setString(1, taskId);
+            try (ResultSet resultSet = select.executeQuery()) {
+                return resultSet.next() ? resultSet.getString(1) : null;
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Unable to read the progress of the asynchronous request", e);
+        }
+    }
+
+    void remove(String taskId) {
+        try (Connection connection = getConnection();
+                PreparedStatement delete = connection.prepareStatement(
+                        "DELETE FROM " + TABLE + " WHERE TASK_ID = ?")) {
+            delete.setString(1, taskId);
+            delete.executeUpdate();
+        } catch (SQLException e) {
+            throw new RuntimeException("Unable to delete the progress of the asynchronous request", e);
+        }
+    }
+
+    private Connection getConnection() throws SQLException {
+        Connection connection = this.dataSource.getConnection();
+        if (!initialized.contains(this.dataSource)) {
+            try {
+                createTable(connection);
+            } catch (SQLException e) {
+                connection.close();
+                throw e;
+            }
+            initialized.add(this.dataSource);
+        }
+        return connection;
+    }
+
+    private static void createTable(Connection connection) throws SQLException {
+        if (tableExists(connection)) {
+            return;
+        }
+
+        try (PreparedStatement create = connection.prepareStatement("CREATE TABLE " + TABLE
+                + " (TASK_ID VARCHAR(64) NOT NULL, PROGRESS VARCHAR(255), PRIMARY KEY (TASK_ID))")) {
+            create.executeUpdate();
+        } catch (SQLException e) {
+            // Another server may have created it in the meantime
+            if (!tableExists(connection)) {
+                throw e;
+            }
+        }
+    }
+
+    // Databases differ in the case they keep unquoted names in
+    private static boolean tableExists(Connection connection) throws SQLException {
+        try (ResultSet tables = connection.getMetaData().getTables(null, null, null, new String[] { "TABLE" })) {
+            while (tables.next()) {
+                if (TABLE.equalsIgnoreCase(tables.getString("TABLE_NAME"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -1,42 +1,63 @@
 package org.opencds.cqf.r4.providers;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import javax.inject.Inject;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.sql.DataSource;
 
 import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
 import ca.uhn.fhir.rest.annotation.*;
 import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.instance.model.api.IAnyResource;
-import org.hl7.fhir.instance.model.api.IBase;
 import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
 import org.hl7.fhir.r4.model.*;
+import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.evaluation.EvaluatedResourcesMode;
+import org.opencds.cqf.common.evaluation.EvaluationProgress;
 import org.opencds.cqf.common.evaluation.EvaluationProviderFactory;
+import org.opencds.cqf.common.evaluation.MeasureReportCache;
+import org.opencds.cqf.common.evaluation.PatientPartitionExecutor;
+import org.opencds.cqf.common.evaluation.PatientShard;
 import org.opencds.cqf.common.providers.LibraryResolutionProvider;
-import org.opencds.cqf.cql.engine.data.DataProvider;
+import org.opencds.cqf.common.providers.NdjsonRequestReader;
+import org.opencds.cqf.common.providers.NdjsonResponseWriter;
+import org.opencds.cqf.common.retrieve.PagedResourceIterable;
+import org.opencds.cqf.cql.engine.execution.Context;
 import org.opencds.cqf.cql.engine.execution.LibraryLoader;
 import org.opencds.cqf.tooling.library.r4.NarrativeProvider;
 import org.opencds.cqf.tooling.measure.r4.CqfMeasure;
 import org.opencds.cqf.r4.evaluation.MeasureEvaluation;
 import org.opencds.cqf.r4.evaluation.MeasureEvaluationSeed;
+import org.opencds.cqf.r4.evaluation.MeasureResultStore;
+import org.opencds.cqf.r4.evaluation.MultiMeasureEvaluation;
+import org.opencds.cqf.r4.helpers.ChunkedTransactionIngester;
 import org.opencds.cqf.r4.helpers.LibraryHelper;
+import org.opencds.cqf.r4.helpers.ReferenceResolver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 
-import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
 import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
 import ca.uhn.fhir.jpa.api.dao.IFhirSystemDao;
 import ca.uhn.fhir.jpa.rp.r4.MeasureResourceProvider;
 import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.model.api.annotation.Description;
 import ca.uhn.fhir.rest.api.MethodOutcome;
 import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
 
+import com.google.common.collect.Iterators;
+
 @Component
 public class MeasureOperationsProvider {
 
@@ -48,16 +69,30 @@ public class MeasureOperationsProvider {
     private MeasureResourceProvider measureResourceProvider;
     private DaoRegistry registry;
     private EvaluationProviderFactory factory;
+    private AsyncJobProvider asyncJobProvider;
+    private MeasureReportCache reportCache;
+    private DataSource dataSource;
 
     private static final Logger logger = LoggerFactory.getLogger(MeasureOperationsProvider.class);
 
+    private static final String PRODUCT_LINE_URL = "http://hl7.org/fhir/us/cqframework/cqfmeasures/StructureDefinition/cqfm-productLine";
+
+    // Members of a Group whose care gaps are evaluated as one task
+    private static final int CARE_GAP_MEMBERS_PER_TASK = 10;
+    // $submit-data-ndjson batch size when none is configured
+    private static final int SUBMIT_DATA_NDJSON_BATCH_SIZE = 1000;
+
     @Inject
     public MeasureOperationsProvider(DaoRegistry registry, EvaluationProviderFactory factory,
             NarrativeProvider narrativeProvider, HQMFProvider hqmfProvider,
             LibraryResolutionProvider<org.hl7.fhir.r4.model.Library> libraryResolutionProvider,
-            MeasureResourceProvider measureResourceProvider) {
+            MeasureResourceProvider measureResourceProvider, AsyncJobProvider asyncJobProvider,
+            DataSource dataSource) {
         this.registry = registry;
+        this.dataSource = dataSource;
         this.factory = factory;
+        this.asyncJobProvider = asyncJobProvider;
+        this.reportCache = MeasureReportCache.getInstance();
 
         this.libraryResolutionProvider = libraryResolutionProvider;
         this.narrativeProvider = narrativeProvider;
@@ -139,7 +174,7 @@ public class MeasureOperationsProvider {
      *
      */
     @Operation(name = "$evaluate-measure", idempotent = true, type = Measure.class)
-    public MeasureReport evaluateMeasure(@IdParam IdType theId,
+    public MeasureReport evaluateMeasure(RequestDetails theRequestDetails, @IdParam IdType theId,
             @OperationParam(name = "periodStart") String periodStart,
             @OperationParam(name = "periodEnd") String periodEnd, @OperationParam(name = "measure") String measureRef,
             @OperationParam(name = "reportType") String reportType, @OperationParam(name = "patient") String patientRef,
@@ -147,21 +182,70 @@ public class MeasureOperationsProvider {
             @OperationParam(name = "practitioner") String practitionerRef,
             @OperationParam(name = "lastReceivedOn") String lastReceivedOn,
             @OperationParam(name = "source") String source, @OperationParam(name = "user") String user,
-            @OperationParam(name = "pass") String pass) throws InternalErrorException, FHIRException {
-        LibraryLoader libraryLoader = LibraryHelper.createLibraryLoader(this.libraryResolutionProvider);
-        MeasureEvaluationSeed seed = new MeasureEvaluationSeed(this.factory, libraryLoader,
-                this.libraryResolutionProvider);
-        Measure measure = this.measureResourceProvider.getDao().read(theId);
+            @OperationParam(name = "pass") String pass,
+            @OperationParam(name = "_parallelism") String parallelism,
+            @OperationParam(name = "evaluatedResources") String evaluatedResources)
+            throws InternalErrorException, FHIRException {
+        EvaluatedResourcesMode evaluatedResourcesMode = EvaluatedResourcesMode.resolve(evaluatedResources);
+        if (AsyncJobProvider.isAsyncRequested(theRequestDetails)) {
+            throw this.asyncJobProvider.submit("$evaluate-measure", theRequestDetails,
+                    progress -> evaluateMeasure(theId, periodStart, periodEnd, measureRef, reportType, patientRef,
+                            productLine, practitionerRef, lastReceivedOn, source, user, pass, parallelism,
+                            evaluatedResourcesMode, progress));
+        }
 
-        if (measure == null) {
-            throw new RuntimeException("Could not find Measure/" + theId.getIdPart());
+        return evaluateMeasure(theId, periodStart, periodEnd, measureRef, reportType, patientRef, productLine,
+                practitionerRef, lastReceivedOn, source, user, pass, parallelism, evaluatedResourcesMode, null);
+    }
+
+    private MeasureReport evaluateMeasure(IdType theId, String periodStart, String periodEnd, String measureRef,
+            String reportType, String patientRef, String productLine, String practitionerRef, String lastReceivedOn,
+            String source, String user, String pass, String parallelism, EvaluatedResourcesMode evaluatedResourcesMode,
+            EvaluationProgress progress) throws InternalErrorException, FHIRException {
+        // Individual reports over the server's own data are cached, see
+        // MeasureReportCache
+        MeasureReportCache.Key cacheKey = null;
+        if ((reportType == null || reportType.equals("patient")) && patientRef != null && source == null
+                && this.reportCache.isEnabled()) {
+            // The request rarely names a version, key by the stored one
+            Measure measure = this.measureResourceProvider.getDao().read(theId);
+            cacheKey = this.reportCache.newKey(measure.getIdElement().getIdPart(), measure.getMeta().getVersionId(),
+                    periodStart, periodEnd, productLine, reportType + "|" + evaluatedResourcesMode,
+                    new IdType(patientRef).getIdPart());
+            MeasureReport cached = (MeasureReport) this.reportCache.get(cacheKey);
+            if (cached != null) {
+                return cached.copy();
+            }
         }
 
-        seed.setup(measure, periodStart, periodEnd, productLine, source, user, pass);
+        MeasureReport report = evaluateMeasure(theId, periodStart, periodEnd, reportType, patientRef, productLine,
+                practitionerRef, source, user, pass, parallelism, evaluatedResourcesMode, progress);
+        if (cacheKey != null) {
+            this.reportCache.put(cacheKey, report.copy());
+        }
+
+        return report;
+    }
+
+    private MeasureReport evaluateMeasure(IdType theId, String periodStart, String periodEnd, String reportType,
+            String patientRef, String productLine, String practitionerRef, String source, String user, String pass,
+            String parallelism, EvaluatedResourcesMode evaluatedResourcesMode, EvaluationProgress progress)
+            throws InternalErrorException, FHIRException {
+        MeasureEvaluationSeed seed = createSeed(theId, periodStart, periodEnd, productLine, source, user, pass);
 
         // resolve report type
         MeasureEvaluation evaluator = new MeasureEvaluation(seed.getDataProvider(), this.registry,
-                seed.getMeasurementPeriod());
+                seed.getMeasurementPeriod(), seed::createContext,
+                PatientPartitionExecutor.resolveParallelism(parallelism));
+        evaluator.setDefinition(seed.getDefinition());
+        evaluator.setProgress(progress);
+        evaluator.setEvaluatedResourcesMode(evaluatedResourcesMode);
+        // Changes to remote data sources can't be tracked
+        if (source == null && HapiProperties.getMeasureEvaluationIncremental()) {
+            evaluator.setResultStore(
+                    new MeasureResultStore(this.registry, this.dataSource, seed.getMeasure(), periodStart,
+                            periodEnd, productLine));
+        }
         if (reportType != null) {
             switch (reportType) {
                 case "patient":
@@ -179,7 +263,7 @@ public class MeasureOperationsProvider {
         MeasureReport report = evaluator.evaluatePatientMeasure(seed.getMeasure(), seed.getContext(), patientRef);
         if (productLine != null) {
             Extension ext = new Extension();
-            ext.setUrl("http://hl7.org/fhir/us/cqframework/cqfmeasures/StructureDefinition/cqfm-productLine");
+            ext.setUrl(PRODUCT_LINE_URL);
             ext.setValue(new StringType(productLine));
             report.addExtension(ext);
         }
@@ -187,6 +271,169 @@ public class MeasureOperationsProvider {
         return report;
     }
 
+    /*
+     *
+     * NOTE that $evaluate-measures is not a standard FHIR operation. It evaluates
+     * several measures over the same population and period in a single pass over
+     * the patients, retrieving each patient's data once for all of them.
+     *
+     */
+    @Operation(name = "$evaluate-measures", idempotent = true)
+    public Bundle evaluateMeasures(RequestDetails theRequestDetails,
+            @OperationParam(name = "measure", min = 1,
+                    max = OperationParam.MAX_UNLIMITED) List<StringType> measureRefs,
+            @OperationParam(name = "periodStart") String periodStart,
+            @OperationParam(name = "periodEnd") String periodEnd,
+            @OperationParam(name = "reportType") String reportType,
+            @OperationParam(name = "productLine") String productLine,
+            @OperationParam(name = "practitioner") String practitionerRef,
+            @OperationParam(name = "_parallelism") String parallelism,
+            @OperationParam(name = "evaluatedResources") String evaluatedResources) throws FHIRException {
+        List<IdType> measureIds = new ArrayList<>();
+        for (StringType measureRef : measureRefs) {
+            for (String ref : measureRef.getValue().split(",")) {
+                if (!ref.trim().isEmpty()) {
+                    measureIds.add(ref.contains("/") ? new IdType(ref.trim()) : new IdType("Measure", ref.trim()));
+                }
+            }
+        }
+        if (measureIds.isEmpty()) {
+            throw new IllegalArgumentException("At least one measure is required");
+        }
+        if (reportType != null && !reportType.equals("population") && !reportType.equals("patient-list")) {
+            throw new IllegalArgumentException("Invalid report type: " + reportType);
+        }
+        int resolvedParallelism = PatientPartitionExecutor.resolveParallelism(parallelism);
+        EvaluatedResourcesMode evaluatedResourcesMode = EvaluatedResourcesMode.resolve(evaluatedResources);
+
+        if (AsyncJobProvider.isAsyncRequested(theRequestDetails)) {
+            throw this.asyncJobProvider.submit("$evaluate-measures", theRequestDetails,
+                    progress -> evaluateMeasures(measureIds, periodStart, periodEnd, reportType, productLine,
+                            practitionerRef, resolvedParallelism, evaluatedResourcesMode, progress));
+        }
+
+        return evaluateMeasures(measureIds, periodStart, periodEnd, reportType, productLine, practitionerRef,
+                resolvedParallelism, evaluatedResourcesMode, null);
+    }
+
+    private Bundle evaluateMeasures(List<IdType> measureIds, String periodStart, String periodEnd,
+            String reportType, String productLine, String practitionerRef, int parallelism,
+            EvaluatedResourcesMode evaluatedResourcesMode, EvaluationProgress progress) throws FHIRException {
+        boolean subjectList = "patient-list".equals(reportType);
+        List<MeasureEvaluation.MeasureRun> runs = new ArrayList<>();
+        for (IdType measureId : measureIds) {
+            MeasureEvaluationSeed seed = createSeed(measureId, periodStart, periodEnd, productLine, null, null,
+                    null);
+            // The parallel workers are those of the MultiMeasureEvaluation, which
+            // creates their Contexts with seed::createContext
+            MeasureEvaluation evaluator = new MeasureEvaluation(seed.getDataProvider(), this.registry,
+                    seed.getMeasurementPeriod(), seed::createContext, 1);
+            evaluator.setDefinition(seed.getDefinition());
+            evaluator.setEvaluatedResourcesMode(evaluatedResourcesMode);
+            runs.add(subjectList ? evaluator.startSubjectListRun(seed.getMeasure(), seed.getContext())
+                    : evaluator.startPopulationRun(seed.getMeasure(), seed.getContext()));
+        }
+
+        MultiMeasureEvaluation evaluation = new MultiMeasureEvaluation(this.registry, runs, parallelism);
+        evaluation.setProgress(progress);
+        List<MeasureReport> reports = evaluation.evaluate(subjectList ? practitionerRef : null);
+
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.COLLECTION);
+        for (MeasureReport report : reports) {
+            bundle.addEntry().setResource(report);
+        }
+        return bundle;
+    }
+
+    /**
+     * Evaluates the patients of one shard of a population or patient-list
+     * report, see {@link MeasureShardProvider}.
+     */
+    public MeasureReport evaluateMeasureShard(IdType theId, String periodStart, String periodEnd,
+            String reportType, String productLine, String practitionerRef, PatientShard shard,
+            EvaluationProgress progress) throws FHIRException {
+        MeasureEvaluationSeed seed = createSeed(theId, periodStart, periodEnd, productLine, null, null, null);
+
+        MeasureEvaluation evaluator = new MeasureEvaluation(seed.getDataProvider(), this.registry,
+                seed.getMeasurementPeriod(), seed::createContext, PatientPartitionExecutor.resolveParallelism(null));
+        evaluator.setDefinition(seed.getDefinition());
+        evaluator.setProgress(progress);
+        evaluator.setShard(shard);
+        evaluator.setEvaluatedResourcesMode(EvaluatedResourcesMode.resolve(null));
+        if ("patient-list".equals(reportType)) {
+            return evaluator.evaluateSubjectListMeasure(seed.getMeasure(), seed.getContext(), practitionerRef);
+        }
+        return evaluator.evaluatePopulationMeasure(seed.getMeasure(), seed.getContext());
+    }
+
+    /*
+     *
+     * NOTE that $evaluate-measure-individual is not a standard FHIR operation. It
+     * evaluates the individual report of every patient of the population (or of
+     * the practitioner's patients) and writes each to the response as soon as it
+     * is ready, as application/fhir+ndjson.
+     *
+     */
+    @Description(shortDefinition = "Individual reports of every patient as NDJSON (non-standard)",
+            formalDefinition = "Not a standard FHIR operation. Evaluates the individual report of every patient of"
+                    + " the population (or of the practitioner's patients) and writes each to the response as soon"
+                    + " as it is ready, one MeasureReport per line as " + NdjsonResponseWriter.CONTENT_TYPE + ".")
+    @Operation(name = "$evaluate-measure-individual", idempotent = true, type = Measure.class,
+            manualResponse = true)
+    public void evaluateIndividualMeasures(RequestDetails theRequestDetails, HttpServletResponse theServletResponse,
+            @IdParam IdType theId, @OperationParam(name = "periodStart") String periodStart,
+            @OperationParam(name = "periodEnd") String periodEnd,
+            @OperationParam(name = "productLine") String productLine,
+            @OperationParam(name = "practitioner") String practitionerRef,
+            @Description(shortDefinition = "Only " + NdjsonResponseWriter.CONTENT_TYPE + " is supported")
+            @OperationParam(name = "_outputFormat") String outputFormat) throws IOException {
+        if (outputFormat != null && !NdjsonResponseWriter.isRequested(outputFormat)) {
+            throw new IllegalArgumentException(
+                    "$evaluate-measure-individual only supports _outputFormat " + NdjsonResponseWriter.CONTENT_TYPE);
+        }
+
+        MeasureEvaluationSeed seed = createSeed(theId, periodStart, periodEnd, productLine, null, null, null);
+        PagedResourceIterable<Patient> patients = new MeasureEvaluation(seed.getDataProvider(), this.registry,
+                seed.getMeasurementPeriod()).getPatients(practitionerRef);
+        EvaluatedResourcesMode evaluatedResourcesMode = EvaluatedResourcesMode.resolve(null);
+
+        try (NdjsonResponseWriter writer = new NdjsonResponseWriter(this.measureResourceProvider.getContext(),
+                theServletResponse)) {
+            streamNdjson(writer, () -> new PatientPartitionExecutor(PatientPartitionExecutor.resolveParallelism(null))
+                    .execute(patients.pages(),
+                            () -> new IndividualReportWorker(Collections.singletonList(seed), evaluatedResourcesMode),
+                            (worker, page) -> {
+                                Measure measure = (Measure) worker.measures.get(0);
+                                List<MeasureReport> reports = new ArrayList<>();
+                                for (Patient patient : page) {
+                                    MeasureReport report = worker.evaluate(measure, patient);
+                                    if (productLine != null) {
+                                        report.addExtension(
+                                                new Extension(PRODUCT_LINE_URL, new StringType(productLine)));
+                                    }
+                                    reports.add(report);
+                                }
+                                return reports;
+                            }, reports -> reports.forEach(report -> writeNdjson(writer, report))));
+        }
+    }
+
+    private MeasureEvaluationSeed createSeed(IdType theId, String periodStart, String periodEnd,
+            String productLine, String source, String user, String pass) {
+        LibraryLoader libraryLoader = LibraryHelper.createLibraryLoader(this.libraryResolutionProvider);
+        MeasureEvaluationSeed seed = new MeasureEvaluationSeed(this.factory, libraryLoader,
+                this.libraryResolutionProvider);
+        Measure measure = this.measureResourceProvider.getDao().read(theId);
+
+        if (measure == null) {
+            throw new RuntimeException("Could not find Measure/" + theId.getIdPart());
+        }
+
+        seed.setup(measure, periodStart, periodEnd, productLine, source, user, pass);
+        return seed;
+    }
+
     // @Operation(name = "$evaluate-measure-with-source", idempotent = true)
     // public MeasureReport evaluateMeasure(@IdParam IdType theId,
     // @OperationParam(name = "sourceData", min = 1, max = 1, type = Bundle.class)
@@ -220,56 +467,218 @@ public class MeasureOperationsProvider {
     // }
 
     @Operation(name = "$care-gaps", idempotent = true, type = Measure.class)
-    public Parameters careGapsReport(@OperationParam(name = "periodStart") String periodStart,
+    public Parameters careGapsReport(RequestDetails theRequestDetails, @OperationParam(name = "periodStart") String periodStart,
                                      @OperationParam(name = "periodEnd") String periodEnd, @OperationParam(name = "subject") String subject,
                                      @OperationParam(name = "topic") String topic,@OperationParam(name = "practitioner") String practitioner,
                                      @OperationParam(name = "measure") String measure, @OperationParam(name="status")String status,
-                                     @OperationParam(name = "organization") String organization){
+                                     @OperationParam(name = "organization") String organization,
+                                     @OperationParam(name = "_parallelism") String parallelism){
+        careGapParameterValidation(periodStart, periodEnd, subject, topic, practitioner, measure, status, organization);
+        int resolvedParallelism = resolveCareGapParallelism(parallelism);
+        if (AsyncJobProvider.isAsyncRequested(theRequestDetails)) {
+            throw this.asyncJobProvider.submit("$care-gaps", theRequestDetails, progress -> careGapsReport(periodStart,
+                    periodEnd, subject, topic, measure, status, resolvedParallelism, progress));
+        }
+
+        return careGapsReport(periodStart, periodEnd, subject, topic, measure, status, resolvedParallelism, null);
+    }
+
+    /*
+     *
+     * NOTE that $care-gaps-individual is not a standard FHIR operation. It takes
+     * the parameters of $care-gaps and writes each patient's care gap report to
+     * the response as soon as it is ready, one Bundle per line as
+     * application/fhir+ndjson, instead of collecting them into a single
+     * Parameters resource (and respond-async is not needed). The @Description
+     * puts this into its OperationDefinition in the CapabilityStatement.
+     *
+     */
+    @Description(shortDefinition = "$care-gaps streamed as NDJSON (non-standard)",
+            formalDefinition = "Not a standard FHIR operation. Takes the parameters of $care-gaps and writes each"
+                    + " patient's care gap report to the response as soon as it is ready, one Bundle per line as "
+                    + NdjsonResponseWriter.CONTENT_TYPE + ", instead of collecting them into a Parameters resource."
+                    + " Use $care-gaps for the standard response.")
+    @Operation(name = "$care-gaps-individual", idempotent = true, type = Measure.class, manualResponse = true)
+    public void careGapsIndividual(RequestDetails theRequestDetails, HttpServletResponse theServletResponse,
+            @OperationParam(name = "periodStart") String periodStart,
+            @OperationParam(name = "periodEnd") String periodEnd, @OperationParam(name = "subject") String subject,
+            @OperationParam(name = "topic") String topic, @OperationParam(name = "practitioner") String practitioner,
+            @OperationParam(name = "measure") String measure, @OperationParam(name = "status") String status,
+            @OperationParam(name = "organization") String organization,
+            @Description(shortDefinition = "Only " + NdjsonResponseWriter.CONTENT_TYPE + " is supported")
+            @OperationParam(name = "_outputFormat") String outputFormat,
+            @OperationParam(name = "_parallelism") String parallelism) throws IOException {
+        if (outputFormat != null && !NdjsonResponseWriter.isRequested(outputFormat)) {
+            throw new IllegalArgumentException(
+                    "$care-gaps-individual only supports _outputFormat " + NdjsonResponseWriter.CONTENT_TYPE);
+        }
+        careGapParameterValidation(periodStart, periodEnd, subject, topic, practitioner, measure, status, organization);
+        int resolvedParallelism = resolveCareGapParallelism(parallelism);
+
+        try (NdjsonResponseWriter writer = new NdjsonResponseWriter(this.measureResourceProvider.getContext(),
+                theServletResponse)) {
+            streamNdjson(writer, () -> careGaps(periodStart, periodEnd, subject, topic, measure, status,
+                    resolvedParallelism, null, (careGapSubject, careGapReport) -> {
+                        if (careGapReport != null) {
+                            writeNdjson(writer, careGapReport);
+                        }
+                    }));
+        }
+    }
+
+    /*
+     * The members of a Group are evaluated on all of the shared worker threads
+     * (measure_evaluation.max_threads) unless the request asks for fewer.
+     */
+    private static int resolveCareGapParallelism(String parallelism) {
+        return PatientPartitionExecutor.resolveParallelism(parallelism, PatientPartitionExecutor.getMaxThreads());
+    }
+
+    private Parameters careGapsReport(String periodStart, String periodEnd, String subject, String topic,
+            String measure, String status, int parallelism, EvaluationProgress progress) {
+        Parameters returnParams = new Parameters();
+        if (subject != null && subject.startsWith("Group/")) {
+            returnParams.setId((status==null?"all-gaps": status) + "-" + subject.replace("/","_") + "-report");
+        }
+        careGaps(periodStart, periodEnd, subject, topic, measure, status, parallelism, progress,
+                (careGapSubject, careGapReport) -> returnParams.addParameter(
+                        new Parameters.ParametersParameterComponent()
+                                .setName("Gaps in Care Report - " + careGapSubject)
+                                .setResource(careGapReport)));
+        return returnParams;
+    }
+
+    /**
+     * Hands the care gap report of each patient of {@code subject} to
+     * {@code consumer} as soon as it is ready. The parameters are validated by
+     * the operations, see {@link #careGapParameterValidation}.
+     */
+    private void careGaps(String periodStart, String periodEnd, String subject, String topic, String measure,
+            String status, int parallelism, EvaluationProgress progress, BiConsumer<String, Bundle> consumer) {
         //TODO: status - optional if null all gaps - if closed-gap code only those gaps that are closed if open-gap code only those that are open
         //TODO: topic should allow many and be a union of them
         //TODO: "The Server needs to make sure that practitioner is authorized to get the gaps in care report for and know what measures the practitioner are eligible or qualified."
-        Parameters returnParams = new Parameters();
-        if(careGapParameterValidation(periodStart, periodEnd, subject, topic, practitioner, measure, status, organization)) {
-            if(subject.startsWith("Patient/")){
-                returnParams.addParameter(new Parameters.ParametersParameterComponent()
-                        .setName("Gaps in Care Report - " + subject)
-                        .setResource(patientCareGap(periodStart, periodEnd, subject, topic, measure, status)));
-                return returnParams;
-            }else if(subject.startsWith("Group/")) {
-                returnParams.setId((status==null?"all-gaps": status) + "-" + subject.replace("/","_") + "-report");
-                (getPatientListFromGroup(subject))
-                    .forEach(groupSubject ->{
-                        Bundle patientGapBundle = patientCareGap(periodStart, periodEnd, groupSubject, topic, measure, status);
-                        if(null != patientGapBundle){
-                            returnParams.addParameter(new Parameters.ParametersParameterComponent()
-                                    .setName("Gaps in Care Report - " + groupSubject)
-                                    .setResource(patientGapBundle));
-                        }
-                    });
+        if(subject.startsWith("Patient/")){
+            consumer.accept(subject, patientCareGap(periodStart, periodEnd, subject, topic, measure, status));
+            if (progress != null) {
+                progress.setTotal(1);
+                progress.patientProcessed();
+            }
+        }else if(subject.startsWith("Group/")) {
+            List<String> groupSubjects = getPatientListFromGroup(subject);
+            if (progress != null) {
+                progress.setTotal(groupSubjects.size());
             }
-            return returnParams;
+            groupCareGap(periodStart, periodEnd, groupSubjects, topic, measure, status, parallelism, progress,
+                    consumer);
         }
-        if (practitioner == null || practitioner.equals("")) {
-            return new Parameters().addParameter(
-                    new Parameters.ParametersParameterComponent()
-                            .setName("Gaps in Care Report - " + subject)
-                            .setResource(patientCareGap(periodStart, periodEnd, subject, topic, measure,status)));
+    }
+
+    /**
+     * Evaluates the care gaps of each member of a Group. The measures, their
+     * libraries and the reporter are resolved once for the whole Group, then the
+     * members are evaluated {@code parallelism} at a time on the shared worker
+     * threads, each worker with its own copy of the measures and execution
+     * Contexts.
+     * Each member's report is handed to {@code consumer} in member order as soon
+     * as it and the ones before it are done.
+     */
+    private void groupCareGap(String periodStart, String periodEnd, List<String> members, String topic,
+            String measure, String status, int parallelism, EvaluationProgress progress,
+            BiConsumer<String, Bundle> consumer) {
+        List<IBaseResource> measures = getCareGapMeasures(topic, measure);
+        String reporter = getCareGapReporter();
+        EvaluatedResourcesMode evaluatedResourcesMode = EvaluatedResourcesMode.resolve(null);
+        List<MeasureEvaluationSeed> seeds = new ArrayList<>();
+        for (IBaseResource resource : measures) {
+            seeds.add(createSeed(((Measure) resource).getIdElement(), periodStart, periodEnd, null, null, null, null));
         }
-        return returnParams;
+
+        new PatientPartitionExecutor(parallelism).execute(
+                Iterators.partition(members.iterator(), CARE_GAP_MEMBERS_PER_TASK),
+                () -> new IndividualReportWorker(seeds, evaluatedResourcesMode),
+                (worker, page) -> {
+                    Map<String, Bundle> bundles = new LinkedHashMap<>();
+                    for (String member : page) {
+                        bundles.put(member, patientCareGap(member, status, worker.measures, reporter,
+                                measureResource -> worker.evaluate(measureResource, member)));
+                    }
+                    return bundles;
+                }, bundles -> bundles.forEach((member, bundle) -> {
+                    if (bundle != null) {
+                        consumer.accept(member, bundle);
+                    }
+                    if (progress != null) {
+                        progress.patientProcessed();
+                    }
+                }));
     }
 
-    private List<String> getPatientListFromGroup(String subjectGroupRef){
-        List<String> patientList = new ArrayList<>();
+    // The state of one worker thread evaluating individual reports. The Measure
+    // resources are copied since reading HAPI model elements can initialize them.
+    private class IndividualReportWorker {
+        private final List<IBaseResource> measures = new ArrayList<>();
+        private final Map<Measure, MeasureEvaluation> evaluators = new IdentityHashMap<>();
+        private final Map<Measure, Context> contexts = new IdentityHashMap<>();
+
+        private IndividualReportWorker(List<MeasureEvaluationSeed> seeds, EvaluatedResourcesMode evaluatedResourcesMode) {
+            for (MeasureEvaluationSeed seed : seeds) {
+                Measure measure = seed.getMeasure().copy();
+                MeasureEvaluation evaluator = new MeasureEvaluation(seed.createDataProvider(), registry,
+                        seed.getMeasurementPeriod());
+                evaluator.setDefinition(seed.getDefinition());
+                evaluator.setEvaluatedResourcesMode(evaluatedResourcesMode);
+                this.measures.add(measure);
+                this.evaluators.put(measure, evaluator);
+                this.contexts.put(measure, seed.createContext());
+            }
+        }
+
+        private MeasureReport evaluate(Measure measure, String subject) {
+            return this.evaluators.get(measure).evaluatePatientMeasure(measure, this.contexts.get(measure), subject);
+        }
+
+        private MeasureReport evaluate(Measure measure, Patient patient) {
+            return this.evaluators.get(measure).evaluatePatientMeasure(measure, this.contexts.get(measure), patient);
+        }
+    }
+
+    private void writeNdjson(NdjsonResponseWriter writer, IBaseResource resource) {
+        try {
+            writer.write(resource);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Once the response has started its status can no longer report an error, so
+    // a failure ends the output with an OperationOutcome line instead
+    private void streamNdjson(NdjsonResponseWriter writer, Runnable producer) throws IOException {
+        try {
+            producer.run();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } catch (RuntimeException e) {
+            logger.error("Error while streaming NDJSON output", e);
+            OperationOutcome outcome = new OperationOutcome();
+            outcome.addIssue().setSeverity(OperationOutcome.IssueSeverity.ERROR)
+                    .setCode(OperationOutcome.IssueType.EXCEPTION).setDiagnostics(e.getMessage());
+            writer.write(outcome);
+        }
+    }
 
-        DataProvider dataProvider = this.factory.createDataProvider("FHIR", "4");
-        Iterable<Object> groupRetrieve = dataProvider.retrieve("Group", "id", subjectGroupRef, "Group", null, null, null,
-                null, null, null, null, null);
-        Group group;
-        if (groupRetrieve.iterator().hasNext()) {
-            group = (Group) groupRetrieve.iterator().next();
-            group.getMember().forEach(member -> patientList.add(member.getEntity().getReference()));
+    private List<String> getPatientListFromGroup(String subjectGroupRef){
+        // Only the member references are needed, so read the Group directly
+        // rather than going through a CQL data provider; the members' Patient
+        // resources are loaded one at a time as each report is evaluated.
+        Group group = this.registry.getResourceDao(Group.class).read(new IdType(subjectGroupRef));
+        if (group == null) {
+            return Collections.emptyList();
         }
-        return patientList;
+
+        return group.getMember().stream()
+                .map(member -> member.getEntity().getReference())
+                .collect(Collectors.toList());
     }
 
     @SuppressWarnings("unused")
@@ -301,10 +710,13 @@ public class MeasureOperationsProvider {
     }
 
     private Bundle patientCareGap(String periodStart, String periodEnd, String subject, String topic, String measure, String status) {
-        //TODO: this is an org hack.  Need to figure out what the right thing is.
-        IFhirResourceDao<Organization> orgDao = this.registry.getResourceDao(Organization.class);
-        List<IBaseResource> org = orgDao.search(new SearchParameterMap()).getResources(0, 1);
+        EvaluatedResourcesMode evaluatedResourcesMode = EvaluatedResourcesMode.resolve(null);
+        return patientCareGap(subject, status, getCareGapMeasures(topic, measure), getCareGapReporter(),
+                measureResource -> evaluateMeasure(measureResource.getIdElement(), periodStart, periodEnd, null,
+                        "patient", subject, null, null, null, null, null, null, null, evaluatedResourcesMode, null));
+    }
 
+    private List<IBaseResource> getCareGapMeasures(String topic, String measure) {
         SearchParameterMap theParams = new SearchParameterMap();
 
         // if (theId != null) {
@@ -316,8 +728,23 @@ public class MeasureOperationsProvider {
             TokenParam topicParam = new TokenParam(topic);
             theParams.add("topic", topicParam);
         }
-        List<IBaseResource> measures = getMeasureList(theParams, measure);
+        return getMeasureList(theParams, measure);
+    }
+
+    private String getCareGapReporter() {
+        //TODO: this is an org hack.  Need to figure out what the right thing is.
+        IFhirResourceDao<Organization> orgDao = this.registry.getResourceDao(Organization.class);
+        List<IBaseResource> org = orgDao.search(new SearchParameterMap()).getResources(0, 1);
+        //TODO: this is an org hack && requires an Organization to be in the ruler
+        return org != null && org.size() > 0 ? "Organization/" + org.get(0).getIdElement().getIdPart() : null;
+    }
 
+    /**
+     * Builds the care gap report of one patient from the individual reports
+     * {@code evaluator} produces for each of {@code measures}.
+     */
+    private Bundle patientCareGap(String subject, String status, List<IBaseResource> measures, String reporter,
+            Function<Measure, MeasureReport> evaluator) {
         Bundle careGapReport = new Bundle();
         careGapReport.setType(Bundle.BundleType.DOCUMENT);
         careGapReport.setTimestamp(new Date());
@@ -348,15 +775,13 @@ public class MeasureOperationsProvider {
             }
 
             // TODO - this is configured for patient-level evaluation only
-            report = evaluateMeasure(measureResource.getIdElement(), periodStart, periodEnd, null, "patient", subject, null,
-            null, null, null, null, null);
+            report = evaluator.apply(measureResource);
 
             report.setId(UUID.randomUUID().toString());
             report.setDate(new Date());
             report.setImprovementNotation(measureResource.getImprovementNotation());
-            //TODO: this is an org hack && requires an Organization to be in the ruler
-            if (org != null && org.size() > 0) {
-                report.setReporter(new Reference("Organization/" + org.get(0).getIdElement().getIdPart()));
+            if (reporter != null) {
+                report.setReporter(new Reference(reporter));
             }
             report.setMeta(new Meta().addProfile("http://hl7.org/fhir/us/davinci-deqm/StructureDefinition/indv-measurereport-deqm"));
             section.setFocus(new Reference("MeasureReport/" + report.getId()));
@@ -499,14 +924,26 @@ public class MeasureOperationsProvider {
     }
 
     @Operation(name = "$collect-data", idempotent = true, type = Measure.class)
-    public Parameters collectData(@IdParam IdType theId, @OperationParam(name = "periodStart") String periodStart,
+    public Parameters collectData(RequestDetails theRequestDetails, @IdParam IdType theId,
+            @OperationParam(name = "periodStart") String periodStart,
             @OperationParam(name = "periodEnd") String periodEnd, @OperationParam(name = "patient") String patientRef,
             @OperationParam(name = "practitioner") String practitionerRef,
             @OperationParam(name = "lastReceivedOn") String lastReceivedOn) throws FHIRException {
+        if (AsyncJobProvider.isAsyncRequested(theRequestDetails)) {
+            throw this.asyncJobProvider.submit("$collect-data", theRequestDetails, progress -> collectData(theId,
+                    periodStart, periodEnd, patientRef, practitionerRef, lastReceivedOn, progress));
+        }
+
+        return collectData(theId, periodStart, periodEnd, patientRef, practitionerRef, lastReceivedOn, null);
+    }
+
+    private Parameters collectData(IdType theId, String periodStart, String periodEnd, String patientRef,
+            String practitionerRef, String lastReceivedOn, EvaluationProgress progress) throws FHIRException {
         // TODO: Spec says that the periods are not required, but I am not sure what to
         // do when they aren't supplied so I made them required
+        // The data is the evaluated resources, whatever mode the server reports them in
         MeasureReport report = evaluateMeasure(theId, periodStart, periodEnd, null, null, patientRef, null,
-                practitionerRef, lastReceivedOn, null, null, null);
+                practitionerRef, lastReceivedOn, null, null, null, null, EvaluatedResourcesMode.FULL, progress);
         report.setGroup(null);
 
         Parameters parameters = new Parameters();
@@ -514,64 +951,46 @@ public class MeasureOperationsProvider {
         parameters.addParameter(
                 new Parameters.ParametersParameterComponent().setName("measurereport").setResource(report));
 
+        List<Resource> evaluatedResources = new ArrayList<>();
         if (report.hasContained()) {
             for (Resource contained : report.getContained()) {
                 if (contained instanceof Bundle) {
-                    addEvaluatedResourcesToParameters((Bundle) contained, parameters);
+                    evaluatedResources.addAll(getEvaluatedResources((Bundle) contained));
                 }
             }
         }
 
-        // TODO: need a way to resolve referenced resources within the evaluated
-        // resources
-        // Should be able to use _include search with * wildcard, but HAPI doesn't
-        // support that
+        // The evaluated resources the report only references (contained ones
+        // have no resource type and are skipped)
+        List<IIdType> evaluatedResourceIds = new ArrayList<>();
+        for (Reference reference : report.getEvaluatedResource()) {
+            if (reference.hasReference()) {
+                evaluatedResourceIds.add(new IdType(reference.getReference().replaceFirst("^#", "")));
+            }
+        }
+
+        createReferenceResolver().resolve(evaluatedResources, evaluatedResourceIds, parameters);
 
         return parameters;
     }
 
     private void addEvaluatedResourcesToParameters(Bundle contained, Parameters parameters) {
-        Map<String, Resource> resourceMap = new HashMap<>();
-        if (contained.hasEntry()) {
-            for (Bundle.BundleEntryComponent entry : contained.getEntry()) {
-                if (entry.hasResource() && !(entry.getResource() instanceof ListResource)) {
-                    if (!resourceMap.containsKey(entry.getResource().getIdElement().getValue())) {
-                        parameters.addParameter(new Parameters.ParametersParameterComponent().setName("resource")
-                                .setResource(entry.getResource()));
-
-                        resourceMap.put(entry.getResource().getIdElement().getValue(), entry.getResource());
+        createReferenceResolver().resolve(getEvaluatedResources(contained), Collections.emptyList(), parameters);
+    }
 
-                        resolveReferences(entry.getResource(), parameters, resourceMap);
-                    }
-                }
+    private List<Resource> getEvaluatedResources(Bundle contained) {
+        List<Resource> resources = new ArrayList<>();
+        for (Bundle.BundleEntryComponent entry : contained.getEntry()) {
+            if (entry.hasResource() && !(entry.getResource() instanceof ListResource)) {
+                resources.add(entry.getResource());
             }
         }
+        return resources;
     }
 
-    private void resolveReferences(Resource resource, Parameters parameters, Map<String, Resource> resourceMap) {
-        List<IBase> values;
-        for (BaseRuntimeChildDefinition child : this.measureResourceProvider.getContext()
-                .getResourceDefinition(resource).getChildren()) {
-            values = child.getAccessor().getValues(resource);
-            if (values == null || values.isEmpty()) {
-                continue;
-            }
-
-            else if (values.get(0) instanceof Reference
-                    && ((Reference) values.get(0)).getReferenceElement().hasResourceType()
-                    && ((Reference) values.get(0)).getReferenceElement().hasIdPart()) {
-                Resource fetchedResource = (Resource) registry
-                        .getResourceDao(((Reference) values.get(0)).getReferenceElement().getResourceType())
-                        .read(new IdType(((Reference) values.get(0)).getReferenceElement().getIdPart()));
-
-                if (!resourceMap.containsKey(fetchedResource.getIdElement().getValue())) {
-                    parameters.addParameter(new Parameters.ParametersParameterComponent().setName("resource")
-                            .setResource(fetchedResource));
-
-                    resourceMap.put(fetchedResource.getIdElement().getValue(), fetchedResource);
-                }
-            }
-        }
+    private ReferenceResolver createReferenceResolver() {
+        return new ReferenceResolver(this.measureResourceProvider.getContext(), this.registry,
+                HapiProperties.getCollectDataReferenceDepth());
     }
 
     // TODO - this needs a lot of work
@@ -584,13 +1003,17 @@ public class MeasureOperationsProvider {
         return this.dataRequirementsProvider.getDataRequirements(measure, this.libraryResolutionProvider);
     }
 
-    @SuppressWarnings("unchecked")
+    /*
+     * NOTE that the _batchSize parameter is not standard for $submit-data. With
+     * a batch size (the _batchSize query parameter, or submit_data.batch_size)
+     * the submission is committed in transactions of that many entries and the
+     * operation returns a batch-response Bundle with the outcome of each of
+     * them. Otherwise, it is committed as a single transaction.
+     */
     @Operation(name = "$submit-data", idempotent = true, type = Measure.class)
     public Resource submitData(RequestDetails details, @IdParam IdType theId,
             @OperationParam(name = "measurereport", min = 1, max = 1, type = MeasureReport.class) MeasureReport report,
             @OperationParam(name = "resource") List<IAnyResource> resources) {
-        Bundle transactionBundle = new Bundle().setType(Bundle.BundleType.TRANSACTION);
-
         /*
          * TODO - resource validation using $data-requirements operation (params are the
          * provided id and the measurement period from the MeasureReport)
@@ -599,21 +1022,92 @@ public class MeasureOperationsProvider {
          * StructureDefinition from URL or must it be stored in Ruler?)
          */
 
-        transactionBundle.addEntry(createTransactionEntry(report));
+        List<IBaseResource> submitted = new ArrayList<>();
+        submitted.add(report);
+        if (resources != null) {
+            submitted.addAll(resources);
+        }
+
+        int batchSize = resolveSubmitDataBatchSize(details);
+        if (batchSize > 0) {
+            return submitDataInBatches(details, submitted.iterator(), batchSize);
+        }
 
-        for (IAnyResource resource : resources) {
-            Resource res = (Resource) resource;
-            if (res instanceof Bundle) {
-                for (Bundle.BundleEntryComponent entry : createTransactionBundle((Bundle) res).getEntry()) {
-                    transactionBundle.addEntry(entry);
+        Bundle transactionBundle = new Bundle().setType(Bundle.BundleType.TRANSACTION);
+        for (IBaseResource resource : submitted) {
+            createSubmitDataEntries((Resource) resource).forEach(transactionBundle::addEntry);
+        }
+
+        return (Resource) getSystemDao().transaction(details, transactionBundle);
+    }
+
+    /*
+     * NOTE that $submit-data-ndjson is not a standard FHIR operation. It takes
+     * the data of a $submit-data as an application/fhir+ndjson body, one
+     * resource per line (MeasureReports, resources or Bundles), read as it
+     * arrives, and commits it in transactions of _batchSize entries (or
+     * submit_data.batch_size, or 1000 when neither is set). It returns a
+     * batch-response Bundle with the outcome of each transaction.
+     */
+    @Operation(name = "$submit-data-ndjson", type = Measure.class, manualRequest = true)
+    public Resource submitDataNdjson(RequestDetails details, HttpServletRequest request, @IdParam IdType theId)
+            throws IOException {
+        if (!NdjsonRequestReader.isNdjson(request.getContentType())) {
+            throw new IllegalArgumentException(
+                    String.format("$submit-data-ndjson requires a Content-Type of %s, found: %s",
+                            NdjsonResponseWriter.CONTENT_TYPE, request.getContentType()));
+        }
+
+        int batchSize = resolveSubmitDataBatchSize(details);
+        try (NdjsonRequestReader reader = new NdjsonRequestReader(this.measureResourceProvider.getContext(),
+                request)) {
+            return submitDataInBatches(details, reader, batchSize > 0 ? batchSize : SUBMIT_DATA_NDJSON_BATCH_SIZE);
+        }
+    }
+
+    private Bundle submitDataInBatches(RequestDetails details, Iterator<IBaseResource> resources, int batchSize) {
+        try (ChunkedTransactionIngester ingester = new ChunkedTransactionIngester(
+                this.measureResourceProvider.getContext(), getSystemDao(), details, batchSize,
+                HapiProperties.getSubmitDataParallelism())) {
+            while (resources.hasNext()) {
+                Resource resource = (Resource) resources.next();
+                List<Bundle.BundleEntryComponent> entries = createSubmitDataEntries(resource);
+                // Entries that reference each other through urn:uuid fullUrls have to be
+                // committed together
+                if (entries.stream().anyMatch(entry -> entry.hasFullUrl() && entry.getFullUrl().startsWith("urn:"))) {
+                    ingester.add(entries);
+                } else {
+                    entries.forEach(entry -> ingester.add(Collections.singletonList(entry)));
                 }
-            } else {
-                // Build transaction bundle
-                transactionBundle.addEntry(createTransactionEntry(res));
             }
+            return ingester.finish();
+        }
+    }
+
+    private List<Bundle.BundleEntryComponent> createSubmitDataEntries(Resource resource) {
+        if (resource instanceof Bundle) {
+            return createTransactionBundle((Bundle) resource).getEntry();
+        }
+        return Collections.singletonList(createTransactionEntry(resource));
+    }
+
+    private int resolveSubmitDataBatchSize(RequestDetails details) {
+        String[] values = details.getParameters().get("_batchSize");
+        if (values == null || values.length == 0 || values[0].isEmpty()) {
+            return HapiProperties.getSubmitDataBatchSize();
         }
 
-        return (Resource) ((IFhirSystemDao<Bundle,?>)this.registry.getSystemDao()).transaction(details, transactionBundle);
+        try {
+            return Integer.parseInt(values[0].trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(
+                    String.format("_batchSize must be a number, found: %s", values[0]));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private IFhirSystemDao<Bundle, ?> getSystemDao() {
+        return (IFhirSystemDao<Bundle, ?>) this.registry.getSystemDao();
     }
 
     private Bundle createTransactionBundle(Bundle bundle) {
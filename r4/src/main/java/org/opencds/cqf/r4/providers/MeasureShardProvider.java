@@ -0,0 +1,454 @@
+package org.opencds.cqf.r4.providers;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Binary;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.Measure;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.r4.model.Task;
+import org.hl7.fhir.r4.model.Type;
+import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.evaluation.EvaluationProgress;
+import org.opencds.cqf.common.evaluation.PatientShard;
+import org.opencds.cqf.r4.evaluation.MeasureReportMerger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.annotation.IdParam;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.param.DateParam;
+import ca.uhn.fhir.rest.param.ParamPrefixEnum;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceVersionConflictException;
+
+import com.google.common.util.concurrent.Striped;
+
+/**
+ * Evaluates population and patient-list reports across several server
+ * instances that share a database. The coordinator
+ * ($evaluate-measure-sharded) queues one Task per shard of the patients (see
+ * {@link PatientShard}), every instance with measure_shards.worker enabled
+ * claims queued shards by updating their Task (a conflicting update means
+ * another instance got it first) and stores the shard's report as a Binary.
+ * The coordinator works on its own shards too while it waits, then merges the
+ * shard reports with {@link MeasureReportMerger}. Shards of an instance that
+ * stopped are queued again once their lease (measure_shards.lease_timeout)
+ * expires. A job whose shards are not all done within measure_shards.timeout
+ * fails, and its shards still queued are cancelled.
+ */
+@Component
+public class MeasureShardProvider {
+
+    private static final Logger logger = LoggerFactory.getLogger(MeasureShardProvider.class);
+
+    public static final String SHARD_TAG_SYSTEM = "http://opencds.org/fhir/CodeSystem/cqf-ruler-measure-shard";
+    private static final String JOB_CODE = "job";
+    private static final String SHARD_CODE = "shard";
+    private static final String RESULT_CONTENT_TYPE = "application/fhir+json";
+    // Locks the updates of a Task, striped by Task id
+    private static final Striped<Lock> taskLocks = Striped.lazyWeakLock(1024);
+
+    private MeasureOperationsProvider measureOperationsProvider;
+    private AsyncJobProvider asyncJobProvider;
+    private IFhirResourceDao<Task> taskDao;
+    private IFhirResourceDao<Binary> binaryDao;
+    private IFhirResourceDao<Measure> measureDao;
+
+    private volatile Thread worker;
+
+    @Inject
+    public MeasureShardProvider(DaoRegistry registry, MeasureOperationsProvider measureOperationsProvider,
+            AsyncJobProvider asyncJobProvider) {
+        this.measureOperationsProvider = measureOperationsProvider;
+        this.asyncJobProvider = asyncJobProvider;
+        this.taskDao = registry.getResourceDao(Task.class);
+        this.binaryDao = registry.getResourceDao(Binary.class);
+        this.measureDao = registry.getResourceDao(Measure.class);
+    }
+
+    @PostConstruct
+    public void startWorker() {
+        if (!HapiProperties.getMeasureShardsWorker()) {
+            return;
+        }
+
+        this.worker = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    if (!runNextShard(null)) {
+                        Thread.sleep(HapiProperties.getMeasureShardsPollInterval());
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) {
+                    logger.warn("Unable to process queued measure shards", e);
+                    try {
+                        Thread.sleep(HapiProperties.getMeasureShardsPollInterval());
+                    } catch (InterruptedException interrupted) {
+                        return;
+                    }
+                }
+            }
+        }, "measure-shard-worker");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    @PreDestroy
+    public void stopWorker() {
+        if (this.worker != null) {
+            this.worker.interrupt();
+        }
+    }
+
+    @Operation(name = "$evaluate-measure-sharded", idempotent = true, type = Measure.class)
+    public MeasureReport evaluateMeasureSharded(RequestDetails theRequestDetails, @IdParam IdType theId,
+            @OperationParam(name = "periodStart") String periodStart,
+            @OperationParam(name = "periodEnd") String periodEnd,
+            @OperationParam(name = "reportType") String reportType,
+            @OperationParam(name = "productLine") String productLine,
+            @OperationParam(name = "practitioner") String practitionerRef,
+            @OperationParam(name = "shards") String shards) {
+        String resolvedReportType = reportType == null ? "population" : reportType;
+        if (!resolvedReportType.equals("population") && !resolvedReportType.equals("patient-list")) {
+            throw new IllegalArgumentException(
+                    "Only population and patient-list reports can be sharded, found: " + reportType);
+        }
+        int shardCount = resolveShards(shards);
+
+        if (AsyncJobProvider.isAsyncRequested(theRequestDetails)) {
+            throw this.asyncJobProvider.submit("$evaluate-measure-sharded", theRequestDetails,
+                    progress -> coordinate(theId, periodStart, periodEnd, resolvedReportType, productLine,
+                            practitionerRef, shardCount));
+        }
+
+        return coordinate(theId, periodStart, periodEnd, resolvedReportType, productLine, practitionerRef,
+                shardCount);
+    }
+
+    private int resolveShards(String shards) {
+        try {
+            int shardCount = Integer.parseInt(shards == null ? "" : shards.trim());
+            if (shardCount > 0) {
+                return shardCount;
+            }
+        } catch (NumberFormatException e) {
+            logger.warn("Unable to parse shards {}: {}", shards, e.getMessage());
+        }
+
+        throw new IllegalArgumentException(String.format("shards must be a positive integer, found: %s", shards));
+    }
+
+    private MeasureReport coordinate(IdType theId, String periodStart, String periodEnd, String reportType,
+            String productLine, String practitionerRef, int shardCount) {
+        Measure measure = this.measureDao.read(theId);
+        Reference measureReference = new Reference(measure.getIdElement().toUnqualifiedVersionless().getValue());
+
+        Task job = newTask(JOB_CODE, measureReference);
+        job.setStatus(Task.TaskStatus.INPROGRESS);
+        IIdType jobId = this.taskDao.create(job).getId().toUnqualifiedVersionless();
+
+        for (int i = 0; i < shardCount; i++) {
+            Task shard = newTask(SHARD_CODE, measureReference);
+            shard.setStatus(Task.TaskStatus.REQUESTED);
+            shard.addPartOf(new Reference(jobId.getValue()));
+            addInput(shard, "periodStart", periodStart == null ? null : new StringType(periodStart));
+            addInput(shard, "periodEnd", periodEnd == null ? null : new StringType(periodEnd));
+            addInput(shard, "reportType", new StringType(reportType));
+            addInput(shard, "productLine", productLine == null ? null : new StringType(productLine));
+            addInput(shard, "practitioner", practitionerRef == null ? null : new StringType(practitionerRef));
+            addInput(shard, "shard", new IntegerType(i));
+            addInput(shard, "shards", new IntegerType(shardCount));
+            this.taskDao.create(shard);
+        }
+        logger.info("Queued {} shards of Measure/{} as Task/{}", shardCount, theId.getIdPart(), jobId.getIdPart());
+
+        try {
+            List<Task> shards = awaitShards(jobId);
+            List<MeasureReport> reports = new ArrayList<>();
+            for (Task shard : shards) {
+                Reference result = (Reference) shard.getOutputFirstRep().getValue();
+                Binary binary = this.binaryDao.read(new IdType(result.getReference()));
+                reports.add(this.binaryDao.getContext().newJsonParser().parseResource(MeasureReport.class,
+                        new String(binary.getData(), StandardCharsets.UTF_8)));
+            }
+
+            MeasureReport report = new MeasureReportMerger(measure).merge(reports);
+            update(jobId, task -> task.setStatus(Task.TaskStatus.COMPLETED));
+            return report;
+        } catch (RuntimeException e) {
+            update(jobId, task -> {
+                task.setStatus(Task.TaskStatus.FAILED);
+                task.setStatusReason(new CodeableConcept().setText(e.getMessage()));
+            });
+            cancelQueuedShards(jobId);
+            throw e;
+        }
+    }
+
+    /**
+     * Works on the job's queued shards until all of them are done and returns
+     * them in shard order.
+     */
+    private List<Task> awaitShards(IIdType jobId) {
+        long timeout = HapiProperties.getMeasureShardsTimeout();
+        long deadline = System.currentTimeMillis() + timeout;
+        while (true) {
+            List<Task> shards = findShards(jobId, null);
+
+            boolean completed = true;
+            for (Task shard : shards) {
+                if (shard.getStatus() == Task.TaskStatus.FAILED) {
+                    throw new InternalErrorException(String.format("Shard %s failed: %s",
+                            getIntegerInput(shard, "shard") + 1, shard.getStatusReason().getText()));
+                }
+                completed &= shard.getStatus() == Task.TaskStatus.COMPLETED;
+            }
+            if (completed) {
+                shards.sort(Comparator.comparingInt(shard -> getIntegerInput(shard, "shard")));
+                return shards;
+            }
+            if (timeout > 0 && System.currentTimeMillis() > deadline) {
+                throw new InternalErrorException(
+                        String.format("The shards were not all done within %d milliseconds", timeout));
+            }
+
+            try {
+                if (!runNextShard(jobId)) {
+                    Thread.sleep(HapiProperties.getMeasureShardsPollInterval());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InternalErrorException("Interrupted while waiting for the measure shards", e);
+            }
+        }
+    }
+
+    /**
+     * Claims and evaluates a queued shard (of the given job, or of any job).
+     *
+     * @return false if there was none
+     */
+    private boolean runNextShard(IIdType jobId) {
+        requeueExpiredShards();
+
+        SearchParameterMap map = new SearchParameterMap();
+        map.setLoadSynchronous(true);
+        map.add("_tag", new TokenParam(SHARD_TAG_SYSTEM, SHARD_CODE));
+        map.add("status", new TokenParam(Task.TaskStatus.REQUESTED.toCode()));
+        if (jobId != null) {
+            map.add("part-of", new ReferenceParam(jobId.getValue()));
+        }
+
+        for (IBaseResource resource : this.taskDao.search(map).getResources(0, Integer.MAX_VALUE)) {
+            Task shard = (Task) resource;
+            shard.setStatus(Task.TaskStatus.INPROGRESS);
+            shard.setOwner(this.asyncJobProvider.getInstanceReference());
+            if (claim(shard)) {
+                runShard(shard);
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * The shards of the job, only those with {@code status} if it isn't null.
+     */
+    private List<Task> findShards(IIdType jobId, Task.TaskStatus status) {
+        SearchParameterMap map = new SearchParameterMap();
+        map.setLoadSynchronous(true);
+        map.add("part-of", new ReferenceParam(jobId.getValue()));
+        if (status != null) {
+            map.add("status", new TokenParam(status.toCode()));
+        }
+        List<Task> shards = new ArrayList<>();
+        for (IBaseResource resource : this.taskDao.search(map).getResources(0, Integer.MAX_VALUE)) {
+            shards.add((Task) resource);
+        }
+        return shards;
+    }
+
+    // So that no instance starts on a shard of a job that failed, a shard
+    // claimed meanwhile is left to finish
+    private void cancelQueuedShards(IIdType jobId) {
+        try {
+            for (Task shard : findShards(jobId, Task.TaskStatus.REQUESTED)) {
+                shard.setStatus(Task.TaskStatus.CANCELLED);
+                claim(shard);
+            }
+        } catch (RuntimeException e) {
+            logger.warn("Unable to cancel the queued shards of Task/{}", jobId.getIdPart(), e);
+        }
+    }
+
+    private void requeueExpiredShards() {
+        SearchParameterMap map = new SearchParameterMap();
+        map.setLoadSynchronous(true);
+        map.add("_tag", new TokenParam(SHARD_TAG_SYSTEM, SHARD_CODE));
+        map.add("status", new TokenParam(Task.TaskStatus.INPROGRESS.toCode()));
+        map.add("modified", new DateParam(ParamPrefixEnum.LESSTHAN,
+                new Date(System.currentTimeMillis() - HapiProperties.getMeasureShardsLeaseTimeout())));
+        for (IBaseResource resource : this.taskDao.search(map).getResources(0, Integer.MAX_VALUE)) {
+            Task shard = (Task) resource;
+            logger.info("Queuing Task/{} again, its worker stopped reporting progress",
+                    shard.getIdElement().getIdPart());
+            shard.setStatus(Task.TaskStatus.REQUESTED);
+            shard.setOwner(null);
+            claim(shard);
+        }
+    }
+
+    // Only succeeds if nobody updated the Task since it was read
+    private boolean claim(Task shard) {
+        shard.setId(shard.getIdElement().toUnqualifiedVersionless().withVersion(shard.getMeta().getVersionId()));
+        shard.setLastModified(new Date());
+        try {
+            this.taskDao.update(shard);
+            return true;
+        } catch (ResourceVersionConflictException e) {
+            return false;
+        }
+    }
+
+    private void runShard(Task shard) {
+        IIdType shardId = shard.getIdElement().toUnqualifiedVersionless();
+        PatientShard patientShard = new PatientShard(getIntegerInput(shard, "shard"),
+                getIntegerInput(shard, "shards"));
+        logger.info("Evaluating {} of Task/{}", patientShard,
+                shard.getPartOfFirstRep().getReferenceElement().getIdPart());
+
+        // Keeps the lease while the shard is evaluated
+        long heartbeatInterval = Math.max(1000, HapiProperties.getMeasureShardsLeaseTimeout() / 4);
+        AtomicLong lastHeartbeat = new AtomicLong(System.currentTimeMillis());
+        EvaluationProgress progress = new EvaluationProgress(current -> {
+            long now = System.currentTimeMillis();
+            long last = lastHeartbeat.get();
+            if (now - last >= heartbeatInterval && lastHeartbeat.compareAndSet(last, now)) {
+                updateClaimed(shardId,
+                        task -> task.setBusinessStatus(new CodeableConcept().setText(current.toString())));
+            }
+        });
+
+        try {
+            MeasureReport report = this.measureOperationsProvider.evaluateMeasureShard(
+                    new IdType(shard.getFocus().getReference()), getStringInput(shard, "periodStart"),
+                    getStringInput(shard, "periodEnd"), getStringInput(shard, "reportType"),
+                    getStringInput(shard, "productLine"), getStringInput(shard, "practitioner"), patientShard,
+                    progress);
+
+            Binary binary = new Binary();
+            binary.setContentType(RESULT_CONTENT_TYPE);
+            binary.setData(this.binaryDao.getContext().newJsonParser().encodeResourceToString(report)
+                    .getBytes(StandardCharsets.UTF_8));
+            IIdType binaryId = this.binaryDao.create(binary).getId().toUnqualifiedVersionless();
+
+            updateClaimed(shardId, task -> {
+                task.setBusinessStatus(new CodeableConcept().setText(progress.toString()));
+                task.getOutput().clear();
+                task.addOutput().setType(new CodeableConcept().setText("result"))
+                        .setValue(new Reference(binaryId.getValue()));
+                task.setStatus(Task.TaskStatus.COMPLETED);
+            });
+        } catch (Exception e) {
+            logger.error(String.format("Error evaluating Task/%s", shardId.getIdPart()), e);
+            updateClaimed(shardId, task -> {
+                task.setStatus(Task.TaskStatus.FAILED);
+                task.setStatusReason(new CodeableConcept()
+                        .setText(e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName()));
+            });
+        }
+    }
+
+    /**
+     * Updates a shard this instance claimed, unless another instance claimed it
+     * meanwhile (it was queued again because this one stalled past the lease),
+     * whose work the update would overwrite.
+     */
+    private void updateClaimed(IIdType shardId, Consumer<Task> change) {
+        // The heartbeat is reported from an evaluation thread, updates of the
+        // same Task are serialized, those of different Tasks rarely wait
+        Lock lock = taskLocks.get(shardId.getIdPart());
+        lock.lock();
+        try {
+            Task shard = this.taskDao.read(shardId);
+            // The version read is checked, so an instance claiming the shard
+            // after the read still wins
+            if (shard.getStatus() == Task.TaskStatus.INPROGRESS
+                    && this.asyncJobProvider.isOwnedByThisInstance(shard)) {
+                change.accept(shard);
+                if (claim(shard)) {
+                    return;
+                }
+            }
+            logger.warn("Dropping the update of Task/{}, another instance claimed it", shardId.getIdPart());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Task newTask(String code, Reference measureReference) {
+        Task task = new Task();
+        task.getMeta().addTag(SHARD_TAG_SYSTEM, code, null);
+        task.setIntent(Task.TaskIntent.ORDER);
+        task.setCode(new CodeableConcept().setText("$evaluate-measure-sharded"));
+        task.setFocus(measureReference);
+        task.setAuthoredOn(new Date());
+        task.setLastModified(new Date());
+        return task;
+    }
+
+    private void addInput(Task task, String name, Type value) {
+        if (value != null) {
+            task.addInput().setType(new CodeableConcept().setText(name)).setValue(value);
+        }
+    }
+
+    private String getStringInput(Task task, String name) {
+        for (Task.ParameterComponent input : task.getInput()) {
+            if (name.equals(input.getType().getText())) {
+                return input.getValue().primitiveValue();
+            }
+        }
+        return null;
+    }
+
+    private int getIntegerInput(Task task, String name) {
+        return Integer.parseInt(getStringInput(task, name));
+    }
+
+    // Of the job's Task, which only its coordinator updates
+    private void update(IIdType taskId, Consumer<Task> change) {
+        Task task = this.taskDao.read(taskId);
+        change.accept(task);
+        task.setLastModified(new Date());
+        this.taskDao.update(task);
+    }
+}
@@ -8,6 +8,8 @@ import javax.servlet.ServletException;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Meta;
 import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.evaluation.LibraryCacheInvalidationInterceptor;
+import org.opencds.cqf.common.evaluation.MeasureReportCacheInvalidationInterceptor;
 import org.opencds.cqf.r4.providers.CqfRulerJpaConformanceProviderR4;
 import org.opencds.cqf.r4.providers.OAuthProvider;
 import org.opencds.cqf.tooling.measure.r4.CodeTerminologyRef;
@@ -18,6 +20,7 @@ import org.springframework.context.ApplicationContext;
 import org.springframework.web.cors.CorsConfiguration;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.IInterceptorService;
 import ca.uhn.fhir.jpa.api.config.DaoConfig;
 import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
 import ca.uhn.fhir.jpa.api.dao.IFhirSystemDao;
@@ -134,6 +137,21 @@ public class BaseServlet extends RestfulServer {
         LoggingInterceptor loggingInterceptor = new LoggingInterceptor();
         this.registerInterceptor(loggingInterceptor);
 
+        /*
+         * Compiled libraries are cached across requests, so drop them when the
+         * Library is changed. This is registered with the JPA interceptor service
+         * so that updates made outside of a REST request are seen as well.
+         */
+        IInterceptorService jpaInterceptorService = appCtx.getBean(IInterceptorService.class);
+        jpaInterceptorService.registerInterceptor(new LibraryCacheInvalidationInterceptor(this.fhirContext));
+
+        /*
+         * Individual MeasureReports are cached across requests as well, so drop
+         * them when the data of their patient, or the logic or terminology they
+         * were evaluated with, is changed.
+         */
+        jpaInterceptorService.registerInterceptor(new MeasureReportCacheInvalidationInterceptor(this.fhirContext));
+
         /*
          * If you are hosting this server at a specific DNS name, the server will try to
          * figure out the FHIR base URL based on what the web container tells it, but
@@ -0,0 +1,94 @@
+package org.opencds.cqf.r4.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.cqframework.cql.elm.execution.ExpressionDef;
+import org.cqframework.cql.elm.execution.FunctionDef;
+import org.cqframework.cql.elm.execution.Library;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Expression;
+import org.hl7.fhir.r4.model.Measure;
+import org.junit.Test;
+import org.opencds.cqf.common.evaluation.MeasurePopulationType;
+import org.opencds.cqf.common.evaluation.MeasureScoring;
+
+public class MeasureDefinitionTest {
+
+    private static final String POPULATION_SYSTEM = "http://terminology.hl7.org/CodeSystem/measure-population";
+
+    @Test
+    public void populationsAreResolvedPerGroup() {
+        Measure measure = measure("1");
+        measure.addGroup().addPopulation().setCode(populationCode("numerator"));
+
+        MeasureDefinition definition = new MeasureDefinition(measure, null);
+
+        assertEquals(MeasureScoring.PROPORTION, definition.getScoring());
+        Map<MeasurePopulationType, Integer> populations = definition.getPopulations(0);
+        assertEquals(Integer.valueOf(0), populations.get(MeasurePopulationType.INITIALPOPULATION));
+        assertEquals(Integer.valueOf(2), populations.get(MeasurePopulationType.NUMERATOR));
+        // The unknown population code is left out
+        assertEquals(2, populations.size());
+        assertEquals(Integer.valueOf(0), definition.getPopulations(1).get(MeasurePopulationType.NUMERATOR));
+    }
+
+    @Test
+    public void supplementalDataIsKeyedByCodeTextOrExpression() {
+        Measure measure = measure("1");
+        measure.addSupplementalData().setCode(new CodeableConcept().setText("sde-sex"))
+                .setCriteria(new Expression().setExpression("SDE Sex"));
+        measure.addSupplementalData().setCriteria(new Expression().setExpression("SDE Race"));
+
+        MeasureDefinition definition = new MeasureDefinition(measure, null);
+
+        assertEquals(2, definition.getSupplementalData().size());
+        assertEquals("sde-sex", definition.getSupplementalData().get(0).getKey());
+        assertEquals("SDE Sex", definition.getSupplementalData().get(0).getExpression());
+        assertEquals("SDE Race", definition.getSupplementalData().get(1).getKey());
+    }
+
+    @Test
+    public void expressionsResolveToTheFirstDefinitionOfTheirName() {
+        ExpressionDef numerator = new ExpressionDef().withName("Numerator");
+        FunctionDef observation = new FunctionDef().withName("Observation");
+        Library library = new Library().withStatements(new Library.Statements().withDef(numerator, observation,
+                new ExpressionDef().withName("Numerator")));
+
+        MeasureDefinition definition = new MeasureDefinition(measure("1"), library);
+
+        // Found without going to the Context
+        assertSame(numerator, definition.resolveExpression(null, "Numerator"));
+        assertSame(observation, definition.resolveExpression(null, "Observation"));
+    }
+
+    @Test
+    public void definitionIsOfOneVersionOfTheMeasure() {
+        MeasureDefinition definition = new MeasureDefinition(measure("1"), null);
+
+        assertTrue(definition.isDefinitionOf(measure("1")));
+        assertFalse(definition.isDefinitionOf(measure("2")));
+        assertFalse(new MeasureDefinition(measure(null), null).isDefinitionOf(measure(null)));
+    }
+
+    private static Measure measure(String version) {
+        Measure measure = new Measure();
+        measure.setId(version == null ? "Measure/test" : "Measure/test/_history/" + version);
+        measure.setScoring(new CodeableConcept().addCoding(
+                new Coding().setSystem("http://terminology.hl7.org/CodeSystem/measure-scoring").setCode("proportion")));
+        Measure.MeasureGroupComponent group = measure.addGroup();
+        group.addPopulation().setCode(populationCode("initial-population"));
+        group.addPopulation().setCode(populationCode("unknown"));
+        group.addPopulation().setCode(populationCode("numerator"));
+        return measure;
+    }
+
+    private static CodeableConcept populationCode(String code) {
+        return new CodeableConcept().addCoding(new Coding().setSystem(POPULATION_SYSTEM).setCode(code));
+    }
+}
@@ -0,0 +1,367 @@
+package org.opencds.cqf.r4.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.cqframework.cql.elm.execution.ExpressionDef;
+import org.cqframework.cql.elm.execution.FunctionDef;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.OperandDef;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Expression;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.ListResource;
+import org.hl7.fhir.r4.model.Measure;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.Test;
+import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.evaluation.EvaluatedResourcesMode;
+import org.opencds.cqf.common.evaluation.ObservationAggregate;
+import org.opencds.cqf.common.evaluation.PatientShard;
+import org.opencds.cqf.common.testing.TestDao;
+import org.opencds.cqf.common.testing.TestDaoRegistry;
+import org.opencds.cqf.cql.engine.execution.Context;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+
+public class MeasureEvaluationParallelismTest {
+
+    private static final String POPULATION_SYSTEM = "http://terminology.hl7.org/CodeSystem/measure-population";
+    private static final String GENDER_SYSTEM = "http://hl7.org/fhir/administrative-gender";
+    // More than one page of measure_evaluation.patient_page_size patients, so the
+    // pages are spread over the workers
+    private static final int PATIENTS = 1234;
+
+    private final List<IBaseResource> patients = new ArrayList<>();
+    private final Library library;
+    private final Measure measure = measure();
+
+    public MeasureEvaluationParallelismTest() {
+        for (int i = 0; i < PATIENTS; i++) {
+            Patient patient = new Patient();
+            patient.setId(String.format("p%04d", i));
+            patient.addName().setFamily("Patient" + i);
+            this.patients.add(patient);
+        }
+
+        this.library = new Library().withIdentifier(new VersionedIdentifier().withId("Test").withVersion("1.0"))
+                .withStatements(new Library.Statements().withDef(
+                        def("Initial Population", i -> true),
+                        def("Denominator", i -> i % 2 == 0),
+                        def("Denominator Exclusion", i -> i % 10 == 0),
+                        def("Numerator", i -> i % 3 == 0),
+                        def("Numerator 2", i -> i % 7 == 0),
+                        // Some patients have no stratum
+                        def("Sex", i -> i % 11 == 0 ? null : gender(i)),
+                        def("SDE Sex", MeasureEvaluationParallelismTest::gender)));
+    }
+
+    @Test
+    public void populationReportDoesNotDependOnParallelism() {
+        MeasureReport sequential = evaluate(1,
+                (evaluator, context) -> evaluator.evaluatePopulationMeasure(this.measure, context));
+        MeasureReport parallel = evaluate(4,
+                (evaluator, context) -> evaluator.evaluatePopulationMeasure(this.measure, context));
+
+        List<String> summary = summarize(sequential);
+        assertTrue(summary.contains("group 0 numerator 164"));
+        assertEquals(summary, summarize(parallel));
+    }
+
+    @Test
+    public void subjectListReportDoesNotDependOnParallelism() {
+        MeasureReport sequential = evaluate(1, (evaluator, context) -> evaluator.evaluateSubjectListMeasure(
+                this.measure, context, null));
+        MeasureReport parallel = evaluate(4, (evaluator, context) -> evaluator.evaluateSubjectListMeasure(
+                this.measure, context, null));
+
+        List<String> summary = summarize(sequential);
+        assertTrue(summary.stream().anyMatch(line -> line.startsWith("group 1 numerator subjects [Patient/p0000, ")));
+        assertEquals(summary, summarize(parallel));
+    }
+
+    @Test
+    public void mergedShardReportsMatchTheUnshardedReport() {
+        MeasureReport unsharded = evaluate(1,
+                (evaluator, context) -> evaluator.evaluatePopulationMeasure(this.measure, context));
+
+        int shards = 3;
+        List<MeasureReport> reports = new ArrayList<>();
+        for (int i = 0; i < shards; i++) {
+            PatientShard shard = new PatientShard(i, shards);
+            reports.add(evaluate(2, (evaluator, context) -> {
+                evaluator.setShard(shard);
+                return evaluator.evaluatePopulationMeasure(this.measure, context);
+            }));
+        }
+        MeasureReport merged = new MeasureReportMerger(this.measure).merge(reports);
+
+        // The strata come in the order the shards first met them
+        List<String> expected = summarize(unsharded);
+        List<String> actual = summarize(merged);
+        Collections.sort(expected);
+        Collections.sort(actual);
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void mergedShardReportsScoreContinuousVariablesOverAllPatients() {
+        // Observes the number of the patient, averaged
+        Library library = new Library().withIdentifier(this.library.getIdentifier())
+                .withStatements(new Library.Statements().withDef(this.library.getStatements().getDef()));
+        library.getStatements().getDef().add(new FunctionDef()
+                .withOperand(new OperandDef().withName("Patient"))
+                .withExpression(new org.cqframework.cql.elm.execution.Expression() {
+                    @Override
+                    public Object evaluate(Context context) {
+                        return Integer.parseInt(((PatientContext) context).patientId.substring(1));
+                    }
+                }).withName("Observation Value").withContext("Patient"));
+
+        Measure measure = new Measure();
+        measure.setId("Measure/test/_history/1");
+        measure.setScoring(new CodeableConcept().addCoding(new Coding()
+                .setSystem("http://terminology.hl7.org/CodeSystem/measure-scoring").setCode("continuous-variable")));
+        Measure.MeasureGroupComponent group = measure.addGroup();
+        addPopulation(group, "initial-population", "Initial Population");
+        addPopulation(group, "measure-population", "Denominator");
+        addPopulation(group, "measure-observation", "Observation Value");
+        group.getPopulation().get(2)
+                .addExtension(new Extension(ObservationAggregate.AGGREGATE_METHOD_URL, new CodeType("average")));
+        group.addStratifier().setCode(new CodeableConcept().setText("sex"))
+                .setCriteria(new Expression().setExpression("Sex"));
+
+        Interval period = new Interval(new Date(0), true, new Date(), true);
+        MeasureEvaluation unshardedEvaluator = new MeasureEvaluation(null, registry(), period,
+                () -> new PatientContext(library), 1);
+        unshardedEvaluator.setDefinition(new MeasureDefinition(measure, library));
+        MeasureReport unsharded = unshardedEvaluator.evaluatePopulationMeasure(measure, new PatientContext(library));
+
+        List<MeasureReport> reports = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            MeasureEvaluation evaluator = new MeasureEvaluation(null, registry(), period,
+                    () -> new PatientContext(library), 2);
+            evaluator.setDefinition(new MeasureDefinition(measure, library));
+            evaluator.setShard(new PatientShard(i, 3));
+            reports.add(evaluator.evaluatePopulationMeasure(measure, new PatientContext(library)));
+        }
+        MeasureReport merged = new MeasureReportMerger(measure).merge(reports);
+
+        assertEquals(scores(unsharded), scores(merged));
+        assertTrue(scores(merged).toString(), scores(merged).contains("group score 616.0"));
+        assertTrue(merged.getGroupFirstRep().getExtension().isEmpty());
+    }
+
+    private static List<String> scores(MeasureReport report) {
+        MeasureReport.MeasureReportGroupComponent group = report.getGroupFirstRep();
+        List<String> scores = new ArrayList<>();
+        scores.add("group score " + group.getMeasureScore().getValue().doubleValue());
+        for (MeasureReport.StratifierGroupComponent stratum : group.getStratifierFirstRep().getStratum()) {
+            scores.add("stratum " + stratum.getValue().getCodingFirstRep().getCode() + " score "
+                    + stratum.getMeasureScore().getValue().doubleValue());
+        }
+        Collections.sort(scores);
+        return scores;
+    }
+
+    @Test
+    public void idsModeListsAtMostTheConfiguredNumberOfIds() {
+        // Each patient evaluates an Observation of its own
+        Library library = new Library().withIdentifier(this.library.getIdentifier())
+                .withStatements(new Library.Statements().withDef(this.library.getStatements().getDef()));
+        library.getStatements().getDef().set(0, new ExpressionDef() {
+            @Override
+            public Object evaluate(Context context) {
+                Observation observation = new Observation();
+                observation.setId("Observation/o-" + ((PatientContext) context).patientId);
+                context.getEvaluatedResources().add(observation);
+                return true;
+            }
+        }.withName("Initial Population").withContext("Patient"));
+
+        String maxIds = HapiProperties.getProperty("measure_evaluation.evaluated_resources_max_ids");
+        HapiProperties.setProperty("measure_evaluation.evaluated_resources_max_ids", "5");
+        MeasureReport report;
+        try {
+            Interval period = new Interval(new Date(0), true, new Date(), true);
+            MeasureEvaluation evaluator = new MeasureEvaluation(null, registry(), period,
+                    () -> new PatientContext(library), 2);
+            evaluator.setDefinition(new MeasureDefinition(this.measure, library));
+            evaluator.setEvaluatedResourcesMode(EvaluatedResourcesMode.IDS);
+            report = evaluator.evaluatePopulationMeasure(this.measure, new PatientContext(library));
+        } finally {
+            HapiProperties.setProperty("measure_evaluation.evaluated_resources_max_ids", maxIds);
+        }
+
+        Extension extension = report.getExtensionByUrl(MeasureEvaluation.EVALUATED_RESOURCES_URL);
+        assertEquals("5 of " + PATIENTS + " evaluated resource ids",
+                ((Reference) extension.getValue()).getDisplay());
+        ListResource list = (ListResource) report.getContained().stream()
+                .filter(resource -> resource instanceof ListResource && resource.getIdElement().getIdPart()
+                        .equals(((Reference) extension.getValue()).getReference().substring(1)))
+                .findFirst().get();
+        assertEquals("Observation/o-p0000", list.getEntryFirstRep().getItem().getReference());
+        assertEquals(5, list.getEntry().size());
+        assertTrue(list.getNoteFirstRep().getText().contains("of the " + PATIENTS));
+    }
+
+    private interface Run {
+        MeasureReport evaluate(MeasureEvaluation evaluator, Context context);
+    }
+
+    private MeasureReport evaluate(int parallelism, Run run) {
+        Interval period = new Interval(new Date(0), true, new Date(), true);
+        MeasureEvaluation evaluator = new MeasureEvaluation(null, registry(), period,
+                () -> new PatientContext(this.library), parallelism);
+        evaluator.setDefinition(new MeasureDefinition(this.measure, this.library));
+        return run.evaluate(evaluator, new PatientContext(this.library));
+    }
+
+    /*
+     * What the report says, independently of the ids generated for its
+     * contained resources and of their order.
+     */
+    static List<String> summarize(MeasureReport report) {
+        Map<String, Resource> contained = new HashMap<>();
+        for (Resource resource : report.getContained()) {
+            contained.put(resource.getIdElement().getIdPart().replace("#", ""), resource);
+        }
+
+        List<String> summary = new ArrayList<>();
+        for (int i = 0; i < report.getGroup().size(); i++) {
+            MeasureReport.MeasureReportGroupComponent group = report.getGroup().get(i);
+            summary.add("group " + i + " score " + group.getMeasureScore().getValue());
+            for (MeasureReport.MeasureReportGroupPopulationComponent population : group.getPopulation()) {
+                String code = population.getCode().getCodingFirstRep().getCode();
+                summary.add("group " + i + " " + code + " " + population.getCount());
+                if (population.hasSubjectResults()) {
+                    ListResource subjects = (ListResource) contained
+                            .get(population.getSubjectResults().getReference().substring(1));
+                    List<String> references = new ArrayList<>();
+                    for (ListResource.ListEntryComponent entry : subjects.getEntry()) {
+                        references.add(entry.getItem().getReference());
+                    }
+                    summary.add("group " + i + " " + code + " subjects " + references);
+                }
+            }
+            for (MeasureReport.MeasureReportGroupStratifierComponent stratifier : group.getStratifier()) {
+                for (MeasureReport.StratifierGroupComponent stratum : stratifier.getStratum()) {
+                    String value = stratum.getValue().getCodingFirstRep().getCode();
+                    for (MeasureReport.StratifierGroupPopulationComponent population : stratum.getPopulation()) {
+                        summary.add("group " + i + " stratum " + value + " "
+                                + population.getCode().getCodingFirstRep().getCode() + " " + population.getCount());
+                    }
+                    summary.add("group " + i + " stratum " + value + " score "
+                            + stratum.getMeasureScore().getValue());
+                }
+            }
+        }
+
+        List<String> sde = new ArrayList<>();
+        for (Resource resource : contained.values()) {
+            if (resource instanceof Observation) {
+                Observation observation = (Observation) resource;
+                Extension measureInfo = observation
+                        .getExtensionByUrl("http://hl7.org/fhir/StructureDefinition/cqf-measureInfo");
+                Coding coding = observation.getCode().getCodingFirstRep();
+                sde.add("sde " + measureInfo.getExtensionByUrl("populationId").getValue().primitiveValue() + " "
+                        + coding.getSystem() + "|" + coding.getCode() + "|" + coding.getDisplay() + " "
+                        + observation.getValue().primitiveValue());
+            }
+        }
+        Collections.sort(sde);
+        assertEquals(3, sde.size());
+        summary.addAll(sde);
+        return summary;
+    }
+
+    private static Measure measure() {
+        Measure measure = new Measure();
+        measure.setId("Measure/test/_history/1");
+        measure.setScoring(new CodeableConcept().addCoding(
+                new Coding().setSystem("http://terminology.hl7.org/CodeSystem/measure-scoring").setCode("proportion")));
+
+        Measure.MeasureGroupComponent first = measure.addGroup();
+        addPopulation(first, "initial-population", "Initial Population");
+        addPopulation(first, "denominator", "Denominator");
+        addPopulation(first, "denominator-exclusion", "Denominator Exclusion");
+        addPopulation(first, "numerator", "Numerator");
+        first.addStratifier().setCode(new CodeableConcept().setText("sex"))
+                .setCriteria(new Expression().setExpression("Sex"));
+
+        Measure.MeasureGroupComponent second = measure.addGroup();
+        addPopulation(second, "initial-population", "Initial Population");
+        addPopulation(second, "denominator", "Initial Population");
+        addPopulation(second, "numerator", "Numerator 2");
+
+        measure.addSupplementalData().setCode(new CodeableConcept().setText("sde-sex"))
+                .setCriteria(new Expression().setExpression("SDE Sex"));
+        return measure;
+    }
+
+    private static void addPopulation(Measure.MeasureGroupComponent group, String code, String expression) {
+        group.addPopulation()
+                .setCode(new CodeableConcept().addCoding(new Coding().setSystem(POPULATION_SYSTEM).setCode(code)))
+                .setCriteria(new Expression().setExpression(expression));
+    }
+
+    static Code gender(int patient) {
+        String[] genders = { "female", "male", "other" };
+        String gender = genders[patient % 3];
+        return new Code().withSystem(GENDER_SYSTEM).withCode(gender).withDisplay(gender);
+    }
+
+    /*
+     * A definition whose result depends on the number of the patient the
+     * Context is evaluating.
+     */
+    static ExpressionDef def(String name, Function<Integer, Object> result) {
+        ExpressionDef def = new ExpressionDef() {
+            @Override
+            public Object evaluate(Context context) {
+                return result.apply(Integer.parseInt(((PatientContext) context).patientId.substring(1)));
+            }
+        };
+        return def.withName(name).withContext("Patient");
+    }
+
+    private DaoRegistry registry() {
+        return new TestDaoRegistry().register("Patient",
+                new TestDao().on("search", args -> new SimpleBundleProvider(this.patients)));
+    }
+
+    static class PatientContext extends Context {
+        private String patientId;
+
+        PatientContext(Library library) {
+            super(library);
+        }
+
+        @Override
+        public void setContextValue(String context, Object contextValue) {
+            if ("Patient".equals(context)) {
+                this.patientId = (String) contextValue;
+            }
+            super.setContextValue(context, contextValue);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package org.opencds.cqf.r4.evaluation;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.Measure;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.Test;
+import org.opencds.cqf.common.evaluation.MeasurePopulationType;
+import org.opencds.cqf.common.evaluation.PopulationIndex;
+
+public class MeasureGroupStateTest {
+
+    @Test
+    public void mergeAppliesRemovalsOfLaterPartitions() {
+        MeasureGroupState report = newState();
+        MeasureGroupState first = report.copyEmpty(new PopulationIndex(), new PopulationIndex());
+        MeasureGroupState second = report.copyEmpty(new PopulationIndex(), new PopulationIndex());
+
+        first.addResourceKey(MeasurePopulationType.NUMERATOR, "shared");
+        first.addResourceKey(MeasurePopulationType.NUMERATOR, "first");
+        second.removeResource(MeasurePopulationType.NUMERATOR, "shared");
+        second.addResourceKey(MeasurePopulationType.NUMERATOR, "second");
+
+        report.merge(first);
+        report.merge(second);
+
+        assertEquals(Arrays.asList("first", "second"), report.getResourceKeys(MeasurePopulationType.NUMERATOR));
+    }
+
+    @Test
+    public void mergeKeepsMembersAddedAfterAnEarlierRemoval() {
+        MeasureGroupState report = newState();
+        MeasureGroupState first = report.copyEmpty(new PopulationIndex(), new PopulationIndex());
+        MeasureGroupState second = report.copyEmpty(new PopulationIndex(), new PopulationIndex());
+
+        first.removeResource(MeasurePopulationType.NUMERATOR, "shared");
+        second.addResourceKey(MeasurePopulationType.NUMERATOR, "shared");
+
+        report.merge(first);
+        report.merge(second);
+
+        assertEquals(Collections.singletonList("shared"), report.getResourceKeys(MeasurePopulationType.NUMERATOR));
+        assertEquals(1, report.getCount(MeasurePopulationType.NUMERATOR));
+    }
+
+    @Test
+    public void mergeMatchesASequentialPass() {
+        MeasureGroupState sequential = newState();
+        evaluate(sequential, "p1", "p2", "p3", "p4");
+
+        MeasureGroupState report = newState();
+        MeasureGroupState first = report.copyEmpty(new PopulationIndex(), new PopulationIndex());
+        MeasureGroupState second = report.copyEmpty(new PopulationIndex(), new PopulationIndex());
+        // The second worker numbers its members from 0 as well, and may finish first
+        evaluate(second, "p3", "p4");
+        evaluate(first, "p1", "p2");
+        report.merge(first);
+        report.merge(second);
+
+        for (MeasurePopulationType type : Arrays.asList(MeasurePopulationType.INITIALPOPULATION,
+                MeasurePopulationType.DENOMINATOR, MeasurePopulationType.NUMERATOR)) {
+            assertEquals(sequential.getResourceKeys(type), report.getResourceKeys(type));
+            assertEquals(patients(sequential, type), patients(report, type));
+        }
+        assertEquals(Arrays.asList("p1|Name p1", "p3|Name p3"), patients(report, MeasurePopulationType.NUMERATOR));
+    }
+
+    // Every patient is in the initial population and denominator, the odd ones
+    // in the numerator, and the last one's denominator is shared and removed
+    private static void evaluate(MeasureGroupState state, String... patientIds) {
+        for (String id : patientIds) {
+            Patient patient = new Patient();
+            patient.setId(id);
+            patient.addName(new HumanName().setFamily("Name " + id));
+
+            state.addResourceKey(MeasurePopulationType.INITIALPOPULATION, id);
+            state.addPatient(MeasurePopulationType.INITIALPOPULATION, patient);
+            state.addResourceKey(MeasurePopulationType.DENOMINATOR, id);
+            state.addPatient(MeasurePopulationType.DENOMINATOR, patient);
+            state.addResourceKey(MeasurePopulationType.DENOMINATOR, "shared");
+            if (Integer.parseInt(id.substring(1)) % 2 == 1) {
+                state.addResourceKey(MeasurePopulationType.NUMERATOR, id);
+                state.addPatient(MeasurePopulationType.NUMERATOR, patient);
+            }
+            if ("p4".equals(id)) {
+                state.removeResource(MeasurePopulationType.DENOMINATOR, "shared");
+            }
+        }
+    }
+
+    private static List<String> patients(MeasureGroupState state, MeasurePopulationType type) {
+        List<String> patients = new ArrayList<>();
+        state.forEachPatient(type, (id, name) -> patients.add(id + "|" + name));
+        return patients;
+    }
+
+    private static MeasureGroupState newState() {
+        Measure.MeasureGroupComponent group = new Measure.MeasureGroupComponent();
+        for (MeasurePopulationType type : Arrays.asList(MeasurePopulationType.INITIALPOPULATION,
+                MeasurePopulationType.DENOMINATOR, MeasurePopulationType.NUMERATOR)) {
+            group.addPopulation().setCode(new CodeableConcept().addCoding(
+                    new Coding().setSystem("http://terminology.hl7.org/CodeSystem/measure-population")
+                            .setCode(type.toCode())));
+        }
+        return new MeasureGroupState(group, MeasureReport.MeasureReportType.SUBJECTLIST);
+    }
+}
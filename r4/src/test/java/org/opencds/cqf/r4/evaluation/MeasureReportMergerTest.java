@@ -0,0 +1,129 @@
+package org.opencds.cqf.r4.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.hl7.fhir.r4.model.Base64BinaryType;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.ListResource;
+import org.hl7.fhir.r4.model.Measure;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.Test;
+import org.opencds.cqf.common.evaluation.ObservationAggregate;
+
+public class MeasureReportMergerTest {
+
+    @Test
+    public void evaluatedResourceListsAreMergedIntoOne() {
+        MeasureReport first = reportWithEvaluatedResources("a", "Observation/1", "Encounter/1");
+        MeasureReport second = reportWithEvaluatedResources("b", "Encounter/1", "Observation/2");
+
+        MeasureReport merged = new MeasureReportMerger(measure()).merge(Arrays.asList(first, second));
+
+        List<Extension> extensions = merged.getExtensionsByUrl(MeasureEvaluation.EVALUATED_RESOURCES_URL);
+        assertEquals(1, extensions.size());
+        assertEquals("#a", ((Reference) extensions.get(0).getValue()).getReference());
+        assertEquals(1, merged.getContained().size());
+        assertEquals(Arrays.asList("Observation/1", "Encounter/1", "Observation/2"),
+                references((ListResource) merged.getContained().get(0)));
+    }
+
+    @Test
+    public void evaluatedResourceListIsKeptWhenTheFirstReportHasNone() {
+        MeasureReport first = new MeasureReport();
+        MeasureReport second = reportWithEvaluatedResources("b", "Observation/2");
+
+        MeasureReport merged = new MeasureReportMerger(measure()).merge(Arrays.asList(first, second));
+
+        assertEquals("#b", ((Reference) merged.getExtensionByUrl(MeasureEvaluation.EVALUATED_RESOURCES_URL)
+                .getValue()).getReference());
+        assertEquals(Arrays.asList("Observation/2"), references((ListResource) merged.getContained().get(0)));
+    }
+
+    @Test
+    public void continuousVariableScoresAreTheAggregatesOfAllShards() {
+        MeasureReport first = continuousVariableReport(new double[] { 1, 2, 3 }, new double[] { 1, 2 },
+                new double[] { 3 });
+        MeasureReport second = continuousVariableReport(new double[] { 10, 20 }, new double[] { 10 },
+                new double[] { 20 });
+
+        Measure measure = measure("continuous-variable");
+        measure.addGroup().addPopulation().setCode(new CodeableConcept().addCoding(new Coding()
+                .setSystem("http://terminology.hl7.org/CodeSystem/measure-population")
+                .setCode("measure-observation")));
+        MeasureReport merged = new MeasureReportMerger(measure).merge(Arrays.asList(first, second));
+
+        MeasureReport.MeasureReportGroupComponent group = merged.getGroupFirstRep();
+        // The median of 1, 2, 3, 10 and 20, the first shard scored 2
+        assertEquals(3, group.getMeasureScore().getValue().doubleValue(), 0);
+        List<MeasureReport.StratifierGroupComponent> strata = group.getStratifierFirstRep().getStratum();
+        assertEquals(2, strata.get(0).getMeasureScore().getValue().doubleValue(), 0);
+        assertEquals(11.5, strata.get(1).getMeasureScore().getValue().doubleValue(), 0);
+        assertNull(group.getExtensionByUrl(MeasureEvaluation.OBSERVATION_AGGREGATE_URL));
+        assertNull(strata.get(0).getExtensionByUrl(MeasureEvaluation.OBSERVATION_AGGREGATE_URL));
+
+        measure.getGroupFirstRep().getPopulationFirstRep()
+                .addExtension(new Extension(ObservationAggregate.AGGREGATE_METHOD_URL, new CodeType("average")));
+        merged = new MeasureReportMerger(measure).merge(Arrays.asList(first, second));
+        assertEquals(7.2, merged.getGroupFirstRep().getMeasureScore().getValue().doubleValue(), 1e-9);
+    }
+
+    // A shard's report of one group with a stratum of each value
+    private static MeasureReport continuousVariableReport(double[] observations, double[]... strata) {
+        MeasureReport report = new MeasureReport();
+        MeasureReport.MeasureReportGroupComponent group = report.addGroup();
+        group.addExtension(observationAggregate(observations));
+        MeasureReport.MeasureReportGroupStratifierComponent stratifier = group.addStratifier();
+        for (int i = 0; i < strata.length; i++) {
+            stratifier.addStratum().setValue(new CodeableConcept().setText("stratum " + i))
+                    .addExtension(observationAggregate(strata[i]));
+        }
+        return report;
+    }
+
+    private static Extension observationAggregate(double... observations) {
+        ObservationAggregate aggregate = new ObservationAggregate();
+        for (double observation : observations) {
+            aggregate.add(observation);
+        }
+        return new Extension(MeasureEvaluation.OBSERVATION_AGGREGATE_URL, new Base64BinaryType(aggregate.toBytes()));
+    }
+
+    private static MeasureReport reportWithEvaluatedResources(String listId, String... ids) {
+        ListResource list = new ListResource();
+        list.setId(listId);
+        for (String id : ids) {
+            list.addEntry().setItem(new Reference(id));
+        }
+
+        MeasureReport report = new MeasureReport();
+        report.addContained(list);
+        report.addExtension(new Extension(MeasureEvaluation.EVALUATED_RESOURCES_URL, new Reference("#" + listId)));
+        return report;
+    }
+
+    private static List<String> references(ListResource list) {
+        List<String> references = new ArrayList<>();
+        list.getEntry().forEach(entry -> references.add(entry.getItem().getReference()));
+        return references;
+    }
+
+    private static Measure measure() {
+        return measure("proportion");
+    }
+
+    private static Measure measure(String scoring) {
+        Measure measure = new Measure();
+        measure.setScoring(new CodeableConcept().addCoding(
+                new Coding().setSystem("http://terminology.hl7.org/CodeSystem/measure-scoring").setCode(scoring)));
+        return measure;
+    }
+}
@@ -0,0 +1,331 @@
+package org.opencds.cqf.r4.evaluation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Binary;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Expression;
+import org.hl7.fhir.r4.model.Measure;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.Test;
+import org.opencds.cqf.common.testing.TestDao;
+import org.opencds.cqf.common.testing.TestDaoRegistry;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.model.api.ResourceMetadataKeyEnum;
+import ca.uhn.fhir.model.primitive.InstantDt;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+
+public class MeasureResultStoreTest {
+
+    private static final FhirContext FHIR_CONTEXT = FhirContext.forR4();
+    private static final String POPULATION_SYSTEM = "http://terminology.hl7.org/CodeSystem/measure-population";
+    private static final long MARGIN = 100;
+    // Three chunks, the last one not full
+    private static final int PATIENTS = 2 * MeasureResultStore.CHUNK_SIZE + 500;
+
+    private static final AtomicInteger databaseCounter = new AtomicInteger();
+
+    private final JdbcDataSource dataSource = new JdbcDataSource();
+
+    private final List<Patient> patients = new ArrayList<>();
+    private final Set<String> deletedPatients = new HashSet<>();
+    // Patients whose numerator result was flipped by a change to their data
+    private final Set<Integer> changedNumerators = new HashSet<>();
+    private final List<Resource> history = new ArrayList<>();
+    // Earlier versions of the resources in the history, by versioned id
+    private final Map<String, Resource> versions = new HashMap<>();
+    private final Set<String> evaluatedPatients = new HashSet<>();
+    private final Measure measure = measure();
+    private final Library library;
+    private Date historySince;
+
+    public MeasureResultStoreTest() {
+        this.dataSource.setURL("jdbc:h2:mem:results" + databaseCounter.incrementAndGet() + ";DB_CLOSE_DELAY=-1");
+
+        for (int i = 0; i < PATIENTS; i++) {
+            this.patients.add(patient(i));
+        }
+
+        this.library = new Library().withIdentifier(new VersionedIdentifier().withId("Test").withVersion("1.0"))
+                .withStatements(new Library.Statements().withDef(
+                        MeasureEvaluationParallelismTest.def("Initial Population", this::evaluated),
+                        MeasureEvaluationParallelismTest.def("Denominator", i -> i % 2 == 0),
+                        MeasureEvaluationParallelismTest.def("Numerator",
+                                i -> (i % 3 == 0) != this.changedNumerators.contains(i)),
+                        MeasureEvaluationParallelismTest.def("SDE Sex", MeasureEvaluationParallelismTest::gender)));
+    }
+
+    @Test
+    public void changedPatientsAreThoseChangedOrReferencedSinceTheMarkLessTheMargin() {
+        // Before the mark, but within the margin
+        this.history.add(inHistory(new Patient(), "Patient/p1", 1450));
+        // Before the mark less the margin
+        this.history.add(inHistory(new Patient(), "Patient/p0", 1000));
+        Observation observation = new Observation();
+        observation.getSubject().setReference("Patient/p2");
+        this.history.add(inHistory(observation, "Observation/o1", 2000));
+        this.history.add(inHistory(new Binary(), "Binary/b1", 3000));
+
+        assertEquals(new HashSet<>(Arrays.asList("p1", "p2")), store().findChangedPatients(1500));
+        assertEquals(1400, this.historySince.getTime());
+    }
+
+    @Test
+    public void resourceMovedToAnotherPatientChangesBoth() {
+        Observation previous = new Observation();
+        previous.getSubject().setReference("Patient/p1");
+        previous.setId("Observation/o1/_history/1");
+        this.versions.put(previous.getIdElement().getValue(), previous);
+        Observation observation = new Observation();
+        observation.getSubject().setReference("Patient/p2");
+        inHistory(observation, "Observation/o1", 2000).setId("Observation/o1/_history/2");
+        this.history.add(observation);
+
+        assertEquals(new HashSet<>(Arrays.asList("p1", "p2")), store().findChangedPatients(0));
+    }
+
+    @Test
+    public void changeWhosePreviousVersionIsGoneChangesEveryone() {
+        Observation observation = new Observation();
+        observation.getSubject().setReference("Patient/p2");
+        inHistory(observation, "Observation/o1", 2000).setId("Observation/o1/_history/2");
+        this.history.add(observation);
+
+        assertNull(store().findChangedPatients(0));
+    }
+
+    @Test
+    public void changeToAnInvalidatingTypeChangesEveryone() {
+        this.history.add(inHistory(new Patient(), "Patient/p1", 1000));
+        this.history.add(inHistory(new org.hl7.fhir.r4.model.Library(), "Library/l1", 2000));
+
+        assertNull(store().findChangedPatients(0));
+    }
+
+    @Test
+    public void changeThatCantBeAttributedToAPatientChangesEveryone() {
+        this.history.add(inHistory(new Observation(), "Observation/o1", 1000));
+
+        assertNull(store().findChangedPatients(0));
+    }
+
+    @Test
+    public void deletionChangesEveryone() {
+        Observation observation = new Observation();
+        observation.getSubject().setReference("Patient/p2");
+        inHistory(observation, "Observation/o1", 1000);
+        ResourceMetadataKeyEnum.DELETED_AT.put(observation, new InstantDt(new Date(1000)));
+        this.history.add(observation);
+
+        assertNull(store().findChangedPatients(0));
+    }
+
+    @Test
+    public void historyMarkIsTheNewestLastUpdated() {
+        assertEquals(0, store().findHistoryMark());
+
+        this.history.add(inHistory(new Patient(), "Patient/p1", 1000));
+        this.history.add(inHistory(new Patient(), "Patient/p2", 3000));
+        this.history.add(inHistory(new Patient(), "Patient/p3", 2000));
+
+        assertEquals(3000, store().findHistoryMark());
+    }
+
+    @Test
+    public void incrementalRunReevaluatesOnlyChangedPatientsAndRewritesOnlyTheirChunks() throws Exception {
+        // Older than the margin before the first run's mark, never found again
+        this.history.add(inHistory(new Binary(), "Binary/b1", 1000));
+        MeasureResultStore store = store();
+
+        MeasureReport first = evaluate(store);
+        assertEquals(PATIENTS, this.evaluatedPatients.size());
+        assertEquals(MeasureEvaluationParallelismTest.summarize(evaluate(null)),
+                MeasureEvaluationParallelismTest.summarize(first));
+        List<byte[]> chunks = readChunks();
+        assertEquals(3, chunks.size());
+
+        // One patient of the second chunk changes, one of the last is deleted and
+        // a new one is added
+        this.changedNumerators.add(1200);
+        this.history.add(inHistory(new Patient(), "Patient/p1200", 5000));
+        this.deletedPatients.add("p2010");
+        this.patients.removeIf(patient -> patient.getIdElement().getIdPart().equals("p2010"));
+        this.history.add(inHistory(new Patient(), "Patient/p2010", 5000));
+        this.patients.add(patient(PATIENTS));
+        this.history.add(inHistory(new Patient(), String.format("Patient/p%04d", PATIENTS), 5000));
+
+        this.evaluatedPatients.clear();
+        MeasureReport second = evaluate(store);
+        assertEquals(new HashSet<>(Arrays.asList("p1200", "p2500")), this.evaluatedPatients);
+        assertEquals(MeasureEvaluationParallelismTest.summarize(evaluate(null)),
+                MeasureEvaluationParallelismTest.summarize(second));
+
+        List<byte[]> rewritten = readChunks();
+        assertEquals(3, rewritten.size());
+        assertArrayEquals(chunks.get(0), rewritten.get(0));
+        assertFalse(Arrays.equals(chunks.get(1), rewritten.get(1)));
+        assertFalse(Arrays.equals(chunks.get(2), rewritten.get(2)));
+
+        // Nothing changed since, but the changes within the margin of the last
+        // mark are looked at again
+        this.evaluatedPatients.clear();
+        MeasureReport third = evaluate(store);
+        assertEquals(new HashSet<>(Arrays.asList("p1200", "p2500")), this.evaluatedPatients);
+        assertEquals(MeasureEvaluationParallelismTest.summarize(second),
+                MeasureEvaluationParallelismTest.summarize(third));
+    }
+
+    @Test
+    public void resultsAreNotExposedAsFhirResources() throws SQLException {
+        this.history.add(inHistory(new Binary(), "Binary/b1", 1000));
+        // The registry has no Binary dao, evaluating writes table rows only
+        evaluate(store());
+
+        assertEquals(3, readChunks().size());
+    }
+
+    @Test
+    public void storesOfAnotherServerSeeTheSameResults() {
+        this.history.add(inHistory(new Binary(), "Binary/b1", 1000));
+        evaluate(store());
+
+        // Another server sharing the database
+        this.evaluatedPatients.clear();
+        evaluate(store());
+        assertEquals(0, this.evaluatedPatients.size());
+    }
+
+    private boolean evaluated(int patient) {
+        this.evaluatedPatients.add(String.format("p%04d", patient));
+        return true;
+    }
+
+    private MeasureReport evaluate(MeasureResultStore store) {
+        Interval period = new Interval(new Date(0), true, new Date(), true);
+        MeasureEvaluation evaluator = new MeasureEvaluation(null, registry(), period);
+        evaluator.setDefinition(new MeasureDefinition(this.measure, this.library));
+        evaluator.setResultStore(store);
+        return evaluator.evaluatePopulationMeasure(this.measure,
+                new MeasureEvaluationParallelismTest.PatientContext(this.library));
+    }
+
+    private MeasureResultStore store() {
+        return new MeasureResultStore(registry(), this.dataSource, MARGIN, this.measure, "2019-01-01",
+                "2019-12-31", null);
+    }
+
+    private List<byte[]> readChunks() throws SQLException {
+        try (Connection connection = this.dataSource.getConnection();
+                Statement select = connection.createStatement();
+                ResultSet resultSet = select.executeQuery("SELECT CONTENT FROM " + MeasureResultStore.TABLE
+                        + " WHERE CHUNK_INDEX >= 0 ORDER BY CHUNK_INDEX")) {
+            List<byte[]> chunks = new ArrayList<>();
+            while (resultSet.next()) {
+                chunks.add(resultSet.getBytes(1));
+            }
+            return chunks;
+        }
+    }
+
+    private static Patient patient(int number) {
+        Patient patient = new Patient();
+        patient.setId(String.format("p%04d", number));
+        return patient;
+    }
+
+    private static Resource inHistory(Resource resource, String id, long lastUpdated) {
+        resource.setId(id + "/_history/1");
+        resource.getMeta().setLastUpdated(new Date(lastUpdated));
+        return resource;
+    }
+
+    private static Measure measure() {
+        Measure measure = new Measure();
+        measure.setId("Measure/test/_history/1");
+        measure.setScoring(new CodeableConcept().addCoding(
+                new Coding().setSystem("http://terminology.hl7.org/CodeSystem/measure-scoring").setCode("proportion")));
+
+        Measure.MeasureGroupComponent group = measure.addGroup();
+        for (String[] population : new String[][] { { "initial-population", "Initial Population" },
+                { "denominator", "Denominator" }, { "numerator", "Numerator" } }) {
+            group.addPopulation()
+                    .setCode(new CodeableConcept()
+                            .addCoding(new Coding().setSystem(POPULATION_SYSTEM).setCode(population[0])))
+                    .setCriteria(new Expression().setExpression(population[1]));
+        }
+
+        measure.addSupplementalData().setCode(new CodeableConcept().setText("sde-sex"))
+                .setCriteria(new Expression().setExpression("SDE Sex"));
+        return measure;
+    }
+
+    private DaoRegistry registry() {
+        TestDao patientDao = new TestDao()
+                .on("search", args -> new SimpleBundleProvider(new ArrayList<IBaseResource>(this.patients)))
+                .on("read", args -> {
+                    String id = ((IIdType) args[0]).getIdPart();
+                    if (this.deletedPatients.contains(id)) {
+                        throw new ResourceGoneException("Patient/" + id + " was deleted");
+                    }
+                    return this.patients.stream().filter(patient -> patient.getIdElement().getIdPart().equals(id))
+                            .findFirst().orElseThrow(() -> new ResourceNotFoundException("Patient/" + id));
+                });
+
+        TestDao observationDao = new TestDao().on("read", args -> {
+            Resource version = this.versions.get(((IIdType) args[0]).getValue());
+            if (version == null) {
+                throw new ResourceNotFoundException((IIdType) args[0]);
+            }
+            return version;
+        });
+
+        TestDao systemDao = new TestDao().on("getContext", args -> FHIR_CONTEXT).on("history", args -> {
+            Date since = (Date) args[0];
+            if (since != null) {
+                this.historySince = since;
+            }
+            // Newest first, as the server returns it
+            return new SimpleBundleProvider(this.history.stream()
+                    .filter(resource -> since == null || !resource.getMeta().getLastUpdated().before(since))
+                    .sorted(Comparator.comparing((Resource resource) -> resource.getMeta().getLastUpdated())
+                            .reversed())
+                    .map(IBaseResource.class::cast).collect(Collectors.toList()));
+        });
+
+        return new TestDaoRegistry().register("Patient", patientDao).register("Observation", observationDao)
+                .registerSystemDao(systemDao);
+    }
+}
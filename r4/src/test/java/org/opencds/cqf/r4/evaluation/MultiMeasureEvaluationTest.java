@@ -0,0 +1,231 @@
+package org.opencds.cqf.r4.evaluation;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.cqframework.cql.elm.execution.ExpressionDef;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Expression;
+import org.hl7.fhir.r4.model.Measure;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.Test;
+import org.opencds.cqf.common.evaluation.ExpressionCacheStatistics;
+import org.opencds.cqf.common.evaluation.MeasureEvaluationContext;
+import org.opencds.cqf.common.retrieve.JpaFhirRetrieveProvider;
+import org.opencds.cqf.common.retrieve.PatientBatchDataProvider;
+import org.opencds.cqf.common.testing.TestDao;
+import org.opencds.cqf.common.testing.TestDaoRegistry;
+import org.opencds.cqf.cql.engine.execution.Context;
+import org.opencds.cqf.cql.engine.fhir.model.R4FhirModelResolver;
+import org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterResolver;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+
+public class MultiMeasureEvaluationTest {
+
+    private static final FhirContext FHIR_CONTEXT = FhirContext.forR4();
+    private static final String POPULATION_SYSTEM = "http://terminology.hl7.org/CodeSystem/measure-population";
+    // Two pages of measure_evaluation.patient_page_size, six chunks of
+    // measure_evaluation.prefetch_chunk_size
+    private static final int PATIENTS = 600;
+
+    private final List<IBaseResource> patients = new ArrayList<>();
+    private final Map<String, List<IBaseResource>> observations = new HashMap<>();
+    // The patients of each Observation search, in the order they were run
+    private final List<List<String>> observationSearches = Collections.synchronizedList(new ArrayList<>());
+    private final DaoRegistry registry = registry();
+
+    // Patient i has i % 3 Observations
+    private final Library someObservations = library("Some",
+            observations -> !observations.isEmpty(), observations -> observations.size() == 2);
+    private final Library oneObservation = library("One",
+            observations -> true, observations -> observations.size() == 1);
+
+    public MultiMeasureEvaluationTest() {
+        for (int i = 0; i < PATIENTS; i++) {
+            Patient patient = new Patient();
+            patient.setId(String.format("p%03d", i));
+            this.patients.add(patient);
+
+            List<IBaseResource> patientObservations = new ArrayList<>();
+            for (int j = 0; j < i % 3; j++) {
+                Observation observation = new Observation();
+                observation.setId(String.format("o%03d-%d", i, j));
+                observation.setSubject(new Reference("Patient/" + patient.getIdElement().getIdPart()));
+                patientObservations.add(observation);
+            }
+            this.observations.put(patient.getIdElement().getIdPart(), patientObservations);
+        }
+    }
+
+    @Test
+    public void dataOfEachPatientIsRetrievedOnceForEveryMeasure() {
+        List<MeasureReport> reports = evaluate(1);
+
+        assertCounts(reports.get(0), 400, 200);
+        assertCounts(reports.get(1), 600, 200);
+        assertEachPatientSearchedOnce();
+    }
+
+    @Test
+    public void parallelWorkersRetrieveTheDataOfTheirPatientsOnce() {
+        List<MeasureReport> reports = evaluate(2);
+
+        assertCounts(reports.get(0), 400, 200);
+        assertCounts(reports.get(1), 600, 200);
+        assertEachPatientSearchedOnce();
+    }
+
+    private List<MeasureReport> evaluate(int parallelism) {
+        List<MeasureEvaluation.MeasureRun> runs = new ArrayList<>();
+        for (Library library : Arrays.asList(this.someObservations, this.oneObservation)) {
+            Measure measure = measure(library.getIdentifier().getId());
+            MeasureEvaluation evaluator = new MeasureEvaluation(null, this.registry,
+                    new Interval(new Date(0), true, new Date(), true), () -> new DataContext(library), 1);
+            evaluator.setDefinition(new MeasureDefinition(measure, library));
+            runs.add(evaluator.startPopulationRun(measure, new DataContext(library)));
+        }
+
+        return new MultiMeasureEvaluation(this.registry, runs, parallelism).evaluate(null);
+    }
+
+    private void assertCounts(MeasureReport report, int denominator, int numerator) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (MeasureReport.MeasureReportGroupPopulationComponent population : report.getGroupFirstRep()
+                .getPopulation()) {
+            counts.put(population.getCode().getCodingFirstRep().getCode(), population.getCount());
+        }
+        assertEquals(Integer.valueOf(PATIENTS), counts.get("initial-population"));
+        assertEquals(Integer.valueOf(denominator), counts.get("denominator"));
+        assertEquals(Integer.valueOf(numerator), counts.get("numerator"));
+    }
+
+    /*
+     * Both measures retrieve each patient's Observations in each of their
+     * definitions, all of it is served by the search of the patient's chunk.
+     */
+    private void assertEachPatientSearchedOnce() {
+        Map<String, Integer> searches = new HashMap<>();
+        for (List<String> search : this.observationSearches) {
+            search.forEach(patient -> searches.merge(patient, 1, Integer::sum));
+        }
+        assertEquals(PATIENTS, searches.size());
+        assertEquals(Collections.singleton(1), new HashSet<>(searches.values()));
+        assertEquals(6, this.observationSearches.size());
+    }
+
+    private static Library library(String name, Function<List<Object>, Boolean> denominator,
+            Function<List<Object>, Boolean> numerator) {
+        return new Library().withIdentifier(new VersionedIdentifier().withId(name).withVersion("1.0"))
+                .withStatements(new Library.Statements().withDef(
+                        def("Initial Population", observations -> true),
+                        def("Denominator", denominator),
+                        def("Numerator", numerator)));
+    }
+
+    /*
+     * A definition over the Observations of the patient the Context is
+     * evaluating, retrieved through the context's data provider.
+     */
+    private static ExpressionDef def(String name, Function<List<Object>, Boolean> result) {
+        ExpressionDef def = new ExpressionDef() {
+            @Override
+            public Object evaluate(Context context) {
+                DataContext dataContext = (DataContext) context;
+                List<Object> observations = new ArrayList<>();
+                dataContext.dataProvider.retrieve("Patient", "subject", dataContext.patientId, "Observation",
+                        null, null, null, null, null, null, null, null).forEach(observations::add);
+                return result.apply(observations);
+            }
+        };
+        return def.withName(name).withContext("Patient");
+    }
+
+    private Measure measure(String id) {
+        Measure measure = new Measure();
+        measure.setId("Measure/" + id + "/_history/1");
+        measure.setScoring(new CodeableConcept().addCoding(
+                new Coding().setSystem("http://terminology.hl7.org/CodeSystem/measure-scoring").setCode("proportion")));
+        Measure.MeasureGroupComponent group = measure.addGroup();
+        for (String population : Arrays.asList("initial-population", "denominator", "numerator")) {
+            String expression = population.equals("initial-population") ? "Initial Population"
+                    : Character.toUpperCase(population.charAt(0)) + population.substring(1);
+            group.addPopulation()
+                    .setCode(new CodeableConcept().addCoding(
+                            new Coding().setSystem(POPULATION_SYSTEM).setCode(population)))
+                    .setCriteria(new Expression().setExpression(expression));
+        }
+        return measure;
+    }
+
+    private DaoRegistry registry() {
+        TestDao patientDao = new TestDao().on("search", args -> new SimpleBundleProvider(this.patients));
+
+        TestDao observationDao = new TestDao().on("getContext", args -> FHIR_CONTEXT).on("search", args -> {
+            List<String> searched = new ArrayList<>();
+            for (Map.Entry<String, List<List<IQueryParameterType>>> and : ((SearchParameterMap) args[0])
+                    .entrySet()) {
+                for (List<IQueryParameterType> or : and.getValue()) {
+                    for (IQueryParameterType param : or) {
+                        if (param instanceof ReferenceParam) {
+                            searched.add(((ReferenceParam) param).getIdPart());
+                        }
+                    }
+                }
+            }
+            this.observationSearches.add(searched);
+
+            List<IBaseResource> found = new ArrayList<>();
+            searched.forEach(patient -> found.addAll(this.observations.get(patient)));
+            return new SimpleBundleProvider(found);
+        });
+
+        return new TestDaoRegistry().register("Patient", patientDao).register("Observation", observationDao);
+    }
+
+    /*
+     * A Context with its own data provider, the way MeasureEvaluationSeed
+     * creates one per measure and per parallel worker.
+     */
+    private class DataContext extends MeasureEvaluationContext {
+        private final PatientBatchDataProvider dataProvider;
+        private String patientId;
+
+        DataContext(Library library) {
+            super(library, new ExpressionCacheStatistics(), null);
+            this.dataProvider = new PatientBatchDataProvider(new R4FhirModelResolver(),
+                    new JpaFhirRetrieveProvider(registry, new SearchParameterResolver(FHIR_CONTEXT)));
+            registerDataProvider("http://hl7.org/fhir", this.dataProvider);
+        }
+
+        @Override
+        public void setContextValue(String context, Object contextValue) {
+            if ("Patient".equals(context)) {
+                this.patientId = (String) contextValue;
+            }
+            super.setContextValue(context, contextValue);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package org.opencds.cqf.r4.evaluation;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Measure;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.junit.Test;
+import org.opencds.cqf.common.evaluation.MeasurePopulationType;
+import org.opencds.cqf.common.evaluation.PopulationIndex;
+
+public class StratifierStateTest {
+
+    @Test
+    public void membersAreCountedInTheCurrentStrata() {
+        MeasureGroupState state = newState();
+        evaluate(state, "p1", "male");
+        evaluate(state, "p2", "female");
+        evaluate(state, "p3", "male");
+
+        assertEquals(Arrays.asList("male", "female"), strata(state));
+        assertEquals(Arrays.asList(2, 1), counts(state, MeasurePopulationType.INITIALPOPULATION));
+        assertEquals(Arrays.asList(3, 2), counts(state, MeasurePopulationType.DENOMINATOR));
+    }
+
+    @Test
+    public void mergeMatchesASequentialPass() {
+        MeasureGroupState sequential = newState();
+        evaluate(sequential, "p1", "male");
+        evaluate(sequential, "p2", "female");
+        evaluate(sequential, "p3", "female");
+        removeShared(sequential, "female");
+        evaluate(sequential, "p4", "male");
+
+        MeasureGroupState report = newState();
+        MeasureGroupState first = report.copyEmpty(new PopulationIndex(), new PopulationIndex());
+        MeasureGroupState second = report.copyEmpty(new PopulationIndex(), new PopulationIndex());
+        evaluate(second, "p3", "female");
+        removeShared(second, "female");
+        evaluate(second, "p4", "male");
+        evaluate(first, "p1", "male");
+        evaluate(first, "p2", "female");
+        report.merge(first);
+        report.merge(second);
+
+        assertEquals(strata(sequential), strata(report));
+        for (MeasurePopulationType type : Arrays.asList(MeasurePopulationType.INITIALPOPULATION,
+                MeasurePopulationType.DENOMINATOR)) {
+            assertEquals(counts(sequential, type), counts(report, type));
+        }
+        // The female stratum lost the shared resource, the male one kept it
+        assertEquals(Arrays.asList(3, 2), counts(report, MeasurePopulationType.DENOMINATOR));
+    }
+
+    // Each patient is in the initial population, and in the denominator with a
+    // resource shared by every patient
+    private static void evaluate(MeasureGroupState state, String patientId, String gender) {
+        setStratum(state, gender);
+        state.addResourceKey(MeasurePopulationType.INITIALPOPULATION, patientId);
+        state.addResourceKey(MeasurePopulationType.DENOMINATOR, patientId);
+        state.addResourceKey(MeasurePopulationType.DENOMINATOR, "shared");
+        state.setCurrentStrata(Collections.emptyList());
+    }
+
+    private static void removeShared(MeasureGroupState state, String gender) {
+        setStratum(state, gender);
+        state.removeResource(MeasurePopulationType.DENOMINATOR, "shared");
+        state.setCurrentStrata(Collections.emptyList());
+    }
+
+    private static void setStratum(MeasureGroupState state, String gender) {
+        StratifierState stratifier = state.getStratifiers().get(0);
+        state.setCurrentStrata(Collections.singletonList(
+                stratifier.getStratum(gender, Collections.singletonList(new CodeableConcept().setText(gender)))));
+    }
+
+    private static List<String> strata(MeasureGroupState state) {
+        List<String> strata = new ArrayList<>();
+        for (StratifierState.Stratum stratum : state.getStratifiers().get(0).getStrata()) {
+            strata.add(stratum.getValues().get(0).getText());
+        }
+        return strata;
+    }
+
+    private static List<Integer> counts(MeasureGroupState state, MeasurePopulationType type) {
+        List<Integer> counts = new ArrayList<>();
+        for (StratifierState.Stratum stratum : state.getStratifiers().get(0).getStrata()) {
+            counts.add(stratum.getCount(type));
+        }
+        return counts;
+    }
+
+    private static MeasureGroupState newState() {
+        Measure.MeasureGroupComponent group = new Measure.MeasureGroupComponent();
+        for (MeasurePopulationType type : Arrays.asList(MeasurePopulationType.INITIALPOPULATION,
+                MeasurePopulationType.DENOMINATOR)) {
+            group.addPopulation().setCode(new CodeableConcept().addCoding(
+                    new Coding().setSystem("http://terminology.hl7.org/CodeSystem/measure-population")
+                            .setCode(type.toCode())));
+        }
+        group.addStratifier().setCode(new CodeableConcept().setText("Gender"));
+        return new MeasureGroupState(group, MeasureReport.MeasureReportType.SUMMARY);
+    }
+}
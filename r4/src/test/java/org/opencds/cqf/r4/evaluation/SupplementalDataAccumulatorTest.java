@@ -0,0 +1,182 @@
+package org.opencds.cqf.r4.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.cqframework.cql.elm.execution.ExpressionDef;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Expression;
+import org.hl7.fhir.r4.model.Measure;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.Test;
+import org.opencds.cqf.cql.engine.execution.Context;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.runtime.Concept;
+
+public class SupplementalDataAccumulatorTest {
+
+    private static final String GENDER = "http://hl7.org/fhir/administrative-gender";
+    private static final String RACE = "urn:oid:2.16.840.1.113883.6.238";
+
+    // The values of each supplemental data element, by patient
+    private final Map<String, Map<String, Object>> values = new HashMap<>();
+    private final MeasureDefinition definition;
+    private final PatientContext context;
+
+    public SupplementalDataAccumulatorTest() {
+        Library library = new Library().withIdentifier(new VersionedIdentifier().withId("SDE").withVersion("1.0"))
+                .withStatements(new Library.Statements().withDef(def("SDE Sex"), def("SDE Race"), def("SDE Payer")));
+        Measure measure = new Measure();
+        measure.setId("Measure/sde/_history/1");
+        measure.setScoring(new CodeableConcept().addCoding(new Coding().setCode("cohort")));
+        measure.addSupplementalData().setCode(new CodeableConcept().setText("sde-sex"))
+                .setCriteria(new Expression().setExpression("SDE Sex"));
+        measure.addSupplementalData().setCode(new CodeableConcept().setText("sde-race"))
+                .setCriteria(new Expression().setExpression("SDE Race"));
+        measure.addSupplementalData().setCriteria(new Expression().setExpression("SDE Payer"));
+        this.definition = new MeasureDefinition(measure, library);
+        this.context = new PatientContext(library);
+
+        values("p0", new Code().withSystem(GENDER).withCode("female").withDisplay("Female"),
+                Collections.singletonList(new Coding(RACE, "2106-3", "White")));
+        values("p1", new Code().withSystem(GENDER).withCode("male").withDisplay("Male"),
+                Collections.singletonList(new Coding(RACE, "2054-5", "Black or African American")));
+        // Only the first race of a patient is counted
+        values("p2", new Code().withSystem(GENDER).withCode("female").withDisplay("F"),
+                Arrays.asList(new Coding(RACE, "2106-3", "White"), new Coding(RACE, "2054-5", null)));
+        // Nothing to count
+        values("p3", null, Collections.emptyList());
+    }
+
+    @Test
+    public void countsMatchThoseOfThePatientScan() {
+        SupplementalDataAccumulator accumulator = accumulate("p0", "p1", "p2", "p3");
+
+        // What the report listed before the codings were captured
+        Map<String, Map<String, Integer>> expected = new TreeMap<>();
+        expected.put("sde-sex", new TreeMap<>());
+        expected.get("sde-sex").put("female", 2);
+        expected.get("sde-sex").put("male", 1);
+        expected.put("sde-race", new TreeMap<>());
+        expected.get("sde-race").put("2106-3", 2);
+        expected.get("sde-race").put("2054-5", 1);
+        assertEquals(expected, counts(accumulator));
+    }
+
+    @Test
+    public void codingIsCapturedWhenItsCodeIsFirstSeen() {
+        Map<String, Coding> codings = codings(accumulate("p0", "p1", "p2"));
+
+        // p2's display of the code doesn't replace p0's
+        assertCoding(GENDER, "female", "Female", codings.get("sde-sex|female"));
+        assertCoding(RACE, "2054-5", "Black or African American", codings.get("sde-race|2054-5"));
+        assertEquals(4, codings.size());
+    }
+
+    @Test
+    public void conceptsAndCodeableConceptsAreCountedByTheirFirstCode() {
+        this.values.get("p0").put("SDE Payer", new Concept().withCodes(Arrays.asList(
+                new Code().withSystem("payer").withCode("1").withDisplay("Medicare"),
+                new Code().withSystem("payer").withCode("2"))));
+        this.values.get("p1").put("SDE Payer", new CodeableConcept().addCoding(new Coding("payer", "1", null)));
+
+        SupplementalDataAccumulator accumulator = accumulate("p0", "p1");
+
+        assertEquals(Collections.singletonMap("1", 2), counts(accumulator).get("SDE Payer"));
+        assertCoding("payer", "1", "Medicare", codings(accumulator).get("SDE Payer|1"));
+    }
+
+    @Test
+    public void mergedPartsMatchASinglePass() {
+        SupplementalDataAccumulator merged = accumulate("p0", "p1");
+        merged.merge(accumulate("p2", "p3"));
+
+        SupplementalDataAccumulator single = accumulate("p0", "p1", "p2", "p3");
+        assertEquals(counts(single), counts(merged));
+        assertCoding(GENDER, "female", "Female", codings(merged).get("sde-sex|female"));
+    }
+
+    @Test
+    public void addedCodingIsCopied() {
+        Coding coding = new Coding(RACE, "2106-3", "White");
+        SupplementalDataAccumulator accumulator = new SupplementalDataAccumulator();
+        accumulator.add("sde-race", coding, 3);
+        coding.setDisplay("changed");
+        accumulator.add("sde-race", new Coding(RACE, "2106-3", "other"), 1);
+
+        assertCoding(RACE, "2106-3", "White", codings(accumulator).get("sde-race|2106-3"));
+        assertEquals(Integer.valueOf(4), counts(accumulator).get("sde-race").get("2106-3"));
+        assertTrue(new SupplementalDataAccumulator().isEmpty());
+    }
+
+    private SupplementalDataAccumulator accumulate(String... patientIds) {
+        SupplementalDataAccumulator accumulator = new SupplementalDataAccumulator();
+        for (String patientId : patientIds) {
+            Patient patient = new Patient();
+            patient.setId(patientId);
+            accumulator.accumulate(this.context, patient, this.definition);
+        }
+        return accumulator;
+    }
+
+    private void values(String patientId, Object sex, List<Coding> race) {
+        Map<String, Object> patientValues = new HashMap<>();
+        patientValues.put("SDE Sex", sex);
+        patientValues.put("SDE Race", race);
+        this.values.put(patientId, patientValues);
+    }
+
+    private ExpressionDef def(String name) {
+        return new ExpressionDef() {
+            @Override
+            public Object evaluate(Context context) {
+                return values.get(((PatientContext) context).patientId).get(name);
+            }
+        }.withName(name).withContext("Patient");
+    }
+
+    private static Map<String, Map<String, Integer>> counts(SupplementalDataAccumulator accumulator) {
+        Map<String, Map<String, Integer>> counts = new TreeMap<>();
+        accumulator.forEach((key, count) -> counts.computeIfAbsent(key, x -> new TreeMap<>())
+                .put(count.getCoding().getCode(), count.getCount()));
+        return counts;
+    }
+
+    private static Map<String, Coding> codings(SupplementalDataAccumulator accumulator) {
+        Map<String, Coding> codings = new HashMap<>();
+        accumulator.forEach((key, count) -> codings.put(key + "|" + count.getCoding().getCode(), count.getCoding()));
+        return codings;
+    }
+
+    private static void assertCoding(String system, String code, String display, Coding coding) {
+        assertEquals(system, coding.getSystem());
+        assertEquals(code, coding.getCode());
+        assertEquals(display, coding.getDisplay());
+    }
+
+    private static class PatientContext extends Context {
+        private String patientId;
+
+        PatientContext(Library library) {
+            super(library);
+        }
+
+        @Override
+        public void setContextValue(String context, Object contextValue) {
+            if ("Patient".equals(context)) {
+                this.patientId = (String) contextValue;
+            }
+            super.setContextValue(context, contextValue);
+        }
+    }
+}
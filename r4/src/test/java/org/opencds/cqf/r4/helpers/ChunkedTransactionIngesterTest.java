@@ -0,0 +1,216 @@
+package org.opencds.cqf.r4.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.Test;
+import org.opencds.cqf.common.testing.TestDao;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+
+public class ChunkedTransactionIngesterTest {
+
+    private static final FhirContext FHIR_CONTEXT = FhirContext.forR4();
+
+    private final SystemDao systemDao = new SystemDao();
+
+    @Test
+    public void referencedResourcesAreWrittenFirstWithinABatch() {
+        Observation observation = observation("o1", "p1");
+        observation.setEncounter(new Reference("Encounter/e1"));
+        Encounter encounter = new Encounter();
+        encounter.setSubject(new Reference("Patient/p1"));
+
+        ServletRequestDetails details = new ServletRequestDetails(null);
+        Bundle response;
+        try (ChunkedTransactionIngester ingester = ingester(details, 10, 1)) {
+            ingester.add(Arrays.asList(put("Observation/o1", observation), put("Encounter/e1", encounter),
+                    put("Patient/p1", new Patient())));
+            response = ingester.finish();
+        }
+
+        assertEquals(Collections.singletonList(Arrays.asList("Patient/p1", "Encounter/e1", "Observation/o1")),
+                this.systemDao.transactions);
+        assertEquals("200 OK", response.getEntryFirstRep().getResponse().getStatus());
+        // The request of the submission, for its authorization and interceptors
+        assertSame(details, this.systemDao.requests.get(0));
+    }
+
+    @Test
+    public void commitsAtMostParallelismBatchesAtOnce() {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        this.systemDao.before = urls -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            Thread.sleep(20);
+            running.decrementAndGet();
+        };
+
+        try (ChunkedTransactionIngester ingester = ingester(null, 1, 2)) {
+            for (int i = 0; i < 8; i++) {
+                ingester.add(Collections.singletonList(put("Patient/p" + i, new Patient())));
+            }
+            ingester.finish();
+        }
+
+        assertEquals(8, this.systemDao.transactions.size());
+        assertTrue(String.valueOf(maxRunning.get()), maxRunning.get() <= 2);
+    }
+
+    @Test
+    public void batchWaitsForTheBatchWritingWhatItReferences() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch unrelatedCommitted = new CountDownLatch(1);
+        this.systemDao.before = urls -> {
+            if (urls.contains("Patient/p1")) {
+                release.await(10, TimeUnit.SECONDS);
+            }
+        };
+        this.systemDao.after = urls -> {
+            if (urls.contains("Patient/p2")) {
+                unrelatedCommitted.countDown();
+            }
+        };
+
+        try (ChunkedTransactionIngester ingester = ingester(null, 1, 2)) {
+            ingester.add(Collections.singletonList(put("Patient/p1", new Patient())));
+            ingester.add(Collections.singletonList(put("Observation/o1", observation("o1", "p1"))));
+            ingester.add(Collections.singletonList(put("Patient/p2", new Patient())));
+
+            // Patient/p2 doesn't wait for Patient/p1, Observation/o1 does
+            assertTrue(unrelatedCommitted.await(10, TimeUnit.SECONDS));
+            assertFalse(this.systemDao.events.contains("started Observation/o1"));
+            release.countDown();
+            ingester.finish();
+        }
+
+        List<String> events = this.systemDao.events;
+        assertTrue(events.toString(),
+                events.indexOf("committed Patient/p1") < events.indexOf("started Observation/o1"));
+        assertEquals(3, this.systemDao.transactions.size());
+    }
+
+    @Test
+    public void failedBatchIsRetriedOnceTheOthersAreDone() {
+        Bundle response;
+        try (ChunkedTransactionIngester ingester = ingester(null, 1, 1)) {
+            // The Patient only comes in the next batch
+            ingester.add(Collections.singletonList(put("Observation/o1", observation("o1", "p1"))));
+            ingester.add(Collections.singletonList(put("Patient/p1", new Patient())));
+            response = ingester.finish();
+        }
+
+        assertEquals(Arrays.asList(Collections.singletonList("Observation/o1"),
+                Collections.singletonList("Patient/p1"), Collections.singletonList("Observation/o1")),
+                this.systemDao.transactions);
+        assertEquals(2, response.getEntry().size());
+        for (Bundle.BundleEntryComponent entry : response.getEntry()) {
+            assertEquals("200 OK", entry.getResponse().getStatus());
+        }
+    }
+
+    @Test
+    public void batchFailingTheRetryIsReported() {
+        Bundle response;
+        try (ChunkedTransactionIngester ingester = ingester(null, 1, 1)) {
+            ingester.add(Collections.singletonList(put("Observation/o1", observation("o1", "missing"))));
+            ingester.add(Collections.singletonList(put("Patient/p1", new Patient())));
+            response = ingester.finish();
+        }
+
+        assertEquals(3, this.systemDao.transactions.size());
+        Bundle.BundleEntryResponseComponent failed = response.getEntry().get(0).getResponse();
+        assertEquals("400", failed.getStatus());
+        String diagnostics = ((OperationOutcome) failed.getOutcome()).getIssueFirstRep().getDiagnostics();
+        assertTrue(diagnostics, diagnostics.startsWith("Batch 1: 1 entries not committed"));
+        assertEquals("200 OK", response.getEntry().get(1).getResponse().getStatus());
+    }
+
+    private ChunkedTransactionIngester ingester(RequestDetails details, int batchSize, int parallelism) {
+        TestDao dao = new TestDao().on("transaction",
+                args -> this.systemDao.transaction((RequestDetails) args[0], (Bundle) args[1]));
+        return new ChunkedTransactionIngester(FHIR_CONTEXT, dao.systemDao(), details, batchSize, parallelism);
+    }
+
+    private static Observation observation(String id, String patientId) {
+        Observation observation = new Observation();
+        observation.setId(id);
+        observation.setSubject(new Reference("Patient/" + patientId));
+        return observation;
+    }
+
+    private static Bundle.BundleEntryComponent put(String url, Resource resource) {
+        return new Bundle.BundleEntryComponent().setResource(resource).setRequest(
+                new Bundle.BundleEntryRequestComponent().setMethod(Bundle.HTTPVerb.PUT).setUrl(url));
+    }
+
+    private interface Hook {
+        void run(List<String> urls) throws InterruptedException;
+    }
+
+    /*
+     * Writes the entries of each transaction in order, and fails the
+     * transaction if an Observation's subject hasn't been written yet.
+     */
+    private static class SystemDao {
+        private final List<List<String>> transactions = Collections.synchronizedList(new ArrayList<>());
+        private final List<RequestDetails> requests = Collections.synchronizedList(new ArrayList<>());
+        private final List<String> events = Collections.synchronizedList(new ArrayList<>());
+        private final Set<String> written = Collections.synchronizedSet(new HashSet<>());
+        private volatile Hook before = urls -> {
+        };
+        private volatile Hook after = urls -> {
+        };
+
+        Bundle transaction(RequestDetails details, Bundle transaction) throws InterruptedException {
+            List<String> urls = new ArrayList<>();
+            transaction.getEntry().forEach(entry -> urls.add(entry.getRequest().getUrl()));
+            this.transactions.add(urls);
+            this.requests.add(details);
+            this.events.add("started " + String.join(",", urls));
+            this.before.run(urls);
+
+            Set<String> writing;
+            // Copying iterates, which a synchronized set leaves to its callers to lock
+            synchronized (this.written) {
+                writing = new HashSet<>(this.written);
+            }
+            for (Bundle.BundleEntryComponent entry : transaction.getEntry()) {
+                if (entry.getResource() instanceof Observation) {
+                    String subject = ((Observation) entry.getResource()).getSubject().getReference();
+                    if (!writing.contains(subject)) {
+                        throw new InvalidRequestException("Resource " + subject + " not found");
+                    }
+                }
+                writing.add(entry.getRequest().getUrl());
+            }
+            this.written.addAll(writing);
+
+            this.events.add("committed " + String.join(",", urls));
+            this.after.run(urls);
+            return new Bundle().setType(Bundle.BundleType.TRANSACTIONRESPONSE);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package org.opencds.cqf.r4.helpers;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Practitioner;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.Test;
+import org.opencds.cqf.common.testing.TestDao;
+import org.opencds.cqf.common.testing.TestDaoRegistry;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+
+public class ReferenceResolverTest {
+
+    private static final FhirContext FHIR_CONTEXT = FhirContext.forR4();
+
+    private final Map<String, Resource> stored = new HashMap<>();
+    // "<type> <ids>" of each _id search, in the order they were run
+    private final List<String> searches = new ArrayList<>();
+
+    private final Observation observation = new Observation();
+
+    public ReferenceResolverTest() {
+        // Observation -> Patient, Encounter -> Practitioner, Patient -> Organization -> Organization
+        Organization parent = store(new Organization(), "Organization/org2");
+        Organization organization = store(new Organization(), "Organization/org1");
+        organization.setPartOf(new Reference(parent.getId()));
+        Patient patient = store(new Patient(), "Patient/p1");
+        patient.setManagingOrganization(new Reference(organization.getId()));
+        store(new Practitioner(), "Practitioner/pr1");
+        Encounter encounter = store(new Encounter(), "Encounter/e1");
+        encounter.setSubject(new Reference("Patient/p1"));
+        encounter.addParticipant().setIndividual(new Reference("Practitioner/pr1"));
+
+        this.observation.setId("Observation/o1");
+        this.observation.setSubject(new Reference("Patient/p1"));
+        this.observation.setEncounter(new Reference("Encounter/e1"));
+    }
+
+    @Test
+    public void depthZeroAddsOnlyTheResourcesAndTheIds() {
+        Parameters parameters = new Parameters();
+        resolver(0).resolve(Collections.singletonList(this.observation),
+                Collections.singletonList(new IdType("Encounter/e1")), parameters);
+
+        assertEquals(Arrays.asList("Observation/o1", "Encounter/e1"), ids(parameters));
+        assertEquals(Collections.singletonList("Encounter e1"), this.searches);
+    }
+
+    @Test
+    public void referencesAreFollowedUpToTheDepth() {
+        Parameters parameters = new Parameters();
+        resolver(2).resolve(Collections.singletonList(this.observation), Collections.emptyList(), parameters);
+
+        // Organization/org2 is three levels away
+        assertEquals(Arrays.asList("Observation/o1", "Patient/p1", "Encounter/e1", "Organization/org1",
+                "Practitioner/pr1"), ids(parameters));
+        // A search per type and level, the Encounter's Patient is already known
+        assertEquals(Arrays.asList("Patient p1", "Encounter e1", "Organization org1", "Practitioner pr1"),
+                this.searches);
+    }
+
+    @Test
+    public void resourcesAreAddedAndReadOnce() {
+        Observation other = new Observation();
+        other.setId("Observation/o2");
+        other.setSubject(new Reference("Patient/p1"));
+        other.setEncounter(new Reference("Encounter/e1"));
+        Parameters parameters = new Parameters();
+        parameters.addParameter().setName("resource").setResource(this.stored.get("Patient/p1"));
+
+        resolver(1).resolve(Arrays.asList(this.observation, other, this.observation), Collections.emptyList(),
+                parameters);
+
+        assertEquals(Arrays.asList("Patient/p1", "Observation/o1", "Observation/o2", "Encounter/e1"),
+                ids(parameters));
+        assertEquals(Collections.singletonList("Encounter e1"), this.searches);
+    }
+
+    @Test
+    public void idsAreReadInBatches() {
+        List<IIdType> ids = new ArrayList<>();
+        for (int i = 0; i < 2 * ReferenceResolver.BATCH_SIZE + 50; i++) {
+            ids.add(store(new Patient(), "Patient/batch" + i).getIdElement());
+        }
+        Parameters parameters = new Parameters();
+
+        resolver(0).resolve(Collections.emptyList(), ids, parameters);
+
+        assertEquals(ids.size(), parameters.getParameter().size());
+        List<Integer> batchSizes = new ArrayList<>();
+        this.searches.forEach(search -> batchSizes.add(search.split(",").length));
+        assertEquals(Arrays.asList(ReferenceResolver.BATCH_SIZE, ReferenceResolver.BATCH_SIZE, 50), batchSizes);
+    }
+
+    @Test
+    public void referencesThatCannotBeSearchedAreSkipped() {
+        this.observation.setDevice(new Reference("Device/d1"));
+        Parameters parameters = new Parameters();
+
+        resolver(1).resolve(Collections.singletonList(this.observation), Collections.emptyList(), parameters);
+
+        assertEquals(Arrays.asList("Observation/o1", "Patient/p1", "Encounter/e1"), ids(parameters));
+    }
+
+    private ReferenceResolver resolver(int depth) {
+        return new ReferenceResolver(FHIR_CONTEXT, registry(), depth);
+    }
+
+    private <T extends Resource> T store(T resource, String id) {
+        resource.setId(id);
+        this.stored.put(id, resource);
+        return resource;
+    }
+
+    private static List<String> ids(Parameters parameters) {
+        List<String> ids = new ArrayList<>();
+        for (Parameters.ParametersParameterComponent parameter : parameters.getParameter()) {
+            ids.add(parameter.getResource().getIdElement().toUnqualifiedVersionless().getValue());
+        }
+        return ids;
+    }
+
+    // Device has no DAO, as for a type the server doesn't support
+    private DaoRegistry registry() {
+        TestDaoRegistry registry = new TestDaoRegistry();
+        for (String resourceType : Arrays.asList("Patient", "Encounter", "Practitioner", "Organization")) {
+            registry.register(resourceType,
+                    new TestDao().on("search", args -> search(resourceType, (SearchParameterMap) args[0])));
+        }
+        return registry;
+    }
+
+    private SimpleBundleProvider search(String resourceType, SearchParameterMap map) {
+        List<String> ids = new ArrayList<>();
+        for (List<IQueryParameterType> or : map.get("_id")) {
+            for (IQueryParameterType param : or) {
+                ids.add(((TokenParam) param).getValue());
+            }
+        }
+        this.searches.add(resourceType + " " + String.join(",", ids));
+
+        List<IBaseResource> found = new ArrayList<>();
+        for (String id : ids) {
+            Resource resource = this.stored.get(resourceType + "/" + id);
+            if (resource != null) {
+                found.add(resource);
+            }
+        }
+        return new SimpleBundleProvider(found);
+    }
+}
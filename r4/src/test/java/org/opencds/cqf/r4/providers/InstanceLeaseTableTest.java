@@ -0,0 +1,52 @@
+package org.opencds.cqf.r4.providers;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.Test;
+
+public class InstanceLeaseTableTest {
+
+    private static final AtomicInteger databaseCounter = new AtomicInteger();
+
+    private final JdbcDataSource dataSource = new JdbcDataSource();
+
+    public InstanceLeaseTableTest() {
+        this.dataSource.setURL("jdbc:h2:mem:leases" + databaseCounter.incrementAndGet() + ";DB_CLOSE_DELAY=-1");
+    }
+
+    @Test
+    public void renewingUpdatesTheLeaseInPlace() {
+        InstanceLeaseTable leases = new InstanceLeaseTable(this.dataSource);
+        leases.renew("a", 1000);
+        leases.renew("b", 1500);
+        leases.renew("a", 2000);
+
+        Map<String, Long> expected = new HashMap<>();
+        expected.put("a", 2000L);
+        expected.put("b", 1500L);
+        assertEquals(expected, leases.read());
+    }
+
+    @Test
+    public void instancesSharingTheDatabaseSeeEachOthersLeases() {
+        new InstanceLeaseTable(this.dataSource).renew("a", 1000);
+
+        assertEquals(1000L, (long) new InstanceLeaseTable(this.dataSource).read().get("a"));
+    }
+
+    @Test
+    public void expiredLeasesAreRemoved() {
+        InstanceLeaseTable leases = new InstanceLeaseTable(this.dataSource);
+        leases.renew("a", 1000);
+        leases.renew("b", 2000);
+        leases.removeExpired(1500);
+
+        assertEquals(1, leases.read().size());
+        assertEquals(2000L, (long) leases.read().get("b"));
+    }
+}
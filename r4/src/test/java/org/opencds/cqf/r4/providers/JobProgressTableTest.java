@@ -0,0 +1,71 @@
+package org.opencds.cqf.r4.providers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Task;
+import org.junit.Test;
+import org.opencds.cqf.common.exceptions.AsyncRequestAcceptedException;
+import org.opencds.cqf.common.testing.TestDao;
+import org.opencds.cqf.common.testing.TestDaoRegistry;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+
+public class JobProgressTableTest {
+
+    private static final AtomicInteger databaseCounter = new AtomicInteger();
+
+    private final JdbcDataSource dataSource = new JdbcDataSource();
+
+    public JobProgressTableTest() {
+        this.dataSource.setURL("jdbc:h2:mem:progress" + databaseCounter.incrementAndGet() + ";DB_CLOSE_DELAY=-1");
+    }
+
+    @Test
+    public void savingUpdatesTheProgressInPlace() {
+        JobProgressTable progress = new JobProgressTable(this.dataSource);
+        assertNull(progress.read("1"));
+
+        progress.save("1", "10 of 100 patients processed");
+        progress.save("2", "5 patients processed");
+        progress.save("1", "20 of 100 patients processed");
+
+        assertEquals("20 of 100 patients processed", progress.read("1"));
+        assertEquals("5 patients processed", progress.read("2"));
+
+        progress.remove("1");
+        assertNull(progress.read("1"));
+    }
+
+    @Test
+    public void anyInstanceReportsTheSavedProgress() {
+        new JobProgressTable(this.dataSource).save("1", "20 of 100 patients processed");
+
+        // The instance polled is not the one running the request
+        Task task = new Task();
+        task.setId("Task/1/_history/2");
+        task.getMeta().addTag(AsyncJobProvider.JOB_TAG_SYSTEM, "$evaluate-measure", null);
+        task.setCode(new CodeableConcept().setText("$evaluate-measure"));
+        task.setStatus(Task.TaskStatus.INPROGRESS);
+        AsyncJobProvider provider = new AsyncJobProvider(registry(task), this.dataSource);
+
+        try {
+            provider.asyncStatus(new IdType("Task/1"));
+            fail();
+        } catch (AsyncRequestAcceptedException e) {
+            assertEquals("20 of 100 patients processed", e.getMessage());
+        }
+    }
+
+    private DaoRegistry registry(Task task) {
+        // The provider looks the Binary DAO up, but reporting the status doesn't use it
+        return new TestDaoRegistry().register("Task", new TestDao().on("read", args -> task.copy()))
+                .register("Binary", new TestDao());
+    }
+}
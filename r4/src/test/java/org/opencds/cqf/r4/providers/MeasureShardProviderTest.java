@@ -0,0 +1,405 @@
+package org.opencds.cqf.r4.providers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Binary;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.Measure;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.r4.model.Task;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.evaluation.EvaluationProgress;
+import org.opencds.cqf.common.evaluation.PatientShard;
+import org.opencds.cqf.common.testing.TestDao;
+import org.opencds.cqf.common.testing.TestDaoRegistry;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.model.DaoMethodOutcome;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.rest.param.DateParam;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceVersionConflictException;
+
+/*
+ * Runs several provider instances on one machine. They share the Task and
+ * Binary storage the way instances share the database, and only the version
+ * checked Task updates keep them from evaluating a shard twice.
+ */
+public class MeasureShardProviderTest {
+
+    private static final FhirContext FHIR_CONTEXT = FhirContext.forR4();
+    private static final String POPULATION_SYSTEM = "http://terminology.hl7.org/CodeSystem/measure-population";
+    private static final int PATIENTS = 100;
+    private static final String[] PROPERTIES = { "measure_shards.worker", "measure_shards.poll_interval",
+            "measure_shards.lease_timeout", "measure_shards.timeout" };
+
+    private final Map<String, String> savedProperties = new HashMap<>();
+    private final TaskStore tasks = new TaskStore();
+    private final Map<String, Binary> binaries = new ConcurrentHashMap<>();
+    // Shard number -> the instances that evaluated it
+    private final Map<Integer, List<String>> evaluations = new ConcurrentHashMap<>();
+    private final List<MeasureShardProvider> workers = new ArrayList<>();
+    private volatile long evaluationMillis = 20;
+    // The instance that queues the shards again and claims them while they are
+    // evaluated, as if the evaluating one had stalled past the lease
+    private volatile String claimedMeanwhileBy;
+
+    @Before
+    public void setUp() {
+        for (String property : PROPERTIES) {
+            this.savedProperties.put(property, HapiProperties.getProperties().getProperty(property));
+        }
+        HapiProperties.setProperty("measure_shards.worker", "true");
+        HapiProperties.setProperty("measure_shards.poll_interval", "10");
+        HapiProperties.setProperty("measure_shards.lease_timeout", "60000");
+        HapiProperties.setProperty("measure_shards.timeout", "60000");
+    }
+
+    @After
+    public void tearDown() {
+        this.workers.forEach(MeasureShardProvider::stopWorker);
+        for (String property : PROPERTIES) {
+            String value = this.savedProperties.get(property);
+            if (value == null) {
+                HapiProperties.getProperties().remove(property);
+            } else {
+                HapiProperties.setProperty(property, value);
+            }
+        }
+    }
+
+    @Test
+    public void everyShardIsEvaluatedOnceAcrossInstances() {
+        worker("worker-1");
+        worker("worker-2");
+
+        MeasureReport report = instance("coordinator").evaluateMeasureSharded(null, new IdType("Measure/test"),
+                null, null, "population", null, null, "12");
+
+        assertEquals(PATIENTS, report.getGroupFirstRep().getPopulationFirstRep().getCount());
+        assertEquals(12, this.evaluations.size());
+        Set<String> instances = ConcurrentHashMap.newKeySet();
+        for (Map.Entry<Integer, List<String>> evaluation : this.evaluations.entrySet()) {
+            assertEquals("shard " + evaluation.getKey(), 1, evaluation.getValue().size());
+            instances.addAll(evaluation.getValue());
+        }
+        // The coordinator works on its shards too, the workers poll every 10 ms
+        assertTrue(instances.toString(), instances.size() > 1);
+
+        Task job = this.tasks.find(task -> task.getPartOf().isEmpty()).get(0);
+        assertEquals(Task.TaskStatus.COMPLETED, job.getStatus());
+    }
+
+    @Test
+    public void shardOfAStoppedInstanceIsQueuedAgainWhenItsLeaseExpires() {
+        IIdType jobId = this.tasks.create(job(Task.TaskStatus.INPROGRESS));
+        // Claimed by an instance that stopped reporting progress longer than
+        // the lease ago, the lease of the active one outlasts the test
+        IIdType stale = this.tasks.create(shard(jobId, 0, 2, Task.TaskStatus.INPROGRESS, 120000));
+        // Claimed by an instance that is still at it
+        IIdType active = this.tasks.create(shard(jobId, 1, 2, Task.TaskStatus.INPROGRESS, 0));
+
+        worker("worker-1");
+        awaitStatus(stale, Task.TaskStatus.COMPLETED);
+
+        assertEquals(Collections.singletonList("worker-1"), this.evaluations.get(0));
+        assertEquals(Task.TaskStatus.INPROGRESS, this.tasks.read(active).getStatus());
+        assertEquals(null, this.evaluations.get(1));
+    }
+
+    @Test
+    public void jobFailsAndItsQueuedShardsAreCancelledAfterTheTimeout() {
+        HapiProperties.setProperty("measure_shards.timeout", "300");
+        this.evaluationMillis = 200;
+
+        try {
+            instance("coordinator").evaluateMeasureSharded(null, new IdType("Measure/test"), null, null,
+                    "population", null, null, "10");
+            fail();
+        } catch (InternalErrorException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("within 300 milliseconds"));
+        }
+
+        Task job = this.tasks.find(task -> task.getPartOf().isEmpty()).get(0);
+        assertEquals(Task.TaskStatus.FAILED, job.getStatus());
+        List<Task> shards = this.tasks.find(task -> !task.getPartOf().isEmpty());
+        int completed = 0;
+        for (Task shard : shards) {
+            if (shard.getStatus() == Task.TaskStatus.COMPLETED) {
+                completed++;
+            } else {
+                assertEquals(Task.TaskStatus.CANCELLED, shard.getStatus());
+            }
+        }
+        // Evaluated one at a time until the deadline passed
+        assertTrue(String.valueOf(completed), completed >= 1 && completed < shards.size());
+        assertEquals(completed, this.evaluations.size());
+    }
+
+    @Test
+    public void stalledInstanceDoesNotOverwriteAShardClaimedAgain() {
+        HapiProperties.setProperty("measure_shards.timeout", "300");
+        this.claimedMeanwhileBy = "worker-2";
+
+        try {
+            instance("coordinator").evaluateMeasureSharded(null, new IdType("Measure/test"), null, null,
+                    "population", null, null, "1");
+            fail();
+        } catch (InternalErrorException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("within 300 milliseconds"));
+        }
+
+        Task shard = this.tasks.find(task -> !task.getPartOf().isEmpty()).get(0);
+        assertEquals(Task.TaskStatus.INPROGRESS, shard.getStatus());
+        assertEquals("worker-2", shard.getOwner().getIdentifier().getValue());
+        assertTrue(shard.getOutput().isEmpty());
+        assertEquals(Collections.singletonList("coordinator"), this.evaluations.get(0));
+    }
+
+    private MeasureShardProvider worker(String name) {
+        MeasureShardProvider worker = instance(name);
+        worker.startWorker();
+        this.workers.add(worker);
+        return worker;
+    }
+
+    private MeasureShardProvider instance(String name) {
+        DaoRegistry registry = registry();
+        MeasureOperationsProvider measureOperations = new MeasureOperationsProvider(registry, null, null, null,
+                null, null, null, null) {
+            @Override
+            public MeasureReport evaluateMeasureShard(IdType theId, String periodStart, String periodEnd,
+                    String reportType, String productLine, String practitionerRef, PatientShard shard,
+                    EvaluationProgress progress) {
+                evaluations.computeIfAbsent(shard.getIndex(), index -> Collections.synchronizedList(
+                        new ArrayList<>())).add(name);
+                if (claimedMeanwhileBy != null) {
+                    for (Task task : tasks.find(task -> !task.getPartOf().isEmpty())) {
+                        task.setOwner(new Reference().setIdentifier(new Identifier()
+                                .setSystem(AsyncJobProvider.INSTANCE_SYSTEM).setValue(claimedMeanwhileBy)));
+                        tasks.update(task);
+                    }
+                }
+                try {
+                    Thread.sleep(evaluationMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return report(shard);
+            }
+        };
+        return new MeasureShardProvider(registry, measureOperations, new AsyncJobProvider(registry, null));
+    }
+
+    private static MeasureReport report(PatientShard shard) {
+        int count = 0;
+        for (int i = 0; i < PATIENTS; i++) {
+            if (shard.contains("p" + i)) {
+                count++;
+            }
+        }
+
+        MeasureReport report = new MeasureReport();
+        report.addGroup().addPopulation()
+                .setCode(new CodeableConcept().addCoding(
+                        new Coding().setSystem(POPULATION_SYSTEM).setCode("initial-population")))
+                .setCount(count);
+        return report;
+    }
+
+    private void awaitStatus(IIdType taskId, Task.TaskStatus status) {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (this.tasks.read(taskId).getStatus() != status) {
+            if (System.currentTimeMillis() > deadline) {
+                fail(taskId.getValue() + " is still " + this.tasks.read(taskId).getStatus());
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    private static Task job(Task.TaskStatus status) {
+        Task task = new Task();
+        task.getMeta().addTag(MeasureShardProvider.SHARD_TAG_SYSTEM, "job", null);
+        task.setStatus(status);
+        task.setFocus(new Reference("Measure/test"));
+        task.setLastModified(new Date());
+        return task;
+    }
+
+    private static Task shard(IIdType jobId, int index, int count, Task.TaskStatus status, long age) {
+        Task task = new Task();
+        task.getMeta().addTag(MeasureShardProvider.SHARD_TAG_SYSTEM, "shard", null);
+        task.setStatus(status);
+        task.setFocus(new Reference("Measure/test"));
+        task.addPartOf(new Reference(jobId.toUnqualifiedVersionless().getValue()));
+        task.addInput().setType(new CodeableConcept().setText("reportType"))
+                .setValue(new StringType("population"));
+        task.addInput().setType(new CodeableConcept().setText("shard")).setValue(new IntegerType(index));
+        task.addInput().setType(new CodeableConcept().setText("shards")).setValue(new IntegerType(count));
+        task.setLastModified(new Date(System.currentTimeMillis() - age));
+        return task;
+    }
+
+    private DaoRegistry registry() {
+        TestDao taskDao = new TestDao()
+                .on("create", args -> outcome(this.tasks.create((Task) args[0])))
+                .on("update", args -> outcome(this.tasks.update((Task) args[0])))
+                .on("read", args -> this.tasks.read((IIdType) args[0]))
+                .on("search", args -> new SimpleBundleProvider(
+                        new ArrayList<IBaseResource>(this.tasks.search((SearchParameterMap) args[0]))))
+                .on("getContext", args -> FHIR_CONTEXT);
+
+        TestDao binaryDao = new TestDao().on("create", args -> {
+            IdType id;
+            synchronized (this.binaries) {
+                id = new IdType("Binary", String.valueOf(this.binaries.size() + 1));
+                this.binaries.put(id.getIdPart(), ((Binary) args[0]).copy());
+            }
+            return outcome(id.withVersion("1"));
+        }).on("read", args -> {
+            Binary binary = this.binaries.get(((IIdType) args[0]).getIdPart());
+            if (binary == null) {
+                throw new ResourceNotFoundException((IIdType) args[0]);
+            }
+            return binary.copy();
+        }).on("getContext", args -> FHIR_CONTEXT);
+
+        TestDao measureDao = new TestDao().on("read", args -> {
+            Measure measure = new Measure();
+            measure.setId(((IIdType) args[0]).toUnqualifiedVersionless().withVersion("1"));
+            measure.setScoring(new CodeableConcept().addCoding(new Coding()
+                    .setSystem("http://terminology.hl7.org/CodeSystem/measure-scoring").setCode("cohort")));
+            return measure;
+        });
+
+        return new TestDaoRegistry().register("Task", taskDao).register("Binary", binaryDao).register("Measure",
+                measureDao);
+    }
+
+    private static DaoMethodOutcome outcome(IIdType id) {
+        DaoMethodOutcome outcome = new DaoMethodOutcome();
+        outcome.setId(id);
+        return outcome;
+    }
+
+    private interface TaskFilter {
+        boolean matches(Task task);
+    }
+
+    /*
+     * The Tasks as the database has them: every update makes a new version and
+     * an update of a version that is no longer current conflicts.
+     */
+    private static class TaskStore {
+        private final Map<String, Task> tasks = new HashMap<>();
+
+        synchronized IIdType create(Task task) {
+            String id = String.valueOf(this.tasks.size() + 1);
+            return store(id, 1, task);
+        }
+
+        synchronized IIdType update(Task task) {
+            IIdType id = task.getIdElement();
+            Task current = this.tasks.get(id.getIdPart());
+            if (current == null) {
+                throw new ResourceNotFoundException(id);
+            }
+            int version = Integer.parseInt(current.getMeta().getVersionId());
+            if (id.hasVersionIdPart() && !id.getVersionIdPart().equals(String.valueOf(version))) {
+                throw new ResourceVersionConflictException(
+                        String.format("%s is at version %d", id.getValue(), version));
+            }
+            return store(id.getIdPart(), version + 1, task);
+        }
+
+        synchronized Task read(IIdType id) {
+            Task task = this.tasks.get(id.getIdPart());
+            if (task == null) {
+                throw new ResourceNotFoundException(id);
+            }
+            return task.copy();
+        }
+
+        synchronized List<Task> find(TaskFilter filter) {
+            List<Task> found = new ArrayList<>();
+            for (Task task : this.tasks.values()) {
+                if (filter.matches(task)) {
+                    found.add(task.copy());
+                }
+            }
+            return found;
+        }
+
+        List<Task> search(SearchParameterMap map) {
+            return find(task -> {
+                for (Map.Entry<String, List<List<IQueryParameterType>>> entry : map.entrySet()) {
+                    for (List<IQueryParameterType> or : entry.getValue()) {
+                        if (or.stream().noneMatch(param -> matches(task, entry.getKey(), param))) {
+                            return false;
+                        }
+                    }
+                }
+                return true;
+            });
+        }
+
+        private static boolean matches(Task task, String name, IQueryParameterType param) {
+            switch (name) {
+            case "_tag":
+                TokenParam tag = (TokenParam) param;
+                return task.getMeta().getTag(tag.getSystem(), tag.getValue()) != null;
+            case "status":
+                return task.getStatus().toCode().equals(((TokenParam) param).getValue());
+            case "part-of":
+                String job = ((ReferenceParam) param).getValue();
+                return task.getPartOf().stream().anyMatch(reference -> job.equals(reference.getReference()));
+            case "modified":
+                // Only the LESSTHAN of the lease expiry is searched for
+                return task.getLastModified().before(((DateParam) param).getValue());
+            default:
+                throw new UnsupportedOperationException(name);
+            }
+        }
+
+        private IIdType store(String id, int version, Task task) {
+            Task stored = task.copy();
+            IdType versionedId = new IdType("Task", id, String.valueOf(version));
+            stored.setId(versionedId);
+            stored.getMeta().setVersionId(String.valueOf(version));
+            this.tasks.put(id, stored);
+            return versionedId;
+        }
+    }
+}